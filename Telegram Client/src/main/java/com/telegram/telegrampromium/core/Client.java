@@ -5,6 +5,7 @@ import com.google.gson.JsonParser;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
@@ -24,6 +25,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
  *
  * Threading:
  *  - readerThread only reads lines and dispatches; it's long-lived.
+ *    Lines are framed from raw bytes by NdjsonFramer and parsed without building a String.
  *  - send/request are synchronized on writer to keep lines intact.
  */
 public final class Client implements Closeable {
@@ -34,7 +36,7 @@ public final class Client implements Closeable {
     private final EventBus events;
 
     private Socket socket;
-    private BufferedReader in;
+    private InputStream in;
     private BufferedWriter out;
 
     private Thread readerThread;
@@ -56,7 +58,7 @@ public final class Client implements Closeable {
         if (running.get()) return;
 
         this.socket = new Socket(host, port);
-        this.in  = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        this.in  = socket.getInputStream();
         this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
 
         running.set(true);
@@ -128,32 +130,36 @@ public final class Client implements Closeable {
 
     // -------------------- reader loop -------------------- //
 
+    private void dispatch(ByteBuffer frame) {
+        if (NdjsonFramer.isBlank(frame)) return;
+        JsonObject obj;
+        try {
+            obj = JsonParser.parseReader(NdjsonFramer.reader(frame.duplicate())).getAsJsonObject();
+        } catch (Exception parseErr) {
+            System.err.println("[Client] Invalid NDJSON: " + StandardCharsets.UTF_8.decode(frame));
+            return;
+        }
+
+        String type = obj.has("type") ? obj.get("type").getAsString() : null;
+        if ("EVENT".equals(type)) {
+            events.post(obj);
+            return;
+        }
+
+        String id = obj.has("id") ? obj.get("id").getAsString() : null;
+        if (id != null) {
+            router.complete(id, obj);
+        } else {
+            // Unmatched message: log and drop
+            System.err.println("[Client] Unmatched message (no id): " + obj);
+        }
+    }
+
     private void readLoop() {
+        NdjsonFramer framer = new NdjsonFramer(16 * 1024, NdjsonFramer.MAX_FRAME_BYTES);
         try {
-            String line;
-            while (running.get() && (line = in.readLine()) != null) {
-                if (line.isBlank()) continue;
-                JsonObject obj;
-                try {
-                    obj = JsonParser.parseString(line).getAsJsonObject();
-                } catch (Exception parseErr) {
-                    System.err.println("[Client] Invalid NDJSON: " + line);
-                    continue;
-                }
-
-                String type = obj.has("type") ? obj.get("type").getAsString() : null;
-                if ("EVENT".equals(type)) {
-                    events.post(obj);
-                    continue;
-                }
-
-                String id = obj.has("id") ? obj.get("id").getAsString() : null;
-                if (id != null) {
-                    router.complete(id, obj);
-                } else {
-                    // Unmatched message: log and drop
-                    System.err.println("[Client] Unmatched message (no id): " + obj);
-                }
+            while (running.get() && framer.readFrom(in) >= 0) {
+                framer.drain(this::dispatch);
             }
         } catch (IOException e) {
             if (running.get()) {
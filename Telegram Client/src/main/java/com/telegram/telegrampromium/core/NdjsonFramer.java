@@ -0,0 +1,156 @@
+package com.telegram.telegrampromium.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Byte-level NDJSON framer used by the Client reader loop
+ * (same framing rules as the server's telegramserver.sockets.NdjsonFramer).
+ *
+ * - Bytes are read straight into one growable ByteBuffer (buffer()/readFrom()).
+ * - drain() scans only the new bytes for '\n' and hands every complete line to the
+ *   handler as a slice of that buffer: no String, no char[] copy. A trailing '\r' is dropped.
+ * - A line longer than maxFrameBytes fails with FrameTooLargeException instead of growing
+ *   the buffer without limit.
+ *
+ * Slices are only valid inside the handler call; copy them if they must outlive it.
+ * One framer per connection, used by one thread at a time.
+ */
+public final class NdjsonFramer {
+
+    /** Longest accepted line from the server (16 MiB). */
+    public static final int MAX_FRAME_BYTES = 16 << 20;
+
+    public interface Handler {
+        void onFrame(ByteBuffer frame) throws IOException;
+    }
+
+    public static final class FrameTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public FrameTooLargeException(int max) {
+            super("frame exceeds " + max + " bytes");
+        }
+    }
+
+    private final int maxFrameBytes;
+    private ByteBuffer buf;  // write mode: [0, position) holds unconsumed bytes
+    private int scanned;     // bytes before this index hold no '\n'
+
+    public NdjsonFramer(int initialCapacity, int maxFrameBytes) {
+        this.maxFrameBytes = maxFrameBytes;
+        this.buf = ByteBuffer.allocate(Math.min(initialCapacity, maxFrameBytes + 1));
+    }
+
+    /** Buffer to read into (e.g. channel.read(framer.buffer())); always has free space. */
+    public ByteBuffer buffer() {
+        if (!buf.hasRemaining()) grow();
+        return buf;
+    }
+
+    /** Reads once from a blocking stream; returns the byte count or -1 on EOF. */
+    public int readFrom(InputStream in) throws IOException {
+        ByteBuffer b = buffer();
+        int n = in.read(b.array(), b.arrayOffset() + b.position(), b.remaining());
+        if (n > 0) b.position(b.position() + n);
+        return n;
+    }
+
+    /** Hands every complete line in the buffer to the handler, then compacts. */
+    public void drain(Handler handler) throws IOException {
+        int end = buf.position();
+        int start = 0;
+        byte[] a = buf.array();
+        int base = buf.arrayOffset();
+        for (int i = scanned; i < end; i++) {
+            if (a[base + i] != '\n') continue;
+            int lineEnd = i;
+            if (lineEnd > start && a[base + lineEnd - 1] == '\r') lineEnd--;
+            if (lineEnd - start > maxFrameBytes) throw new FrameTooLargeException(maxFrameBytes);
+            ByteBuffer slice = buf.duplicate();
+            slice.limit(lineEnd).position(start);
+            handler.onFrame(slice.slice());
+            start = i + 1;
+        }
+        if (start > 0) {
+            buf.limit(end).position(start);
+            buf.compact();
+        }
+        scanned = buf.position();
+        if (scanned > maxFrameBytes) throw new FrameTooLargeException(maxFrameBytes);
+    }
+
+    private void grow() {
+        int cap = buf.capacity();
+        if (cap > maxFrameBytes) return; // drain() will reject the frame
+        ByteBuffer bigger = ByteBuffer.allocate(Math.min(cap * 2, maxFrameBytes + 1));
+        buf.flip();
+        bigger.put(buf);
+        buf = bigger;
+    }
+
+    /** True if the frame holds nothing but JSON whitespace. */
+    public static boolean isBlank(ByteBuffer frame) {
+        for (int i = frame.position(); i < frame.limit(); i++) {
+            byte b = frame.get(i);
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') return false;
+        }
+        return true;
+    }
+
+    /** Reader decoding UTF-8 straight out of a frame slice, for Gson's JsonReader. */
+    public static Reader reader(ByteBuffer frame) {
+        return new Utf8Reader(frame);
+    }
+
+    private static final class Utf8Reader extends Reader {
+        private final ByteBuffer src;
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final CharBuffer pair = CharBuffer.allocate(2); // surrogate pair split across reads
+        private boolean flushed;
+
+        Utf8Reader(ByteBuffer src) {
+            this.src = src;
+            pair.flip();
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (len == 0) return 0;
+            if (pair.hasRemaining()) {
+                cbuf[off] = pair.get();
+                return 1;
+            }
+            if (flushed) return -1;
+            CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+            CoderResult r = decoder.decode(src, out, true);
+            if (r.isOverflow() && out.position() == off) {
+                // only room for one char but the next code point needs two
+                pair.clear();
+                decoder.decode(src, pair, true);
+                pair.flip();
+                cbuf[off] = pair.get();
+                return 1;
+            }
+            if (!src.hasRemaining() && !flushed && !r.isOverflow()) {
+                decoder.flush(out);
+                flushed = true;
+            }
+            int n = out.position() - off;
+            return n == 0 && !src.hasRemaining() ? -1 : n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -1,19 +1,32 @@
 package telegramserver;
 
+import telegramserver.db.ConnectionPool;
+import telegramserver.services.MessageService;
+import telegramserver.services.UserDirectory;
 import telegramserver.sockets.SocketServer;
+import telegramserver.storage.MessageWal;
 
 import java.io.IOException;
 
 /**
  * MainServer: socket-only JSON server.
  * Starts only the socket listener (no HTTP).
+ *
+ * Usage: MainServer [blocking|virtual|nio]   (or -Dtelegram.transport=nio, -Dtelegram.port=9090)
  */
 public class MainServer {
     public static void main(String[] args) {
-        int port = 9090;
-        System.out.println("Starting Telegram socket server on port " + port);
+        MetricsReporter.startFromConfig();
+        ConnectionPool.get(); // opens telegram.db.pool.min connections in the background
+        int port = ServerConfig.getInt("telegram.port", 9090);
+        SocketServer.Mode mode = SocketServer.Mode.parse(
+                args.length > 0 ? args[0] : ServerConfig.get("telegram.transport", "blocking"));
+        System.out.println("Starting Telegram socket server on port " + port + " (" + mode + ")");
         try {
-            SocketServer.start(port);
+            MessageWal.startFromConfig();
+            MessageService.openStore();
+            UserDirectory.loadAsync();
+            SocketServer.start(port, mode);
         } catch (IOException e) {
             e.printStackTrace();
         }
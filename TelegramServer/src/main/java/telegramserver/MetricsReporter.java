@@ -0,0 +1,47 @@
+package telegramserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * MetricsReporter: components register a named snapshot supplier here.
+ * With -Dtelegram.metrics.intervalSec=N (N > 0) all snapshots are printed every N seconds.
+ */
+public final class MetricsReporter {
+    private static final Map<String, Supplier<Map<String, Object>>> sources = new ConcurrentHashMap<>();
+
+    private MetricsReporter() {}
+
+    public static void register(String name, Supplier<Map<String, Object>> snapshot) {
+        sources.put(name, snapshot);
+    }
+
+    public static Map<String, Map<String, Object>> snapshotAll() {
+        Map<String, Map<String, Object>> out = new LinkedHashMap<>();
+        sources.forEach((name, s) -> {
+            try {
+                out.put(name, s.get());
+            } catch (Exception e) {
+                out.put(name, Map.of("error", String.valueOf(e.getMessage())));
+            }
+        });
+        return out;
+    }
+
+    /** Starts periodic printing if telegram.metrics.intervalSec is set. */
+    public static void startFromConfig() {
+        int interval = ServerConfig.getInt("telegram.metrics.intervalSec", 0);
+        if (interval <= 0) return;
+        ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        ses.scheduleAtFixedRate(() -> System.out.println("📊 " + snapshotAll()), interval, interval, TimeUnit.SECONDS);
+    }
+}
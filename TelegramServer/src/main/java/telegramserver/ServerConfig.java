@@ -0,0 +1,47 @@
+package telegramserver;
+
+/**
+ * ServerConfig: one place for server tunables.
+ * Every value can be overridden at startup with a system property,
+ * e.g. {@code -Dtelegram.transport=nio -Dtelegram.nio.ioThreads=4}.
+ */
+public final class ServerConfig {
+
+    private ServerConfig() {}
+
+    public static String get(String key, String def) {
+        String v = System.getProperty(key);
+        return v == null || v.isBlank() ? def : v.trim();
+    }
+
+    public static int getInt(String key, int def) {
+        String v = System.getProperty(key);
+        if (v == null || v.isBlank()) return def;
+        try {
+            return Integer.parseInt(v.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + key + ": " + v + " (using " + def + ")");
+            return def;
+        }
+    }
+
+    public static long getLong(String key, long def) {
+        String v = System.getProperty(key);
+        if (v == null || v.isBlank()) return def;
+        try {
+            return Long.parseLong(v.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + key + ": " + v + " (using " + def + ")");
+            return def;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean def) {
+        String v = System.getProperty(key);
+        return v == null || v.isBlank() ? def : Boolean.parseBoolean(v.trim());
+    }
+
+    public static int cores() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+}
@@ -0,0 +1,460 @@
+package telegramserver.db;
+
+import telegramserver.MetricsReporter;
+import telegramserver.ServerConfig;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * ConnectionPool: the one JDBC DataSource every service borrows connections from.
+ *
+ * Configuration (system properties, see ServerConfig):
+ * - telegram.db.url / telegram.db.user / telegram.db.password
+ * - telegram.db.pool.min (default 2): connections opened at startup and kept when idle
+ * - telegram.db.pool.max (default 16): hard cap on open connections
+ * - telegram.db.pool.acquireTimeoutMs (default 5000): getConnection() waits at most this long
+ * - telegram.db.pool.validateAfterMs (default 30000): idle connections older than this are
+ *   checked with isValid() before being handed out
+ * - telegram.db.pool.idleTimeoutMs (default 600000): idle connections above min are closed
+ * - telegram.db.pool.leakDetectionMs (default 0 = off): connections held longer than this
+ *   are reported once with the stack trace of the borrower; only then does a borrow capture
+ *   its stack
+ *
+ * Borrowed connections are proxies: close() hands the physical connection back (closing any
+ * statements the borrower left open and resetting autocommit/read-only) instead of closing it.
+ * The proxy holds no lock while it calls the driver, so a virtual thread doing database I/O
+ * does not pin its carrier.
+ * Metrics are reported as "db.pool".
+ */
+public final class ConnectionPool implements DataSource {
+
+    private static volatile ConnectionPool instance;
+
+    /** The shared pool, created from ServerConfig on first use. */
+    public static ConnectionPool get() {
+        ConnectionPool p = instance;
+        if (p == null) {
+            synchronized (ConnectionPool.class) {
+                p = instance;
+                if (p == null) instance = p = fromConfig();
+            }
+        }
+        return p;
+    }
+
+    private static ConnectionPool fromConfig() {
+        return new ConnectionPool(
+                ServerConfig.get("telegram.db.url", "jdbc:postgresql://localhost:5432/Telegram"),
+                ServerConfig.get("telegram.db.user", "postgres"),
+                ServerConfig.get("telegram.db.password", "AmirMahdiImani"),
+                ServerConfig.getInt("telegram.db.pool.min", 2),
+                ServerConfig.getInt("telegram.db.pool.max", 16),
+                ServerConfig.getLong("telegram.db.pool.acquireTimeoutMs", 5000),
+                ServerConfig.getLong("telegram.db.pool.validateAfterMs", 30_000),
+                ServerConfig.getLong("telegram.db.pool.idleTimeoutMs", 600_000),
+                ServerConfig.getLong("telegram.db.pool.leakDetectionMs", 0));
+    }
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long acquireTimeoutMs;
+    private final long validateAfterMs;
+    private final long idleTimeoutMs;
+    private final long leakDetectionMs;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final ArrayDeque<Physical> idle = new ArrayDeque<>(); // guarded by lock, most recently used first
+    private int total;                                           // guarded by lock, open + being opened
+    private int waiting;                                         // guarded by lock
+    private final Set<Borrowed> borrowed = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder destroyed = new LongAdder();
+    private final LongAdder validationFailures = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    public ConnectionPool(String url, String user, String password, int minSize, int maxSize,
+                          long acquireTimeoutMs, long validateAfterMs, long idleTimeoutMs, long leakDetectionMs) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = Math.max(1, maxSize);
+        this.minSize = Math.max(0, Math.min(minSize, this.maxSize));
+        this.acquireTimeoutMs = acquireTimeoutMs;
+        this.validateAfterMs = validateAfterMs;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.leakDetectionMs = leakDetectionMs;
+
+        ScheduledExecutorService housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "db-pool-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+        housekeeper.execute(this::fillToMin);
+        long period = Math.max(1000, Math.min(leakDetectionMs > 0 ? leakDetectionMs / 2 : 30_000, 30_000));
+        housekeeper.scheduleWithFixedDelay(this::housekeep, period, period, TimeUnit.MILLISECONDS);
+
+        MetricsReporter.register("db.pool", this::snapshot);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMs);
+        while (true) {
+            Physical p = takeOrReserve(deadline);
+            if (p == null) {
+                p = open(); // we reserved a slot: open outside the lock
+            } else if (System.currentTimeMillis() - p.lastUsed > validateAfterMs && !isValid(p)) {
+                validationFailures.increment();
+                destroy(p);
+                continue;
+            }
+            long waited = System.nanoTime() - start;
+            waitNanos.add(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+            acquired.increment();
+            return lend(p);
+        }
+    }
+
+    /** An idle connection, or null after reserving a slot for a new one; waits until deadline. */
+    private Physical takeOrReserve(long deadline) throws SQLException {
+        lock.lock();
+        try {
+            while (true) {
+                Physical p = idle.pollFirst();
+                if (p != null) return p;
+                if (total < maxSize) {
+                    total++;
+                    return null;
+                }
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    timeouts.increment();
+                    throw new SQLTimeoutException("Timed out after " + acquireTimeoutMs
+                            + " ms waiting for a database connection (max=" + maxSize + ", in use=" + borrowed.size() + ")");
+                }
+                waiting++;
+                try {
+                    available.awaitNanos(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for a database connection", e);
+                } finally {
+                    waiting--;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Physical open() throws SQLException {
+        try {
+            Connection c = DriverManager.getConnection(url, user, password);
+            created.increment();
+            return new Physical(c);
+        } catch (SQLException | RuntimeException e) {
+            lock.lock();
+            try {
+                total--;
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    private boolean isValid(Physical p) {
+        try {
+            return p.connection.isValid(2);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private Connection lend(Physical p) {
+        Borrowed b = new Borrowed(p, leakDetectionMs > 0 ? new Exception("connection borrowed here") : null);
+        borrowed.add(b);
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, b);
+    }
+
+    /** Takes a connection back from a borrower; broken ones are closed instead of pooled. */
+    private void giveBack(Borrowed b) {
+        borrowed.remove(b);
+        Physical p = b.physical;
+        boolean reusable;
+        try {
+            b.closeStatements();
+            if (!p.connection.getAutoCommit()) {
+                p.connection.rollback();
+                p.connection.setAutoCommit(true);
+            }
+            if (p.connection.isReadOnly()) p.connection.setReadOnly(false);
+            reusable = !p.connection.isClosed();
+        } catch (SQLException e) {
+            reusable = false;
+        }
+        if (!reusable) {
+            destroy(p);
+            return;
+        }
+        p.lastUsed = System.currentTimeMillis();
+        lock.lock();
+        try {
+            idle.addFirst(p);
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void destroy(Physical p) {
+        try {
+            p.connection.close();
+        } catch (SQLException ignored) {
+        }
+        destroyed.increment();
+        lock.lock();
+        try {
+            total--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void fillToMin() {
+        while (true) {
+            lock.lock();
+            try {
+                if (total >= minSize) return;
+                total++;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                Physical p = open();
+                lock.lock();
+                try {
+                    idle.addLast(p);
+                    available.signal();
+                } finally {
+                    lock.unlock();
+                }
+            } catch (SQLException e) {
+                System.err.println("⚠️ Database pool could not open a connection: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /** Closes idle connections above min that sat unused too long, reports leaks, refills to min. */
+    private void housekeep() {
+        try {
+            List<Physical> expired = new ArrayList<>();
+            long now = System.currentTimeMillis();
+            lock.lock();
+            try {
+                Iterator<Physical> it = idle.descendingIterator(); // least recently used first
+                while (it.hasNext() && total - expired.size() > minSize) {
+                    Physical p = it.next();
+                    if (now - p.lastUsed < idleTimeoutMs) break;
+                    it.remove();
+                    expired.add(p);
+                }
+            } finally {
+                lock.unlock();
+            }
+            expired.forEach(this::destroy);
+
+            if (leakDetectionMs > 0) {
+                for (Borrowed b : borrowed) {
+                    if (!b.leakReported && now - b.borrowedAt > leakDetectionMs) {
+                        b.leakReported = true;
+                        leaks.increment();
+                        System.err.println("⚠️ Possible connection leak: held for " + (now - b.borrowedAt) + " ms");
+                        b.borrowStack.printStackTrace();
+                    }
+                }
+            }
+            fillToMin();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        int idleCount, totalCount, waitingCount;
+        lock.lock();
+        try {
+            idleCount = idle.size();
+            totalCount = total;
+            waitingCount = waiting;
+        } finally {
+            lock.unlock();
+        }
+        long n = acquired.sum();
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("active", borrowed.size());
+        m.put("idle", idleCount);
+        m.put("total", totalCount);
+        m.put("max", maxSize);
+        m.put("waiting", waitingCount);
+        m.put("acquired", n);
+        m.put("avgWaitMicros", n == 0 ? 0 : waitNanos.sum() / n / 1000);
+        m.put("maxWaitMicros", maxWaitNanos.get() / 1000);
+        m.put("timeouts", timeouts.sum());
+        m.put("created", created.sum());
+        m.put("destroyed", destroyed.sum());
+        m.put("validationFailures", validationFailures.sum());
+        m.put("leaks", leaks.sum());
+        return m;
+    }
+
+    private static final class Physical {
+        final Connection connection;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Physical(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    /** Handler behind one borrowed Connection proxy. */
+    private final class Borrowed implements InvocationHandler {
+        final Physical physical;
+        final Exception borrowStack;
+        final long borrowedAt = System.currentTimeMillis();
+        final ConcurrentLinkedQueue<Statement> statements = new ConcurrentLinkedQueue<>();
+        volatile boolean leakReported;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        Borrowed(Physical physical, Exception borrowStack) {
+            this.physical = physical;
+            this.borrowStack = borrowStack;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (closed.compareAndSet(false, true)) giveBack(this);
+                    return null;
+                case "isClosed":
+                    return closed.get() || physical.connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled" + physical.connection;
+                case "unwrap":
+                    if (((Class<?>) args[0]).isInstance(proxy)) return proxy;
+                    break;
+                case "isWrapperFor":
+                    if (((Class<?>) args[0]).isInstance(proxy)) return true;
+                    break;
+                default:
+            }
+            if (closed.get()) throw new SQLException("Connection is closed");
+            try {
+                Object result = method.invoke(physical.connection, args);
+                if (result instanceof Statement) statements.add((Statement) result);
+                return result;
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        void closeStatements() {
+            Statement s;
+            while ((s = statements.poll()) != null) {
+                try {
+                    s.close();
+                } catch (SQLException ignored) {
+                }
+            }
+        }
+    }
+
+    // ---- remaining DataSource methods ----
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("pool credentials come from telegram.db.user/password");
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) return iface.cast(this);
+        throw new SQLException("not a wrapper for " + iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+}
@@ -1,20 +1,22 @@
 package telegramserver.models;
 
+import telegramserver.db.ConnectionPool;
+
 import java.sql.*;
 import java.time.LocalDateTime;
 
 // Representing a message between users
 public class Message {
-    private int id;
+    private long id;
     private String content;
     private int senderId;
     private int chatid;
-    private int replyid;
+    private long replyid;
     private Timestamp sentat;
     private boolean isdeleted;
     private boolean isedited;
 
-    public Message(int id, String content, int senderId, int chatid, int replyid,Timestamp sentat, boolean isdeleted, boolean isedited) {
+    public Message(long id, String content, int senderId, int chatid, long replyid,Timestamp sentat, boolean isdeleted, boolean isedited) {
         this.id = id;
         this.content = content;
         this.senderId = senderId;
@@ -24,10 +26,10 @@ public class Message {
         this.isdeleted = isdeleted;
         this.isedited = isedited;
     }
-    public int getId() {
+    public long getId() {
         return id;
     }
-    public void setId(int id) {
+    public void setId(long id) {
         this.id = id;
     }
     public String getContent() {
@@ -39,7 +41,7 @@ public class Message {
     public int getChatid() {
         return chatid;
     }
-    public int getReplyid() {
+    public long getReplyid() {
         return replyid;
     }
     public Timestamp getSentat() {
@@ -52,24 +54,18 @@ public class Message {
         return isedited;
     }
     public void addmessages(){
-        String url = "jdbc:postgresql://localhost:5432/Telegram";
-        String user = "postgres";
-        String password = "AmirMahdiImani";
-
         String sql = "INSERT INTO messages (id,content,senderid,chatid,replyid,sentat,isdeleted,isedited) VALUES (?,?,?,?,?,?,?,?)";
-        try {
-            Connection con = DriverManager.getConnection(url, user, password);
-            PreparedStatement ps = con.prepareStatement(sql);
-            ps.setInt(1, id);
+        try (Connection con = ConnectionPool.get().getConnection();
+             PreparedStatement ps = con.prepareStatement(sql)) {
+            ps.setLong(1, id);
             ps.setString(2, content);
             ps.setInt(3, senderId);
             ps.setInt(4, chatid);
-            ps.setInt(5, replyid);
+            ps.setLong(5, replyid);
             ps.setTimestamp(6, sentat);
             ps.setBoolean(7, isdeleted);
             ps.setBoolean(8, isedited);
             ps.executeUpdate();
-            con.close();
         }
         catch (SQLException e) {
             throw new RuntimeException(e);
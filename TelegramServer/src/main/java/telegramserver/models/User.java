@@ -1,5 +1,7 @@
 package telegramserver.models;
 
+import telegramserver.db.ConnectionPool;
+
 import java.sql.*;
 import java.time.LocalDateTime;
 
@@ -73,14 +75,11 @@ public class User {
 
     public String getPassword() {return password;}
 
-    public void adduser() {
-        String url = "jdbc:postgresql://localhost:5432/Telegram";
-        String user = "postgres";
-        String password = "AmirMahdiImani";
-
+    /** Inserts this user; throws if the row was not written (e.g. a taken username, or no database). */
+    public void adduser() throws SQLException {
         String sql = "INSERT INTO users (id, first_name, second_name, bio, phone_number, username, tsw_hash, last_seen, is_online, registered_at , password) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ? ) ";
 
-        try (Connection conn = DriverManager.getConnection(url, user, password);
+        try (Connection conn = ConnectionPool.get().getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
 
             stmt.setInt(1, this.id);
@@ -96,9 +95,6 @@ public class User {
             stmt.setString(11, this.password);
             stmt.executeUpdate();
             System.out.println("User inserted successfully into the database.");
-
-        } catch (SQLException e) {
-            System.err.println("Database error: " + e.getMessage());
         }
     }
 
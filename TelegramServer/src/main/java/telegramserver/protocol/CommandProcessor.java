@@ -1,112 +1,136 @@
 package telegramserver.protocol;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.reflect.TypeToken;
+import telegramserver.ServerConfig;
 import telegramserver.models.Message;
+import telegramserver.models.User;
+import telegramserver.search.MessageIndex;
+import telegramserver.search.TextNormalizer;
+import telegramserver.search.UserIndex;
 import telegramserver.services.*;
 import telegramserver.sockets.ClientRegistry;
 
-import java.io.BufferedWriter;
-import java.io.IOException;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.*;
-
-import static telegramserver.services.GroupService.resolveUserId;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 public class CommandProcessor {
-    private static final Gson gson = new Gson();
-
-    public static String processRequest(JsonObject req, String writerUsername) {
-        String type = req.has("type") ? req.get("type").getAsString() : null;
-        String id = req.has("id") ? req.get("id").getAsString() : UUID.randomUUID().toString();
+    private static final CommandRegistry commands = new CommandRegistry("commands");
+    private static final long PERSIST_TIMEOUT_MS = ServerConfig.getLong("telegram.messages.ackTimeoutMs", 5000);
+    private static final int HISTORY_MAX_LIMIT = ServerConfig.getInt("telegram.history.maxLimit", 100);
+    private static final int CHAT_LIST_MAX_LIMIT = ServerConfig.getInt("telegram.inbox.maxLimit", 100);
+    private static final int SEARCH_MAX_LIMIT = ServerConfig.getInt("telegram.search.maxLimit", 50);
+    private static final int USERS_MAX_LIMIT = ServerConfig.getInt("telegram.users.directory.maxLimit", 50);
+    private static final int CONTACTS_IMPORT_MAX = ServerConfig.getInt("telegram.contacts.importMax", 1000);
+
+    static {
+        Gson gson = new Gson();
+        Function<Request, Object> chatKey = r -> payloadKey(r, "chat:", "chatId");
+        Function<Request, Object> messageKey = r -> payloadKey(r, "msg:", "messageId");
+        commands.add("REGISTER", (r, id, u) -> handleRegister(r.body(UserService.RegisterRequest.class), id))
+                .body(gson.getAdapter(UserService.RegisterRequest.class)::read).barrier();
+        commands.add("LOGIN", (r, id, u) -> handleLogin(r.body(UserService.LoginRequest.class), id))
+                .body(gson.getAdapter(UserService.LoginRequest.class)::read).barrier();
+        commands.add("RESUME", (r, id, u) -> handleResume(r.tree(), id)).barrier();
+        commands.add("GET_HOME", (r, id, u) -> handleGetHome(r.tree(), id, u));
+        commands.add("GET_USER_PROFILE", (r, id, u) -> handleGetUserProfile(r.tree(), id)).auth();
+        commands.add("SEARCH_ADVANCED", (r, id, u) -> handleSearchAdvanced(r.tree(), id)).auth().bulk();
+        commands.add("LIST_CHATS", (r, id, u) -> handleListChats(r.tree(), id, u));
+        commands.add("CHAT_LIST", (r, id, u) -> handleChatList(r.tree(), id, u)).auth();
+        commands.add("CHAT_PIN", (r, id, u) -> handleChatPin(r.tree(), id, u)).auth().orderedBy(chatKey);
+        commands.addAsync("SEND_MESSAGE", (r, id, u, ex) -> handleSend(r.body(Requests.SendMessage.class), id, u, ex), "SEND")
+                .auth().body(Requests.SendMessage::read)
+                .orderedBy(r -> "chat:" + r.body(Requests.SendMessage.class).chatId());
+        commands.addAsync("SEND_CHANNEL_MESSAGE", (r, id, u, ex) -> handleSendChannel(r.body(Requests.SendChannelMessage.class), id, u, ex), "SEND_CHANNEL")
+                .auth().body(Requests.SendChannelMessage::read)
+                .orderedBy(r -> "channel:" + r.body(Requests.SendChannelMessage.class).channelId());
+        commands.add("CREATE_CHANNEL", (r, id, u) -> handleCreateChannel(r.tree(), id, u));
+        commands.add("JOIN_CHANNEL", (r, id, u) -> handleJoinChannel(r.tree(), id));
+        commands.add("GET_CHANNEL", (r, id, u) -> handleGetChannel(r.tree(), id));
+        commands.add("GET_USER", (r, id, u) -> handleGetUser(r.tree(), id)).auth();
+        commands.add("SEARCH_USER", (r, id, u) -> handleSearchUser(r.tree(), id)).auth();
+        commands.add("SEARCH_CHAT", (r, id, u) -> handleSearchChat(r.tree(), id, u)).auth();
+        commands.add("JOIN_CHAT", (r, id, u) -> handleJoin(r.tree(), id, u), "JOIN").auth().orderedBy(chatKey);
+        commands.add("LEAVE_CHAT", (r, id, u) -> handleLeave(r.tree(), id, u), "LEAVE").auth().orderedBy(chatKey);
+        commands.add("CREATE_GROUP", (r, id, u) -> handleCreateGroup(r.tree(), id, u));
+        commands.add("JOIN_GROUP", (r, id, u) -> handleJoinGroup(r.tree(), id));
+        commands.add("LEAVE_GROUP", (r, id, u) -> handleLeaveGroup(r.tree(), id));
+        commands.add("START_PV", (r, id, u) -> handleStartPV(r.tree(), id, u)).auth();
+        commands.add("SEEN", (r, id, u) -> handleSeen(r.body(Requests.Seen.class), id, u))
+                .auth().body(Requests.Seen::read);
+        commands.add("CHAT_READ", (r, id, u) -> handleChatRead(r.tree(), id, u)).auth();
+        commands.add("ADD_REACTION", (r, id, u) -> handleAddReaction(r.tree(), id, u)).auth().orderedBy(messageKey);
+        commands.add("EDIT_MESSAGE", (r, id, u) -> handleEditMessage(r.tree(), id, u)).auth().orderedBy(messageKey);
+        commands.add("DELETE_MESSAGE", (r, id, u) -> handleDeleteMessage(r.tree(), id, u)).auth().orderedBy(messageKey);
+        commands.add("REPLY_MESSAGE", (r, id, u) -> handleReplyMessage(r.tree(), id, u)).auth().orderedBy(chatKey);
+        commands.add("SEND_FILE", (r, id, u) -> handleSendFile(r.tree(), id, u)).auth().bulk().orderedBy(chatKey);
+
+        commands.addReq("contacts_list", (r, id, u) -> handleContactsList(r.tree(), id, u)).auth().bulk();
+        commands.addReq("contacts_add", (r, id, u) -> handleContactsAdd(r.tree(), id, u)).auth();
+        commands.addReq("contacts_import", (r, id, u) -> handleContactsImport(r.tree(), id, u)).auth().bulk();
+        commands.addReq("messages_history", (r, id, u) -> handleMessagesHistory(r.tree(), id, u)).auth();
+    }
+
+    /**
+     * Order key prefix + payload field, or null (unordered) when the field is missing or not a
+     * plain value (null, object, array); the handler then rejects the request as usual.
+     */
+    private static Object payloadKey(Request r, String prefix, String field) {
+        JsonObject req = r.tree();
+        JsonObject payload = req.has("payload") && req.get("payload").isJsonObject() ? req.getAsJsonObject("payload") : req;
+        JsonElement value = payload.get(field);
+        return value != null && value.isJsonPrimitive() ? prefix + value.getAsString() : null;
+    }
+
+    /** Dispatch table, also used by RequestDecoder to resolve the command while decoding. */
+    static CommandRegistry commands() {
+        return commands;
+    }
+
+    /**
+     * Runs the command the request resolved to. Unknown commands, missing login and
+     * handler failures all become ERROR responses; every call is timed per command.
+     * The future is already complete unless the command is asynchronous (e.g. SEND_MESSAGE
+     * waiting for durability), whose remaining work then runs on executor. It never fails.
+     */
+    public static CompletableFuture<Response> processRequest(Request request, String writerUsername, Executor executor) {
+        String id = request.id() != null ? request.id() : UUID.randomUUID().toString();
+        CommandRegistry.Command command = request.command();
+        if (command == null) {
+            return CompletableFuture.completedFuture(
+                    SocketProtocol.buildResponse("ERROR", id, Map.of("message", "unknown type: " + request.type())));
+        }
+        if (command.requiresAuth() && writerUsername == null) {
+            return CompletableFuture.completedFuture(
+                    SocketProtocol.buildResponse("ERROR", id, Map.of("message", "login required")));
+        }
 
+        long start = System.nanoTime();
+        CompletableFuture<Response> response;
         try {
-            switch (type == null ? "" : type.toUpperCase(Locale.ROOT)) {
-                case "REGISTER":
-                    return handleRegister(req, id);
-                case "LOGIN":
-                    return handleLogin(req, id);
-                case "GET_HOME":
-                    return handleGetHome(req, id, writerUsername);
-                case "GET_USER_PROFILE":
-                    return handleGetUserProfile(req, id);
-                case "SEARCH_ADVANCED":
-                    return handleSearchAdvanced(req, id);
-                case "LIST_CHATS":
-                    return handleListChats(req, id, writerUsername);
-                case "SEND":
-                case "SEND_MESSAGE":
-                    return handleSend(req, id, writerUsername);
-                case "SEND_CHANNEL":
-                case "SEND_CHANNEL_MESSAGE":
-                    return handleSendChannel(req, id, writerUsername);
-                case "CREATE_CHANNEL":
-                    return handleCreateChannel(req, id, writerUsername);
-                case "JOIN_CHANNEL":
-                    return handleJoinChannel(req, id);
-                case "GET_CHANNEL":
-                    return handleGetChannel(req, id);
-                case "GET_USER":
-                    return handleGetUser(req, id);
-                case "SEARCH_USER":
-                    return handleSearchUser(req, id);
-                case "SEARCH_CHAT":
-                    return handleSearchChat(req, id);
-                case "JOIN":
-                case "JOIN_CHAT":
-                    return handleJoin(req, id, writerUsername);
-                case "LEAVE":
-                case "LEAVE_CHAT":
-                    return handleLeave(req, id, writerUsername);
-                case "CREATE_GROUP":
-                    return handleCreateGroup(req, id, writerUsername);
-                case "JOIN_GROUP":
-                    return handleJoinGroup(req, id);
-                case "LEAVE_GROUP":
-                    return handleLeaveGroup(req, id);
-                case "START_PV":
-                    return handleStartPV(req, id, writerUsername);
-                case "SEEN":
-                    return handleSeen(req, id, writerUsername);
-                case "ADD_REACTION":
-                    return handleAddReaction(req, id, writerUsername);
-                case "EDIT_MESSAGE":
-                    return handleEditMessage(req, id, writerUsername);
-                case "DELETE_MESSAGE":
-                    return handleDeleteMessage(req, id, writerUsername);
-                case "REPLY_MESSAGE":
-                    return handleReplyMessage(req, id, writerUsername);
-                case "SEND_FILE":
-                    return handleSendFile(req, id, writerUsername);
-                case "REQ":
-                    if (req.has("cmd")) {
-                        String cmd = req.get("cmd").getAsString();
-                        switch (cmd) {
-                            case "contacts_list":
-                                return handleContactsList(req, id, writerUsername);
-                            case "contacts_add":
-                                return handleContactsAdd(req, id, writerUsername);
-                        }
-                    }
-                    break;
-                default:
-                    return SocketProtocol.buildResponse("ERROR", id, Map.of("message", "unknown type: " + type));
-            }
+            response = command.handler().handle(request, id, writerUsername, executor);
         } catch (Exception e) {
-            e.printStackTrace();
-            return SocketProtocol.buildResponse("ERROR", id, Map.of("message", "server error: " + e.getMessage()));
+            response = CompletableFuture.failedFuture(e);
         }
-        return SocketProtocol.buildResponse("ERROR", id, Map.of("message", "unknown type: " + type));
+        return response.handle((r, e) -> {
+            command.record(System.nanoTime() - start, e != null);
+            if (e == null) return r;
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            cause.printStackTrace();
+            return SocketProtocol.buildResponse("ERROR", id, Map.of("message", "server error: " + cause.getMessage()));
+        });
     }
 
-    private static String handleRegister(JsonObject req, String id) {
+    private static Response handleRegister(UserService.RegisterRequest registerReq, String id) {
         try {
-            JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
-            UserService.RegisterRequest registerReq = gson.fromJson(payload, UserService.RegisterRequest.class);
-            String resJson = UserService.registerUser(registerReq);
-            Map<String, Object> parsed = gson.fromJson(resJson, new TypeToken<Map<String, Object>>() {}.getType());
+            Map<String, Object> parsed = UserService.registerUser(registerReq);
             String status = (String) parsed.getOrDefault("status", "error");
             return SocketProtocol.buildResponse(
                     "success".equalsIgnoreCase(status) ? "REGISTER_OK" : "REGISTER_FAIL",
@@ -116,18 +140,18 @@ public class CommandProcessor {
         }
     }
 
-    private static String handleLogin(JsonObject req, String id) {
+    private static Response handleLogin(UserService.LoginRequest loginReq, String id) {
         try {
-            JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
-            UserService.LoginRequest loginReq = gson.fromJson(payload, UserService.LoginRequest.class);
-            String resJson = UserService.loginUser(loginReq);
-            Map<String, Object> parsed = gson.fromJson(resJson, new TypeToken<Map<String, Object>>() {}.getType());
+            Map<String, Object> parsed = UserService.loginUser(loginReq);
             String status = (String) parsed.getOrDefault("status", "error");
             if ("success".equalsIgnoreCase(status)) {
+                SessionTokens.Token token = SessionTokens.issue(loginReq.username);
                 return SocketProtocol.buildResponse("LOGIN_OK", id, Map.of(
                         "username", loginReq.username,
-                        "message", parsed.get("message")
-                ));
+                        "message", parsed.get("message"),
+                        "sessionToken", token.value(),
+                        "tokenExpiresAt", token.expiresAt()
+                )).authenticate(loginReq.username);
             } else {
                 return SocketProtocol.buildResponse("LOGIN_FAIL", id, Map.of("message", parsed.get("message")));
             }
@@ -136,7 +160,27 @@ public class CommandProcessor {
         }
     }
 
-    private static String handleGetHome(JsonObject req, String id, String username) {
+    /**
+     * RESUME {token, lastSeq?}: logs the connection in again with the sessionToken of an earlier
+     * LOGIN_OK/RESUME_OK, checked in memory only. With lastSeq (the seq of the last event the
+     * client received), the events it missed follow RESUME_OK, then "replay_done".
+     */
+    private static Response handleResume(JsonObject req, String id) {
+        JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
+        String username = SessionTokens.verify(optString(payload, "token"));
+        if (username == null) {
+            return SocketProtocol.buildResponse("RESUME_FAIL", id, Map.of("message", "Invalid or expired token"));
+        }
+        Long lastSeq = payload.has("lastSeq") && !payload.get("lastSeq").isJsonNull() ? payload.get("lastSeq").getAsLong() : null;
+        SessionTokens.Token token = SessionTokens.issue(username);
+        return SocketProtocol.buildResponse("RESUME_OK", id, Map.of(
+                "username", username,
+                "sessionToken", token.value(),
+                "tokenExpiresAt", token.expiresAt()
+        )).authenticate(username, lastSeq);
+    }
+
+    private static Response handleGetHome(JsonObject req, String id, String username) {
         Map<String, Object> home = new HashMap<>();
         home.put("user", Map.of(
                 "username", username != null ? username : "guest",
@@ -151,65 +195,155 @@ public class CommandProcessor {
         return SocketProtocol.buildResponse("GET_HOME_OK", id, Map.of("home", home));
     }
 
-    private static String handleGetUserProfile(JsonObject req, String id) {
+    /** GET_USER_PROFILE {userId}: the full profile, phone included, from UserCache. */
+    private static Response handleGetUserProfile(JsonObject req, String id) {
         JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
         if (!payload.has("userId")) return SocketProtocol.buildResponse("GET_USER_PROFILE_FAILED", id, Map.of("message", "userId required"));
-        int uid = payload.get("userId").getAsInt();
-        Map<String, Object> profile = new HashMap<>();
-        profile.put("id", uid);
-        profile.put("username", "user" + uid);
-        profile.put("bio", "This is user " + uid);
-        profile.put("phone", "09120000" + uid);
-        profile.put("lastSeen", System.currentTimeMillis());
-        profile.put("isOnline", false);
+        User user = UserCache.get(payload.get("userId").getAsInt());
+        if (user == null) return SocketProtocol.buildResponse("GET_USER_PROFILE_FAILED", id, Map.of("message", "User not found"));
+        Map<String, Object> profile = userDto(user);
+        profile.put("phone", user.getPhoneNumber());
         return SocketProtocol.buildResponse("GET_USER_PROFILE_OK", id, Map.of("profile", profile));
     }
 
-    private static String handleSearchAdvanced(JsonObject req, String id) {
-        JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
+    /** The public fields of a user; online is live presence, lastSeen is now while online. */
+    private static Map<String, Object> userDto(User user) {
+        boolean online = ClientRegistry.getSession(user.getUsername()) != null;
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("id", user.getId());
+        m.put("username", user.getUsername());
+        m.put("firstName", user.getFirstName());
+        m.put("secondName", user.getSecondName());
+        m.put("bio", user.getBio());
+        m.put("isOnline", online);
+        Long lastSeen = user.getLastSeen() != null ? user.getLastSeen().getTime() : null;
+        m.put("lastSeen", online ? Long.valueOf(System.currentTimeMillis()) : lastSeen);
+        return m;
+    }
+
+    /**
+     * SEARCH_ADVANCED {query?, username?, firstName?, secondName?, phone?, limit?}: users
+     * matching every given field (query: any name field, or a phone number), best first.
+     * The phone is echoed only when it was part of the criteria.
+     */
+    private static Response handleSearchAdvanced(JsonObject req, String id) {
+        JsonObject payload = req.has("payload") && req.get("payload").isJsonObject() ? req.getAsJsonObject("payload") : req;
+        List<UserIndex.Word> words = new ArrayList<>();
+        words.addAll(UserIndex.words(optString(payload, "query"), UserIndex.NAMES | UserIndex.PHONE));
+        words.addAll(UserIndex.words(optString(payload, "username"), UserIndex.USERNAME));
+        words.addAll(UserIndex.words(optString(payload, "firstName"), UserIndex.FIRST_NAME));
+        words.addAll(UserIndex.words(optString(payload, "secondName"), UserIndex.SECOND_NAME));
+        String phone = optString(payload, "phone");
+        if (!phone.isBlank()) {
+            if (UserIndex.phoneTerm(phone) == null) return userSearchError("SEARCH_ADVANCED_FAILED", id, "invalid phone");
+            words.addAll(UserIndex.words(phone, UserIndex.PHONE));
+        }
+        if (words.isEmpty()) return userSearchError("SEARCH_ADVANCED_FAILED", id, "search criteria required");
+
+        boolean byPhone = words.stream().anyMatch(w -> w.fields() == UserIndex.PHONE);
         List<Map<String, Object>> results = new ArrayList<>();
-        results.add(Map.of("id", 1, "username", "ali123", "bio", "hello there", "phone", "0912000000"));
-        results.add(Map.of("id", 2, "username", "nadi", "bio", "bio text", "phone", "09123334444"));
+        for (UserIndex.Match m : UserDirectory.search(words, userSearchLimit(payload))) results.add(userResult(m, byPhone));
         return SocketProtocol.buildResponse("SEARCH_ADVANCED_OK", id, Map.of("results", results));
     }
 
-    private static String handleListChats(JsonObject req, String id, String username) {
+    private static Response handleListChats(JsonObject req, String id, String username) {
         return SocketProtocol.buildResponse("LIST_CHATS_OK", id, Map.of("chats", new ArrayList<>()));
     }
 
-    private static String handleSend(JsonObject req, String id, String senderUsername) {
-        JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
-        int chatId = payload.has("chatId") ? payload.get("chatId").getAsInt() : 0;
-        String text = payload.has("text") ? payload.get("text").getAsString() : "";
-        Message m = new Message(0, text, 0, chatId, 0, new Timestamp(System.currentTimeMillis()), false, false);
-        MessageService.saveMessage(m);
-        String syntheticMsgId = "M" + System.currentTimeMillis();
-        Map<String, Object> resp = Map.of("chatId", chatId, "msgId", syntheticMsgId, "ts", System.currentTimeMillis() / 1000);
-        Map<String, Object> eventBody = Map.of(
-                "chatId", chatId,
-                "msg", Map.of("id", syntheticMsgId, "from", senderUsername, "text", text, "ts", System.currentTimeMillis() / 1000)
-        );
-        broadcastToChatMembers(chatId, SocketProtocol.buildEvent("message_new", eventBody), senderUsername);
-        return SocketProtocol.buildResponse("SEND_OK", id, resp);
-    }
-
-    private static String handleSendChannel(JsonObject req, String id, String senderUsername) {
+    /**
+     * CHAT_LIST {cursor?, limit?}: one page of the caller's inbox, pinned chats first, then by
+     * last activity. Served from InboxService; the cursor is the last item's sort key.
+     */
+    private static Response handleChatList(JsonObject req, String id, String username) {
+        int limit = req.has("limit") ? req.get("limit").getAsInt() : 50;
+        limit = Math.max(1, Math.min(limit, CHAT_LIST_MAX_LIMIT));
+
+        InboxService.Key after = null;
+        String cursor = req.has("cursor") && !req.get("cursor").isJsonNull() ? req.get("cursor").getAsString() : null;
+        if (cursor != null && !cursor.isBlank()) {
+            long[] c = Cursors.decode(cursor, "c", 3);
+            if (c == null) return SocketProtocol.buildResponse("CHAT_LIST_FAILED", id, Map.of("message", "invalid cursor"));
+            after = new InboxService.Key((int) c[0], c[1], (int) c[2]);
+        }
+
+        InboxService.Page page = InboxService.page(username, after, limit);
+        if (page == null) return SocketProtocol.buildResponse("CHAT_LIST_FAILED", id, Map.of("message", "chat list unavailable"));
+
+        List<Map<String, Object>> items = new ArrayList<>(page.items().size());
+        for (InboxService.Item item : page.items()) {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("id", String.valueOf(item.chatId()));
+            m.put("title", item.title());
+            m.put("kind", item.kind().toUpperCase(Locale.ROOT));
+            m.put("last_preview", item.lastPreview());
+            m.put("last_ts", item.lastTs());
+            m.put("unread", item.unread());
+            m.put("muted", false);
+            m.put("pinned", item.pinned());
+            items.add(m);
+        }
+        InboxService.Item last = page.items().isEmpty() ? null : page.items().get(page.items().size() - 1);
+        String next = page.hasMore() && last != null
+                ? Cursors.encode("c", last.pinnedOrder(), last.lastTs(), last.chatId()) : null;
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("items", items);
+        body.put("next_cursor", next);
+        body.put("has_more", page.hasMore());
+        body.put("total_unread", page.totalUnread());
+        return SocketProtocol.buildResponse("CHAT_LIST_OK", id, body);
+    }
+
+    /** CHAT_PIN {chatId, pinned}: pins on top of the caller's other pinned chats, or unpins. */
+    private static Response handleChatPin(JsonObject req, String id, String username) {
         JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
-        int channelId = payload.has("channelId") ? payload.get("channelId").getAsInt() : 0;
-        String text = payload.has("text") ? payload.get("text").getAsString() : "";
-        Message m = new Message(0, text, 0, channelId, 0, new Timestamp(System.currentTimeMillis()), false, false);
-        MessageService.saveMessage(m);
-        String syntheticMsgId = "M" + System.currentTimeMillis();
-        Map<String, Object> resp = Map.of("channelId", channelId, "msgId", syntheticMsgId, "ts", System.currentTimeMillis() / 1000);
-        Map<String, Object> eventBody = Map.of(
-                "channelId", channelId,
-                "msg", Map.of("id", syntheticMsgId, "from", senderUsername, "text", text, "ts", System.currentTimeMillis() / 1000)
-        );
-        broadcastToChannelMembers(channelId, SocketProtocol.buildEvent("channel_message_new", eventBody), senderUsername);
-        return SocketProtocol.buildResponse("SEND_CHANNEL_OK", id, resp);
-    }
-
-    private static String handleCreateChannel(JsonObject req, String id, String username) {
+        int chatId = payload.get("chatId").getAsInt();
+        boolean pinned = !payload.has("pinned") || payload.get("pinned").getAsBoolean();
+        int order = pinned ? InboxService.nextPinOrder(username) : 0;
+        if (!ChatService.pinChat(chatId, username, order)) {
+            return SocketProtocol.buildResponse("CHAT_PIN_FAILED", id, Map.of("chatId", chatId));
+        }
+        return SocketProtocol.buildResponse("CHAT_PIN_OK", id, Map.of("chatId", chatId, "pinned", pinned));
+    }
+
+    private static CompletableFuture<Response> handleSend(Requests.SendMessage body, String id, String senderUsername,
+                                                          Executor executor) {
+        int chatId = body.chatId();
+        String text = body.text();
+        Message m = newMessage(text, senderUsername, chatId, 0);
+        return persist(m).thenApplyAsync(v -> {
+            touchInboxes(m, senderUsername);
+            String msgId = "M" + m.getId();
+            long ts = m.getSentat().getTime() / 1000;
+            Map<String, Object> resp = Map.of("chatId", chatId, "msgId", msgId, "ts", ts);
+            Map<String, Object> eventBody = Map.of(
+                    "chatId", chatId,
+                    "msg", Map.of("id", msgId, "from", senderUsername, "text", text, "ts", ts)
+            );
+            broadcastToChatMembers(chatId, SocketProtocol.buildEvent("message_new", eventBody), senderUsername);
+            return SocketProtocol.buildResponse("SEND_OK", id, resp);
+        }, executor);
+    }
+
+    private static CompletableFuture<Response> handleSendChannel(Requests.SendChannelMessage body, String id,
+                                                                 String senderUsername, Executor executor) {
+        int channelId = body.channelId();
+        String text = body.text();
+        Message m = newMessage(text, senderUsername, channelId, 0);
+        return persist(m).thenApplyAsync(v -> {
+            String msgId = "M" + m.getId();
+            long ts = m.getSentat().getTime() / 1000;
+            Map<String, Object> resp = Map.of("channelId", channelId, "msgId", msgId, "ts", ts);
+            Map<String, Object> eventBody = Map.of(
+                    "channelId", channelId,
+                    "msg", Map.of("id", msgId, "from", senderUsername, "text", text, "ts", ts)
+            );
+            broadcastToChannelMembers(channelId, SocketProtocol.buildEvent("channel_message_new", eventBody), senderUsername);
+            return SocketProtocol.buildResponse("SEND_CHANNEL_OK", id, resp);
+        }, executor);
+    }
+
+    private static Response handleCreateChannel(JsonObject req, String id, String username) {
         JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
         String name = payload.has("name") ? payload.get("name").getAsString() : "channel";
         String description = payload.has("description") ? payload.get("description").getAsString() : "";
@@ -218,17 +352,17 @@ public class CommandProcessor {
         return SocketProtocol.buildResponse("CREATE_CHANNEL_OK", id, Map.of("channelId", channelId, "name", name));
     }
 
-    private static String handleJoinChannel(JsonObject req, String id) {
+    private static Response handleJoinChannel(JsonObject req, String id) {
         JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
         int channelId = payload.get("channelId").getAsInt();
         String username = payload.get("username").getAsString();
-        Integer userId = resolveUserId(username);
+        Integer userId = UserIdCache.resolve(username);
         if (userId == null) return SocketProtocol.buildResponse("JOIN_CHANNEL_FAILED", id, Map.of("message", "User not found"));
         try { ChannelService.joinChannel(username, userId, userId, new Timestamp(System.currentTimeMillis()), false, true); } catch (Exception ignored) {}
         return SocketProtocol.buildResponse("JOIN_CHANNEL_OK", id, Map.of("channelId", channelId, "username", username));
     }
 
-    private static String handleGetChannel(JsonObject req, String id) {
+    private static Response handleGetChannel(JsonObject req, String id) {
         JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
         if (!payload.has("channelId")) return SocketProtocol.buildResponse("GET_CHANNEL_FAILED", id, Map.of("message", "channelId required"));
         int cid = payload.get("channelId").getAsInt();
@@ -240,42 +374,148 @@ public class CommandProcessor {
         }
     }
 
-    private static String handleGetUser(JsonObject req, String id) {
+    /** GET_USER {userId}: the public fields of a user (no phone), from UserCache. */
+    private static Response handleGetUser(JsonObject req, String id) {
         JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
         if (!payload.has("userId")) return SocketProtocol.buildResponse("GET_USER_FAILED", id, Map.of("message", "userId required"));
-        int uid = payload.get("userId").getAsInt();
-        Map<String, Object> userDto = Map.of("id", uid, "message", "use HTTP /users or DB query for full profile");
-        return SocketProtocol.buildResponse("GET_USER_OK", id, Map.of("user", userDto));
-    }
+        User user = UserCache.get(payload.get("userId").getAsInt());
+        if (user == null) return SocketProtocol.buildResponse("GET_USER_FAILED", id, Map.of("message", "User not found"));
+        return SocketProtocol.buildResponse("GET_USER_OK", id, Map.of("user", userDto(user)));
+    }
+
+    /**
+     * SEARCH_USER {query (or username), limit?}: type-ahead people search over usernames,
+     * names and exact phone numbers, served from the in-memory user directory. "user" is the
+     * best match, as the single result this command used to return.
+     */
+    private static Response handleSearchUser(JsonObject req, String id) {
+        JsonObject payload = req.has("payload") && req.get("payload").isJsonObject() ? req.getAsJsonObject("payload") : req;
+        String query = optString(payload, "query");
+        if (query.isBlank()) query = optString(payload, "username");
+        List<UserIndex.Word> words = UserIndex.words(query, UserIndex.NAMES | UserIndex.PHONE);
+        if (words.isEmpty()) return userSearchError("SEARCH_USER_FAILED", id, "query required");
+
+        boolean byPhone = words.get(0).fields() == UserIndex.PHONE;
+        List<Map<String, Object>> users = new ArrayList<>();
+        for (UserIndex.Match m : UserDirectory.search(words, userSearchLimit(payload))) users.add(userResult(m, byPhone));
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("query", query);
+        body.put("users", users);
+        if (!users.isEmpty()) body.put("user", users.get(0));
+        return SocketProtocol.buildResponse("SEARCH_USER_OK", id, body);
+    }
+
+    private static Map<String, Object> userResult(UserIndex.Match m, boolean withPhone) {
+        UserIndex.Person p = m.person();
+        Map<String, Object> r = new LinkedHashMap<>();
+        r.put("id", p.id());
+        r.put("username", p.username());
+        r.put("firstName", p.firstName());
+        r.put("secondName", p.secondName());
+        r.put("bio", p.bio());
+        if (withPhone) r.put("phone", p.phone());
+        r.put("score", m.score());
+        return r;
+    }
+
+    private static int userSearchLimit(JsonObject payload) {
+        int limit = payload.has("limit") && !payload.get("limit").isJsonNull() ? payload.get("limit").getAsInt() : 20;
+        return Math.max(1, Math.min(limit, USERS_MAX_LIMIT));
+    }
+
+    private static String optString(JsonObject payload, String field) {
+        return payload.has(field) && !payload.get(field).isJsonNull() ? payload.get(field).getAsString() : "";
+    }
+
+    private static Response userSearchError(String type, String id, String message) {
+        return SocketProtocol.buildResponse(type, id, Map.of("status", "error", "message", message));
+    }
+
+    /**
+     * SEARCH_CHAT {query, chatId?, cursor?, limit?}: messages containing every word of query,
+     * in chatId or in all of the caller's chats, best match first. Served from the message
+     * search index; the cursor is the last hit's (score, id) and is tied to the query.
+     */
+    private static Response handleSearchChat(JsonObject req, String id, String username) {
+        JsonObject payload = req.has("payload") && req.get("payload").isJsonObject() ? req.getAsJsonObject("payload") : req;
+        String query = payload.has("query") && !payload.get("query").isJsonNull() ? payload.get("query").getAsString() : "";
+        if (query.isBlank()) return searchError(id, "query required");
+        int limit = payload.has("limit") ? payload.get("limit").getAsInt() : 20;
+        limit = Math.max(1, Math.min(limit, SEARCH_MAX_LIMIT));
+
+        Collection<Integer> scope;
+        if (payload.has("chatId") && !payload.get("chatId").isJsonNull()) {
+            int chatId = payload.get("chatId").getAsInt();
+            if (!ChatService.getMembers(chatId).contains(username)) return searchError(id, "not a member of this chat");
+            scope = List.of(chatId);
+        } else {
+            scope = InboxService.memberChatIds(username); // archived chats are searched too
+        }
 
-    private static String handleSearchUser(JsonObject req, String id) {
-        JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
-        if (!payload.has("username")) return SocketProtocol.buildResponse("SEARCH_USER_FAILED", id, Map.of("message", "username required"));
-        String username = payload.get("username").getAsString();
-        Map<String, Object> dummy = Map.of("username", username, "firstName", "Ali", "secondName", "Nadi");
-        return SocketProtocol.buildResponse("SEARCH_USER_OK", id, Map.of("user", dummy));
+        long queryKey = TextNormalizer.normalize(query).hashCode();
+        MessageIndex.Hit after = null;
+        String cursor = payload.has("cursor") && !payload.get("cursor").isJsonNull() ? payload.get("cursor").getAsString() : null;
+        if (cursor != null && !cursor.isBlank()) {
+            long[] c = Cursors.decode(cursor, "s", 3);
+            if (c == null || c[0] != queryKey) return searchError(id, "invalid cursor");
+            after = new MessageIndex.Hit(0, c[2], Double.longBitsToDouble(c[1]));
+        }
+
+        List<MessageIndex.Hit> hits = MessageService.searchMessages(scope, query, after, limit + 1);
+        if (hits == null) return searchError(id, "search unavailable");
+        boolean hasMore = hits.size() > limit;
+        if (hasMore) hits = hits.subList(0, limit);
+        MessageIndex.Hit last = hits.isEmpty() ? null : hits.get(hits.size() - 1);
+        String next = hasMore ? Cursors.encode("s", queryKey, Double.doubleToLongBits(last.score()), last.messageId()) : null;
+
+        // hydrate the page with one store lookup (message ids are unique across chats)
+        Map<Integer, List<Long>> hitIds = new HashMap<>();
+        for (MessageIndex.Hit h : hits) hitIds.computeIfAbsent(h.chatId(), c -> new ArrayList<>()).add(h.messageId());
+        Map<Long, Message> found = new HashMap<>();
+        for (Message m : MessageService.store().getAll(hitIds)) found.put(m.getId(), m);
+
+        List<Map<String, Object>> results = new ArrayList<>(hits.size());
+        for (MessageIndex.Hit h : hits) {
+            Message m = found.get(h.messageId());
+            if (m == null || m.getChatid() != h.chatId()) continue; // deleted since, or never made durable
+            Map<String, Object> r = new LinkedHashMap<>();
+            r.put("chatId", h.chatId());
+            r.put("id", "M" + m.getId());
+            r.put("from", m.getSenderId() == 0 ? null : UserIdCache.username(m.getSenderId()));
+            r.put("ts", m.getSentat() == null ? 0 : m.getSentat().getTime() / 1000);
+            r.put("text", m.getContent());
+            r.put("score", Math.round(h.score() * 1000) / 1000.0);
+            results.add(r);
+        }
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("status", "ok");
+        body.put("query", query);
+        body.put("results", results);
+        body.put("cursorNext", next);
+        body.put("hasMore", hasMore);
+        return SocketProtocol.buildResponse("SEARCH_CHAT_OK", id, body);
     }
 
-    private static String handleSearchChat(JsonObject req, String id) {
-        List<String> chats = List.of("Group1", "Family");
-        return SocketProtocol.buildResponse("SEARCH_CHAT_OK", id, Map.of("chats", chats));
+    private static Response searchError(String id, String message) {
+        return SocketProtocol.buildResponse("SEARCH_CHAT_FAILED", id, Map.of("status", "error", "message", message));
     }
 
-    private static String handleJoin(JsonObject req, String id, String username) {
+    private static Response handleJoin(JsonObject req, String id, String username) {
         JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
         int chatId = payload.get("chatId").getAsInt();
         ChatService.joinChat(chatId, username);
         return SocketProtocol.buildResponse("JOIN_OK", id, Map.of("chatId", chatId));
     }
 
-    private static String handleLeave(JsonObject req, String id, String username) {
+    private static Response handleLeave(JsonObject req, String id, String username) {
         JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
         int chatId = payload.get("chatId").getAsInt();
         ChatService.leaveChat(chatId, username);
         return SocketProtocol.buildResponse("LEAVE_OK", id, Map.of("chatId", chatId));
     }
 
-    private static String handleCreateGroup(JsonObject req, String id, String username) {
+    private static Response handleCreateGroup(JsonObject req, String id, String username) {
         JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
         String name = payload.has("title") ? payload.get("title").getAsString() : "group";
         String description = payload.has("description") ? payload.get("description").getAsString() : "";
@@ -290,7 +530,7 @@ public class CommandProcessor {
         return SocketProtocol.buildResponse("CREATE_GROUP_OK", id, Map.of("groupId", groupId));
     }
 
-    private static String handleJoinGroup(JsonObject req, String id) {
+    private static Response handleJoinGroup(JsonObject req, String id) {
         JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
         int groupId = payload.get("groupId").getAsInt();
         String username = payload.get("username").getAsString();
@@ -298,7 +538,7 @@ public class CommandProcessor {
         return SocketProtocol.buildResponse("JOIN_GROUP_OK", id, Map.of("groupId", groupId));
     }
 
-    private static String handleLeaveGroup(JsonObject req, String id) {
+    private static Response handleLeaveGroup(JsonObject req, String id) {
         JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
         int groupId = payload.get("groupId").getAsInt();
         String username = payload.get("username").getAsString();
@@ -306,11 +546,11 @@ public class CommandProcessor {
         return SocketProtocol.buildResponse("LEAVE_GROUP_OK", id, Map.of("groupId", groupId));
     }
 
-    private static String handleStartPV(JsonObject req, String id, String username) {
+    private static Response handleStartPV(JsonObject req, String id, String username) {
         JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
         String peer = payload.get("peerUsername").getAsString();
-        Integer myId = getUserIdByUsername(username);
-        Integer peerId = getUserIdByUsername(peer);
+        Integer myId = UserIdCache.resolve(username);
+        Integer peerId = UserIdCache.resolve(peer);
         if (myId == null || peerId == null) return SocketProtocol.buildResponse("START_PV_FAILED", id, Map.of("message", "user not found"));
         Map<String,Integer> result = PVService.startPv(myId, peerId);
         int chatId = result.get("chatId");
@@ -319,17 +559,57 @@ public class CommandProcessor {
         return SocketProtocol.buildResponse("START_PV_OK", id, Map.of("pvId", result.get("pvId"), "chatId", chatId));
     }
 
-    private static String handleSeen(JsonObject req, String id, String username) {
-        JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
-        String messageIdStr = payload.get("messageId").getAsString();
-        int messageId = parseMessageId(messageIdStr);
-        Integer uid = getUserIdByUsername(username);
+    private static Response handleSeen(Requests.Seen body, String id, String username) {
+        String messageIdStr = body.messageId();
+        if (messageIdStr == null) return SocketProtocol.buildResponse("SEEN_FAILED", id, Map.of("message", "messageId required"));
+        long messageId = parseMessageId(messageIdStr);
+        Integer uid = UserIdCache.resolve(username);
         if (uid == null) return SocketProtocol.buildResponse("SEEN_FAILED", id, Map.of("message", "user unknown"));
-        boolean ok = MessageSeenService.markSeen(messageId, uid);
+        boolean ok = true;
+        if (body.chatId() != 0) markChatRead(body.chatId(), uid, username, messageId);
+        else ok = MessageSeenService.markSeen(messageId, uid);
         return SocketProtocol.buildResponse(ok ? "SEEN_OK" : "SEEN_FAILED", id, Map.of("messageId", messageIdStr));
     }
 
-    private static String handleAddReaction(JsonObject req, String id, String username) {
+    /** CHAT_READ {chatId, upto?}: the chat is read up to upto (inclusive), or up to its last message. */
+    private static Response handleChatRead(JsonObject req, String id, String username) {
+        int chatId;
+        try {
+            chatId = req.get("chatId").getAsInt();
+        } catch (RuntimeException e) {
+            return SocketProtocol.buildResponse("CHAT_READ_FAILED", id, Map.of("status", "error", "message", "chatId required"));
+        }
+        Integer uid = UserIdCache.resolve(username);
+        if (uid == null) return SocketProtocol.buildResponse("CHAT_READ_FAILED", id, Map.of("status", "error", "message", "user unknown"));
+        String upto = req.has("upto") && !req.get("upto").isJsonNull() ? req.get("upto").getAsString() : null;
+        long messageId = upto != null ? parseMessageId(upto) : UnreadCounters.lastMessageId(chatId, 0);
+
+        long readUpTo = markChatRead(chatId, uid, username, messageId);
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("status", "ok");
+        body.put("chatId", chatId);
+        body.put("upto", "M" + readUpTo);
+        body.put("server_time", System.currentTimeMillis());
+        return SocketProtocol.buildResponse("CHAT_READ_OK", id, body);
+    }
+
+    /**
+     * Moves the reader's watermark and clears their unread count. The other members get one
+     * message_status READ event per advance; repeated or older reads send nothing.
+     * Returns the watermark after the call.
+     */
+    private static long markChatRead(int chatId, int userId, String username, long messageId) {
+        boolean advanced = MessageSeenService.markRead(chatId, userId, messageId);
+        ChatService.markRead(chatId, username);
+        if (advanced) {
+            Map<String, Object> event = Map.of("chatId", chatId, "messageId", "M" + messageId, "status", "READ",
+                    "by", username, "ts", System.currentTimeMillis());
+            broadcastToChatMembers(chatId, SocketProtocol.buildEvent("message_status", event), username);
+        }
+        return MessageSeenService.readUpTo(chatId, userId);
+    }
+
+    private static Response handleAddReaction(JsonObject req, String id, String username) {
         JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
         String msgId = payload.get("messageId").getAsString();
         String reaction = payload.get("reaction").getAsString();
@@ -338,37 +618,126 @@ public class CommandProcessor {
         return SocketProtocol.buildResponse("REACTION_OK", id, eventBody);
     }
 
-    private static String handleEditMessage(JsonObject req, String id, String username) {
+    private static Response handleEditMessage(JsonObject req, String id, String username) {
         JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
         String msgId = payload.get("messageId").getAsString();
         String newText = payload.get("newText").getAsString();
+        if (!payload.has("chatId")) {
+            return SocketProtocol.buildResponse("EDIT_FAILED", id, Map.of("messageId", msgId, "message", "chatId required"));
+        }
+        Message m = ownMessage(payload.get("chatId").getAsInt(), msgId, username);
+        if (m == null || !MessageService.editMessage(m.getChatid(), m.getId(), newText)) {
+            return SocketProtocol.buildResponse("EDIT_FAILED", id, Map.of("messageId", msgId, "message", "message not found"));
+        }
         Map<String,Object> eventBody = Map.of("messageId", msgId, "newText", newText, "editedBy", username);
         broadcastToAll(SocketProtocol.buildEvent("message_edited", eventBody));
         return SocketProtocol.buildResponse("EDIT_OK", id, eventBody);
     }
 
-    private static String handleDeleteMessage(JsonObject req, String id, String username) {
+    private static Response handleDeleteMessage(JsonObject req, String id, String username) {
         JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
         String msgId = payload.get("messageId").getAsString();
+        if (!payload.has("chatId")) {
+            return SocketProtocol.buildResponse("DELETE_FAILED", id, Map.of("messageId", msgId, "message", "chatId required"));
+        }
+        Message m = ownMessage(payload.get("chatId").getAsInt(), msgId, username);
+        if (m == null || !MessageService.deleteMessage(m.getChatid(), m.getId())) {
+            return SocketProtocol.buildResponse("DELETE_FAILED", id, Map.of("messageId", msgId, "message", "message not found"));
+        }
         Map<String,Object> eventBody = Map.of("messageId", msgId, "deletedBy", username);
         broadcastToAll(SocketProtocol.buildEvent("message_deleted", eventBody));
         return SocketProtocol.buildResponse("DELETE_OK", id, eventBody);
     }
 
-    private static String handleReplyMessage(JsonObject req, String id, String username) {
+    /**
+     * The stored message msgId of chatId if username sent it, else null: only the sender may
+     * edit or delete a message. Someone else's message is reported like a missing one.
+     */
+    private static Message ownMessage(int chatId, String msgId, String username) {
+        Integer uid = UserIdCache.resolve(username);
+        if (uid == null) return null;
+        Message m = MessageService.store().get(chatId, parseMessageId(msgId));
+        return m != null && m.getSenderId() == uid ? m : null;
+    }
+
+    private static Response handleReplyMessage(JsonObject req, String id, String username) {
         JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
         int chatId = payload.get("chatId").getAsInt();
         String replyTo = payload.get("replyTo").getAsString();
         String text = payload.get("text").getAsString();
-        String syntheticMsgId = "M" + System.currentTimeMillis();
-        Map<String,Object> msg = Map.of("id", syntheticMsgId, "from", username, "text", text, "replyTo", replyTo, "ts", System.currentTimeMillis()/1000);
+        long msgId = IdGenerator.next();
+        Map<String,Object> msg = Map.of("id", "M" + msgId, "from", username, "text", text, "replyTo", replyTo, "ts", IdGenerator.timestampMillis(msgId)/1000);
         broadcastToChatMembers(chatId, SocketProtocol.buildEvent("message_new", Map.of("chatId", chatId, "msg", msg)), username);
         return SocketProtocol.buildResponse("REPLY_OK", id, Map.of("msg", msg));
     }
+    // ---- History ----
+
+    /**
+     * REQ messages_history {chatId, limit, cursor?}: one page of a chat the caller is a member
+     * of, newest first.
+     * The cursor is opaque to the client (Cursors); pages are keyset-based so any depth
+     * costs the same, and the rows are written straight into the response frame.
+     */
+    private static Response handleMessagesHistory(JsonObject req, String id, String username) {
+        int chatId;
+        try {
+            chatId = req.get("chatId").getAsInt();
+        } catch (RuntimeException e) {
+            return historyError(id, "chatId required");
+        }
+        if (!ChatService.getMembers(chatId).contains(username)) return historyError(id, "not a member of this chat");
+        int limit = req.has("limit") ? req.get("limit").getAsInt() : 30;
+        limit = Math.max(1, Math.min(limit, HISTORY_MAX_LIMIT));
+
+        long beforeId = Long.MAX_VALUE;
+        String cursor = req.has("cursor") && !req.get("cursor").isJsonNull() ? req.get("cursor").getAsString() : null;
+        if (cursor != null && !cursor.isBlank()) {
+            long[] c = Cursors.decode(cursor, "h", 2);
+            if (c == null || c[0] != chatId) return historyError(id, "invalid cursor");
+            beforeId = c[1];
+        }
+
+        List<Message> page = MessageService.getMessagesForChat(chatId, beforeId, limit + 1);
+        boolean hasMore = page.size() > limit;
+        if (hasMore) page = page.subList(0, limit);
+        String next = hasMore ? Cursors.encode("h", chatId, page.get(page.size() - 1).getId()) : null;
+
+        Integer me = UserIdCache.resolve(username);
+        List<Message> rows = page;
+        Response.Writable messages = out -> {
+            out.beginArray();
+            for (Message m : rows) {
+                out.beginObject();
+                out.name("id").value("M" + m.getId());
+                out.name("from").value(m.getSenderId() == 0 ? null : UserIdCache.username(m.getSenderId()));
+                out.name("ts").value(m.getSentat() == null ? 0 : m.getSentat().getTime() / 1000);
+                out.name("kind").value("text");
+                out.name("text").value(m.getContent());
+                out.name("outgoing").value(me != null && me == m.getSenderId());
+                if (m.isIsedited()) out.name("edited").value(true);
+                if (m.getReplyid() != 0) out.name("replyTo").value("M" + m.getReplyid());
+                out.endObject();
+            }
+            out.endArray();
+        };
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("status", "ok");
+        body.put("chatId", chatId);
+        body.put("messages", messages);
+        body.put("cursorNext", next);
+        body.put("hasMore", hasMore);
+        return SocketProtocol.buildResponse("MESSAGES_HISTORY_OK", id, body);
+    }
+
+    private static Response historyError(String id, String message) {
+        return SocketProtocol.buildResponse("MESSAGES_HISTORY_FAILED", id, Map.of("status", "error", "message", message));
+    }
+
     // ---- Contacts Handlers ----
 
-    private static String handleContactsList(JsonObject req, String id, String username) {
-        Integer userId = getUserIdByUsername(username);
+    private static Response handleContactsList(JsonObject req, String id, String username) {
+        Integer userId = UserIdCache.resolve(username);
         if (userId == null) {
             return SocketProtocol.buildResponse("ERROR", id, Map.of("message", "User not found"));
         }
@@ -381,8 +750,8 @@ public class CommandProcessor {
         ));
     }
 
-    private static String handleContactsAdd(JsonObject req, String id, String username) {
-        Integer ownerId = getUserIdByUsername(username);
+    private static Response handleContactsAdd(JsonObject req, String id, String username) {
+        Integer ownerId = UserIdCache.resolve(username);
         if (ownerId == null) {
             return SocketProtocol.buildResponse("ERROR", id, Map.of("message", "User not found"));
         }
@@ -413,62 +782,140 @@ public class CommandProcessor {
         ));
     }
 
-    private static String handleSendFile(JsonObject req, String id, String username) {
+    /**
+     * {contacts: [{name, phone}], rename?}: adds the registered ones in one round trip; each
+     * entry gets {phone, status, userId?} in request order (statuses in ContactService).
+     */
+    private static Response handleContactsImport(JsonObject req, String id, String username) {
+        Integer ownerId = UserIdCache.resolve(username);
+        if (ownerId == null) {
+            return SocketProtocol.buildResponse("ERROR", id, Map.of("message", "User not found"));
+        }
+
+        JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
+        if (!payload.has("contacts") || !payload.get("contacts").isJsonArray()) {
+            return contactsImportError(id, "INVALID_PAYLOAD", "Invalid payload");
+        }
+        if (payload.getAsJsonArray("contacts").size() > CONTACTS_IMPORT_MAX) {
+            return contactsImportError(id, "TOO_MANY_CONTACTS", "At most " + CONTACTS_IMPORT_MAX + " contacts per import");
+        }
+        List<ContactService.ImportEntry> entries = new ArrayList<>();
+        for (JsonElement e : payload.getAsJsonArray("contacts")) {
+            if (!e.isJsonObject()) return contactsImportError(id, "INVALID_PAYLOAD", "Invalid payload");
+            String phone = optString(e.getAsJsonObject(), "phone");
+            String name = optString(e.getAsJsonObject(), "name");
+            entries.add(new ContactService.ImportEntry(name, phone));
+        }
+        boolean rename = payload.has("rename") && payload.get("rename").getAsBoolean();
+
+        List<ContactService.ImportResult> results;
+        try {
+            results = ContactService.importContacts(ownerId, entries, rename);
+        } catch (SQLException e) {
+            System.err.println("⚠️ Contacts import failed: " + e.getMessage());
+            return contactsImportError(id, "DB_ERROR", "Import failed");
+        }
+
+        List<Map<String, Object>> out = new ArrayList<>(results.size());
+        Set<Integer> added = new HashSet<>(), updated = new HashSet<>(); // entries of one user share a result
+        for (int i = 0; i < results.size(); i++) {
+            ContactService.ImportResult r = results.get(i);
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("phone", entries.get(i).phone());
+            m.put("status", r.status());
+            if (r.userId() != null) m.put("userId", r.userId());
+            out.add(m);
+            if (r.status().equals(ContactService.ADDED)) added.add(r.userId());
+            else if (r.status().equals(ContactService.UPDATED)) updated.add(r.userId());
+        }
+        return SocketProtocol.buildResponse("CONTACTS_IMPORT_OK", id, Map.of(
+                "results", out,
+                "added", added.size(),
+                "updated", updated.size(),
+                "server_time", System.currentTimeMillis()
+        ));
+    }
+
+    private static Response contactsImportError(String id, String code, String message) {
+        return SocketProtocol.buildResponse("ERROR", id, Map.of(
+                "code", code,
+                "message", message,
+                "server_time", System.currentTimeMillis()
+        ));
+    }
+
+    private static Response handleSendFile(JsonObject req, String id, String username) {
         JsonObject payload = req.has("payload") ? req.getAsJsonObject("payload") : req;
         int chatId = payload.get("chatId").getAsInt();
         String fileName = payload.get("fileName").getAsString();
         String fileData = payload.get("fileData").getAsString();
-        Map<String,Object> fileMsg = Map.of("id", "F" + System.currentTimeMillis(), "from", username, "fileName", fileName, "size", fileData.length(), "ts", System.currentTimeMillis()/1000);
+        long fileId = IdGenerator.next();
+        Map<String,Object> fileMsg = Map.of("id", "F" + fileId, "from", username, "fileName", fileName, "size", fileData.length(), "ts", IdGenerator.timestampMillis(fileId)/1000);
         broadcastToChatMembers(chatId, SocketProtocol.buildEvent("file_shared", Map.of("chatId", chatId, "file", fileMsg)), username);
         return SocketProtocol.buildResponse("FILE_OK", id, Map.of("file", fileMsg));
     }
 
-    private static void broadcastToChatMembers(int chatId, String eventJson, String skipUsername) {
+    private static void broadcastToChatMembers(int chatId, Frame event, String skipUsername) {
         try {
             Set<String> members = ChatService.getMembers(chatId);
             for (String member : members) {
                 if (skipUsername != null && skipUsername.equals(member)) continue;
-                BufferedWriter w = ClientRegistry.getWriter(member);
-                if (w != null) { try { w.write(eventJson + "\n"); w.flush(); } catch (IOException ignored) {} }
+                ClientRegistry.deliver(member, event);
             }
         } catch (Exception ignored) {}
     }
 
-    private static void broadcastToChannelMembers(int channelId, String eventJson, String skipUsername) {
+    private static void broadcastToChannelMembers(int channelId, Frame event, String skipUsername) {
         try {
             Set<String> members = ChannelService.getMembers(channelId);
             for (String member : members) {
                 if (skipUsername != null && skipUsername.equals(member)) continue;
-                BufferedWriter w = ClientRegistry.getWriter(member);
-                if (w != null) { try { w.write(eventJson + "\n"); w.flush(); } catch (IOException ignored) {} }
+                ClientRegistry.deliver(member, event);
             }
         } catch (Exception ignored) {}
     }
 
-    private static void broadcastToAll(String eventJson) {
-        for (BufferedWriter w : ClientRegistry.getClients().values()) {
-            try { w.write(eventJson + "\n"); w.flush(); } catch (IOException ignored) {}
-        }
+    private static void broadcastToAll(Frame event) {
+        ClientRegistry.deliverToAll(event);
     }
 
-    private static int parseMessageId(String mid) {
+    /**
+     * Completes once the message is durable (fsynced to the WAL when enabled, otherwise committed
+     * by MessageWriter's group commit), so SEND_OK and the broadcast only go out for persisted
+     * messages; no thread is parked meanwhile. Failures and the timeout surface as a server error.
+     * The timeout applies to a copy: a message that lands late still reaches the search index.
+     */
+    private static CompletableFuture<Void> persist(Message m) {
+        return MessageService.saveMessage(m).copy().orTimeout(PERSIST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Moves the chat of a stored message up in every member's chat list. */
+    private static void touchInboxes(Message m, String senderUsername) {
+        ChatService.updateLastMessage(m.getChatid(), m.getId(), m.getSenderId());
+        InboxService.messageSent(m.getChatid(), m.getId(), m.getContent(), m.getSentat().getTime() / 1000, senderUsername);
+    }
+
+    /** User id stored as a message's sender; 0 if the sender cannot be resolved. */
+    private static int senderId(String username) {
+        Integer uid = UserIdCache.resolve(username);
+        return uid != null ? uid : 0;
+    }
+
+    /** A new message with a fresh IdGenerator id, stamped with the id's own time. */
+    private static Message newMessage(String text, String senderUsername, int chatId, long replyId) {
+        long messageId = IdGenerator.next();
+        return new Message(messageId, text, senderId(senderUsername), chatId, replyId,
+                new Timestamp(IdGenerator.timestampMillis(messageId)), false, false);
+    }
+
+    /** Numeric id of "M123" / "F123" / "123"; 0 if it is not one. */
+    private static long parseMessageId(String mid) {
+        if (mid == null) return 0;
+        String digits = !mid.isEmpty() && Character.isLetter(mid.charAt(0)) ? mid.substring(1) : mid;
         try {
-            String digits = mid.replaceAll("[^0-9]", "");
-            if (digits.isEmpty()) return 0;
-            return Integer.parseInt(digits);
-        } catch (Exception e) {
+            return Long.parseLong(digits.trim());
+        } catch (NumberFormatException e) {
             return 0;
         }
     }
-
-    private static Integer getUserIdByUsername(String username) {
-        String q = "SELECT id FROM users WHERE username = ?";
-        try (java.sql.Connection conn = java.sql.DriverManager.getConnection("jdbc:postgresql://localhost:5432/Telegram", "postgres", "AmirMahdiImani");
-             java.sql.PreparedStatement ps = conn.prepareStatement(q)) {
-            ps.setString(1, username);
-            java.sql.ResultSet rs = ps.executeQuery();
-            if (rs.next()) return rs.getInt("id");
-        } catch (java.sql.SQLException ignored) {}
-        return null;
-    }
 }
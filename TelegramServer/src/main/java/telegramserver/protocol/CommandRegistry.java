@@ -0,0 +1,205 @@
+package telegramserver.protocol;
+
+import com.google.gson.stream.JsonReader;
+import telegramserver.MetricsReporter;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Dispatch table: every command (and every REQ sub-command) is registered once with its
+ * handler and metadata, and resolved with one hash probe on the raw "type" (or "cmd").
+ *
+ * - Names are stored as registered, upper-case and lower-case, so the usual spellings hit
+ *   directly; other casings fall back to one toUpperCase() probe.
+ * - Per command: handler, auth requirement, executor class, pipelining order, optional
+ *   typed body reader (see RequestDecoder) and call/error/latency counters, reported as "commands".
+ * - A handler either returns its Response, or (AsyncHandler) a future of it, so a command that
+ *   waits for something, e.g. SEND_MESSAGE for durability, does not hold a thread meanwhile.
+ * - Authorization and timing are applied uniformly by CommandProcessor, not per handler.
+ */
+public final class CommandRegistry {
+
+    /** Work class: BULK commands run on their own, smaller pool so heavy reads cannot starve INTERACTIVE ones. */
+    public enum ExecutorClass { INTERACTIVE, BULK }
+
+    /**
+     * How a command may overlap with other requests of the same connection when pipelined:
+     * - NONE: runs as soon as a slot is free;
+     * - KEY: runs after earlier requests with the same order key (e.g. sends to one chat);
+     * - SESSION: barrier, waits for everything before it and holds back everything after
+     *   it (LOGIN/REGISTER change who the session is).
+     */
+    public enum Ordering { NONE, KEY, SESSION }
+
+    public interface Handler {
+        Response handle(Request request, String id, String username) throws Exception;
+    }
+
+    /** Handler whose response completes later; work after the wait belongs on executor. */
+    public interface AsyncHandler {
+        CompletableFuture<Response> handle(Request request, String id, String username, Executor executor) throws Exception;
+    }
+
+    /** Streams a command's payload into its typed body. */
+    public interface BodyReader {
+        Object read(JsonReader in) throws IOException;
+    }
+
+    public static final class Command {
+        private final String name;
+        private final AsyncHandler handler;
+        private boolean requiresAuth;
+        private ExecutorClass executorClass = ExecutorClass.INTERACTIVE;
+        private BodyReader bodyReader;
+        private Ordering ordering = Ordering.NONE;
+        private Function<Request, Object> orderKey;
+
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+
+        private Command(String name, AsyncHandler handler) {
+            this.name = name;
+            this.handler = handler;
+        }
+
+        /** Rejects the command with an ERROR unless the session is logged in. */
+        public Command auth() {
+            this.requiresAuth = true;
+            return this;
+        }
+
+        public Command bulk() {
+            this.executorClass = ExecutorClass.BULK;
+            return this;
+        }
+
+        public Command body(BodyReader reader) {
+            this.bodyReader = reader;
+            return this;
+        }
+
+        /** Keeps requests with equal keys in arrival order. A null key means no ordering. */
+        public Command orderedBy(Function<Request, Object> key) {
+            this.ordering = Ordering.KEY;
+            this.orderKey = key;
+            return this;
+        }
+
+        public Command barrier() {
+            this.ordering = Ordering.SESSION;
+            return this;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public AsyncHandler handler() {
+            return handler;
+        }
+
+        public boolean requiresAuth() {
+            return requiresAuth;
+        }
+
+        public ExecutorClass executorClass() {
+            return executorClass;
+        }
+
+        public BodyReader bodyReader() {
+            return bodyReader;
+        }
+
+        public Ordering ordering() {
+            return ordering;
+        }
+
+        /** Order key of a KEY-ordered request, or null. */
+        public Object orderKey(Request request) {
+            return orderKey == null ? null : orderKey.apply(request);
+        }
+
+        void record(long nanos, boolean failed) {
+            calls.increment();
+            totalNanos.add(nanos);
+            if (failed) errors.increment();
+        }
+
+        Map<String, Object> snapshot() {
+            long n = calls.sum();
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("calls", n);
+            m.put("errors", errors.sum());
+            m.put("avgMicros", n == 0 ? 0 : totalNanos.sum() / n / 1000);
+            return m;
+        }
+    }
+
+    private final Map<String, Command> types = new HashMap<>();
+    private final Map<String, Command> reqCommands = new HashMap<>();
+    private final Map<String, Command> all = new LinkedHashMap<>();
+
+    CommandRegistry(String metricsName) {
+        MetricsReporter.register(metricsName, this::snapshot);
+    }
+
+    /** Registers a top-level command under its name and any aliases (e.g. SEND for SEND_MESSAGE). */
+    Command add(String name, Handler handler, String... aliases) {
+        return addAsync(name, async(handler), aliases);
+    }
+
+    /** add() for a command whose handler completes asynchronously. */
+    Command addAsync(String name, AsyncHandler handler, String... aliases) {
+        Command c = new Command(name, handler);
+        put(types, name, c);
+        for (String alias : aliases) put(types, alias, c);
+        all.put(name, c);
+        return c;
+    }
+
+    /** Registers a REQ sub-command, matched on "cmd" exactly as the client sends it. */
+    Command addReq(String cmd, Handler handler) {
+        Command c = new Command("REQ:" + cmd, async(handler));
+        reqCommands.put(cmd, c);
+        all.put(c.name, c);
+        return c;
+    }
+
+    /** Command for a request "type", or null if unknown. */
+    public Command lookup(String type) {
+        if (type == null) return null;
+        Command c = types.get(type);
+        return c != null ? c : types.get(type.toUpperCase(Locale.ROOT));
+    }
+
+    /** REQ sub-command for "cmd", or null if unknown. */
+    public Command lookupReq(String cmd) {
+        return cmd == null ? null : reqCommands.get(cmd);
+    }
+
+    private static AsyncHandler async(Handler handler) {
+        return (r, id, u, executor) -> CompletableFuture.completedFuture(handler.handle(r, id, u));
+    }
+
+    private static void put(Map<String, Command> map, String name, Command c) {
+        if (map.put(name, c) != null) throw new IllegalStateException("duplicate command " + name);
+        map.putIfAbsent(name.toLowerCase(Locale.ROOT), c);
+    }
+
+    Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        all.forEach((name, c) -> {
+            if (c.calls.sum() > 0) m.put(name, c.snapshot());
+        });
+        return m;
+    }
+}
@@ -0,0 +1,34 @@
+package telegramserver.protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque pagination cursors: a kind tag plus a few numbers, base64url encoded, e.g.
+ * encode("h", chatId, beforeId). Clients only hand them back; decode() rejects a cursor of
+ * another kind or shape, so a cursor cannot be replayed against a different listing.
+ */
+final class Cursors {
+
+    private Cursors() {}
+
+    static String encode(String kind, long... values) {
+        StringBuilder sb = new StringBuilder(kind);
+        for (long v : values) sb.append(':').append(v);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** The values of a cursor of this kind with exactly count values, or null if it is not one. */
+    static long[] decode(String cursor, String kind, int count) {
+        if (cursor == null || cursor.isBlank()) return null;
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(cursor.trim()), StandardCharsets.UTF_8).split(":");
+            if (parts.length != count + 1 || !parts[0].equals(kind)) return null;
+            long[] values = new long[count];
+            for (int i = 0; i < count; i++) values[i] = Long.parseLong(parts[i + 1]);
+            return values;
+        } catch (IllegalArgumentException e) { // bad base64 or number
+            return null;
+        }
+    }
+}
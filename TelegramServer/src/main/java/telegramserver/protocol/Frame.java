@@ -0,0 +1,58 @@
+package telegramserver.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One NDJSON line already encoded as UTF-8, including the trailing newline.
+ *
+ * A Frame is immutable, so one instance built for an event can be queued for every
+ * recipient session: nothing is re-serialized or re-encoded per recipient.
+ * An event frame also knows its "seq" (0 for anything else), so replay can find it.
+ */
+public final class Frame {
+    private final byte[] bytes;
+    private final long seq;
+
+    private Frame(byte[] bytes, long seq) {
+        this.bytes = bytes;
+        this.seq = seq;
+    }
+
+    public static Frame of(String json) {
+        return of(json, 0);
+    }
+
+    public static Frame of(String json, long seq) {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        byte[] line = new byte[body.length + 1];
+        System.arraycopy(body, 0, line, 0, body.length);
+        line[body.length] = '\n';
+        return new Frame(line, seq);
+    }
+
+    /** The event's seq, or 0 if this is not an event. */
+    public long seq() {
+        return seq;
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /** Fresh read-only view (own position/limit) over the shared bytes, for channel writes. */
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, bytes.length - 1, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,56 @@
+package telegramserver.protocol;
+
+import com.google.gson.JsonObject;
+
+/**
+ * One decoded client request.
+ *
+ * - id/type/cmd are always present as plain strings (id may be null if the client forgot it).
+ * - command is resolved once while decoding, so dispatch does not look it up again.
+ * - Hot commands carry a typed body (see Requests) and no JSON tree.
+ * - Every other command carries the whole request as a JsonObject tree, as before.
+ */
+public final class Request {
+    private final String id;
+    private final String type;
+    private final String cmd;
+    private final CommandRegistry.Command command;
+    private final Object body;
+    private final JsonObject tree;
+
+    Request(String id, String type, String cmd, CommandRegistry.Command command, Object body, JsonObject tree) {
+        this.id = id;
+        this.type = type;
+        this.cmd = cmd;
+        this.command = command;
+        this.body = body;
+        this.tree = tree;
+    }
+
+    public String id() {
+        return id;
+    }
+
+    public String type() {
+        return type;
+    }
+
+    public String cmd() {
+        return cmd;
+    }
+
+    /** Registered command this request resolved to, or null for an unknown type/cmd. */
+    public CommandRegistry.Command command() {
+        return command;
+    }
+
+    /** Typed body of a hot command. */
+    public <T> T body(Class<T> cls) {
+        return cls.cast(body);
+    }
+
+    /** Full request tree for commands without a typed body, or null. */
+    public JsonObject tree() {
+        return tree;
+    }
+}
@@ -0,0 +1,96 @@
+package telegramserver.protocol;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import telegramserver.sockets.NdjsonFramer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes one NDJSON request frame into a Request.
+ *
+ * One streaming pass over the top-level object reads id/type/cmd, resolves the command in
+ * CommandProcessor's registry and skips everything else without materializing it. For
+ * commands registered with a body reader (SEND_MESSAGE, SEEN, LOGIN, ...) the "payload" is
+ * streamed straight into a typed body during that same pass when "type" precedes it,
+ * which is what clients send.
+ *
+ * A second pass over the same bytes is only needed when:
+ * - a hot command put "payload" before "type", or sent its fields at the top level;
+ * - the command has no typed body: it is parsed into a JsonObject tree for its handler.
+ */
+public final class RequestDecoder {
+
+    private RequestDecoder() {}
+
+    /** Decodes a frame (bytes of one line, no '\n'). Throws JsonParseException on bad input. */
+    public static Request decode(ByteBuffer frame) {
+        try {
+            CommandRegistry commands = CommandProcessor.commands();
+            String id = null, type = null, cmd = null;
+            boolean isReq = false, hasPayload = false;
+            CommandRegistry.Command command = null;
+            Object body = null;
+
+            JsonReader in = reader(frame);
+            if (in.peek() != JsonToken.BEGIN_OBJECT) throw new JsonParseException("request must be a JSON object");
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "id": id = Requests.nextString(in, null); break;
+                    case "type":
+                        type = Requests.nextString(in, null);
+                        isReq = "REQ".equalsIgnoreCase(type);
+                        command = isReq ? commands.lookupReq(cmd) : commands.lookup(type);
+                        break;
+                    case "cmd":
+                        cmd = Requests.nextString(in, null);
+                        if (isReq) command = commands.lookupReq(cmd);
+                        break;
+                    case "payload":
+                        hasPayload = true;
+                        if (command != null && command.bodyReader() != null && body == null) {
+                            body = command.bodyReader().read(in); // common case: type came first, one pass
+                        } else {
+                            in.skipValue();
+                        }
+                        break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            if (in.peek() != JsonToken.END_DOCUMENT) throw new JsonParseException("trailing data after request");
+
+            if (command != null && command.bodyReader() != null) {
+                if (body == null) body = readBody(frame, command.bodyReader(), hasPayload);
+                return new Request(id, type, cmd, command, body, null);
+            }
+            return new Request(id, type, cmd, command, null, JsonParser.parseReader(reader(frame)).getAsJsonObject());
+        } catch (JsonParseException e) {
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            throw new JsonParseException(e.getMessage(), e);
+        }
+    }
+
+    /** Second pass for hot commands whose payload came before "type" or that have no "payload". */
+    private static Object readBody(ByteBuffer frame, CommandRegistry.BodyReader bodyReader, boolean hasPayload) throws IOException {
+        JsonReader in = reader(frame);
+        if (!hasPayload) return bodyReader.read(in);
+        in.beginObject();
+        while (in.hasNext()) {
+            if ("payload".equals(in.nextName())) return bodyReader.read(in);
+            in.skipValue();
+        }
+        throw new JsonParseException("payload not found");
+    }
+
+    private static JsonReader reader(ByteBuffer frame) {
+        JsonReader in = new JsonReader(NdjsonFramer.reader(frame.duplicate()));
+        in.setLenient(true);
+        return in;
+    }
+}
@@ -0,0 +1,88 @@
+package telegramserver.protocol;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+
+/**
+ * Typed request bodies for the hot commands, decoded field by field from a JsonReader
+ * (see RequestDecoder) instead of going through a JsonObject tree.
+ *
+ * Defaults and number coercion match the old JsonObject code: a missing field keeps
+ * its default and quoted numbers ("12") are accepted.
+ */
+public final class Requests {
+
+    private Requests() {}
+
+    /** SEND / SEND_MESSAGE payload: {chatId, text}. */
+    public record SendMessage(int chatId, String text) {
+        static SendMessage read(JsonReader in) throws IOException {
+            int chatId = 0;
+            String text = "";
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "chatId": chatId = nextInt(in, 0); break;
+                    case "text": text = nextString(in, ""); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return new SendMessage(chatId, text);
+        }
+    }
+
+    /** SEND_CHANNEL / SEND_CHANNEL_MESSAGE payload: {channelId, text}. */
+    public record SendChannelMessage(int channelId, String text) {
+        static SendChannelMessage read(JsonReader in) throws IOException {
+            int channelId = 0;
+            String text = "";
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "channelId": channelId = nextInt(in, 0); break;
+                    case "text": text = nextString(in, ""); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return new SendChannelMessage(channelId, text);
+        }
+    }
+
+    /** SEEN payload: {messageId, chatId?}. */
+    public record Seen(String messageId, int chatId) {
+        static Seen read(JsonReader in) throws IOException {
+            String messageId = null;
+            int chatId = 0;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "messageId": messageId = nextString(in, null); break;
+                    case "chatId": chatId = nextInt(in, 0); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Seen(messageId, chatId);
+        }
+    }
+
+    static int nextInt(JsonReader in, int def) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return def;
+        }
+        return in.nextInt();
+    }
+
+    static String nextString(JsonReader in, String def) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return def;
+        }
+        return in.nextString();
+    }
+}
@@ -0,0 +1,115 @@
+package telegramserver.protocol;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.Map;
+
+/**
+ * Result of one request, as returned by CommandProcessor.
+ *
+ * - type/id/body are written out exactly once, by encode(), on the way to the socket.
+ * - Session side effects travel with the result instead of being read back out of the JSON:
+ *   authenticatedAs() is set on a successful LOGIN or RESUME and the session registers itself
+ *   under it; replayAfter() is the seq after which a RESUME wants missed events replayed.
+ * - Body values are serialized with Gson, except Writable ones, which write themselves
+ *   straight into the frame.
+ */
+public final class Response {
+    private static final Gson gson = new Gson();
+
+    /** A body value that writes its own JSON, e.g. a page of rows without building a map per row. */
+    public interface Writable {
+        void writeTo(JsonWriter out) throws IOException;
+    }
+
+    private final String type;
+    private final String id;
+    private final Map<String, Object> body;
+    private final String authenticatedAs;
+    private final Long replayAfter;
+
+    private Response(String type, String id, Map<String, Object> body, String authenticatedAs, Long replayAfter) {
+        this.type = type;
+        this.id = id;
+        this.body = body;
+        this.authenticatedAs = authenticatedAs;
+        this.replayAfter = replayAfter;
+    }
+
+    public static Response of(String type, String id, Map<String, Object> body) {
+        return new Response(type, id, body, null, null);
+    }
+
+    /** Same response, additionally telling the session it is now logged in as username. */
+    public Response authenticate(String username) {
+        return new Response(type, id, body, username, null);
+    }
+
+    /** Same as authenticate(username), and replays the user's events after seq replayAfter (if not null). */
+    public Response authenticate(String username, Long replayAfter) {
+        return new Response(type, id, body, username, replayAfter);
+    }
+
+    public String type() {
+        return type;
+    }
+
+    public String id() {
+        return id;
+    }
+
+    public Map<String, Object> body() {
+        return body;
+    }
+
+    /** Username the session should register under, or null. */
+    public String authenticatedAs() {
+        return authenticatedAs;
+    }
+
+    /** Seq of the last event the client received before reconnecting, or null for no replay. */
+    public Long replayAfter() {
+        return replayAfter;
+    }
+
+    /**
+     * Serializes to one NDJSON frame: {"type":..,"id":..,<body fields>}.
+     * As before, a body field named "type" or "id" wins over the envelope value.
+     */
+    public Frame encode() {
+        StringWriter out = new StringWriter(64);
+        try {
+            JsonWriter w = gson.newJsonWriter(out);
+            w.beginObject();
+            if (body == null || !body.containsKey("type")) w.name("type").value(type);
+            if (body == null || !body.containsKey("id")) w.name("id").value(id);
+            if (body != null) {
+                for (Map.Entry<String, Object> e : body.entrySet()) {
+                    w.name(e.getKey());
+                    Object v = e.getValue();
+                    if (v == null) {
+                        w.nullValue();
+                    } else if (v instanceof Writable) {
+                        ((Writable) v).writeTo(w);
+                    } else {
+                        gson.toJson(v, v.getClass(), w);
+                    }
+                }
+            }
+            w.endObject();
+            w.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return Frame.of(out.toString());
+    }
+
+    @Override
+    public String toString() {
+        return encode().toString();
+    }
+}
@@ -4,29 +4,35 @@ import com.google.gson.Gson;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Helper for building consistent JSON responses and events.
  *
  * Responses MUST include "type" and "id".
  * Events MUST have "type":"EVENT" and "event" key (no id).
+ *
+ * Responses are returned as a Response and only serialized when the session sends them.
+ * Events are returned as an encoded Frame: they are serialized once and the same
+ * bytes are shared by every recipient of a fan-out.
+ * Every event carries a unique "seq" (increasing in build order, starting from the clock so
+ * a restarted server does not reuse them); RESUME {lastSeq} names the last event a client got.
  */
 public class SocketProtocol {
     private static final Gson gson = new Gson();
+    private static final AtomicLong eventSeq = new AtomicLong(System.currentTimeMillis() * 1_000);
 
-    public static String buildResponse(String type, String id, Map<String, Object> payload) {
-        Map<String, Object> out = new HashMap<>();
-        out.put("type", type);
-        out.put("id", id);
-        if (payload != null) out.putAll(payload);
-        return gson.toJson(out);
+    public static Response buildResponse(String type, String id, Map<String, Object> payload) {
+        return Response.of(type, id, payload);
     }
 
-    public static String buildEvent(String eventName, Map<String, Object> payload) {
+    public static Frame buildEvent(String eventName, Map<String, Object> payload) {
         Map<String, Object> out = new HashMap<>();
         out.put("type", "EVENT");
         out.put("event", eventName);
         if (payload != null) out.putAll(payload);
-        return gson.toJson(out);
+        long seq = eventSeq.incrementAndGet();
+        out.put("seq", seq);
+        return Frame.of(gson.toJson(out), seq);
     }
 }
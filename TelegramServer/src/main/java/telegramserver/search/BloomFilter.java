@@ -0,0 +1,86 @@
+package telegramserver.search;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter over strings: "certainly absent" or "maybe present".
+ *
+ * - bitsPerKey bits per expected key and k = bitsPerKey · ln 2 probes (10 bits: 7 probes,
+ *   about 1% false positives at the expected size, worse past it).
+ * - The probes come from one 64-bit hash split in two halves (h1 + i · h2).
+ * - add() sets bits with compare-and-set, so it needs no lock and readers never wait.
+ */
+public final class BloomFilter {
+
+    private final AtomicLongArray words;
+    private final long bits;
+    private final int probes;
+    private final int expected;
+    private final AtomicInteger added = new AtomicInteger();
+
+    public BloomFilter(int expected, int bitsPerKey) {
+        this.expected = Math.max(1, expected);
+        long wanted = Math.max(64, (long) this.expected * Math.max(1, bitsPerKey));
+        this.words = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE - 8, (wanted + 63) >>> 6));
+        this.bits = (long) words.length() << 6;
+        this.probes = Math.max(1, (int) Math.round(bitsPerKey * Math.log(2)));
+    }
+
+    public void add(String key) {
+        long h = hash(key);
+        long h1 = h >>> 32;
+        long h2 = (h & 0xFFFFFFFFL) | 1;
+        for (int i = 0; i < probes; i++) {
+            long bit = (h1 + i * h2) % bits;
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long old;
+            do {
+                old = words.get(word);
+                if ((old & mask) != 0) break;
+            } while (!words.compareAndSet(word, old, old | mask));
+        }
+        added.incrementAndGet();
+    }
+
+    public boolean mightContain(String key) {
+        long h = hash(key);
+        long h1 = h >>> 32;
+        long h2 = (h & 0xFFFFFFFFL) | 1;
+        for (int i = 0; i < probes; i++) {
+            long bit = (h1 + i * h2) % bits;
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    /** Keys added so far (duplicates counted). */
+    public int size() {
+        return added.get();
+    }
+
+    /** The number of keys the filter was sized for. */
+    public int expected() {
+        return expected;
+    }
+
+    public long bits() {
+        return bits;
+    }
+
+    /** FNV-1a over the chars, then a 64-bit finalizer so both halves are well mixed. */
+    private static long hash(String key) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
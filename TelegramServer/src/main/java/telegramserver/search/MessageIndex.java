@@ -0,0 +1,760 @@
+package telegramserver.search;
+
+import telegramserver.MetricsReporter;
+import telegramserver.ServerConfig;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Incremental inverted index of message text, with posting lists per (chat, term), kept in
+ * telegram.search.dir.
+ *
+ * - add/edit/delete only queue the change. The "search-indexer" thread applies queued
+ *   changes in batches to the in-memory live segment and appends them to
+ *   journal-<generation>.log, which is replayed on open. A message becomes searchable a few
+ *   milliseconds after it is stored.
+ * - At telegram.search.flushDocs messages (default 100000) the live segment is frozen and the
+ *   "search-merger" thread writes it out as an immutable, compressed Segment. With more than
+ *   telegram.search.maxSegments (default 8) segments, the newest ones are merged for as long
+ *   as the one before them is at most twice their size, so sizes grow geometrically and a
+ *   posting is rewritten O(log n) times.
+ * - Segments never change: an edit or delete records, per message id, the first generation
+ *   whose postings are still valid (validFrom). Older postings are skipped by queries and
+ *   dropped by merges; postings in the live segment are removed directly.
+ * - search(): every query term must occur. Hits rank by the sum over terms of
+ *   ln(1 + messages in chat / messages with the term) * (1 + ln tf), then newest first, and
+ *   page by (score, id).
+ *
+ * Metrics are reported as "search".
+ */
+public final class MessageIndex {
+
+    public record Hit(int chatId, long messageId, double score) {}
+
+    /** Best hit first: higher score, then newer message. */
+    public static final Comparator<Hit> ORDER = Comparator.comparingDouble(Hit::score).reversed()
+            .thenComparing(Comparator.comparingLong(Hit::messageId).reversed());
+
+    private record Op(byte type, int chatId, long messageId, String text, String oldText) {}
+
+    private static final class Live {
+        final int generation;
+        final Map<Segment.Term, Postings> postings = new HashMap<>();
+        final Map<Integer, Integer> chatDocs = new HashMap<>();
+        int docs;
+
+        Live(int generation) {
+            this.generation = generation;
+        }
+    }
+
+    private static final byte ADD = 1;
+    private static final byte EDIT = 2;
+    private static final byte DELETE = 3;
+    private static final int JOURNAL_HEADER = 8;
+    private static final int OVERRIDES_MAGIC = 0x53524f56; // "SROV"
+    private static final int MAX_QUERY_TERMS = 8;
+    private static final int BATCH = 4096;
+
+    private final Path dir;
+    private final int flushDocs;
+    private final int maxSegments;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Live live;                                       // guarded by lock
+    private final List<Live> frozen = new ArrayList<>();     // guarded by lock; oldest first
+    private final List<Segment> segments = new ArrayList<>(); // guarded by lock; by generation
+    private DataOutputStream journal;                        // guarded by lock
+    private final ConcurrentHashMap<Long, Integer> validFrom = new ConcurrentHashMap<>();
+
+    private final BlockingQueue<Op> ops = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Live> unwritten = new LinkedBlockingQueue<>();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong applied = new AtomicLong();
+
+    private final LongAdder indexed = new LongAdder();
+    private final LongAdder edits = new LongAdder();
+    private final LongAdder deletes = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder queryNanos = new LongAdder();
+    private final LongAdder segmentsWritten = new LongAdder();
+    private final LongAdder merges = new LongAdder();
+    private final LongAdder journalErrors = new LongAdder();
+
+    public MessageIndex(Path dir) throws IOException {
+        this.dir = dir;
+        this.flushDocs = Math.max(1, ServerConfig.getInt("telegram.search.flushDocs", 100_000));
+        this.maxSegments = Math.max(2, ServerConfig.getInt("telegram.search.maxSegments", 8));
+        Files.createDirectories(dir);
+        recover();
+
+        start("search-indexer", this::indexLoop);
+        start("search-merger", this::mergeLoop);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "search-shutdown"));
+        MetricsReporter.register("search", this::snapshot);
+    }
+
+    // ---- updates ----
+
+    public void add(int chatId, long messageId, String text) {
+        submit(new Op(ADD, chatId, messageId, text, null));
+    }
+
+    public void edit(int chatId, long messageId, String oldText, String newText) {
+        submit(new Op(EDIT, chatId, messageId, newText, oldText));
+    }
+
+    public void delete(int chatId, long messageId, String oldText) {
+        submit(new Op(DELETE, chatId, messageId, null, oldText));
+    }
+
+    private void submit(Op op) {
+        submitted.incrementAndGet();
+        ops.add(op);
+    }
+
+    /**
+     * Waits (up to timeoutMs) until every change submitted so far is applied and journaled;
+     * true if it got there.
+     */
+    public boolean awaitIndexed(long timeoutMs) {
+        long target = submitted.get();
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (applied.get() < target) {
+            if (System.currentTimeMillis() > deadline) return false;
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void close() {
+        if (!awaitIndexed(2_000)) System.err.println("⚠️ Search index closed with " + ops.size() + " changes unapplied");
+    }
+
+    // ---- search ----
+
+    /**
+     * Up to limit hits in the given chats for every term of query, best first, strictly after
+     * the hit `after` (null for the first page).
+     */
+    public List<Hit> search(Collection<Integer> chatIds, String query, Hit after, int limit) {
+        List<String> terms = new ArrayList<>(new LinkedHashSet<>(TextNormalizer.terms(query)));
+        if (terms.isEmpty() || limit <= 0) return List.of();
+        if (terms.size() > MAX_QUERY_TERMS) terms = terms.subList(0, MAX_QUERY_TERMS);
+        long start = System.nanoTime();
+        PriorityQueue<Hit> top = new PriorityQueue<>(ORDER.reversed()); // worst kept hit at the head
+        lock.readLock().lock();
+        try {
+            for (int chatId : chatIds) searchChat(chatId, terms, after, limit, top);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<Hit> out = new ArrayList<>(top);
+        out.sort(ORDER);
+        queries.increment();
+        queryNanos.add(System.nanoTime() - start);
+        return out;
+    }
+
+    /** Caller holds the read lock. */
+    private void searchChat(int chatId, List<String> terms, Hit after, int limit, PriorityQueue<Hit> top) throws IOException {
+        Segment.Term[] keys = new Segment.Term[terms.size()];
+        int[] df = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new Segment.Term(chatId, terms.get(i));
+            df[i] = count(keys[i]);
+            if (df[i] == 0) return;
+        }
+        Integer[] order = new Integer[keys.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingInt(i -> df[i])); // rarest first: smallest candidate set
+        int docs = chatDocs(chatId);
+
+        Map<Long, Double> scores = null;
+        for (int i : order) {
+            double idf = Math.log(1 + (double) Math.max(docs, df[i]) / df[i]);
+            Map<Long, Integer> tfs = gather(keys[i], scores == null ? null : scores.keySet());
+            Map<Long, Double> next = new HashMap<>(Math.max(16, tfs.size() * 4 / 3 + 1));
+            for (Map.Entry<Long, Integer> e : tfs.entrySet()) {
+                double base = scores == null ? 0 : scores.get(e.getKey());
+                next.put(e.getKey(), base + idf * (1 + Math.log(e.getValue())));
+            }
+            scores = next;
+            if (scores.isEmpty()) return;
+        }
+        for (Map.Entry<Long, Double> e : scores.entrySet()) {
+            Hit h = new Hit(chatId, e.getKey(), e.getValue());
+            if (after != null && ORDER.compare(h, after) <= 0) continue;
+            if (top.size() < limit) {
+                top.add(h);
+            } else if (ORDER.compare(h, top.peek()) < 0) {
+                top.poll();
+                top.add(h);
+            }
+        }
+    }
+
+    /**
+     * Valid postings of term from every segment, oldest generation first so a newer copy of
+     * an id wins; restricted to candidates when given. Caller holds the read lock.
+     */
+    private Map<Long, Integer> gather(Segment.Term term, Set<Long> candidates) throws IOException {
+        Map<Long, Integer> out = new HashMap<>();
+        for (Segment s : segments) collect(s.postings(term), s.generation, candidates, out);
+        for (Live l : frozen) collect(l.postings.get(term), l.generation, candidates, out);
+        collect(live.postings.get(term), live.generation, candidates, out);
+        return out;
+    }
+
+    private void collect(Postings p, int generation, Set<Long> candidates, Map<Long, Integer> out) {
+        if (p == null) return;
+        for (int i = 0; i < p.size; i++) {
+            long id = p.ids[i];
+            if (candidates != null && !candidates.contains(id)) continue;
+            if (valid(id, generation)) out.put(id, p.tfs[i]);
+        }
+    }
+
+    private boolean valid(long messageId, int generation) {
+        Integer from = validFrom.get(messageId);
+        return from == null || generation >= from;
+    }
+
+    /** Postings of term over all segments, stale ones included; for ranking. Caller holds the lock. */
+    private int count(Segment.Term term) {
+        int n = 0;
+        for (Segment s : segments) n += s.count(term);
+        for (Live l : frozen) {
+            Postings p = l.postings.get(term);
+            if (p != null) n += p.size;
+        }
+        Postings p = live.postings.get(term);
+        return p == null ? n : n + p.size;
+    }
+
+    /** Messages indexed in chatId, edits and deletes not subtracted. Caller holds the lock. */
+    private int chatDocs(int chatId) {
+        int n = live.chatDocs.getOrDefault(chatId, 0);
+        for (Segment s : segments) n += s.chatDocs.getOrDefault(chatId, 0);
+        for (Live l : frozen) n += l.chatDocs.getOrDefault(chatId, 0);
+        return n;
+    }
+
+    // ---- indexing ----
+
+    private void indexLoop() {
+        List<Op> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(ops.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            ops.drainTo(batch, BATCH - 1);
+            applyBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void applyBatch(List<Op> batch) {
+        lock.writeLock().lock();
+        try {
+            for (Op op : batch) {
+                apply(op);
+                if (journal == null) continue;
+                try {
+                    journal.write(encode(op));
+                } catch (IOException e) {
+                    journalFailed(e);
+                }
+            }
+            if (journal != null) {
+                try {
+                    journal.flush();
+                } catch (IOException e) {
+                    journalFailed(e);
+                }
+            }
+            if (live.docs >= flushDocs) freeze();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        applied.addAndGet(batch.size());
+    }
+
+    /** Caller holds the write lock. */
+    private void apply(Op op) {
+        switch (op.type) {
+            case ADD -> {
+                addLive(op.chatId, op.messageId, op.text, true);
+                indexed.increment();
+            }
+            case EDIT -> {
+                removeLive(op.chatId, op.messageId, op.oldText);
+                validFrom.merge(op.messageId, live.generation, Math::max);
+                addLive(op.chatId, op.messageId, op.text, false);
+                edits.increment();
+            }
+            case DELETE -> {
+                removeLive(op.chatId, op.messageId, op.oldText);
+                validFrom.merge(op.messageId, live.generation + 1, Math::max);
+                deletes.increment();
+            }
+            default -> throw new IllegalArgumentException("unknown index op " + op.type);
+        }
+    }
+
+    private void addLive(int chatId, long messageId, String text, boolean newDoc) {
+        Map<String, Integer> tf = new HashMap<>();
+        for (String t : TextNormalizer.terms(text)) tf.merge(t, 1, Integer::sum);
+        if (tf.isEmpty()) return;
+        for (Map.Entry<String, Integer> e : tf.entrySet()) {
+            live.postings.computeIfAbsent(new Segment.Term(chatId, e.getKey()), k -> new Postings(2))
+                    .add(messageId, e.getValue());
+        }
+        if (newDoc) {
+            live.docs++;
+            live.chatDocs.merge(chatId, 1, Integer::sum);
+        }
+    }
+
+    private void removeLive(int chatId, long messageId, String text) {
+        for (String t : new LinkedHashSet<>(TextNormalizer.terms(text))) {
+            Segment.Term key = new Segment.Term(chatId, t);
+            Postings p = live.postings.get(key);
+            if (p != null && p.remove(messageId) && p.size == 0) live.postings.remove(key);
+        }
+    }
+
+    /** Hands the live segment to the merger and starts the next generation. Caller holds the write lock. */
+    private void freeze() {
+        Live full = live;
+        frozen.add(full);
+        unwritten.add(full);
+        live = new Live(full.generation + 1);
+        try {
+            if (journal != null) journal.close();
+        } catch (IOException e) {
+            journalFailed(e);
+        }
+        journal = openJournal(live.generation);
+    }
+
+    // ---- segments ----
+
+    private void mergeLoop() {
+        while (true) {
+            Live l;
+            try {
+                l = unwritten.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                write(l);
+                while (mergeOnce()) {
+                    // until at most maxSegments remain
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("⚠️ Search segment write failed, retrying: " + e);
+                try {
+                    Thread.sleep(1_000);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                if (!isWritten(l)) unwritten.add(l);
+            }
+        }
+    }
+
+    private boolean isWritten(Live l) {
+        lock.readLock().lock();
+        try {
+            return !frozen.contains(l);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Writes a frozen live segment to disk, then drops it and its journal. */
+    private void write(Live l) throws IOException {
+        Segment.Term[] terms = l.postings.keySet().toArray(new Segment.Term[0]);
+        Arrays.sort(terms);
+        Segment seg;
+        try (Segment.Writer w = new Segment.Writer(dir, l.generation, l.generation)) {
+            for (Segment.Term t : terms) w.add(t, l.postings.get(t).sorted());
+            seg = w.finish(l.chatDocs);
+        }
+        lock.writeLock().lock();
+        try {
+            segments.add(seg);
+            frozen.remove(l);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        writeOverrides();
+        deleteJournals(l.generation);
+        segmentsWritten.increment();
+    }
+
+    /** Merges the newest segments if there are too many; true if it merged. */
+    private boolean mergeOnce() throws IOException {
+        List<Segment> all;
+        lock.readLock().lock();
+        try {
+            all = new ArrayList<>(segments);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (all.size() <= maxSegments) return false;
+        int from = all.size() - 1;
+        long tail = all.get(from).bytes();
+        while (from > 0 && (all.size() - from < 2 || all.get(from - 1).bytes() <= 2 * tail)) {
+            from--;
+            tail += all.get(from).bytes();
+        }
+        merge(all.subList(from, all.size()), from == 0);
+        return true;
+    }
+
+    /**
+     * Rewrites inputs (consecutive generations) as one segment named after the newest, without
+     * stale postings. A full merge also forgets the validFrom entries it made unnecessary.
+     */
+    private void merge(List<Segment> inputs, boolean full) throws IOException {
+        Map<Long, Integer> overrides = full ? new HashMap<>(validFrom) : null;
+        Segment first = inputs.get(0);
+        Segment last = inputs.get(inputs.size() - 1);
+        Segment.Term[][] terms = new Segment.Term[inputs.size()][];
+        for (int i = 0; i < terms.length; i++) terms[i] = inputs.get(i).terms();
+        int[] next = new int[terms.length];
+        Map<Integer, Integer> chatDocs = new HashMap<>();
+        for (Segment s : inputs) s.chatDocs.forEach((chat, n) -> chatDocs.merge(chat, n, Integer::sum));
+
+        Segment merged;
+        try (Segment.Writer w = new Segment.Writer(dir, first.firstGeneration, last.generation)) {
+            while (true) {
+                Segment.Term min = null;
+                for (int i = 0; i < terms.length; i++) {
+                    if (next[i] < terms[i].length && (min == null || terms[i][next[i]].compareTo(min) < 0)) {
+                        min = terms[i][next[i]];
+                    }
+                }
+                if (min == null) break;
+                Postings out = new Postings(16);
+                for (int i = 0; i < terms.length; i++) {
+                    if (next[i] >= terms[i].length || !terms[i][next[i]].equals(min)) continue;
+                    next[i]++;
+                    Postings p = inputs.get(i).postings(min);
+                    int generation = inputs.get(i).generation;
+                    for (int j = 0; j < p.size; j++) {
+                        if (valid(p.ids[j], generation)) out.add(p.ids[j], p.tfs[j]);
+                    }
+                }
+                if (out.size > 0) w.add(min, out.sorted());
+            }
+            merged = w.finish(chatDocs); // replaces last's file; last stays readable until closed
+        }
+
+        lock.writeLock().lock();
+        try {
+            segments.removeAll(inputs);
+            segments.add(merged);
+            segments.sort(Comparator.comparingInt(s -> s.generation));
+            for (Segment s : inputs) s.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (Segment s : inputs) {
+            if (!s.path.equals(merged.path)) Files.deleteIfExists(s.path);
+        }
+        if (full) {
+            // every remaining posting is now in merged or in a later generation: an entry that
+            // only hid generations up to merged's is no longer needed, unless it changed since
+            for (Map.Entry<Long, Integer> e : overrides.entrySet()) {
+                if (e.getValue() <= merged.generation + 1) validFrom.remove(e.getKey(), e.getValue());
+            }
+        }
+        writeOverrides();
+        merges.increment();
+    }
+
+    // ---- journal / overrides / recovery ----
+
+    private static byte[] encode(Op op) throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream(64);
+        DataOutputStream body = new DataOutputStream(b);
+        body.writeByte(op.type);
+        body.writeInt(op.chatId);
+        body.writeLong(op.messageId);
+        writeText(body, op.text);
+        writeText(body, op.oldText);
+        body.flush();
+        byte[] bytes = b.toByteArray();
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, bytes.length);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(JOURNAL_HEADER + bytes.length);
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(bytes.length);
+        out.writeInt((int) crc.getValue());
+        out.write(bytes);
+        return record.toByteArray();
+    }
+
+    private static void writeText(DataOutputStream out, String text) throws IOException {
+        if (text == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) return null;
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private Path journalPath(int generation) {
+        return dir.resolve(String.format("journal-%010d.log", generation));
+    }
+
+    private DataOutputStream openJournal(int generation) {
+        try {
+            return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(journalPath(generation),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND), 1 << 16));
+        } catch (IOException e) {
+            journalFailed(e);
+            return null;
+        }
+    }
+
+    private void journalFailed(IOException e) {
+        journalErrors.increment();
+        System.err.println("⚠️ Search journal write failed; recent changes will be lost on restart: " + e.getMessage());
+    }
+
+    private void deleteJournals(int upToGeneration) throws IOException {
+        for (Path p : list("journal-", ".log")) {
+            if (generationOf(p) <= upToGeneration) Files.deleteIfExists(p);
+        }
+    }
+
+    /** Replays a journal into the live segment; returns the length of its valid prefix. */
+    private long replay(Path path) throws IOException {
+        long size = Files.size(path);
+        long pos = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            while (pos + JOURNAL_HEADER <= size) {
+                int len = in.readInt();
+                int crcStored = in.readInt();
+                if (len < 0 || pos + JOURNAL_HEADER + len > size) break;
+                byte[] body = new byte[len];
+                in.readFully(body);
+                CRC32C crc = new CRC32C();
+                crc.update(body, 0, len);
+                if ((int) crc.getValue() != crcStored) break;
+                DataInputStream b = new DataInputStream(new ByteArrayInputStream(body));
+                apply(new Op(b.readByte(), b.readInt(), b.readLong(), readText(b), readText(b)));
+                replayed.increment();
+                pos += JOURNAL_HEADER + len;
+            }
+        } catch (EOFException ignored) {
+            // torn tail
+        }
+        return pos;
+    }
+
+    private void writeOverrides() throws IOException {
+        Map<Long, Integer> copy = new HashMap<>(validFrom);
+        ByteArrayOutputStream b = new ByteArrayOutputStream(8 + copy.size() * 12);
+        DataOutputStream out = new DataOutputStream(b);
+        out.writeInt(OVERRIDES_MAGIC);
+        out.writeInt(copy.size());
+        for (Map.Entry<Long, Integer> e : copy.entrySet()) {
+            out.writeLong(e.getKey());
+            out.writeInt(e.getValue());
+        }
+        out.flush();
+        byte[] bytes = b.toByteArray();
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, bytes.length);
+        Path path = dir.resolve("overrides.dat");
+        Path tmp = dir.resolve("overrides.dat.tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ch.write(ByteBuffer.wrap(bytes));
+            ch.write(ByteBuffer.allocate(4).putInt(0, (int) crc.getValue()));
+            ch.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void loadOverrides() throws IOException {
+        Path path = dir.resolve("overrides.dat");
+        if (!Files.exists(path)) return;
+        byte[] all = Files.readAllBytes(path);
+        CRC32C crc = new CRC32C();
+        crc.update(all, 0, Math.max(0, all.length - 4));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(all));
+        if (all.length < 12 || in.readInt() != OVERRIDES_MAGIC
+                || ByteBuffer.wrap(all, all.length - 4, 4).getInt() != (int) crc.getValue()) {
+            // without them edited and deleted messages could come back: keep the file for inspection
+            throw new IOException(path + " is corrupt");
+        }
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) validFrom.put(in.readLong(), in.readInt());
+    }
+
+    private void recover() throws IOException {
+        for (Path p : list("", ".tmp")) Files.deleteIfExists(p); // interrupted segment or overrides write
+
+        List<Segment> found = new ArrayList<>();
+        for (Path p : list("seg-", ".idx")) {
+            try {
+                found.add(Segment.open(p));
+            } catch (IOException e) {
+                System.err.println("⚠️ Skipping unreadable search segment: " + e.getMessage());
+            }
+        }
+        // newest first; a segment inside the range of a newer one is the leftover input of a merge
+        found.sort(Comparator.comparingInt((Segment s) -> s.generation).reversed());
+        int floor = Integer.MAX_VALUE;
+        for (Segment s : found) {
+            if (s.generation >= floor) {
+                s.close();
+                Files.deleteIfExists(s.path);
+            } else {
+                segments.add(0, s);
+                floor = s.firstGeneration;
+            }
+        }
+        loadOverrides();
+
+        int top = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).generation;
+        List<Path> journals = new ArrayList<>();
+        for (Path p : list("journal-", ".log")) {
+            if (generationOf(p) <= top) Files.deleteIfExists(p);
+            else journals.add(p);
+        }
+        journals.sort(Comparator.comparingInt(MessageIndex::generationOf));
+        int generation = journals.isEmpty() ? top + 1 : generationOf(journals.get(journals.size() - 1));
+        live = new Live(generation);
+        for (Path p : journals) {
+            long valid = replay(p);
+            if (generationOf(p) == generation && valid < Files.size(p)) {
+                System.err.println("⚠️ " + p + ": dropped torn tail");
+                try (FileChannel ch = FileChannel.open(p, StandardOpenOption.WRITE)) {
+                    ch.truncate(valid);
+                }
+            }
+        }
+        journal = openJournal(generation);
+        if (live.docs >= flushDocs) freeze();
+    }
+
+    private List<Path> list(String prefix, String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> {
+                String name = p.getFileName().toString();
+                return name.startsWith(prefix) && name.endsWith(suffix);
+            }).toList();
+        }
+    }
+
+    private static int generationOf(Path p) {
+        String name = p.getFileName().toString();
+        return Integer.parseInt(name.substring(name.indexOf('-') + 1, name.lastIndexOf('.')));
+    }
+
+    // ---- misc ----
+
+    private static void start(String name, Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public Map<String, Object> snapshot() {
+        long segs, bytes = 0, terms = 0;
+        int liveDocs, frozenCount;
+        lock.readLock().lock();
+        try {
+            segs = segments.size();
+            for (Segment s : segments) {
+                bytes += s.bytes();
+                terms += s.size();
+            }
+            liveDocs = live.docs;
+            frozenCount = frozen.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+        long q = queries.sum();
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("dir", dir.toString());
+        m.put("segments", segs);
+        m.put("segmentBytes", bytes);
+        m.put("segmentTerms", terms);
+        m.put("liveDocs", liveDocs);
+        m.put("frozen", frozenCount);
+        m.put("queued", ops.size());
+        m.put("overrides", validFrom.size());
+        m.put("indexed", indexed.sum());
+        m.put("edits", edits.sum());
+        m.put("deletes", deletes.sum());
+        m.put("replayed", replayed.sum());
+        m.put("queries", q);
+        m.put("avgQueryMicros", q == 0 ? 0 : queryNanos.sum() / q / 1000);
+        m.put("segmentsWritten", segmentsWritten.sum());
+        m.put("merges", merges.sum());
+        m.put("journalErrors", journalErrors.sum());
+        return m;
+    }
+}
@@ -0,0 +1,101 @@
+package telegramserver.search;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * The posting list of one term in one chat: message ids with how often the term occurs in
+ * each. Growable while it belongs to the live segment, then encoded for a segment file as
+ * ascending ids, delta + varint coded, each followed by its varint term frequency.
+ */
+final class Postings {
+
+    long[] ids;
+    int[] tfs;
+    int size;
+
+    Postings(int capacity) {
+        ids = new long[Math.max(1, capacity)];
+        tfs = new int[ids.length];
+    }
+
+    void add(long id, int tf) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            tfs = Arrays.copyOf(tfs, size * 2);
+        }
+        ids[size] = id;
+        tfs[size] = tf;
+        size++;
+    }
+
+    /** Removes id if present; the live segment only, for edits and deletes. */
+    boolean remove(long id) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (ids[i] != id) continue;
+            System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+            System.arraycopy(tfs, i + 1, tfs, i, size - i - 1);
+            size--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * This list sorted by id: itself when already sorted, which ids arriving in order almost
+     * always are, else a sorted copy (the original may be read concurrently).
+     */
+    Postings sorted() {
+        boolean sorted = true;
+        for (int i = 1; i < size && sorted; i++) sorted = ids[i] > ids[i - 1];
+        if (sorted) return this;
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(ids[a], ids[b]));
+        Postings copy = new Postings(size);
+        for (int i : order) copy.add(ids[i], tfs[i]);
+        return copy;
+    }
+
+    /** Caller has sorted (see sorted()). */
+    byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size * 4 + 8);
+        long prev = 0;
+        for (int i = 0; i < size; i++) {
+            writeVarLong(out, ids[i] - prev);
+            writeVarLong(out, tfs[i]);
+            prev = ids[i];
+        }
+        return out.toByteArray();
+    }
+
+    static Postings decode(byte[] buf, int count) {
+        Postings p = new Postings(count);
+        long prev = 0;
+        int[] pos = {0};
+        for (int i = 0; i < count; i++) {
+            prev += readVarLong(buf, pos);
+            p.add(prev, (int) readVarLong(buf, pos));
+        }
+        return p;
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarLong(byte[] buf, int[] pos) {
+        long v = 0;
+        int shift = 0;
+        while (true) {
+            byte b = buf[pos[0]++];
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return v;
+            shift += 7;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package telegramserver.search;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * One immutable index segment file: seg-<generation>.idx, holding the postings of live
+ * segments firstGeneration..generation (more than one once merged).
+ *
+ * - Layout: [int magic][int version][int first generation][int generation], the posting
+ *   blobs (Postings.encode), then the dictionary [int n] n x ([int chat][short len]
+ *   [term utf-8][long offset][int length][int count][int crc32c of the blob]), the per-chat
+ *   document counts [int m] m x ([int chat][int docs]), and a footer [long dictionary
+ *   offset][int crc32c of dictionary + counts][int magic].
+ * - The dictionary is held in memory; a posting list costs one positional read.
+ * - Written to a .tmp file, forced and renamed into place, so a segment is whole or absent.
+ */
+final class Segment {
+
+    record Term(int chatId, String term) implements Comparable<Term> {
+        public int compareTo(Term o) {
+            return chatId != o.chatId ? Integer.compare(chatId, o.chatId) : term.compareTo(o.term);
+        }
+
+        /** Mixed: the record default (31 * chat + term hash) collides across neighbouring chats. */
+        @Override
+        public int hashCode() {
+            int h = term.hashCode() * 0x9E3779B9 + chatId * 0x85EBCA6B;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    private record Entry(long offset, int length, int count, int crc) {}
+
+    private static final int MAGIC = 0x53524348; // "SRCH"
+    private static final int VERSION = 1;
+    private static final int HEADER = 16;
+    private static final int FOOTER = 16;
+
+    final Path path;
+    final int firstGeneration;
+    final int generation;
+    final Map<Integer, Integer> chatDocs;
+    private final Map<Term, Entry> dictionary;
+    private final FileChannel channel;
+    private final long bytes;
+
+    private Segment(Path path, int firstGeneration, int generation, Map<Term, Entry> dictionary,
+                    Map<Integer, Integer> chatDocs, FileChannel channel, long bytes) {
+        this.path = path;
+        this.firstGeneration = firstGeneration;
+        this.generation = generation;
+        this.dictionary = dictionary;
+        this.chatDocs = chatDocs;
+        this.channel = channel;
+        this.bytes = bytes;
+    }
+
+    static Path path(Path dir, int generation) {
+        return dir.resolve(String.format("seg-%010d.idx", generation));
+    }
+
+    /** Posting list of term, or null. */
+    Postings postings(Term term) throws IOException {
+        Entry e = dictionary.get(term);
+        if (e == null) return null;
+        ByteBuffer b = ByteBuffer.allocate(e.length);
+        while (b.hasRemaining()) {
+            if (channel.read(b, e.offset + b.position()) < 0) throw new EOFException(path.toString());
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(b.array(), 0, e.length);
+        if ((int) crc.getValue() != e.crc) throw new IOException(path + ": corrupt postings of " + term);
+        return Postings.decode(b.array(), e.count);
+    }
+
+    /** Number of entries of term without reading them, 0 if absent. */
+    int count(Term term) {
+        Entry e = dictionary.get(term);
+        return e == null ? 0 : e.count;
+    }
+
+    /** Every term of the segment, sorted; for merging. */
+    Term[] terms() {
+        Term[] terms = dictionary.keySet().toArray(new Term[0]);
+        Arrays.sort(terms);
+        return terms;
+    }
+
+    int size() {
+        return dictionary.size();
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("⚠️ Could not close " + path + ": " + e.getMessage());
+        }
+    }
+
+    // ---- reading ----
+
+    static Segment open(Path path) throws IOException {
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = ch.size();
+            if (size < HEADER + FOOTER) throw new IOException(path + ": too short");
+            ByteBuffer head = read(ch, 0, HEADER);
+            ByteBuffer foot = read(ch, size - FOOTER, FOOTER);
+            if (head.getInt() != MAGIC || head.getInt() != VERSION) throw new IOException(path + ": not a segment");
+            int firstGeneration = head.getInt();
+            int generation = head.getInt();
+            long dictOffset = foot.getLong();
+            int crcStored = foot.getInt();
+            if (foot.getInt() != MAGIC || dictOffset < HEADER || dictOffset > size - FOOTER) {
+                throw new IOException(path + ": bad footer");
+            }
+            byte[] dict = read(ch, dictOffset, (int) (size - FOOTER - dictOffset)).array();
+            CRC32C crc = new CRC32C();
+            crc.update(dict, 0, dict.length);
+            if ((int) crc.getValue() != crcStored) throw new IOException(path + ": corrupt dictionary");
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(dict));
+            int n = in.readInt();
+            Map<Term, Entry> dictionary = new HashMap<>(n * 4 / 3 + 1);
+            for (int i = 0; i < n; i++) {
+                int chatId = in.readInt();
+                byte[] term = new byte[in.readUnsignedShort()];
+                in.readFully(term);
+                dictionary.put(new Term(chatId, new String(term, StandardCharsets.UTF_8)),
+                        new Entry(in.readLong(), in.readInt(), in.readInt(), in.readInt()));
+            }
+            int m = in.readInt();
+            Map<Integer, Integer> chatDocs = new HashMap<>(m * 4 / 3 + 1);
+            for (int i = 0; i < m; i++) chatDocs.put(in.readInt(), in.readInt());
+            return new Segment(path, firstGeneration, generation, dictionary, chatDocs, ch, size);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    private static ByteBuffer read(FileChannel ch, long pos, int length) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(length);
+        while (b.hasRemaining()) {
+            if (ch.read(b, pos + b.position()) < 0) throw new EOFException();
+        }
+        return b.flip();
+    }
+
+    // ---- writing ----
+
+    /** Streams a segment out; terms must be added in Term order. */
+    static final class Writer implements AutoCloseable {
+        private final Path path;
+        private final Path tmp;
+        private final FileChannel channel;
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream dictBytes = new ByteArrayOutputStream();
+        private final DataOutputStream dict = new DataOutputStream(dictBytes);
+        private long pos;
+        private int terms;
+        private Term last;
+        private boolean done;
+
+        Writer(Path dir, int firstGeneration, int generation) throws IOException {
+            this.path = path(dir, generation);
+            this.tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            this.channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            OutputStream raw = Channels.newOutputStream(channel);
+            this.out = new DataOutputStream(new BufferedOutputStream(raw, 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(firstGeneration);
+            out.writeInt(generation);
+            pos = HEADER;
+        }
+
+        /** postings must be sorted and non-empty. */
+        void add(Term term, Postings postings) throws IOException {
+            if (last != null && last.compareTo(term) >= 0) throw new IllegalStateException("terms out of order: " + term);
+            last = term;
+            byte[] blob = postings.encode();
+            CRC32C crc = new CRC32C();
+            crc.update(blob, 0, blob.length);
+            out.write(blob);
+
+            byte[] t = term.term().getBytes(StandardCharsets.UTF_8);
+            dict.writeInt(term.chatId());
+            dict.writeShort(t.length);
+            dict.write(t);
+            dict.writeLong(pos);
+            dict.writeInt(blob.length);
+            dict.writeInt(postings.size);
+            dict.writeInt((int) crc.getValue());
+            pos += blob.length;
+            terms++;
+        }
+
+        /** Writes dictionary and footer, forces and renames the file into place, and opens it. */
+        Segment finish(Map<Integer, Integer> chatDocs) throws IOException {
+            dict.flush();
+            ByteArrayOutputStream tail = new ByteArrayOutputStream(dictBytes.size() + 8 + chatDocs.size() * 8);
+            DataOutputStream t = new DataOutputStream(tail);
+            t.writeInt(terms);
+            dictBytes.writeTo(t);
+            t.writeInt(chatDocs.size());
+            for (Map.Entry<Integer, Integer> e : chatDocs.entrySet()) {
+                t.writeInt(e.getKey());
+                t.writeInt(e.getValue());
+            }
+            t.flush();
+            byte[] section = tail.toByteArray();
+            CRC32C crc = new CRC32C();
+            crc.update(section, 0, section.length);
+            out.write(section);
+            out.writeLong(pos);
+            out.writeInt((int) crc.getValue());
+            out.writeInt(MAGIC);
+            out.flush();
+            channel.force(true);
+            channel.close();
+            done = true;
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return open(path);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (done) return;
+            channel.close();
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package telegramserver.search;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Turns message text into index terms, the same way for indexing and for queries.
+ *
+ * - Compatibility decomposition (NFKD), then combining marks are dropped: Latin accents,
+ *   Arabic harakat and the hamza/madda of أ إ آ ؤ ئ all go, so "café" finds "cafe" and
+ *   "آب" finds "اب".
+ * - Arabic letter forms map to Persian ones (ي ى → ی, ك → ک, ة → ه); tatweel, ZWNJ and ZWJ
+ *   are removed, so "می‌روم" and "میروم" are one term.
+ * - Persian and Arabic-Indic digits become ASCII digits; everything is lower-cased.
+ * - A term is a run of letters and digits, at most MAX_TERM_CHARS long (longer runs are
+ *   skipped).
+ * - phone() is the one spelling of a phone number that users, search and contacts agree on.
+ */
+public final class TextNormalizer {
+
+    static final int MAX_TERM_CHARS = 40;
+
+    private TextNormalizer() {}
+
+    public static String normalize(String text) {
+        if (text == null || text.isEmpty()) return "";
+        if (isAscii(text)) return text.toLowerCase(Locale.ROOT); // nothing to decompose or map
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFKD);
+        StringBuilder sb = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); ) {
+            int cp = decomposed.codePointAt(i);
+            i += Character.charCount(cp);
+            int mapped = map(cp);
+            if (mapped >= 0) sb.appendCodePoint(mapped);
+        }
+        return sb.toString().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * A phone number as plain digits, Iranian numbers as 09xxxxxxxxx (+98, 0098, 98 and a bare
+     * 9xx... accepted); null if text holds anything but digits, + - ( ) and spaces, or fewer
+     * than 7 digits.
+     */
+    public static String phone(String text) {
+        String s = normalize(text);
+        StringBuilder digits = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') digits.append(c);
+            else if (c != '+' && c != '-' && c != ' ' && c != '(' && c != ')') return null;
+        }
+        String d = digits.toString();
+        if (d.startsWith("0098")) d = "0" + d.substring(4);
+        else if (d.startsWith("98") && d.length() == 12) d = "0" + d.substring(2);
+        else if (d.startsWith("9") && d.length() == 10) d = "0" + d;
+        return d.length() < 7 ? null : d;
+    }
+
+    /** The terms of text in order, duplicates included. */
+    public static List<String> terms(String text) {
+        String s = normalize(text);
+        List<String> out = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= s.length(); ) {
+            int cp = i < s.length() ? s.codePointAt(i) : ' ';
+            boolean word = i < s.length() && Character.isLetterOrDigit(cp);
+            if (word && start < 0) start = i;
+            if (!word && start >= 0) {
+                if (s.codePointCount(start, i) <= MAX_TERM_CHARS) out.add(s.substring(start, i));
+                start = -1;
+            }
+            i += i < s.length() ? Character.charCount(cp) : 1;
+        }
+        return out;
+    }
+
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) return false;
+        }
+        return true;
+    }
+
+    /** The code point to keep for cp, or -1 to drop it. */
+    private static int map(int cp) {
+        switch (cp) {
+            case 0x064A: case 0x0649: return 0x06CC;   // ي ى → ی
+            case 0x0643: return 0x06A9;                // ك → ک
+            case 0x0629: return 0x0647;                // ة → ه
+            case 0x0671: return 0x0627;                // ٱ → ا
+            case 0x0640: case 0x200C: case 0x200D: return -1; // tatweel, ZWNJ, ZWJ
+            default:
+        }
+        if (cp >= 0x0660 && cp <= 0x0669) return '0' + (cp - 0x0660);
+        if (cp >= 0x06F0 && cp <= 0x06F9) return '0' + (cp - 0x06F0);
+        int type = Character.getType(cp);
+        if (type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK) return -1;
+        return cp;
+    }
+}
@@ -0,0 +1,671 @@
+package telegramserver.search;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Immutable people-search index over usernames, first and second names and phone numbers,
+ * for type-ahead lookups without the database.
+ *
+ * - Terms come from TextNormalizer, so Persian/Arabic letter forms and digits match; a
+ *   username also contributes its parts joined ("ali_reza" → ali, reza, alireza). A phone
+ *   number is one term (TextNormalizer.phone) and matches exactly only.
+ * - Flat arrays, no object per user or term: the sorted distinct terms packed in one
+ *   char[], their postings (user << 2 | field) in one int[], each user's terms (term << 2 |
+ *   field) in another, the users' display fields in one byte[].
+ * - A word matches a term exactly, as a prefix (binary search, then a scan of at most
+ *   MAX_PREFIX_TERMS terms) or, from FUZZY_MIN_CHARS on, within edit distance 1 (2 from 8
+ *   chars, transpositions count once) of the term or of a prefix of it at least as long as
+ *   the word. Fuzzy terms must share the first character; they are found by walking the
+ *   sorted terms as a trie, skipping every subtree whose distance row exceeds the bound.
+ * - Every word must match some field the word allows; scores add up over words. The word
+ *   with the fewest prefix postings drives: its postings (at most MAX_WORD_POSTINGS of
+ *   them) give at most MAX_CANDIDATES users; each other word is checked against those
+ *   users' own terms.
+ */
+public final class UserIndex {
+
+    public record Person(int id, String username, String firstName, String secondName, String bio, String phone) {}
+
+    /** A normalized query word and the fields (mask of USERNAME..PHONE) it may match. */
+    public record Word(String text, int fields) {}
+
+    public record Match(Person person, int score) {}
+
+    public static final int USERNAME = 1, FIRST_NAME = 2, SECOND_NAME = 4, PHONE = 8;
+    public static final int NAMES = USERNAME | FIRST_NAME | SECOND_NAME;
+
+    /** Best score first, then lower id. */
+    public static final Comparator<Match> ORDER = (a, b) -> a.score != b.score
+            ? Integer.compare(b.score, a.score) : Integer.compare(a.person.id(), b.person.id());
+
+    static final int MAX_WORDS = 4;
+    static final int MAX_PREFIX_TERMS = 4_096;
+    public static final int MAX_CANDIDATES = 5_000;
+    static final int MAX_WORD_POSTINGS = 262_144;
+    static final int FUZZY_MIN_CHARS = 4;
+    /** Postings worth scanning per candidate rather than looking up the candidate's own terms. */
+    private static final int SCAN_PER_CANDIDATE = 32;
+    private static final int MAX_FUZZY_STEPS = 50_000;
+    private static final int BUILD_CHUNK = 65_536;
+
+    // per field: username, first name, second name, phone
+    private static final int[] EXACT = {100, 50, 40, 100};
+    private static final int[] PREFIX = {60, 30, 25, 0};
+    private static final int[] FUZZY = {35, 20, 15, 0};
+
+    private final int[] ids;
+    private final byte[] records;
+    private final int[] recordStart;   // users + 1
+    private final char[] termChars;
+    private final int[] termStart;     // terms + 1
+    private final int[] postingStart;  // terms + 1
+    private final int[] postings;      // user << 2 | field, ascending per term
+    private final int[] docTermStart;  // users + 1
+    private final int[] docTerms;      // term << 2 | field, per user
+
+    private UserIndex(int[] ids, byte[] records, int[] recordStart, char[] termChars, int[] termStart,
+                      int[] postingStart, int[] postings, int[] docTermStart, int[] docTerms) {
+        this.ids = ids;
+        this.records = records;
+        this.recordStart = recordStart;
+        this.termChars = termChars;
+        this.termStart = termStart;
+        this.postingStart = postingStart;
+        this.postings = postings;
+        this.docTermStart = docTermStart;
+        this.docTerms = docTerms;
+    }
+
+    // ---- query words ----
+
+    /**
+     * The words of a query for the given fields: a single phone word if PHONE is allowed and
+     * text reads as a phone number, else up to MAX_WORDS terms for the name fields.
+     */
+    public static List<Word> words(String text, int fields) {
+        if ((fields & PHONE) != 0) {
+            String phone = phoneTerm(text);
+            if (phone != null) return List.of(new Word(phone, PHONE));
+        }
+        List<Word> out = new ArrayList<>();
+        if ((fields & NAMES) == 0) return out;
+        for (String t : new LinkedHashSet<>(TextNormalizer.terms(text))) {
+            if (out.size() == MAX_WORDS) break;
+            out.add(new Word(t, fields & NAMES));
+        }
+        return out;
+    }
+
+    /** "#" + TextNormalizer.phone(text), or null if text is no phone number. */
+    public static String phoneTerm(String text) {
+        String phone = TextNormalizer.phone(text);
+        return phone == null ? null : "#" + phone;
+    }
+
+    // ---- building ----
+
+    /** Builds the index; the terms of each chunk of BUILD_CHUNK users are extracted in parallel. */
+    public static UserIndex build(Collection<Person> people) {
+        Person[] all = people.toArray(new Person[0]);
+        int n = all.length;
+        int[] ids = new int[n];
+        int[] recordStart = new int[n + 1];
+        int[] docTermStart = new int[n + 1];
+        Bytes records = new Bytes(n * 48);
+        Map<String, Integer> termNos = new HashMap<>();
+        List<String> terms = new ArrayList<>();
+        IntList occTerm = new IntList(n * 4);
+        IntList occPosting = new IntList(n * 4);
+
+        for (int from = 0; from < n; from += BUILD_CHUNK) {
+            int base = from;
+            String[][][] chunk = new String[Math.min(BUILD_CHUNK, n - from)][][];
+            IntStream.range(0, chunk.length).parallel().forEach(i -> chunk[i] = fieldTerms(all[base + i]));
+            for (int i = 0; i < chunk.length; i++) {
+                int doc = base + i;
+                ids[doc] = all[doc].id();
+                encode(records, all[doc]);
+                recordStart[doc + 1] = records.size;
+                for (int field = 0; field < 4; field++) {
+                    for (String t : chunk[i][field]) {
+                        Integer no = termNos.get(t);
+                        if (no == null) {
+                            no = terms.size();
+                            termNos.put(t, no);
+                            terms.add(t);
+                        }
+                        occTerm.add(no);
+                        occPosting.add(doc << 2 | field);
+                    }
+                }
+                docTermStart[doc + 1] = occTerm.size;
+            }
+        }
+
+        String[] sorted = terms.toArray(new String[0]);
+        Arrays.parallelSort(sorted);
+        int t = sorted.length;
+        int[] rank = new int[t];
+        int chars = 0;
+        for (int i = 0; i < t; i++) {
+            rank[termNos.get(sorted[i])] = i;
+            chars += sorted[i].length();
+        }
+        char[] termChars = new char[chars];
+        int[] termStart = new int[t + 1];
+        for (int i = 0, pos = 0; i < t; i++) {
+            sorted[i].getChars(0, sorted[i].length(), termChars, pos);
+            pos += sorted[i].length();
+            termStart[i + 1] = pos;
+        }
+        int[] postingStart = new int[t + 1];
+        for (int i = 0; i < occTerm.size; i++) postingStart[rank[occTerm.values[i]] + 1]++;
+        for (int i = 0; i < t; i++) postingStart[i + 1] += postingStart[i];
+        int[] next = Arrays.copyOf(postingStart, t);
+        int[] postings = new int[occTerm.size];
+        int[] docTerms = new int[occTerm.size];
+        for (int i = 0; i < occTerm.size; i++) {
+            int term = rank[occTerm.values[i]];
+            postings[next[term]++] = occPosting.values[i];
+            docTerms[i] = term << 2 | (occPosting.values[i] & 3);
+        }
+
+        return new UserIndex(ids, Arrays.copyOf(records.bytes, records.size), recordStart, termChars, termStart,
+                postingStart, postings, docTermStart, docTerms);
+    }
+
+    /** The distinct terms of p per field: username, first name, second name, phone. */
+    private static String[][] fieldTerms(Person p) {
+        String[][] out = new String[4][];
+        List<String> parts = TextNormalizer.terms(p.username());
+        Set<String> username = new LinkedHashSet<>(parts);
+        if (parts.size() > 1) {
+            String joined = String.join("", parts);
+            if (joined.length() <= TextNormalizer.MAX_TERM_CHARS) username.add(joined);
+        }
+        out[0] = username.toArray(new String[0]);
+        out[1] = new LinkedHashSet<>(TextNormalizer.terms(p.firstName())).toArray(new String[0]);
+        out[2] = new LinkedHashSet<>(TextNormalizer.terms(p.secondName())).toArray(new String[0]);
+        String phone = p.phone() == null ? null : phoneTerm(p.phone());
+        out[3] = phone == null ? new String[0] : new String[]{phone};
+        return out;
+    }
+
+    // ---- searching ----
+
+    /** Users matching every word, in ORDER, at most limit. */
+    public List<Match> search(List<Word> words, int limit) {
+        if (words.isEmpty() || limit <= 0 || ids.length == 0) return List.of();
+        Word driver = null;
+        Hits driverHits = null;
+        long fewest = Long.MAX_VALUE;
+        Hits[] hits = new Hits[words.size()];
+        for (int i = 0; i < hits.length; i++) {
+            hits[i] = hits(words.get(i));
+            long estimate = postingStart[hits[i].end] - postingStart[hits[i].lo];
+            if (estimate < fewest) {
+                fewest = estimate;
+                driver = words.get(i);
+                driverHits = hits[i];
+            }
+        }
+        Scores scores = new Scores((int) Math.min(fewest, MAX_CANDIDATES));
+        drive(driver, driverHits, scores);
+        for (int i = 0; i < hits.length && scores.live > 0; i++) {
+            if (hits[i] == driverHits) continue;
+            if (hits[i].postings(this) <= (long) SCAN_PER_CANDIDATE * scores.live) filter(words.get(i), hits[i], scores);
+            else verify(words.get(i), hits[i], scores);
+        }
+
+        PriorityQueue<long[]> top = new PriorityQueue<>(Comparator.<long[]>comparingLong(e -> e[1])
+                .thenComparing(e -> -ids[(int) e[0]]));
+        for (int i = 0; i < scores.keys.length; i++) {
+            int doc = scores.keys[i];
+            if (doc < 0 || scores.values[i] == Scores.ABSENT) continue;
+            if (top.size() == limit) {
+                long[] worst = top.peek();
+                if (scores.values[i] < worst[1] || scores.values[i] == worst[1] && ids[doc] > ids[(int) worst[0]]) continue;
+                top.poll();
+            }
+            top.add(new long[]{doc, scores.values[i]});
+        }
+        List<Match> out = new ArrayList<>(top.size());
+        for (long[] e : top) out.add(new Match(person((int) e[0]), (int) e[1]));
+        out.sort(ORDER);
+        return out;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public int terms() {
+        return termStart.length - 1;
+    }
+
+    /** Approximate heap footprint of the arrays. */
+    public long bytes() {
+        return ids.length * 12L + records.length + termChars.length * 2L + termStart.length * 8L
+                + postings.length * 8L;
+    }
+
+    /** Every user of the index, in index order; for rebuilding. */
+    public List<Person> people() {
+        List<Person> out = new ArrayList<>(ids.length);
+        for (int doc = 0; doc < ids.length; doc++) out.add(person(doc));
+        return out;
+    }
+
+    /** The terms a word matches: the prefix run [lo, end), and fuzzy runs sorted by term. */
+    private static final class Hits {
+        int lo;
+        int end;
+        final IntList fuzzy = new IntList(16); // from, to, distance, depth of the matching prefix
+
+        long postings(UserIndex index) {
+            long n = index.postingStart[end] - index.postingStart[lo];
+            for (int r = 0; r < fuzzy.size; r += 4) n += index.postingStart[fuzzy.values[r + 1]] - index.postingStart[fuzzy.values[r]];
+            return n;
+        }
+    }
+
+    private Hits hits(Word w) {
+        Hits h = new Hits();
+        String text = w.text();
+        h.lo = lowerBound(text, 0, terms());
+        if (w.fields() == PHONE) {
+            h.end = h.lo < terms() && compare(h.lo, text) == 0 ? h.lo + 1 : h.lo;
+        } else {
+            h.end = prefixEnd(text, h.lo);
+            if (text.length() >= FUZZY_MIN_CHARS) fuzzy(text, text.length() >= 8 ? 2 : 1, h.fuzzy);
+        }
+        return h;
+    }
+
+    /** Score of term in field for the word h was made for (length len), or Scores.ABSENT. */
+    private int score(int term, int field, int len, Hits h) {
+        int termLen = termStart[term + 1] - termStart[term];
+        if (term >= h.lo && term < h.end) {
+            int extra = termLen - len;
+            return extra == 0 ? EXACT[field] : PREFIX[field] - Math.min(10, extra);
+        }
+        int[] f = h.fuzzy.values;
+        int lo = 0;
+        int hi = h.fuzzy.size / 4;
+        while (lo < hi) { // first run starting after term
+            int mid = (lo + hi) >>> 1;
+            if (f[mid * 4] <= term) lo = mid + 1;
+            else hi = mid;
+        }
+        int r = (lo - 1) * 4;
+        if (r < 0 || term >= f[r + 1]) return Scores.ABSENT;
+        return FUZZY[field] - 5 * (f[r + 2] + (termLen > f[r + 3] ? 1 : 0));
+    }
+
+    /** Scores the users of w's postings into out, at most MAX_CANDIDATES of them. */
+    private void drive(Word w, Hits h, Scores out) {
+        int len = w.text().length();
+        int[] scanned = {0};
+        scan(w, h, len, h.lo, Math.min(h.end, h.lo + MAX_PREFIX_TERMS), out, scanned);
+        for (int r = 0; r < h.fuzzy.size; r += 4) {
+            int from = h.fuzzy.values[r];
+            scan(w, h, len, from, Math.min(h.fuzzy.values[r + 1], from + MAX_PREFIX_TERMS), out, scanned);
+        }
+    }
+
+    /** Stops once MAX_CANDIDATES users are in; the exact term's postings come first. */
+    private void scan(Word w, Hits h, int len, int from, int to, Scores out, int[] scanned) {
+        for (int term = from; term < to; term++) {
+            for (int i = postingStart[term]; i < postingStart[term + 1]; i++) {
+                if (++scanned[0] > MAX_WORD_POSTINGS || out.size >= MAX_CANDIDATES) return;
+                int field = postings[i] & 3;
+                if ((w.fields() & (1 << field)) != 0) out.max(postings[i] >>> 2, score(term, field, len, h));
+            }
+        }
+    }
+
+    /**
+     * Adds w's score to each candidate it matches, by scanning all of w's postings, and drops
+     * the others; for words with few postings per candidate.
+     */
+    private void filter(Word w, Hits h, Scores candidates) {
+        int len = w.text().length();
+        int[] best = new int[candidates.keys.length];
+        Arrays.fill(best, Scores.ABSENT);
+        filter(w, h, len, h.lo, h.end, candidates, best);
+        for (int r = 0; r < h.fuzzy.size; r += 4) filter(w, h, len, h.fuzzy.values[r], h.fuzzy.values[r + 1], candidates, best);
+        for (int i = 0; i < best.length; i++) candidates.add(i, best[i]);
+    }
+
+    private void filter(Word w, Hits h, int len, int from, int to, Scores candidates, int[] best) {
+        for (int term = from; term < to; term++) {
+            for (int i = postingStart[term]; i < postingStart[term + 1]; i++) {
+                int field = postings[i] & 3;
+                if ((w.fields() & (1 << field)) == 0) continue;
+                int slot = candidates.slot(postings[i] >>> 2);
+                if (slot >= 0) best[slot] = Math.max(best[slot], score(term, field, len, h));
+            }
+        }
+    }
+
+    /**
+     * Adds w's score to each candidate it matches, by the candidate's own terms, and drops
+     * the others (in place: copying a table in slot order into another clusters it).
+     */
+    private void verify(Word w, Hits h, Scores candidates) {
+        int len = w.text().length();
+        for (int i = 0; i < candidates.keys.length; i++) {
+            int doc = candidates.keys[i];
+            if (doc < 0 || candidates.values[i] == Scores.ABSENT) continue;
+            int best = Scores.ABSENT;
+            for (int j = docTermStart[doc]; j < docTermStart[doc + 1]; j++) {
+                int field = docTerms[j] & 3;
+                if ((w.fields() & (1 << field)) != 0) best = Math.max(best, score(docTerms[j] >>> 2, field, len, h));
+            }
+            candidates.add(i, best);
+        }
+    }
+
+    /**
+     * Adds runs of terms (from, to, distance, depth) within edit distance k of w, or with a
+     * prefix of at least w's length within k, leaving out plain prefix matches; walks the
+     * terms starting with w's first character as a trie, one distance row per depth.
+     */
+    private void fuzzy(String w, int k, IntList runs) {
+        int len = w.length();
+        String first = w.substring(0, 1);
+        int lo = lowerBound(first, 0, terms());
+        int hi = prefixEnd(first, lo);
+        int maxDepth = len + k;
+        int[][] rows = new int[maxDepth + 1][len + 1];
+        for (int j = 0; j <= len; j++) rows[0][j] = j;
+        char[] path = new char[maxDepth];
+        int depth = 0;
+        int steps = 0;
+        int t = lo;
+        while (t < hi && steps < MAX_FUZZY_STEPS) {
+            int s = termStart[t];
+            int termLen = termStart[t + 1] - s;
+            int common = 0;
+            while (common < depth && common < termLen && path[common] == termChars[s + common]) common++;
+            depth = common;
+            int matched = -1;
+            boolean prune = false;
+            while (depth < termLen) {
+                if (depth == maxDepth) {
+                    prune = true;
+                    break;
+                }
+                char c = termChars[s + depth];
+                path[depth] = c;
+                int[] prev = rows[depth];
+                int[] cur = rows[depth + 1];
+                cur[0] = depth + 1;
+                int min = cur[0];
+                for (int j = 1; j <= len; j++) {
+                    int v = Math.min(Math.min(prev[j], cur[j - 1]) + 1, prev[j - 1] + (w.charAt(j - 1) == c ? 0 : 1));
+                    if (depth > 0 && j > 1 && w.charAt(j - 1) == path[depth - 1] && w.charAt(j - 2) == c) {
+                        v = Math.min(v, rows[depth - 1][j - 2] + 1);
+                    }
+                    cur[j] = v;
+                    min = Math.min(min, v);
+                }
+                depth++;
+                steps++;
+                if (min > k) {
+                    prune = true;
+                    break;
+                }
+                if (depth >= len && cur[len] <= k) {
+                    matched = depth;
+                    break;
+                }
+            }
+            if (matched > 0) {
+                // every term under this prefix matches; a distance of 0 means plain prefix matches
+                int end = prefixEnd(s, matched, t, hi);
+                if (rows[matched][len] > 0) addRun(runs, t, end, rows[matched][len], matched);
+                t = end;
+            } else if (prune) {
+                t = prefixEnd(s, depth, t, hi);
+            } else {
+                if (depth == termLen && rows[depth][len] <= k) addRun(runs, t, t + 1, rows[depth][len], depth);
+                t++;
+            }
+        }
+    }
+
+    private static void addRun(IntList runs, int from, int to, int distance, int depth) {
+        runs.add(from);
+        runs.add(to);
+        runs.add(distance);
+        runs.add(depth);
+    }
+
+    // ---- term dictionary ----
+
+    /** First term >= key in [lo, hi). */
+    private int lowerBound(String key, int lo, int hi) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(mid, key) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /** End of the run of terms from lo that start with prefix. */
+    private int prefixEnd(String prefix, int lo) {
+        int hi = terms();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (startsWith(mid, prefix)) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * End of the run of terms in [from, hi) that share term chars [s, s + length); galloping,
+     * as the fuzzy walk mostly skips short runs.
+     */
+    private int prefixEnd(int s, int length, int from, int hi) {
+        int step = 1;
+        while (from + step < hi && shares(from + step, s, length)) step <<= 1;
+        int lo = from + (step >> 1) + 1;
+        hi = Math.min(hi, from + step);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (shares(mid, s, length)) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private boolean shares(int term, int s, int length) {
+        int m = termStart[term];
+        return termStart[term + 1] - m >= length && Arrays.equals(termChars, m, m + length, termChars, s, s + length);
+    }
+
+    private int compare(int term, String key) {
+        int s = termStart[term];
+        int len = termStart[term + 1] - s;
+        int n = Math.min(len, key.length());
+        for (int i = 0; i < n; i++) {
+            int d = termChars[s + i] - key.charAt(i);
+            if (d != 0) return d;
+        }
+        return len - key.length();
+    }
+
+    private boolean startsWith(int term, String prefix) {
+        int s = termStart[term];
+        if (termStart[term + 1] - s < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (termChars[s + i] != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    // ---- records ----
+
+    private static void encode(Bytes out, Person p) {
+        out.putInt(p.id());
+        for (String s : new String[]{p.username(), p.firstName(), p.secondName(), p.bio(), p.phone()}) {
+            if (s == null) {
+                out.putShort(0xFFFF);
+                continue;
+            }
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(b.length, 0xFFFE);
+            out.putShort(length);
+            out.put(b, length);
+        }
+    }
+
+    private Person person(int doc) {
+        int pos = recordStart[doc] + 4;
+        String[] f = new String[5];
+        for (int i = 0; i < 5; i++) {
+            int length = (records[pos] & 0xFF) << 8 | (records[pos + 1] & 0xFF);
+            pos += 2;
+            if (length == 0xFFFF) continue;
+            f[i] = new String(records, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+        }
+        return new Person(ids[doc], f[0], f[1], f[2], f[3], f[4]);
+    }
+
+    private static final class Bytes {
+        byte[] bytes;
+        int size;
+
+        Bytes(int capacity) {
+            bytes = new byte[Math.max(16, capacity)];
+        }
+
+        void putInt(int v) {
+            ensure(4);
+            bytes[size++] = (byte) (v >>> 24);
+            bytes[size++] = (byte) (v >>> 16);
+            bytes[size++] = (byte) (v >>> 8);
+            bytes[size++] = (byte) v;
+        }
+
+        void putShort(int v) {
+            ensure(2);
+            bytes[size++] = (byte) (v >>> 8);
+            bytes[size++] = (byte) v;
+        }
+
+        void put(byte[] b, int length) {
+            ensure(length);
+            System.arraycopy(b, 0, bytes, size, length);
+            size += length;
+        }
+
+        private void ensure(int more) {
+            if (size + more > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + more));
+        }
+    }
+
+    /**
+     * Open-addressing map of user → score (users are >= 0; -1 marks a free slot). A user
+     * dropped by a later word keeps its slot with the value ABSENT.
+     */
+    private static final class Scores {
+        static final int ABSENT = Integer.MIN_VALUE;
+        int[] keys;
+        int[] values;
+        int size;
+        int live;
+
+        Scores(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(16, expected * 2) - 1) << 1;
+            keys = new int[capacity];
+            values = new int[capacity];
+            Arrays.fill(keys, -1);
+        }
+
+        /** Slot of a live key, or -1. */
+        int slot(int key) {
+            int mask = keys.length - 1;
+            for (int i = hash(key, mask); ; i = (i + 1) & mask) {
+                if (keys[i] == key) return values[i] == ABSENT ? -1 : i;
+                if (keys[i] < 0) return -1;
+            }
+        }
+
+        /** Adds a word's score to the live key in slot i, or drops it if the word scored ABSENT. */
+        void add(int i, int score) {
+            if (keys[i] < 0 || values[i] == ABSENT) return;
+            if (score == ABSENT) {
+                values[i] = ABSENT;
+                live--;
+            } else {
+                values[i] += score;
+            }
+        }
+
+        /** Sets key's score to value if absent or lower. */
+        void max(int key, int value) {
+            int mask = keys.length - 1;
+            int i = hash(key, mask);
+            while (keys[i] >= 0 && keys[i] != key) i = (i + 1) & mask;
+            if (keys[i] == key) {
+                if (value > values[i]) values[i] = value;
+                return;
+            }
+            keys[i] = key;
+            values[i] = value;
+            live++;
+            if (++size * 2 > keys.length) grow();
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new int[keys.length];
+            Arrays.fill(keys, -1);
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] < 0) continue;
+                int i = hash(oldKeys[j], mask);
+                while (keys[i] >= 0) i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+
+        private static int hash(int key, int mask) {
+            int h = key * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+    }
+
+    private static final class IntList {
+        int[] values;
+        int size;
+
+        IntList(int capacity) {
+            values = new int[Math.max(4, capacity)];
+        }
+
+        void add(int v) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = v;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package telegramserver.services;
 
+import telegramserver.db.ConnectionPool;
+
 import java.sql.*;
 import java.util.*;
 
@@ -7,14 +9,11 @@ public class ChannelService {
     private static int nextId = 1;
     private static final Map<Integer, Map<String, Object>> channels = new HashMap<>();
     private static final Map<Integer, Set<String>> channelMembers = new HashMap<>();
-    private static String url = "jdbc:postgresql://localhost:5432/Telegram";
-    private static String user = "postgres";
-    private static String password = "AmirMahdiImani";
 
     public static int createChannel(String channelName, String description, boolean isPublic) {
         int id = -1;
         String sql = "INSERT INTO channels (channel_name, description, is_public) VALUES (?, ?, ?) RETURNING id";
-        try (Connection conn = DriverManager.getConnection(url, user, password);
+        try (Connection conn = ConnectionPool.get().getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setString(1, channelName);
             ps.setString(2, description);
@@ -40,9 +39,10 @@ public class ChannelService {
     public static void joinChannel(String username, int channelId, int userId, Timestamp joinedAt, boolean isAdmin, boolean isAccepted) {
         channelMembers.putIfAbsent(channelId, new HashSet<>());
         channelMembers.get(channelId).add(username);
+        MembershipIndex.added(MembershipIndex.Scope.channel(channelId), username);
 
         String sql = "INSERT INTO channel_members (channel_id, user_id, joined_at, is_admin, is_accepted) VALUES (?, ?, ?, ?, ?)";
-        try (Connection conn = DriverManager.getConnection(url, user, password);
+        try (Connection conn = ConnectionPool.get().getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setInt(1, channelId);
             ps.setInt(2, userId);
@@ -57,24 +57,8 @@ public class ChannelService {
 
 
     public static Set<String> getMembers(int channelId) throws SQLException {
-        String sql = "SELECT user_id FROM channel_members WHERE channel_id=?";
-        Set<String> members = new HashSet<>();
-
-        try (Connection conn = DriverManager.getConnection(url, user, password);
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-
-            ps.setInt(1, channelId);
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    members.add(rs.getString("user_id"));
-                }
-            }
-
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        // 👉 DB Team: SELECT username FROM channel_members WHERE channelId=?
-        //finish
+        Set<String> members = MembershipIndex.members(MembershipIndex.Scope.channel(channelId));
+        if (members != null) return members;
         return channelMembers.getOrDefault(channelId, new HashSet<>());
     }
 
@@ -82,7 +66,7 @@ public class ChannelService {
         String sql = "SELECT id, channel_name, description FROM channels WHERE id=?";
         Map<String, Object> channelInfo = null;
 
-        try (Connection conn = DriverManager.getConnection(url, user, password);
+        try (Connection conn = ConnectionPool.get().getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
 
             ps.setInt(1, channelId);
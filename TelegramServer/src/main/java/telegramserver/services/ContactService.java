@@ -1,18 +1,72 @@
 package telegramserver.services;
 
+import telegramserver.MetricsReporter;
+import telegramserver.db.ConnectionPool;
+import telegramserver.search.TextNormalizer;
+
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * ContactService: a user's address book (the contacts table).
+ *
+ * - importContacts() adds a whole batch of name/phone pairs in at most two statements: one
+ *   "phone_number = ANY(?)" query resolves every phone (in each spelling it may have been
+ *   registered with), one statement inserts the new rows and, if asked, renames the existing
+ *   ones. Phones are compared in TextNormalizer.phone form.
+ * - Phones UserDirectory.mightHavePhone() rules out are reported NOT_REGISTERED without
+ *   reaching the database.
+ * - addContact() is an import of one entry.
+ *
+ * Metrics are reported as "contacts".
+ */
 public class ContactService {
 
-    private static final String URL = "jdbc:postgresql://localhost:5432/Telegram";
-    private static final String USER = "postgres";
-    private static final String PASSWORD = "AmirMahdiImani";
+    /** One address-book entry as the client sent it. */
+    public record ImportEntry(String name, String phone) {}
+
+    /** The outcome of one entry: a status below and, unless the phone was not found, the user. */
+    public record ImportResult(String status, Integer userId) {}
+
+    public static final String ADDED = "ADDED";
+    public static final String UPDATED = "UPDATED";
+    public static final String EXISTS = "EXISTS";
+    public static final String NOT_REGISTERED = "NOT_REGISTERED";
+    public static final String INVALID = "INVALID";
+
+    private static final String RESOLVE_SQL = "SELECT id, phone_number FROM users WHERE phone_number = ANY(?)";
+
+    // contacts has no unique (user_id, contact_user_id) key to ON CONFLICT on; the CTE reads
+    // one snapshot, so "updated" never sees the rows "inserted" adds
+    private static final String UPSERT_SQL =
+            "WITH input(contact_user_id, name) AS (SELECT * FROM unnest(?::int[], ?::text[])), " +
+            "inserted AS (INSERT INTO contacts(user_id, contact_user_id, name) " +
+            "SELECT ?, i.contact_user_id, i.name FROM input i WHERE NOT EXISTS " +
+            "(SELECT 1 FROM contacts c WHERE c.user_id = ? AND c.contact_user_id = i.contact_user_id) " +
+            "RETURNING contact_user_id), " +
+            "updated AS (UPDATE contacts c SET name = i.name FROM input i " +
+            "WHERE ? AND c.user_id = ? AND c.contact_user_id = i.contact_user_id AND c.name IS DISTINCT FROM i.name " +
+            "RETURNING c.contact_user_id) " +
+            "SELECT contact_user_id, 'ADDED' FROM inserted UNION ALL SELECT contact_user_id, 'UPDATED' FROM updated";
+
+    private static final LongAdder imports = new LongAdder();
+    private static final LongAdder entries = new LongAdder();
+    private static final LongAdder invalid = new LongAdder();
+    private static final LongAdder bloomSkips = new LongAdder();
+    private static final LongAdder resolved = new LongAdder();
+    private static final LongAdder added = new LongAdder();
+    private static final LongAdder updated = new LongAdder();
+    private static final LongAdder importMicros = new LongAdder();
+
+    static {
+        MetricsReporter.register("contacts", ContactService::snapshot);
+    }
 
     public static List<Map<String, Object>> getContacts(int userId) {
         List<Map<String, Object>> contacts = new ArrayList<>();
         String sql = "SELECT * FROM contacts WHERE user_id = ?";
-        try (Connection conn = DriverManager.getConnection(URL, USER, PASSWORD);
+        try (Connection conn = ConnectionPool.get().getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setInt(1, userId);
             ResultSet rs = ps.executeQuery();
@@ -30,38 +84,134 @@ public class ContactService {
     }
 
     public static Map<String, Object> addContact(int ownerId, String name, String phone) {
-        try (Connection conn = DriverManager.getConnection(URL, USER, PASSWORD)) {
-            int contactUserId = -1;
-            String findUserSql = "SELECT id FROM users WHERE phone_number = ?";
-            try (PreparedStatement ps = conn.prepareStatement(findUserSql)) {
-                ps.setString(1, phone);
-                ResultSet rs = ps.executeQuery();
-                if (rs.next()) {
-                    contactUserId = rs.getInt("id");
-                } else {
-                    return Map.of("error", "PHONE_NOT_REGISTERED");
+        try {
+            ImportResult r = importContacts(ownerId, List.of(new ImportEntry(name, phone)), false).get(0);
+            return switch (r.status()) {
+                case ADDED -> Map.of("success", true, "userId", r.userId());
+                case EXISTS -> Map.of("error", "CONTACT_ALREADY_EXISTS", "userId", r.userId());
+                default -> Map.of("error", "PHONE_NOT_REGISTERED");
+            };
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return Map.of("error", "DB_ERROR", "message", e.getMessage());
+        }
+    }
+
+    /**
+     * Adds every registered phone of batch to ownerId's contacts; results are in entry order.
+     * An entry whose user is already a contact is EXISTS, or UPDATED if renameExisting and its
+     * name differs; later entries for a user met earlier in the batch share that entry's result.
+     * A blank name is replaced by the phone.
+     */
+    public static List<ImportResult> importContacts(int ownerId, List<ImportEntry> batch, boolean renameExisting) throws SQLException {
+        long t0 = System.nanoTime();
+        int n = batch.size();
+        String[] phones = new String[n];
+        ImportResult[] results = new ImportResult[n];
+        Set<String> spellings = new LinkedHashSet<>();
+        for (int i = 0; i < n; i++) {
+            phones[i] = TextNormalizer.phone(batch.get(i).phone());
+            if (phones[i] == null) {
+                results[i] = new ImportResult(INVALID, null);
+                invalid.increment();
+            } else if (!UserDirectory.mightHavePhone(phones[i])) {
+                results[i] = new ImportResult(NOT_REGISTERED, null);
+                bloomSkips.increment();
+            } else {
+                spellings.addAll(spellings(phones[i]));
+                spellings.add(batch.get(i).phone().trim());
+            }
+        }
+        if (!spellings.isEmpty()) {
+            try (Connection conn = ConnectionPool.get().getConnection()) {
+                Map<String, Integer> users = resolve(conn, spellings);
+                // first entry per user: its name goes in, the rest copy its result
+                Map<Integer, Integer> firstEntry = new LinkedHashMap<>();
+                for (int i = 0; i < n; i++) {
+                    if (results[i] != null) continue;
+                    Integer userId = users.get(phones[i]);
+                    if (userId == null) results[i] = new ImportResult(NOT_REGISTERED, null);
+                    else firstEntry.putIfAbsent(userId, i);
                 }
+                if (!firstEntry.isEmpty()) {
+                    Map<Integer, String> written = upsert(conn, ownerId, firstEntry, batch, renameExisting);
+                    for (int i = 0; i < n; i++) {
+                        if (results[i] != null) continue;
+                        Integer userId = users.get(phones[i]);
+                        results[i] = new ImportResult(written.getOrDefault(userId, EXISTS), userId);
+                    }
+                }
+                resolved.add(firstEntry.size());
             }
-            String checkSql = "SELECT 1 FROM contacts WHERE user_id = ? AND contact_user_id = ?";
-            try (PreparedStatement ps = conn.prepareStatement(checkSql)) {
-                ps.setInt(1, ownerId);
-                ps.setInt(2, contactUserId);
-                ResultSet rs = ps.executeQuery();
-                if (rs.next()) {
-                    return Map.of("error", "CONTACT_ALREADY_EXISTS", "userId", contactUserId);
+        }
+        imports.increment();
+        entries.add(n);
+        importMicros.add((System.nanoTime() - t0) / 1_000);
+        return Arrays.asList(results);
+    }
+
+    /** normalized phone → user id for every user whose phone_number is one of spellings. */
+    private static Map<String, Integer> resolve(Connection conn, Collection<String> spellings) throws SQLException {
+        Map<String, Integer> users = new HashMap<>();
+        try (PreparedStatement ps = conn.prepareStatement(RESOLVE_SQL)) {
+            ps.setArray(1, conn.createArrayOf("varchar", spellings.toArray()));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String phone = TextNormalizer.phone(rs.getString("phone_number"));
+                    if (phone != null) users.merge(phone, rs.getInt("id"), Math::min);
                 }
             }
-            String insertSql = "INSERT INTO contacts(user_id, contact_user_id, name) VALUES (?, ?, ?)";
-            try (PreparedStatement ps = conn.prepareStatement(insertSql)) {
-                ps.setInt(1, ownerId);
-                ps.setInt(2, contactUserId);
-                ps.setString(3, name);
-                ps.executeUpdate();
+        }
+        return users;
+    }
+
+    /** Inserts the new contacts (and renames the old ones); user id → ADDED or UPDATED. */
+    private static Map<Integer, String> upsert(Connection conn, int ownerId, Map<Integer, Integer> firstEntry,
+                                               List<ImportEntry> batch, boolean renameExisting) throws SQLException {
+        Object[] ids = new Object[firstEntry.size()];
+        Object[] names = new Object[firstEntry.size()];
+        int k = 0;
+        for (Map.Entry<Integer, Integer> e : firstEntry.entrySet()) {
+            ImportEntry entry = batch.get(e.getValue());
+            ids[k] = e.getKey();
+            names[k++] = entry.name() == null || entry.name().isBlank() ? entry.phone().trim() : entry.name();
+        }
+        Map<Integer, String> written = new HashMap<>();
+        try (PreparedStatement ps = conn.prepareStatement(UPSERT_SQL)) {
+            ps.setArray(1, conn.createArrayOf("integer", ids));
+            ps.setArray(2, conn.createArrayOf("text", names));
+            ps.setInt(3, ownerId);
+            ps.setInt(4, ownerId);
+            ps.setBoolean(5, renameExisting);
+            ps.setInt(6, ownerId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) written.put(rs.getInt(1), rs.getString(2));
             }
-            return Map.of("success", true, "userId", contactUserId);
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return Map.of("error", "DB_ERROR", "message", e.getMessage());
         }
+        for (String status : written.values()) (status.equals(ADDED) ? added : updated).increment();
+        return written;
+    }
+
+    /** The ways a normalized phone may be stored in users.phone_number. */
+    private static List<String> spellings(String phone) {
+        if (phone.length() == 11 && phone.startsWith("09")) {
+            String rest = phone.substring(1);
+            return List.of(phone, "+98" + rest, "98" + rest, "0098" + rest);
+        }
+        return List.of(phone, "+" + phone);
+    }
+
+    public static Map<String, Object> snapshot() {
+        long n = imports.sum();
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("imports", n);
+        m.put("entries", entries.sum());
+        m.put("invalid", invalid.sum());
+        m.put("bloomSkips", bloomSkips.sum());
+        m.put("resolved", resolved.sum());
+        m.put("added", added.sum());
+        m.put("updated", updated.sum());
+        m.put("importAvgMicros", n == 0 ? 0 : importMicros.sum() / n);
+        return m;
     }
 }
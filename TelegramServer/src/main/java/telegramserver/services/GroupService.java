@@ -1,12 +1,11 @@
 package telegramserver.services;
 
+import telegramserver.db.ConnectionPool;
+
 import java.sql.*;
 import java.util.*;
 
 public class GroupService {
-    private static final String URL = "jdbc:postgresql://localhost:5432/Telegram";
-    private static final String DB_USER = "postgres";
-    private static final String DB_PASS = "AmirMahdiImani";
 
     private static int nextGroupId = 1000;
     private static final Map<Integer, Map<String,Object>> groups = new HashMap<>();
@@ -15,7 +14,7 @@ public class GroupService {
 
     public static int createGroup(String name, String description, boolean isPublic, int ownerUserId) {
         String sql = "INSERT INTO groups (group_name, description, is_public) VALUES (?, ?, ?) RETURNING id";
-        try (Connection conn = DriverManager.getConnection(URL, DB_USER, DB_PASS);
+        try (Connection conn = ConnectionPool.get().getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
 
             ps.setString(1, name);
@@ -60,14 +59,15 @@ public class GroupService {
 
 
     public static boolean joinGroup(int groupId, String username) {
-        Integer uid = resolveUserId(username);
+        Integer uid = UserIdCache.resolve(username);
         if (uid == null) {
             groupMembers.putIfAbsent(groupId, new HashSet<>());
             groupMembers.get(groupId).add(username);
+            MembershipIndex.added(MembershipIndex.Scope.group(groupId), username);
             return true;
         }
         String sql = "INSERT INTO group_members (group_id, user_id, joined_at, is_admin, is_accepted) VALUES (?, ?, ?, ?, ?)";
-        try (Connection conn = DriverManager.getConnection(URL, DB_USER, DB_PASS);
+        try (Connection conn = ConnectionPool.get().getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setInt(1, groupId);
             ps.setInt(2, uid);
@@ -75,50 +75,47 @@ public class GroupService {
             ps.setBoolean(4, false);
             ps.setBoolean(5, true);
             ps.executeUpdate();
+            MembershipIndex.added(MembershipIndex.Scope.group(groupId), username);
             return true;
         } catch (SQLException e) {
             groupMembers.putIfAbsent(groupId, new HashSet<>());
             groupMembers.get(groupId).add(username);
+            MembershipIndex.added(MembershipIndex.Scope.group(groupId), username);
             return true;
         }
     }
 
 
     public static boolean leaveGroup(int groupId, String username) {
-        Integer uid = resolveUserId(username);
+        Integer uid = UserIdCache.resolve(username);
         if (uid != null) {
             String sql = "DELETE FROM group_members WHERE group_id = ? AND user_id = ?";
-            try (Connection conn = DriverManager.getConnection(URL, DB_USER, DB_PASS);
+            try (Connection conn = ConnectionPool.get().getConnection();
                  PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setInt(1, groupId);
                 ps.setInt(2, uid);
                 ps.executeUpdate();
+                MembershipIndex.removed(MembershipIndex.Scope.group(groupId), username);
                 return true;
             } catch (SQLException e) {}
         }
         if (groupMembers.containsKey(groupId)) {
             groupMembers.get(groupId).remove(username);
         }
+        MembershipIndex.removed(MembershipIndex.Scope.group(groupId), username);
         return true;
     }
 
     public static Set<String> getMembers(int groupId) {
-        Set<String> set = new HashSet<>();
-        String sql = "SELECT u.username FROM group_members gm JOIN users u ON gm.user_id = u.id WHERE gm.group_id = ?";
-        try (Connection conn = DriverManager.getConnection(URL, DB_USER, DB_PASS);
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setInt(1, groupId);
-            ResultSet rs = ps.executeQuery();
-            while (rs.next()) set.add(rs.getString("username"));
-            if (!set.isEmpty()) return set;
-        } catch (SQLException e) {}
+        Set<String> set = MembershipIndex.members(MembershipIndex.Scope.group(groupId));
+        if (set != null && !set.isEmpty()) return set;
         return groupMembers.getOrDefault(groupId, new HashSet<>());
     }
 
     public static Map<String,Object> getGroupInfo(int groupId) {
         Map<String,Object> info = null;
         String sql = "SELECT id, group_name, description, is_public FROM groups WHERE id = ?";
-        try (Connection conn = DriverManager.getConnection(URL, DB_USER, DB_PASS);
+        try (Connection conn = ConnectionPool.get().getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setInt(1, groupId);
             ResultSet rs = ps.executeQuery();
@@ -142,15 +139,4 @@ public class GroupService {
     public static Integer getChatIdForGroup(int groupId) {
         return groupChatMap.get(groupId);
     }
-
-    public static Integer resolveUserId(String username) {
-        String sql = "SELECT id FROM users WHERE username = ?";
-        try (Connection conn = DriverManager.getConnection(URL, DB_USER, DB_PASS);
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, username);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) return rs.getInt("id");
-        } catch (SQLException ignored) {}
-        return null;
-    }
 }
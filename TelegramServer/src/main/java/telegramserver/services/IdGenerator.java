@@ -0,0 +1,57 @@
+package telegramserver.services;
+
+import telegramserver.ServerConfig;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * IdGenerator: 64-bit, time-ordered ids for messages and files, without a database sequence.
+ *
+ * - Layout: [41 bits ms since 2024-01-01][10 bits node id][12 bits sequence], so ids sort by
+ *   creation time and a node can hand out 4096 per millisecond before borrowing the next one.
+ * - Node id from telegram.node.id (0-1023, default 0); every server writing to the same
+ *   tables needs its own.
+ * - One CAS loop on a single AtomicLong holding (ms, sequence): the next state is the larger
+ *   of (now, 0) and previous + 1. A full sequence rolls into the next millisecond and a clock
+ *   that steps back keeps counting from the last state, so ids never repeat or go backwards.
+ */
+public final class IdGenerator {
+
+    public static final long EPOCH_MS = 1_704_067_200_000L; // 2024-01-01T00:00:00Z
+
+    private static final int SEQUENCE_BITS = 12;
+    private static final int NODE_BITS = 10;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long NODE = nodeId();
+
+    /** (ms since EPOCH_MS << SEQUENCE_BITS) | sequence of the last id handed out. */
+    private static final AtomicLong state = new AtomicLong();
+
+    private IdGenerator() {}
+
+    public static long next() {
+        while (true) {
+            long prev = state.get();
+            long now = (System.currentTimeMillis() - EPOCH_MS) << SEQUENCE_BITS;
+            long next = Math.max(now, prev + 1);
+            if (state.compareAndSet(prev, next)) {
+                return (next >>> SEQUENCE_BITS) << (NODE_BITS + SEQUENCE_BITS)
+                        | NODE << SEQUENCE_BITS
+                        | (next & SEQUENCE_MASK);
+            }
+        }
+    }
+
+    /** Creation time of an id, in ms since the Unix epoch. */
+    public static long timestampMillis(long id) {
+        return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH_MS;
+    }
+
+    private static long nodeId() {
+        int node = ServerConfig.getInt("telegram.node.id", 0);
+        if (node < 0 || node >= 1 << NODE_BITS) {
+            throw new IllegalArgumentException("telegram.node.id must be between 0 and " + ((1 << NODE_BITS) - 1));
+        }
+        return node;
+    }
+}
@@ -0,0 +1,413 @@
+package telegramserver.services;
+
+import telegramserver.MetricsReporter;
+import telegramserver.ServerConfig;
+import telegramserver.db.ConnectionPool;
+import telegramserver.models.Message;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+/**
+ * InboxService: each user's chat list, kept sorted in memory so CHAT_LIST is a range read.
+ *
+ * - Loaded once per user from user_chats (title, kind and last message resolved at load
+ *   time); the rows stay the source of truth and every change is written there first.
+ * - A load is two lookups, the rows and then the previews of all their last messages at
+ *   once, made outside the inbox lock and installed under it. Messages that arrive during
+ *   a load are applied on top of it; a change of the user's own rows makes it start over.
+ * - Order: pinned chats first (highest pin order on top), then last activity, newest first,
+ *   then chat id. Archived chats are kept but not listed.
+ * - Sends, reads, joins, leaves, pins and archives update loaded inboxes in place; a user
+ *   whose inbox is not loaded picks the change up on the next load (unread counts and last
+ *   message ids from the row plus what UnreadCounters has not flushed yet).
+ * - Inboxes unused for telegram.inbox.idleMs (default 30 min) are dropped.
+ *
+ * Metrics are reported as "inbox".
+ */
+public final class InboxService {
+
+    /** One chat in a user's list. lastTs is in seconds; pinnedOrder 0 means not pinned. */
+    public record Item(int chatId, String kind, String title, String lastPreview, long lastTs,
+                       long lastMessageId, int unread, int pinnedOrder, boolean archived) {
+
+        public boolean pinned() {
+            return pinnedOrder > 0;
+        }
+
+        Item withMessage(long messageId, String preview, long ts, boolean unreadForMe) {
+            return new Item(chatId, kind, title, preview, ts, messageId, unread + (unreadForMe ? 1 : 0), pinnedOrder, archived);
+        }
+
+        Item withPinnedOrder(int order) {
+            return new Item(chatId, kind, title, lastPreview, lastTs, lastMessageId, unread, order, archived);
+        }
+
+        Item withUnread(int value) {
+            return new Item(chatId, kind, title, lastPreview, lastTs, lastMessageId, value, pinnedOrder, archived);
+        }
+
+        Item withArchived(boolean value) {
+            return new Item(chatId, kind, title, lastPreview, lastTs, lastMessageId, unread, pinnedOrder, value);
+        }
+
+        Item withPreview(String preview, long ts) {
+            return new Item(chatId, kind, title, preview, ts, lastMessageId, unread, pinnedOrder, archived);
+        }
+    }
+
+    /** Position of an item in the list; a page starts right after the key it is given. */
+    public record Key(int pinnedOrder, long lastTs, int chatId) {
+        static Key of(Item item) {
+            return new Key(item.pinnedOrder, item.lastTs, item.chatId);
+        }
+    }
+
+    public record Page(List<Item> items, boolean hasMore, int totalUnread) {}
+
+    private static final Comparator<Key> ORDER = Comparator
+            .comparingInt(Key::pinnedOrder).reversed()
+            .thenComparing(Comparator.comparingLong(Key::lastTs).reversed())
+            .thenComparing(Comparator.comparingInt(Key::chatId).reversed());
+
+    /** A message for a member's inbox, kept while the inbox loads. */
+    private record Sent(int chatId, long messageId, String preview, long ts, boolean unreadForMe) {}
+
+    private static final class Inbox {
+        final Map<Integer, Item> byChat = new HashMap<>();
+        final TreeSet<Key> order = new TreeSet<>(ORDER);
+        final Map<Key, Item> byKey = new HashMap<>();
+        int totalUnread;
+        boolean loaded;
+        int version;                                 // bumped by every change of the owner's own rows
+        final List<Sent> missed = new ArrayList<>(); // messages that arrived before loaded
+        volatile long lastAccess = System.currentTimeMillis();
+
+        void apply(Sent s) {
+            Item item = byChat.get(s.chatId);
+            if (item == null) return;
+            // a load that ran after the database update already counted this message
+            if (s.messageId != 0 && s.messageId <= item.lastMessageId) return;
+            put(item.withMessage(s.messageId, s.preview, s.ts, s.unreadForMe));
+        }
+
+        void put(Item item) {
+            remove(item.chatId);
+            byChat.put(item.chatId, item);
+            if (item.archived) return;
+            Key k = Key.of(item);
+            order.add(k);
+            byKey.put(k, item);
+            totalUnread += item.unread;
+        }
+
+        Item remove(int chatId) {
+            Item old = byChat.remove(chatId);
+            if (old != null && !old.archived) {
+                Key k = Key.of(old);
+                order.remove(k);
+                byKey.remove(k);
+                totalUnread -= old.unread;
+            }
+            return old;
+        }
+    }
+
+    private static final long IDLE_MS = ServerConfig.getLong("telegram.inbox.idleMs", 1_800_000);
+    private static final int PREVIEW_CHARS = ServerConfig.getInt("telegram.inbox.previewChars", 100);
+
+    private static final ConcurrentHashMap<String, Inbox> inboxes = new ConcurrentHashMap<>();
+
+    private static final LongAdder reads = new LongAdder();
+    private static final LongAdder loads = new LongAdder();
+    private static final LongAdder loadErrors = new LongAdder();
+    private static final LongAdder updates = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+
+    static {
+        if (IDLE_MS > 0) {
+            Thread t = new Thread(InboxService::sweepLoop, "inbox-sweeper");
+            t.setDaemon(true);
+            t.start();
+        }
+        MetricsReporter.register("inbox", InboxService::snapshot);
+    }
+
+    private InboxService() {}
+
+    // ---- reads ----
+
+    /**
+     * Up to limit listed chats after the given key (null for the first page), or null if the
+     * inbox cannot be loaded.
+     */
+    public static Page page(String username, Key after, int limit) {
+        Inbox inbox = loaded(username);
+        if (inbox == null) return null;
+        reads.increment();
+        synchronized (inbox) {
+            NavigableSet<Key> rest = after == null ? inbox.order : inbox.order.tailSet(after, false);
+            List<Item> items = new ArrayList<>(Math.min(limit, rest.size()));
+            for (Key k : rest) {
+                if (items.size() == limit) break;
+                items.add(inbox.byKey.get(k));
+            }
+            return new Page(items, rest.size() > items.size(), inbox.totalUnread);
+        }
+    }
+
+    /** Listed chat ids of username in inbox order; empty if the inbox cannot be loaded. */
+    public static List<Integer> chatIds(String username) {
+        Inbox inbox = loaded(username);
+        if (inbox == null) return List.of();
+        synchronized (inbox) {
+            List<Integer> ids = new ArrayList<>(inbox.order.size());
+            for (Key k : inbox.order) ids.add(k.chatId);
+            return ids;
+        }
+    }
+
+    /** Every chat id of username, archived ones included; empty if the inbox cannot be loaded. */
+    public static Set<Integer> memberChatIds(String username) {
+        Inbox inbox = loaded(username);
+        if (inbox == null) return Set.of();
+        synchronized (inbox) {
+            return new HashSet<>(inbox.byChat.keySet());
+        }
+    }
+
+    /** Pin order that puts a chat above everything username has pinned so far. */
+    public static int nextPinOrder(String username) {
+        Inbox inbox = loaded(username);
+        if (inbox == null) return 1;
+        synchronized (inbox) {
+            int max = 0;
+            for (Item item : inbox.byChat.values()) max = Math.max(max, item.pinnedOrder);
+            return max + 1;
+        }
+    }
+
+    // ---- updates (called after the database write succeeded) ----
+
+    /** A message was stored in chatId: moves the chat up for every member, unread for all but the sender. */
+    public static void messageSent(int chatId, long messageId, String text, long tsSeconds, String sender) {
+        String preview = preview(text);
+        for (String member : MembershipIndex.chatMembers(chatId)) {
+            Inbox inbox = inboxes.get(member);
+            if (inbox == null) continue;
+            Sent sent = new Sent(chatId, messageId, preview, tsSeconds, !member.equals(sender));
+            synchronized (inbox) {
+                if (!inbox.loaded) {
+                    // the load may have read the rows before this message
+                    if (messageId != 0) inbox.missed.add(sent);
+                    continue;
+                }
+                inbox.apply(sent);
+            }
+            updates.increment();
+        }
+    }
+
+    public static void joined(String username, int chatId) {
+        Inbox inbox = inboxes.get(username);
+        if (inbox == null) return;
+        int version;
+        synchronized (inbox) {
+            version = ++inbox.version;
+            if (!inbox.loaded) return;
+        }
+        List<Item> rows;
+        try {
+            rows = query(username, chatId);
+        } catch (SQLException | RuntimeException e) {
+            // the member row exists; dropping the inbox makes the next read pick it up
+            loadErrors.increment();
+            inboxes.remove(username, inbox);
+            return;
+        }
+        synchronized (inbox) {
+            if (inbox.version != version) {
+                // another change of the user's rows came in meanwhile: reload rather than guess
+                inboxes.remove(username, inbox);
+                return;
+            }
+            if (!rows.isEmpty()) inbox.put(rows.get(0));
+        }
+        updates.increment();
+    }
+
+    public static void left(String username, int chatId) {
+        update(username, chatId, item -> null);
+    }
+
+    public static void pinned(String username, int chatId, int pinnedOrder) {
+        update(username, chatId, item -> item.withPinnedOrder(pinnedOrder));
+    }
+
+    public static void read(String username, int chatId) {
+        update(username, chatId, item -> item.withUnread(0));
+    }
+
+    public static void archived(String username, int chatId, boolean archived) {
+        update(username, chatId, item -> item.withArchived(archived));
+    }
+
+    private static void update(String username, int chatId, UnaryOperator<Item> change) {
+        Inbox inbox = inboxes.get(username);
+        if (inbox == null) return;
+        synchronized (inbox) {
+            inbox.version++;
+            if (!inbox.loaded) return;
+            Item item = inbox.remove(chatId);
+            if (item == null) return;
+            Item next = change.apply(item);
+            if (next != null) inbox.put(next);
+        }
+        updates.increment();
+    }
+
+    // ---- loading ----
+
+    private static Inbox loaded(String username) {
+        if (username == null) return null;
+        Inbox inbox = inboxes.computeIfAbsent(username, u -> new Inbox());
+        inbox.lastAccess = System.currentTimeMillis();
+        while (true) {
+            int version;
+            synchronized (inbox) {
+                if (inbox.loaded) return inbox;
+                version = inbox.version;
+            }
+            List<Item> items;
+            try {
+                items = query(username, 0);
+            } catch (SQLException | RuntimeException e) {
+                loadErrors.increment();
+                inboxes.remove(username, inbox);
+                return null;
+            }
+            synchronized (inbox) {
+                if (inbox.loaded) return inbox;
+                // the user changed a row of theirs during the query, which may not show it
+                if (inbox.version != version) continue;
+                for (Item item : items) inbox.put(item);
+                for (Sent sent : inbox.missed) inbox.apply(sent);
+                inbox.missed.clear();
+                inbox.loaded = true;
+                loads.increment();
+                return inbox;
+            }
+        }
+    }
+
+    /** The user_chats rows of username (or only the one for chatId when it is not 0), with previews. */
+    private static List<Item> query(String username, int chatId) throws SQLException {
+        Integer userId = UserIdCache.resolve(username);
+        if (userId == null) throw new SQLException("unknown user " + username);
+        String sql = "SELECT uc.chat_id, uc.pinned_order, uc.archived, uc.unread_count, uc.last_message_id, " +
+                "c.type, g.group_name, ch.channel_name, " +
+                "(SELECT u.username FROM user_chats o JOIN users u ON u.id = o.user_id " +
+                " WHERE o.chat_id = uc.chat_id AND o.user_id <> uc.user_id LIMIT 1) AS peer " +
+                "FROM user_chats uc " +
+                "LEFT JOIN chats c ON c.chat_id = uc.chat_id " +
+                "LEFT JOIN groups g ON c.type = 'group' AND g.id = c.id " +
+                "LEFT JOIN channels ch ON c.type = 'channel' AND ch.id = c.id " +
+                "WHERE uc.user_id = ?" + (chatId != 0 ? " AND uc.chat_id = ?" : "");
+        List<Item> items = new ArrayList<>();
+        try (Connection conn = ConnectionPool.get().getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, userId);
+            if (chatId != 0) ps.setInt(2, chatId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) items.add(item(rs, userId));
+            }
+        }
+
+        // previews through the message store, which may not be the database: one lookup for all
+        Map<Integer, List<Long>> lastIds = new HashMap<>();
+        for (Item item : items) {
+            if (item.lastMessageId != 0) lastIds.put(item.chatId, List.of(item.lastMessageId));
+        }
+        if (lastIds.isEmpty()) return items;
+        Map<Integer, Message> last = new HashMap<>();
+        for (Message m : MessageService.store().getAll(lastIds)) last.put(m.getChatid(), m);
+        for (int i = 0; i < items.size(); i++) {
+            Message m = last.get(items.get(i).chatId);
+            if (m == null) continue;
+            long ts = m.getSentat() == null ? 0 : m.getSentat().getTime() / 1000;
+            items.set(i, items.get(i).withPreview(preview(m.getContent()), ts));
+        }
+        return items;
+    }
+
+    private static Item item(ResultSet rs, int userId) throws SQLException {
+        int chatId = rs.getInt("chat_id");
+        String type = rs.getString("type");
+        String kind;
+        String title;
+        if ("group".equalsIgnoreCase(type)) {
+            kind = "group";
+            title = rs.getString("group_name");
+        } else if ("channel".equalsIgnoreCase(type)) {
+            kind = "channel";
+            title = rs.getString("channel_name");
+        } else {
+            kind = "pv";
+            title = rs.getString("peer");
+        }
+        if (title == null) title = "Chat " + chatId;
+
+        // counters not flushed to user_chats yet are added on top of the row
+        long lastMessageId = UnreadCounters.lastMessageId(chatId, rs.getLong("last_message_id"));
+        int unread = UnreadCounters.unread(chatId, userId, rs.getInt("unread_count"));
+        return new Item(chatId, kind, title, "", 0, lastMessageId, unread,
+                rs.getInt("pinned_order"), rs.getBoolean("archived"));
+    }
+
+    private static String preview(String text) {
+        if (text == null) return "";
+        return text.length() <= PREVIEW_CHARS ? text : text.substring(0, PREVIEW_CHARS);
+    }
+
+    private static void sweepLoop() {
+        while (true) {
+            try {
+                Thread.sleep(Math.max(1_000, IDLE_MS / 4));
+            } catch (InterruptedException e) {
+                return;
+            }
+            long idleBefore = System.currentTimeMillis() - IDLE_MS;
+            for (Map.Entry<String, Inbox> e : inboxes.entrySet()) {
+                if (e.getValue().lastAccess < idleBefore && inboxes.remove(e.getKey(), e.getValue())) {
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("inboxes", inboxes.size());
+        m.put("reads", reads.sum());
+        m.put("loads", loads.sum());
+        m.put("loadErrors", loadErrors.sum());
+        m.put("updates", updates.sum());
+        m.put("evictions", evictions.sum());
+        return m;
+    }
+}
@@ -0,0 +1,257 @@
+package telegramserver.services;
+
+import telegramserver.MetricsReporter;
+import telegramserver.ServerConfig;
+import telegramserver.db.ConnectionPool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * MembershipIndex: who is in a group, a channel or a private chat, kept in memory so a
+ * broadcast does not query the database.
+ *
+ * - Loaded lazily per scope: a chat id resolves once (chats table) to its group or channel,
+ *   or to itself for private chats (user_chats).
+ * - join/leave in ChatService, GroupService and ChannelService update a loaded scope in
+ *   place and bump its version. Changes made while a load is in flight are replayed on top
+ *   of what the load read, so a load never undoes a newer change.
+ * - Every telegram.membership.reconcileMs (default 60 s) each scope is reloaded and the
+ *   differences are counted as drift; scopes unused for telegram.membership.idleMs
+ *   (default 10 min) are dropped instead.
+ *
+ * Metrics are reported as "membership".
+ */
+public final class MembershipIndex {
+
+    /** A member list: kind is "group", "channel" or "chat" (private chat via user_chats). */
+    public record Scope(String kind, int id) {
+        public static Scope group(int groupId) {
+            return new Scope("group", groupId);
+        }
+
+        public static Scope channel(int channelId) {
+            return new Scope("channel", channelId);
+        }
+
+        public static Scope chat(int chatId) {
+            return new Scope("chat", chatId);
+        }
+    }
+
+    private record Change(long version, String username, boolean added) {}
+
+    private static final class Entry {
+        Set<String> members;        // unmodifiable snapshot; null until the first load completes
+        long version;
+        int loadsInFlight;
+        final List<Change> changesDuringLoad = new ArrayList<>();
+        volatile long lastAccess = System.currentTimeMillis();
+    }
+
+    private static final long RECONCILE_MS = ServerConfig.getLong("telegram.membership.reconcileMs", 60_000);
+    private static final long IDLE_MS = ServerConfig.getLong("telegram.membership.idleMs", 600_000);
+
+    private static final ConcurrentHashMap<Integer, Scope> chatScopes = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Scope, Entry> entries = new ConcurrentHashMap<>();
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder loads = new LongAdder();
+    private static final LongAdder loadErrors = new LongAdder();
+    private static final LongAdder changes = new LongAdder();
+    private static final LongAdder reconciles = new LongAdder();
+    private static final LongAdder drift = new LongAdder();
+
+    static {
+        if (RECONCILE_MS > 0) {
+            Thread t = new Thread(MembershipIndex::reconcileLoop, "membership-reconciler");
+            t.setDaemon(true);
+            t.start();
+        }
+        MetricsReporter.register("membership", MembershipIndex::snapshot);
+    }
+
+    private MembershipIndex() {}
+
+    /** Usernames of the members of chatId; empty if the chat is unknown or cannot be loaded. */
+    public static Set<String> chatMembers(int chatId) {
+        Scope scope = chatScope(chatId);
+        if (scope == null) return Collections.emptySet();
+        Set<String> members = members(scope);
+        return members != null ? members : Collections.emptySet();
+    }
+
+    /** Usernames of the members of scope (unmodifiable), or null if the database load failed. */
+    public static Set<String> members(Scope scope) {
+        Entry e = entries.computeIfAbsent(scope, s -> new Entry());
+        e.lastAccess = System.currentTimeMillis();
+        Set<String> members;
+        synchronized (e) {
+            members = e.members;
+        }
+        if (members != null) {
+            hits.increment();
+            return members;
+        }
+        return load(scope, e);
+    }
+
+    public static void added(Scope scope, String username) {
+        change(scope, username, true);
+    }
+
+    public static void removed(Scope scope, String username) {
+        change(scope, username, false);
+    }
+
+    private static void change(Scope scope, String username, boolean added) {
+        if (username == null) return;
+        Entry e = entries.get(scope);
+        if (e == null) return; // not loaded: the next load reads it from the database
+        synchronized (e) {
+            e.version++;
+            if (e.loadsInFlight > 0) e.changesDuringLoad.add(new Change(e.version, username, added));
+            if (e.members != null) e.members = withChange(e.members, username, added);
+        }
+        changes.increment();
+    }
+
+    // ---- loading ----
+
+    /** Reads scope from the database and installs it; returns the installed members or null. */
+    private static Set<String> load(Scope scope, Entry e) {
+        long since;
+        synchronized (e) {
+            since = e.version;
+            e.loadsInFlight++;
+        }
+        Set<String> loaded = null;
+        try {
+            loaded = query(scope);
+            loads.increment();
+        } catch (SQLException | RuntimeException ex) {
+            loadErrors.increment();
+        }
+        synchronized (e) {
+            e.loadsInFlight--;
+            if (loaded != null) {
+                for (Change c : e.changesDuringLoad) {
+                    if (c.version > since) apply(loaded, c.username, c.added);
+                }
+                Set<String> previous = e.members;
+                e.members = Collections.unmodifiableSet(loaded);
+                if (previous != null) countDrift(previous, loaded);
+            }
+            if (e.loadsInFlight == 0) e.changesDuringLoad.clear();
+            if (e.members == null && e.loadsInFlight == 0) entries.remove(scope, e);
+            return e.members;
+        }
+    }
+
+    private static Set<String> withChange(Set<String> members, String username, boolean added) {
+        if (members.contains(username) == added) return members;
+        Set<String> copy = new HashSet<>(members);
+        if (added) copy.add(username);
+        else copy.remove(username);
+        return Collections.unmodifiableSet(copy);
+    }
+
+    private static void apply(Set<String> mutable, String username, boolean added) {
+        if (added) mutable.add(username);
+        else mutable.remove(username);
+    }
+
+    private static void countDrift(Set<String> before, Set<String> after) {
+        long n = 0;
+        for (String u : before) if (!after.contains(u)) n++;
+        for (String u : after) if (!before.contains(u)) n++;
+        drift.add(n);
+    }
+
+    private static Set<String> query(Scope scope) throws SQLException {
+        String sql = switch (scope.kind()) {
+            case "group" -> "SELECT u.username FROM group_members gm JOIN users u ON gm.user_id = u.id WHERE gm.group_id = ?";
+            case "channel" -> "SELECT u.username FROM channel_members cm JOIN users u ON cm.user_id = u.id WHERE cm.channel_id = ?";
+            default -> "SELECT u.username FROM user_chats uc JOIN users u ON uc.user_id = u.id WHERE uc.chat_id = ?";
+        };
+        Set<String> members = new HashSet<>();
+        try (Connection conn = ConnectionPool.get().getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, scope.id());
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) members.add(rs.getString("username"));
+            }
+        }
+        return members;
+    }
+
+    /** The scope behind a chat id; chat types never change, so this is cached for good. */
+    private static Scope chatScope(int chatId) {
+        Scope scope = chatScopes.get(chatId);
+        if (scope != null) return scope;
+        String sql = "SELECT type, id FROM chats WHERE chat_id = ?";
+        try (Connection conn = ConnectionPool.get().getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, chatId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) return null; // not cached: the chat may be created later
+                String type = rs.getString("type");
+                int refId = rs.getInt("id");
+                if ("group".equalsIgnoreCase(type)) scope = Scope.group(refId);
+                else if ("channel".equalsIgnoreCase(type)) scope = Scope.channel(refId);
+                else scope = Scope.chat(chatId);
+            }
+        } catch (SQLException e) {
+            loadErrors.increment();
+            return null;
+        }
+        chatScopes.put(chatId, scope);
+        return scope;
+    }
+
+    // ---- reconciliation ----
+
+    private static void reconcileLoop() {
+        while (true) {
+            try {
+                Thread.sleep(RECONCILE_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long idleBefore = System.currentTimeMillis() - IDLE_MS;
+            for (Map.Entry<Scope, Entry> me : entries.entrySet()) {
+                Entry e = me.getValue();
+                if (e.lastAccess < idleBefore) {
+                    entries.remove(me.getKey(), e);
+                    continue;
+                }
+                load(me.getKey(), e);
+            }
+            reconciles.increment();
+        }
+    }
+
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("scopes", entries.size());
+        m.put("chats", chatScopes.size());
+        m.put("hits", hits.sum());
+        m.put("loads", loads.sum());
+        m.put("loadErrors", loadErrors.sum());
+        m.put("changes", changes.sum());
+        m.put("reconciles", reconciles.sum());
+        m.put("drift", drift.sum());
+        return m;
+    }
+}
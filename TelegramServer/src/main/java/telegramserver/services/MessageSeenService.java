@@ -1,22 +1,130 @@
 package telegramserver.services;
 
+import telegramserver.MetricsReporter;
+import telegramserver.ServerConfig;
+import telegramserver.db.ConnectionPool;
+
 import java.sql.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /*
- * MessageSeenService - record when a user sees a message.
- * DB table expected: message_seens (id, user_id, message_id, seen_at)
+ * MessageSeenService - read receipts as watermarks: per (user, chat) the highest message id
+ * read, instead of one row per message per user.
+ *
+ * - markRead() only moves a watermark forward, in memory and without a lock; it reports
+ *   whether it moved, so callers send one receipt per advance, not per message.
+ * - A watermark starts from the stored user_chats.last_read_message_id, read once when the
+ *   (user, chat) is first touched (and again after it was dropped), so a re-read of old
+ *   messages after a restart is not taken for an advance. If that read fails it starts
+ *   from 0; the write below still cannot lower the stored value.
+ * - Every telegram.receipts.flushMs (default 500 ms), and at shutdown, the watermarks that
+ *   moved are written as one batched UPDATE of user_chats.last_read_message_id, so a burst of
+ *   SEENs in a window costs one row write. A failed flush is retried next round.
+ * - Watermarks unchanged for telegram.receipts.idleMs (default 10 min) are dropped once
+ *   flushed; the database keeps the highest value (GREATEST), and the next touch seeds from
+ *   it, so a dropped watermark cannot go backwards.
+ *
+ * DB: user_chats.last_read_message_id (bigint, default 0). markSeen() still writes message_seens
+ * (id, user_id, message_id, seen_at) for a SEEN that does not name its chat.
  */
 public class MessageSeenService {
-    private static final String URL = "jdbc:postgresql://localhost:5432/Telegram";
-    private static final String DB_USER = "postgres";
-    private static final String DB_PASS = "AmirMahdiImani";
 
-    public static boolean markSeen(int messageId, int userId) {
+    private static final class Watermark {
+        final AtomicLong upto;
+        volatile long flushed;
+        volatile long lastChange = System.currentTimeMillis();
+
+        Watermark(long stored) {
+            upto = new AtomicLong(stored);
+            flushed = stored;
+        }
+    }
+
+    private record Key(int chatId, int userId) implements Comparable<Key> {
+        public int compareTo(Key o) {
+            return chatId != o.chatId ? Integer.compare(chatId, o.chatId) : Integer.compare(userId, o.userId);
+        }
+    }
+
+    private record Pending(Watermark mark, long upto) {}
+
+    private static final long FLUSH_MS = Math.max(10, ServerConfig.getLong("telegram.receipts.flushMs", 500));
+    private static final long IDLE_MS = ServerConfig.getLong("telegram.receipts.idleMs", 600_000);
+
+    private static final ConcurrentHashMap<Key, Watermark> watermarks = new ConcurrentHashMap<>();
+
+    private static final LongAdder seen = new LongAdder();
+    private static final LongAdder advanced = new LongAdder();
+    private static final LongAdder rowsWritten = new LongAdder();
+    private static final LongAdder flushErrors = new LongAdder();
+    private static final LongAdder seeded = new LongAdder();
+    private static final LongAdder seedErrors = new LongAdder();
+
+    static {
+        Thread t = new Thread(MessageSeenService::flushLoop, "receipts-flusher");
+        t.setDaemon(true);
+        t.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(MessageSeenService::flush, "receipts-shutdown"));
+        MetricsReporter.register("receipts", MessageSeenService::snapshot);
+    }
+
+    /**
+     * userId has read chatId up to messageId (inclusive). Returns true only if that moved
+     * the watermark, i.e. when a receipt should go out.
+     */
+    public static boolean markRead(int chatId, int userId, long messageId) {
+        seen.increment();
+        Watermark w = watermark(new Key(chatId, userId));
+        long prev = w.upto.getAndAccumulate(messageId, Math::max);
+        if (messageId <= prev) return false;
+        w.lastChange = System.currentTimeMillis();
+        advanced.increment();
+        return true;
+    }
+
+    /** Highest message id of chatId that userId has read, as far as this server knows. */
+    public static long readUpTo(int chatId, int userId) {
+        return watermark(new Key(chatId, userId)).upto.get();
+    }
+
+    /** The watermark for key, seeded from the database the first time; the query runs outside the map. */
+    private static Watermark watermark(Key key) {
+        Watermark w = watermarks.get(key);
+        if (w != null) return w;
+        Watermark fresh = new Watermark(loadStored(key));
+        w = watermarks.putIfAbsent(key, fresh);
+        return w != null ? w : fresh;
+    }
+
+    private static long loadStored(Key key) {
+        String sql = "SELECT last_read_message_id FROM user_chats WHERE chat_id = ? AND user_id = ?";
+        try (Connection conn = ConnectionPool.get().getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, key.chatId);
+            ps.setInt(2, key.userId);
+            try (ResultSet rs = ps.executeQuery()) {
+                seeded.increment();
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        } catch (SQLException e) {
+            seedErrors.increment();
+            System.err.println("⚠️ Could not load read watermark for chat " + key.chatId + ", starting from 0: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /** One message_seens row, for a SEEN without a chat id. */
+    public static boolean markSeen(long messageId, int userId) {
         String sql = "INSERT INTO message_seens (user_id, message_id, seen_at) VALUES (?, ?, ?)";
-        try (Connection conn = DriverManager.getConnection(URL, DB_USER, DB_PASS);
+        try (Connection conn = ConnectionPool.get().getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setInt(1, userId);
-            ps.setInt(2, messageId);
+            ps.setLong(2, messageId);
             ps.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
             ps.executeUpdate();
             return true;
@@ -25,4 +133,76 @@ public class MessageSeenService {
             return false;
         }
     }
+
+    // ---- flushing ----
+
+    private static void flushLoop() {
+        while (true) {
+            try {
+                Thread.sleep(FLUSH_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            flush();
+            evictIdle();
+        }
+    }
+
+    private static synchronized void flush() {
+        // chat id order: a stable row lock order
+        Map<Key, Pending> dirty = new TreeMap<>();
+        for (Map.Entry<Key, Watermark> e : watermarks.entrySet()) {
+            Watermark w = e.getValue();
+            long upto = w.upto.get();
+            if (upto != w.flushed) dirty.put(e.getKey(), new Pending(w, upto));
+        }
+        if (dirty.isEmpty()) return;
+
+        String sql = "UPDATE user_chats SET last_read_message_id = GREATEST(COALESCE(last_read_message_id, 0), ?) " +
+                "WHERE chat_id = ? AND user_id = ?";
+        try (Connection conn = ConnectionPool.get().getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (Map.Entry<Key, Pending> e : dirty.entrySet()) {
+                ps.setLong(1, e.getValue().upto);
+                ps.setInt(2, e.getKey().chatId);
+                ps.setInt(3, e.getKey().userId);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        } catch (SQLException e) {
+            flushErrors.increment();
+            System.err.println("⚠️ Read receipt flush failed, retrying next round: " + e.getMessage());
+            return;
+        }
+        for (Pending p : dirty.values()) p.mark.flushed = p.upto;
+        rowsWritten.add(dirty.size());
+    }
+
+    private static void evictIdle() {
+        if (IDLE_MS <= 0) return;
+        long idleBefore = System.currentTimeMillis() - IDLE_MS;
+        for (Map.Entry<Key, Watermark> e : watermarks.entrySet()) {
+            Watermark w = e.getValue();
+            if (w.lastChange < idleBefore && w.upto.get() == w.flushed && watermarks.remove(e.getKey(), w)
+                    && w.upto.get() != w.flushed) {
+                // advanced while being dropped: keep the advance (in a reseeded watermark if one took its place)
+                watermarks.merge(e.getKey(), w, (cur, old) -> {
+                    cur.upto.accumulateAndGet(old.upto.get(), Math::max);
+                    return cur;
+                });
+            }
+        }
+    }
+
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("watermarks", watermarks.size());
+        m.put("seen", seen.sum());
+        m.put("advanced", advanced.sum());
+        m.put("rowsWritten", rowsWritten.sum());
+        m.put("flushErrors", flushErrors.sum());
+        m.put("seeded", seeded.sum());
+        m.put("seedErrors", seedErrors.sum());
+        return m;
+    }
 }
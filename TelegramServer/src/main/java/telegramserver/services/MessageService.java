@@ -1,54 +1,97 @@
 package telegramserver.services;
 
+import telegramserver.ServerConfig;
 import telegramserver.models.Message;
+import telegramserver.search.MessageIndex;
+import telegramserver.storage.JdbcMessageStore;
+import telegramserver.storage.LogMessageStore;
+import telegramserver.storage.MessageStore;
 
-import java.sql.*;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
-// Handles storing and retrieving messages
+// Handles storing and retrieving messages, through the configured MessageStore, and keeps
+// the search index (telegram.search.enabled, default true) in step with it
 public class MessageService {
-    private static final List<Message> messages = new ArrayList<>();
-    private static String url = "jdbc:postgresql://localhost:5432/Telegram";
-    private static String user = "postgres";
-    private static String password = "AmirMahdiImani";
+    private static volatile MessageStore store;
+    private static volatile MessageIndex index;
 
-    public static void saveMessage(Message msg) {
-        messages.add(msg);
-        System.out.println("💾 Message saved: " + msg.getContent());
-        //DB program
-        Message handle = new Message(msg.getId(),msg.getContent(),msg.getSenderId(),msg.getChatid(),msg.getReplyid(),msg.getSentat(),msg.isDeleted(),msg.isIsedited());
-        handle.addmessages();
-        // finish
+    /**
+     * Opens the store chosen by -Dtelegram.store (jdbc or log) and the search index in
+     * telegram.search.dir. Called once at startup.
+     */
+    public static synchronized void openStore() throws IOException {
+        if (store != null) return;
+        if (ServerConfig.getBoolean("telegram.search.enabled", true)) {
+            String dir = ServerConfig.get("telegram.search.dir", "data/search");
+            index = new MessageIndex(Paths.get(dir));
+            System.out.println("🔎 Message search index in " + dir);
+        }
+        if ("log".equalsIgnoreCase(ServerConfig.get("telegram.store", "jdbc"))) {
+            String dir = ServerConfig.get("telegram.store.dir", "data/messages");
+            store = new LogMessageStore(Paths.get(dir));
+            System.out.println("🗄️ Message store: local log in " + dir);
+        } else {
+            store = new JdbcMessageStore();
+            System.out.println("🗄️ Message store: database");
+        }
     }
 
-    public static List<Message> getMessagesForChat(int chatId) {
-        List<Message> chatMsgs = new ArrayList<>();
-        for (Message m : messages) {
-            if (m.getChatid() == chatId) {
-                chatMsgs.add(m);
-            }
-        }
-        // DB program
-        String query = "select * from messages where chatid = ?";
-        try {
-            Connection conn = DriverManager.getConnection(url, user, password);
-            PreparedStatement ps = conn.prepareStatement(query);
-            ps.setInt(1, chatId);
-            ResultSet rs = ps.executeQuery();
-            while (rs.next()) {
-                int id = rs.getInt("id");
-                String text = rs.getString("text");
-                Timestamp createdAt = rs.getTimestamp("created_at");
-
-                System.out.println("Message ID: " + id +
-                        " | Text: " + text +
-                        " | Date: " + createdAt);
+    public static MessageStore store() {
+        if (store == null) {
+            try {
+                openStore();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
         }
-        //finish
-        return chatMsgs;
+        return store;
+    }
+
+    /**
+     * Persists the message; the future completes once the store has made it durable. The
+     * message is queued for the search index then, beside the caller rather than before it:
+     * the durability thread (WAL syncer, group-commit writer) only does a non-blocking offer
+     * and callers waiting on the same batch are not held up by it.
+     */
+    public static CompletableFuture<Void> saveMessage(Message msg) {
+        System.out.println("💾 Message saved: " + msg.getContent());
+        CompletableFuture<Void> saved = store().append(msg);
+        MessageIndex idx = index;
+        if (idx != null) saved.thenRun(() -> idx.add(msg.getChatid(), msg.getId(), msg.getContent()));
+        return saved;
+    }
+
+    /** Up to limit messages of the chat older than beforeId, newest first. */
+    public static List<Message> getMessagesForChat(int chatId, long beforeId, int limit) {
+        return store().history(chatId, beforeId, limit);
+    }
+
+    public static boolean editMessage(int chatId, long messageId, String newContent) {
+        Message old = index == null ? null : store().get(chatId, messageId);
+        boolean ok = store().edit(chatId, messageId, newContent);
+        if (ok && old != null) index.edit(chatId, messageId, old.getContent(), newContent);
+        return ok;
+    }
+
+    public static boolean deleteMessage(int chatId, long messageId) {
+        Message old = index == null ? null : store().get(chatId, messageId);
+        boolean ok = store().delete(chatId, messageId);
+        if (ok && old != null) index.delete(chatId, messageId, old.getContent());
+        return ok;
+    }
+
+    /**
+     * Search hits for query in chatIds, best first, after the hit `after` (null for the first
+     * page); null when search is disabled.
+     */
+    public static List<MessageIndex.Hit> searchMessages(Collection<Integer> chatIds, String query,
+                                                        MessageIndex.Hit after, int limit) {
+        store();
+        return index == null ? null : index.search(chatIds, query, after, limit);
     }
 }
@@ -0,0 +1,196 @@
+package telegramserver.services;
+
+import telegramserver.MetricsReporter;
+import telegramserver.ServerConfig;
+import telegramserver.db.ConnectionPool;
+import telegramserver.models.Message;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * MessageWriter: write-behind persistence for messages, with group commit.
+ *
+ * - append() puts the message on a bounded queue and returns a future right away.
+ * - One writer thread takes whatever is queued (up to batchSize rows, waiting at most
+ *   maxDelayMs for more after the first one), writes it as one multi-row INSERT in one
+ *   transaction and completes every future of the batch when it commits.
+ * - If a batch fails, its rows are retried one by one so a single bad row only fails its
+ *   own future (unless the database itself is unreachable: then the whole batch fails).
+ *
+ * Config: telegram.messages.batchSize (256), telegram.messages.maxDelayMs (2),
+ * telegram.messages.queueCapacity (10000), telegram.messages.enqueueTimeoutMs (1000).
+ * Metrics are reported as "messages.writer".
+ */
+public final class MessageWriter {
+
+    private static final String INSERT_PREFIX =
+            "INSERT INTO messages (id,content,senderid,chatid,replyid,sentat,isdeleted,isedited) VALUES ";
+    private static final String ROW = "(?,?,?,?,?,?,?,?)";
+
+    // 8 bind parameters per row; PostgreSQL allows at most 65535 per statement
+    private static final int BATCH_SIZE = Math.max(1, Math.min(8000, ServerConfig.getInt("telegram.messages.batchSize", 256)));
+    private static final long MAX_DELAY_MS = ServerConfig.getLong("telegram.messages.maxDelayMs", 2);
+    private static final long ENQUEUE_TIMEOUT_MS = ServerConfig.getLong("telegram.messages.enqueueTimeoutMs", 1000);
+
+    private static final BlockingQueue<Pending> queue =
+            new ArrayBlockingQueue<>(ServerConfig.getInt("telegram.messages.queueCapacity", 10_000));
+
+    private static final LongAdder appended = new LongAdder();
+    private static final LongAdder written = new LongAdder();
+    private static final LongAdder failed = new LongAdder();
+    private static final LongAdder rejected = new LongAdder();
+    private static final LongAdder batches = new LongAdder();
+    private static final LongAdder commitNanos = new LongAdder();
+    private static final AtomicLong largestBatch = new AtomicLong();
+
+    private static final class Pending {
+        final Message message;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(Message message) {
+            this.message = message;
+        }
+    }
+
+    static {
+        Thread writer = new Thread(MessageWriter::run, "message-writer");
+        writer.setDaemon(true);
+        writer.start();
+        MetricsReporter.register("messages.writer", MessageWriter::snapshot);
+    }
+
+    private MessageWriter() {}
+
+    /**
+     * Queues msg for the next batch. The future completes when the batch holding it commits,
+     * or exceptionally if the insert fails or the queue stays full for enqueueTimeoutMs.
+     */
+    public static CompletableFuture<Void> append(Message msg) {
+        Pending p = new Pending(msg);
+        try {
+            if (!queue.offer(p, ENQUEUE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                rejected.increment();
+                p.done.completeExceptionally(new IllegalStateException("message write queue is full"));
+                return p.done;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            p.done.completeExceptionally(e);
+            return p.done;
+        }
+        appended.increment();
+        return p.done;
+    }
+
+    private static void run() {
+        List<Pending> batch = new ArrayList<>(BATCH_SIZE);
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, BATCH_SIZE - batch.size());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_DELAY_MS);
+                while (batch.size() < BATCH_SIZE) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) break;
+                    Pending next = queue.poll(left, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                    queue.drainTo(batch, BATCH_SIZE - batch.size());
+                }
+                flush(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                batch.forEach(p -> p.done.completeExceptionally(e));
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private static void flush(List<Pending> batch) {
+        long start = System.nanoTime();
+        try {
+            insert(batch);
+            batches.increment();
+            written.add(batch.size());
+            largestBatch.accumulateAndGet(batch.size(), Math::max);
+            commitNanos.add(System.nanoTime() - start);
+            batch.forEach(p -> p.done.complete(null));
+        } catch (SQLException e) {
+            if (batch.size() == 1 || isConnectionProblem(e)) {
+                failed.add(batch.size());
+                batch.forEach(p -> p.done.completeExceptionally(e));
+                return;
+            }
+            for (Pending p : batch) flush(List.of(p));
+        }
+    }
+
+    /** Failures that are not about any particular row: retrying row by row would not help. */
+    private static boolean isConnectionProblem(SQLException e) {
+        String state = e.getSQLState();
+        return e instanceof SQLTimeoutException || (state != null && state.startsWith("08"));
+    }
+
+    private static void insert(List<Pending> rows) throws SQLException {
+        StringBuilder sql = new StringBuilder(INSERT_PREFIX.length() + rows.size() * (ROW.length() + 1));
+        sql.append(INSERT_PREFIX);
+        for (int i = 0; i < rows.size(); i++) {
+            if (i > 0) sql.append(',');
+            sql.append(ROW);
+        }
+
+        try (Connection conn = ConnectionPool.get().getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+                int k = 1;
+                for (Pending p : rows) {
+                    Message m = p.message;
+                    ps.setLong(k++, m.getId());
+                    ps.setString(k++, m.getContent());
+                    ps.setInt(k++, m.getSenderId());
+                    ps.setInt(k++, m.getChatid());
+                    ps.setLong(k++, m.getReplyid());
+                    ps.setTimestamp(k++, m.getSentat());
+                    ps.setBoolean(k++, m.isDeleted());
+                    ps.setBoolean(k++, m.isIsedited());
+                }
+                ps.executeUpdate();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    public static Map<String, Object> snapshot() {
+        long n = batches.sum();
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("queued", queue.size());
+        m.put("appended", appended.sum());
+        m.put("written", written.sum());
+        m.put("failed", failed.sum());
+        m.put("rejected", rejected.sum());
+        m.put("batches", n);
+        m.put("avgBatch", n == 0 ? 0 : written.sum() / n);
+        m.put("largestBatch", largestBatch.get());
+        m.put("avgCommitMicros", n == 0 ? 0 : commitNanos.sum() / n / 1000);
+        return m;
+    }
+}
@@ -1,5 +1,7 @@
 package telegramserver.services;
 
+import telegramserver.db.ConnectionPool;
+
 import java.sql.*;
 import java.util.HashMap;
 import java.util.Map;
@@ -10,9 +12,6 @@ import java.util.Map;
  * This class will try to use DB (pv table) and fall back to memory.
  */
 public class PVService {
-    private static final String URL = "jdbc:postgresql://localhost:5432/Telegram";
-    private static final String DB_USER = "postgres";
-    private static final String DB_PASS = "AmirMahdiImani";
 
     private static int nextPvId = 3000;
     private static final Map<Integer, Map<String,Integer>> pvMap = new HashMap<>(); // pvId -> {user1,user2,chatId}
@@ -29,7 +28,7 @@ public class PVService {
 
         // Try DB: see if pv table has entry
         String q = "SELECT id FROM pv WHERE (user1_id = ? AND user2_id = ?) OR (user1_id = ? AND user2_id = ?)";
-        try (Connection conn = DriverManager.getConnection(URL, DB_USER, DB_PASS);
+        try (Connection conn = ConnectionPool.get().getConnection();
              PreparedStatement ps = conn.prepareStatement(q)) {
             ps.setInt(1, u1); ps.setInt(2, u2); ps.setInt(3, u2); ps.setInt(4, u1);
             ResultSet rs = ps.executeQuery();
@@ -46,7 +45,7 @@ public class PVService {
 
         // Insert new PV (DB)
         String ins = "INSERT INTO pv (user1_id, user2_id) VALUES ( ?, ?) RETURNING id";
-        try (Connection conn = DriverManager.getConnection(URL, DB_USER, DB_PASS);
+        try (Connection conn = ConnectionPool.get().getConnection();
              PreparedStatement ps = conn.prepareStatement(ins)) {
             ps.setInt(1, u1); ps.setInt(2, u2);
             ResultSet rs = ps.executeQuery();
@@ -0,0 +1,126 @@
+package telegramserver.services;
+
+import telegramserver.MetricsReporter;
+import telegramserver.ServerConfig;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SessionTokens: signed tokens that let a reconnecting client RESUME without LOGIN.
+ *
+ * - A token is base64url("1.<expiresAt>.<username>") + "." + base64url(HMAC-SHA256 of it);
+ *   checking one needs no database and no state, only the key.
+ * - The key is SHA-256 of telegram.session.secret. Without it a random key is drawn at
+ *   startup, so tokens die with the process (and are not accepted by other servers).
+ * - Tokens live telegram.session.tokenTtlMs (default 7 days); every LOGIN and RESUME hands
+ *   out a fresh one.
+ *
+ * Metrics are reported as "sessions.tokens".
+ */
+public final class SessionTokens {
+
+    /** A token and when it stops being accepted (epoch ms). */
+    public record Token(String value, long expiresAt) {}
+
+    private static final long TTL_MS = ServerConfig.getLong("telegram.session.tokenTtlMs", 7L * 24 * 3600 * 1000);
+    private static final SecretKeySpec KEY = key(ServerConfig.get("telegram.session.secret", null));
+    private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(SessionTokens::newMac);
+    private static final Base64.Encoder B64 = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder B64D = Base64.getUrlDecoder();
+
+    private static final LongAdder issued = new LongAdder();
+    private static final LongAdder accepted = new LongAdder();
+    private static final LongAdder rejected = new LongAdder();
+    private static final LongAdder expired = new LongAdder();
+
+    static {
+        MetricsReporter.register("sessions.tokens", SessionTokens::snapshot);
+    }
+
+    private SessionTokens() {}
+
+    public static Token issue(String username) {
+        long expiresAt = System.currentTimeMillis() + TTL_MS;
+        byte[] payload = ("1." + expiresAt + "." + username).getBytes(StandardCharsets.UTF_8);
+        issued.increment();
+        return new Token(B64.encodeToString(payload) + "." + B64.encodeToString(MAC.get().doFinal(payload)), expiresAt);
+    }
+
+    /** The username a valid, unexpired token was issued to, or null. */
+    public static String verify(String token) {
+        if (token == null) return reject();
+        int dot = token.indexOf('.');
+        if (dot <= 0) return reject();
+        byte[] payload, mac;
+        try {
+            payload = B64D.decode(token.substring(0, dot));
+            mac = B64D.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return reject();
+        }
+        if (!MessageDigest.isEqual(mac, MAC.get().doFinal(payload))) return reject();
+
+        String[] parts = new String(payload, StandardCharsets.UTF_8).split("\\.", 3);
+        if (parts.length != 3 || !parts[0].equals("1") || parts[2].isEmpty()) return reject();
+        long expiresAt;
+        try {
+            expiresAt = Long.parseLong(parts[1]);
+        } catch (NumberFormatException e) {
+            return reject();
+        }
+        if (expiresAt <= System.currentTimeMillis()) {
+            expired.increment();
+            return null;
+        }
+        accepted.increment();
+        return parts[2];
+    }
+
+    private static String reject() {
+        rejected.increment();
+        return null;
+    }
+
+    private static SecretKeySpec key(String secret) {
+        byte[] key = new byte[32];
+        if (secret == null) {
+            new SecureRandom().nextBytes(key);
+            System.err.println("⚠️ telegram.session.secret is not set: session tokens will not survive a restart");
+        } else {
+            try {
+                key = MessageDigest.getInstance("SHA-256").digest(secret.getBytes(StandardCharsets.UTF_8));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return new SecretKeySpec(key, "HmacSHA256");
+    }
+
+    private static Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(KEY);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("issued", issued.sum());
+        m.put("accepted", accepted.sum());
+        m.put("rejected", rejected.sum());
+        m.put("expired", expired.sum());
+        return m;
+    }
+}
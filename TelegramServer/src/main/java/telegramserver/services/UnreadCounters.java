@@ -0,0 +1,365 @@
+package telegramserver.services;
+
+import telegramserver.MetricsReporter;
+import telegramserver.ServerConfig;
+import telegramserver.db.ConnectionPool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * UnreadCounters: unread counts and last message ids of user_chats, counted in memory and
+ * written back in batches instead of one UPDATE of every member row per message.
+ *
+ * - Per chat, a striped counter of messages and the highest message id; per sender in the
+ *   chat, a striped counter of the sender's own messages (not unread for them). A message
+ *   costs two LongAdder increments and no lock, however many members the chat has.
+ * - Reading a chat (read()) remembers the chat's message count at that moment; the flush
+ *   turns it into an absolute unread_count for that one row.
+ * - Every telegram.unread.flushMs (default 1 s), and at shutdown, the changes of the chats
+ *   touched since the last flush go out as three batched UPDATEs in one transaction, in
+ *   chat id order; untouched chats are not looked at. A failed flush is retried whole on
+ *   the next round.
+ * - Counters with nothing left to write that no flush has touched for telegram.unread.idleMs
+ *   (default 10 min) are dropped, per user and per chat. A writer that raced with the drop
+ *   sees it retired and repeats its change on fresh counters, so nothing is lost.
+ *
+ * Metrics are reported as "unread".
+ */
+public final class UnreadCounters {
+
+    private static final class ChatCounters {
+        final LongAdder messages = new LongAdder();
+        final AtomicLong lastMessageId = new AtomicLong();
+        final ConcurrentHashMap<Integer, UserCounters> users = new ConcurrentHashMap<>();
+        volatile long flushedMessages;  // written by the flusher only
+        long flushedLastMessageId;
+        long lastDirty = System.currentTimeMillis(); // when a flush last found work here; flusher only
+        volatile boolean retired;                    // dropped by evictIdle(): writers move to fresh counters
+    }
+
+    private static final class UserCounters {
+        final LongAdder own = new LongAdder();
+        final AtomicLong readAt = new AtomicLong(-1); // chat message count at the last unflushed read, or -1
+        volatile long ownAtRead;
+        volatile long flushedOwn;                      // written by the flusher only
+        long lastDirty = System.currentTimeMillis();
+        volatile boolean retired;
+    }
+
+    /** What one flush writes for a chat, kept so its counters only advance once it commits. */
+    private record ChatFlush(int chatId, ChatCounters chat, long messages, long lastMessageId, List<UserFlush> users) {}
+
+    private record UserFlush(int userId, UserCounters user, long own, long readAt, int unread) {}
+
+    private static final long FLUSH_MS = Math.max(10, ServerConfig.getLong("telegram.unread.flushMs", 1_000));
+    private static final long IDLE_MS = ServerConfig.getLong("telegram.unread.idleMs", 600_000);
+
+    private static final ConcurrentHashMap<Integer, ChatCounters> chats = new ConcurrentHashMap<>();
+    /** Chats changed since collect() last took them; added to after the change it announces. */
+    private static final Set<Integer> dirty = ConcurrentHashMap.newKeySet();
+
+    private static final LongAdder messages = new LongAdder();
+    private static final LongAdder reads = new LongAdder();
+    private static final LongAdder flushes = new LongAdder();
+    private static final LongAdder flushErrors = new LongAdder();
+    private static final LongAdder statements = new LongAdder();
+    private static final LongAdder evicted = new LongAdder();
+    private static final AtomicLong lastFlushMicros = new AtomicLong();
+
+    static {
+        Thread t = new Thread(UnreadCounters::flushLoop, "unread-flusher");
+        t.setDaemon(true);
+        t.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(UnreadCounters::flush, "unread-shutdown"));
+        MetricsReporter.register("unread", UnreadCounters::snapshot);
+    }
+
+    private UnreadCounters() {}
+
+    /** A message was stored in chatId: unread for every member but the sender. */
+    public static void messageSent(int chatId, long messageId, int senderId) {
+        ChatCounters chat = chats.computeIfAbsent(chatId, id -> new ChatCounters());
+        while (true) {
+            // the message before the sender's own count, so a flush in between never subtracts first
+            chat.messages.increment();
+            chat.lastMessageId.accumulateAndGet(messageId, Math::max);
+            if (senderId != 0) {
+                UserCounters user = chat.users.computeIfAbsent(senderId, id -> new UserCounters());
+                while (true) {
+                    user.own.increment();
+                    UserCounters next = current(chat, senderId, user);
+                    if (next == null) break;
+                    user = next;
+                }
+            }
+            ChatCounters next = current(chatId, chat);
+            if (next == null) break;
+            chat = next;
+        }
+        dirty.add(chatId);
+        messages.increment();
+    }
+
+    /** userId has read chatId up to now: their unread count restarts from zero. */
+    public static void read(int chatId, int userId) {
+        ChatCounters chat = chats.computeIfAbsent(chatId, id -> new ChatCounters());
+        while (true) {
+            UserCounters user = chat.users.computeIfAbsent(userId, id -> new UserCounters());
+            while (true) {
+                user.ownAtRead = user.own.sum();
+                user.readAt.set(chat.messages.sum());
+                UserCounters next = current(chat, userId, user);
+                if (next == null) break;
+                user = next;
+            }
+            ChatCounters next = current(chatId, chat);
+            if (next == null) break;
+            chat = next;
+        }
+        dirty.add(chatId);
+        reads.increment();
+    }
+
+    /**
+     * After a change to chat: null if it counts, or the counters to repeat it on because
+     * evictIdle() dropped chat. computeIfAbsent waits for an eviction in progress, which keeps
+     * the counters (and the change) if it saw the change.
+     */
+    private static ChatCounters current(int chatId, ChatCounters chat) {
+        if (!chat.retired) return null;
+        ChatCounters now = chats.computeIfAbsent(chatId, id -> new ChatCounters());
+        return now == chat ? null : now;
+    }
+
+    /** current() for a user's counters within chat. */
+    private static UserCounters current(ChatCounters chat, int userId, UserCounters user) {
+        if (!user.retired) return null;
+        UserCounters now = chat.users.computeIfAbsent(userId, id -> new UserCounters());
+        return now == user ? null : now;
+    }
+
+    /** unread_count of (chatId, userId) as stored, corrected by what has not been flushed yet. */
+    public static int unread(int chatId, int userId, int stored) {
+        ChatCounters chat = chats.get(chatId);
+        if (chat == null) return stored;
+        long total = chat.messages.sum();
+        UserCounters user = chat.users.get(userId);
+        if (user == null) return (int) Math.max(0, stored + total - chat.flushedMessages);
+        long readAt = user.readAt.get();
+        long own = user.own.sum();
+        if (readAt >= 0) return (int) Math.max(0, total - readAt - (own - user.ownAtRead));
+        return (int) Math.max(0, stored + (total - chat.flushedMessages) - (own - user.flushedOwn));
+    }
+
+    /** last_message_id of chatId as stored, or the newer unflushed one. */
+    public static long lastMessageId(int chatId, long stored) {
+        ChatCounters chat = chats.get(chatId);
+        return chat == null ? stored : Math.max(stored, chat.lastMessageId.get());
+    }
+
+    // ---- flushing ----
+
+    private static void flushLoop() {
+        while (true) {
+            try {
+                Thread.sleep(FLUSH_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            flush();
+            if (IDLE_MS > 0 && System.currentTimeMillis() - lastSweep >= Math.max(FLUSH_MS, IDLE_MS / 4)) {
+                evictIdle();
+                lastSweep = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private static long lastSweep = System.currentTimeMillis(); // flusher thread only
+
+    private static synchronized void flush() {
+        List<ChatFlush> pending = collect();
+        if (pending.isEmpty()) return;
+        long start = System.nanoTime();
+        try {
+            write(pending);
+        } catch (SQLException | RuntimeException e) {
+            // reads taken by collect() go back, unless a newer read replaced them meanwhile
+            for (ChatFlush c : pending) {
+                dirty.add(c.chatId);
+                for (UserFlush u : c.users) {
+                    if (u.readAt >= 0) u.user.readAt.compareAndSet(-1, u.readAt);
+                }
+            }
+            flushErrors.increment();
+            System.err.println("⚠️ Unread flush failed, retrying next round: " + e.getMessage());
+            return;
+        }
+        for (ChatFlush c : pending) {
+            c.chat.flushedMessages = c.messages;
+            c.chat.flushedLastMessageId = c.lastMessageId;
+            for (UserFlush u : c.users) u.user.flushedOwn = u.own;
+        }
+        flushes.increment();
+        lastFlushMicros.set((System.nanoTime() - start) / 1_000);
+    }
+
+    /** Snapshots the dirty chats with something to write, in chat id order (a stable lock order). */
+    private static List<ChatFlush> collect() {
+        List<Integer> ids = new ArrayList<>(dirty.size());
+        // taken out before their counters are read: a change after this marks the chat again
+        for (Iterator<Integer> it = dirty.iterator(); it.hasNext(); ) {
+            ids.add(it.next());
+            it.remove();
+        }
+        Collections.sort(ids);
+        long now = System.currentTimeMillis();
+        List<ChatFlush> pending = new ArrayList<>();
+        for (int chatId : ids) {
+            ChatCounters chat = chats.get(chatId);
+            if (chat == null) continue;
+            chat.lastDirty = now;
+            // own counts before the total: every own message seen here is then in the total too
+            TreeMap<Integer, UserCounters> senders = new TreeMap<>(chat.users);
+            Map<Integer, Long> owns = new TreeMap<>();
+            for (Map.Entry<Integer, UserCounters> ue : senders.entrySet()) owns.put(ue.getKey(), ue.getValue().own.sum());
+            long total = chat.messages.sum();
+            long lastId = chat.lastMessageId.get();
+            List<UserFlush> users = new ArrayList<>();
+            for (Map.Entry<Integer, UserCounters> ue : senders.entrySet()) {
+                UserCounters user = ue.getValue();
+                long own = owns.get(ue.getKey());
+                long readAt = user.readAt.get();
+                // a read newer than the total above waits for the next round with its messages
+                if (readAt >= 0 && readAt <= total && user.readAt.compareAndSet(readAt, -1)) {
+                    int unread = (int) Math.max(0, total - readAt - (own - user.ownAtRead));
+                    users.add(new UserFlush(ue.getKey(), user, own, readAt, unread));
+                    user.lastDirty = now;
+                } else {
+                    if (readAt > total) dirty.add(chatId);
+                    if (own != user.flushedOwn) {
+                        users.add(new UserFlush(ue.getKey(), user, own, -1, 0));
+                        user.lastDirty = now;
+                    }
+                }
+            }
+            if (total != chat.flushedMessages || lastId != chat.flushedLastMessageId || !users.isEmpty()) {
+                pending.add(new ChatFlush(chatId, chat, total, lastId, users));
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Drops counters that are fully flushed and were not flushed for IDLE_MS. Each is marked
+     * retired before it is checked, inside the map's compute: a change the check missed sees
+     * the mark and is repeated on fresh counters, one it saw keeps the counters.
+     */
+    private static synchronized void evictIdle() {
+        long idleBefore = System.currentTimeMillis() - IDLE_MS;
+        for (Integer chatId : chats.keySet()) {
+            chats.computeIfPresent(chatId, (k, chat) -> {
+                for (Integer userId : chat.users.keySet()) {
+                    chat.users.computeIfPresent(userId, (u, user) -> {
+                        if (user.lastDirty >= idleBefore) return user;
+                        user.retired = true;
+                        if (flushed(user)) return null;
+                        user.retired = false;
+                        return user;
+                    });
+                }
+                if (chat.lastDirty >= idleBefore || !chat.users.isEmpty()) return chat;
+                chat.retired = true;
+                if (chat.messages.sum() == chat.flushedMessages && chat.lastMessageId.get() == chat.flushedLastMessageId
+                        && chat.users.isEmpty()) {
+                    evicted.increment();
+                    return null;
+                }
+                chat.retired = false;
+                return chat;
+            });
+        }
+    }
+
+    private static boolean flushed(UserCounters user) {
+        return user.readAt.get() < 0 && user.own.sum() == user.flushedOwn;
+    }
+
+    private static void write(List<ChatFlush> pending) throws SQLException {
+        String bump = "UPDATE user_chats SET last_message_id = GREATEST(last_message_id, ?), " +
+                "unread_count = unread_count + ? WHERE chat_id = ?";
+        String own = "UPDATE user_chats SET unread_count = GREATEST(unread_count - ?, 0) WHERE chat_id = ? AND user_id = ?";
+        String reset = "UPDATE user_chats SET unread_count = ? WHERE chat_id = ? AND user_id = ?";
+        try (Connection conn = ConnectionPool.get().getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement psBump = conn.prepareStatement(bump);
+                 PreparedStatement psOwn = conn.prepareStatement(own);
+                 PreparedStatement psReset = conn.prepareStatement(reset)) {
+                int rows = 0;
+                for (ChatFlush c : pending) {
+                    long delta = c.messages - c.chat.flushedMessages;
+                    if (delta == 0 && c.lastMessageId == c.chat.flushedLastMessageId) continue;
+                    psBump.setLong(1, c.lastMessageId);
+                    psBump.setLong(2, delta);
+                    psBump.setInt(3, c.chatId);
+                    psBump.addBatch();
+                    rows++;
+                }
+                // after the bump, so a reset row ends at its absolute value
+                for (ChatFlush c : pending) {
+                    for (UserFlush u : c.users) {
+                        if (u.readAt >= 0) {
+                            psReset.setInt(1, u.unread);
+                            psReset.setInt(2, c.chatId);
+                            psReset.setInt(3, u.userId);
+                            psReset.addBatch();
+                        } else {
+                            psOwn.setLong(1, u.own - u.user.flushedOwn);
+                            psOwn.setInt(2, c.chatId);
+                            psOwn.setInt(3, u.userId);
+                            psOwn.addBatch();
+                        }
+                        rows++;
+                    }
+                }
+                psBump.executeBatch();
+                psOwn.executeBatch();
+                psReset.executeBatch();
+                conn.commit();
+                statements.add(rows);
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    public static Map<String, Object> snapshot() {
+        long unflushed = 0;
+        for (ChatCounters c : chats.values()) unflushed += c.messages.sum() - c.flushedMessages;
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("chats", chats.size());
+        m.put("dirtyChats", dirty.size());
+        m.put("evictedChats", evicted.sum());
+        m.put("messages", messages.sum());
+        m.put("reads", reads.sum());
+        m.put("unflushedMessages", unflushed);
+        m.put("flushes", flushes.sum());
+        m.put("flushErrors", flushErrors.sum());
+        m.put("statements", statements.sum());
+        m.put("lastFlushMicros", lastFlushMicros.get());
+        return m;
+    }
+}
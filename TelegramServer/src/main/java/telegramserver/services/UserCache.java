@@ -0,0 +1,195 @@
+package telegramserver.services;
+
+import telegramserver.MetricsReporter;
+import telegramserver.ServerConfig;
+import telegramserver.db.ConnectionPool;
+import telegramserver.models.User;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * UserCache: users rows (models.User) by id, for login and profile reads.
+ *
+ * - At most telegram.users.cache.max users (default 50000), split over
+ *   telegram.users.cache.stripes LRU stripes (default 16); each stripe has its own lock,
+ *   so readers of different users rarely meet, and drops its least recently used user
+ *   when it is full.
+ * - A user is reloaded after telegram.users.cache.ttlMs (default 5 min). Anything that
+ *   writes a users column a User carries must call invalidate(id) (or put() the new User);
+ *   presence is read from ClientRegistry, not from the cached is_online.
+ * - Unknown ids and database errors are not cached.
+ *
+ * Metrics are reported as "users.cache".
+ */
+public final class UserCache {
+
+    private static final int MAX = Math.max(16, ServerConfig.getInt("telegram.users.cache.max", 50_000));
+    private static final int STRIPES = Math.max(1, ServerConfig.getInt("telegram.users.cache.stripes", 16));
+    private static final long TTL_MS = ServerConfig.getLong("telegram.users.cache.ttlMs", 300_000);
+
+    private record Entry(User user, long expiresAt) {}
+
+    private static final Stripe[] stripes = new Stripe[STRIPES];
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder expired = new LongAdder();
+    private static final LongAdder errors = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+    private static final LongAdder invalidations = new LongAdder();
+
+    static {
+        int perStripe = Math.max(1, MAX / STRIPES);
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe(perStripe);
+        MetricsReporter.register("users.cache", UserCache::snapshot);
+    }
+
+    private UserCache() {}
+
+    /** The user with this id, or null if there is none (or the database is unreachable). */
+    public static User get(int id) {
+        User user = cached(id);
+        if (user != null) return user;
+        try {
+            user = load("SELECT * FROM users WHERE id = ?", ps -> ps.setInt(1, id));
+        } catch (SQLException e) {
+            errors.increment();
+            return null;
+        }
+        if (user != null) put(user);
+        return user;
+    }
+
+    /**
+     * The user with this username, or null if there is none. Throws so that login can tell a
+     * missing user from an unreachable database.
+     */
+    public static User byUsername(String username) throws SQLException {
+        Integer id = UserIdCache.peek(username);
+        if (id != null) {
+            User user = cached(id);
+            if (user != null && username.equals(user.getUsername())) return user;
+        } else {
+            misses.increment();
+        }
+        User user = load("SELECT * FROM users WHERE username = ?", ps -> ps.setString(1, username));
+        if (user != null) {
+            put(user);
+            UserIdCache.put(username, user.getId());
+        }
+        return user;
+    }
+
+    /** Caches a user just written or read, e.g. at registration. */
+    public static void put(User user) {
+        Stripe s = stripe(user.getId());
+        synchronized (s) {
+            s.put(user.getId(), new Entry(user, System.currentTimeMillis() + TTL_MS));
+        }
+    }
+
+    /** Forgets a user whose row changed; the next read reloads it. */
+    public static void invalidate(int id) {
+        Stripe s = stripe(id);
+        synchronized (s) {
+            if (s.remove(id) != null) invalidations.increment();
+        }
+    }
+
+    private static User cached(int id) {
+        Stripe s = stripe(id);
+        Entry e;
+        synchronized (s) {
+            e = s.get(id); // moves it to the young end
+            if (e != null && e.expiresAt <= System.currentTimeMillis()) {
+                s.remove(id);
+                expired.increment();
+                e = null;
+            }
+        }
+        if (e == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return e.user;
+    }
+
+    private interface Binder {
+        void bind(PreparedStatement ps) throws SQLException;
+    }
+
+    private static User load(String sql, Binder binder) throws SQLException {
+        try (Connection conn = ConnectionPool.get().getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            binder.bind(ps);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) return null;
+                return new User(
+                        rs.getInt("id"),
+                        rs.getString("first_name"),
+                        rs.getString("second_name"),
+                        rs.getString("bio"),
+                        rs.getString("phone_number"),
+                        rs.getString("username"),
+                        null,
+                        rs.getTimestamp("last_seen"),
+                        rs.getBoolean("is_online"),
+                        rs.getTimestamp("registered_at"),
+                        rs.getString("password")
+                );
+            }
+        }
+    }
+
+    private static Stripe stripe(int id) {
+        int h = id * 0x9E3779B9;
+        return stripes[Math.floorMod(h ^ (h >>> 16), STRIPES)];
+    }
+
+    /** One LRU stripe; callers synchronize on it. */
+    private static final class Stripe extends LinkedHashMap<Integer, Entry> {
+        private static final long serialVersionUID = 1L;
+
+        private final int max;
+
+        Stripe(int max) {
+            super(16, 0.75f, true);
+            this.max = max;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+            if (size() <= max) return false;
+            evictions.increment();
+            return true;
+        }
+    }
+
+    public static Map<String, Object> snapshot() {
+        int size = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                size += s.size();
+            }
+        }
+        long h = hits.sum();
+        long total = h + misses.sum();
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("size", size);
+        m.put("hits", h);
+        m.put("misses", misses.sum());
+        m.put("hitRatio", total == 0 ? 0 : Math.round(h * 1000.0 / total) / 1000.0);
+        m.put("expired", expired.sum());
+        m.put("evictions", evictions.sum());
+        m.put("invalidations", invalidations.sum());
+        m.put("errors", errors.sum());
+        return m;
+    }
+}
@@ -0,0 +1,313 @@
+package telegramserver.services;
+
+import telegramserver.MetricsReporter;
+import telegramserver.ServerConfig;
+import telegramserver.db.ConnectionPool;
+import telegramserver.models.User;
+import telegramserver.search.BloomFilter;
+import telegramserver.search.TextNormalizer;
+import telegramserver.search.UserIndex;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * UserDirectory: people search (SEARCH_USER, SEARCH_ADVANCED) over an in-memory UserIndex of
+ * the users table, so type-ahead never queries the database.
+ *
+ * - load() reads the table in id-range slices on telegram.users.directory.loadThreads
+ *   threads (default: cores), each with its own connection, and builds the base index;
+ *   failures are retried every telegram.users.directory.retryMs (default 5 s). Until then
+ *   searches see only users registered since startup.
+ * - Registrations (userAdded) queue for the "users-directory" thread, which rebuilds a small
+ *   delta index of everyone registered since the base was built; once more than
+ *   telegram.users.directory.deltaMax (default 2000) are waiting, the base is rebuilt with
+ *   them. A new user is searchable a few milliseconds after registering.
+ * - A search asks base and delta and merges by score; the delta wins for an id in both.
+ * - It also keeps a Bloom filter of every registered phone (TextNormalizer.phone), so
+ *   ContactService can drop numbers that are certainly not registered without a query;
+ *   telegram.contacts.bloomBitsPerPhone bits each (default 10, about 1% false positives).
+ *   A registration's phone is added before REGISTER returns; until the load finishes every
+ *   number "might" be registered.
+ *
+ * Metrics are reported as "users.directory".
+ */
+public final class UserDirectory {
+
+    private record Indexes(UserIndex base, UserIndex delta, List<UserIndex.Person> recent) {}
+
+    private static final int LOAD_THREADS = Math.max(1, ServerConfig.getInt("telegram.users.directory.loadThreads", ServerConfig.cores()));
+    private static final int FETCH_SIZE = ServerConfig.getInt("telegram.users.directory.fetchSize", 10_000);
+    private static final int DELTA_MAX = Math.max(1, ServerConfig.getInt("telegram.users.directory.deltaMax", 2_000));
+    private static final long RETRY_MS = ServerConfig.getLong("telegram.users.directory.retryMs", 5_000);
+    private static final int BLOOM_BITS = Math.max(1, ServerConfig.getInt("telegram.contacts.bloomBitsPerPhone", 10));
+    private static final int BLOOM_MIN = 1 << 20;
+
+    private static final UserIndex EMPTY = UserIndex.build(List.of());
+
+    private static volatile Indexes indexes = new Indexes(EMPTY, EMPTY, List.of());
+    private static volatile boolean loaded;
+    private static volatile BloomFilter phones; // null until loaded
+    private static final LinkedBlockingQueue<UserIndex.Person> added = new LinkedBlockingQueue<>();
+
+    private static final LongAdder searches = new LongAdder();
+    private static final LongAdder searchMicros = new LongAdder();
+    private static final LongAdder registrations = new LongAdder();
+    private static final LongAdder rebuilds = new LongAdder();
+    private static final LongAdder loadErrors = new LongAdder();
+    private static final AtomicLong loadMillis = new AtomicLong();
+    private static final AtomicLong rebuildMillis = new AtomicLong();
+
+    static {
+        Thread t = new Thread(UserDirectory::updateLoop, "users-directory");
+        t.setDaemon(true);
+        t.start();
+        MetricsReporter.register("users.directory", UserDirectory::snapshot);
+    }
+
+    private UserDirectory() {}
+
+    /** Loads the base index in the background; MainServer calls this once at startup. */
+    public static void loadAsync() {
+        Thread t = new Thread(UserDirectory::loadUntilDone, "users-directory-loader");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** A user was registered (UserService.registerUser). */
+    public static void userAdded(User user) {
+        UserIndex.Person p = new UserIndex.Person(user.getId(), user.getUsername(), user.getFirstName(),
+                user.getSecondName(), user.getBio(), user.getPhoneNumber());
+        added.add(p);
+        // the phone is known before REGISTER returns; only the index update waits for the queue.
+        // Queued first: a filter installed after this read picks the user up from the queue.
+        addPhones(phones, List.of(p));
+        registrations.increment();
+    }
+
+    /** Users matching every word, best first, at most limit. */
+    public static List<UserIndex.Match> search(List<UserIndex.Word> words, int limit) {
+        long t0 = System.nanoTime();
+        Indexes ix = indexes;
+        List<UserIndex.Match> delta = ix.delta.search(words, limit);
+        List<UserIndex.Match> base = ix.base.search(words, limit + delta.size());
+        List<UserIndex.Match> out = new ArrayList<>(delta);
+        Set<Integer> seen = new HashSet<>();
+        for (UserIndex.Match m : delta) seen.add(m.person().id());
+        for (UserIndex.Match m : base) {
+            if (!seen.contains(m.person().id())) out.add(m);
+        }
+        out.sort(UserIndex.ORDER);
+        searches.increment();
+        searchMicros.add((System.nanoTime() - t0) / 1_000);
+        return out.size() > limit ? out.subList(0, limit) : out;
+    }
+
+    public static boolean isLoaded() {
+        return loaded;
+    }
+
+    /** False only if no user has this phone (in TextNormalizer.phone form). */
+    public static boolean mightHavePhone(String phone) {
+        BloomFilter f = phones;
+        return f == null || f.mightContain(phone);
+    }
+
+    // ---- loading ----
+
+    private static void loadUntilDone() {
+        while (true) {
+            try {
+                long t0 = System.currentTimeMillis();
+                List<UserIndex.Person> people = load();
+                synchronized (UserDirectory.class) {
+                    // registrations during the load may be in people already; the delta keeps them
+                    Indexes ix = indexes;
+                    indexes = new Indexes(UserIndex.build(people), ix.delta, ix.recent);
+                    phones = phoneFilter(people, ix.recent);
+                    addPhones(phones, added); // registered but not applied yet
+                    loaded = true;
+                }
+                loadMillis.set(System.currentTimeMillis() - t0);
+                System.out.println("👥 User directory: " + people.size() + " users indexed in " + loadMillis.get() + " ms");
+                return;
+            } catch (SQLException | RuntimeException e) {
+                loadErrors.increment();
+                System.err.println("⚠️ User directory load failed, retrying: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(RETRY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /** Every user, read in id-range slices in parallel. */
+    private static List<UserIndex.Person> load() throws SQLException {
+        int slices = LOAD_THREADS == 1 ? 1 : LOAD_THREADS * 4;
+        long span = (1L << 31) / slices;
+        AtomicInteger threadNo = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(LOAD_THREADS, r -> {
+            Thread t = new Thread(r, "users-directory-loader-" + threadNo.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<List<UserIndex.Person>>> parts = new ArrayList<>();
+            for (int i = 0; i < slices; i++) {
+                long from = i == 0 ? Integer.MIN_VALUE : i * span;  // registerUser ids are >= 0, but all are covered
+                long to = i == slices - 1 ? 1L << 31 : (i + 1) * span;
+                parts.add(pool.submit(() -> loadSlice(from, to)));
+            }
+            List<UserIndex.Person> people = new ArrayList<>();
+            for (Future<List<UserIndex.Person>> f : parts) {
+                try {
+                    people.addAll(f.get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof SQLException s) throw s;
+                    throw new IllegalStateException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("interrupted");
+                }
+            }
+            return people;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static List<UserIndex.Person> loadSlice(long from, long to) throws SQLException {
+        String sql = "SELECT id, username, first_name, second_name, bio, phone_number FROM users WHERE id >= ? AND id < ?";
+        List<UserIndex.Person> out = new ArrayList<>();
+        try (Connection conn = ConnectionPool.get().getConnection()) {
+            conn.setAutoCommit(false); // lets the driver stream with a cursor of fetchSize rows
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setLong(1, from);
+                ps.setLong(2, to);
+                ps.setFetchSize(FETCH_SIZE);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        out.add(new UserIndex.Person(rs.getInt("id"), rs.getString("username"), rs.getString("first_name"),
+                                rs.getString("second_name"), rs.getString("bio"), rs.getString("phone_number")));
+                    }
+                }
+            }
+            conn.commit();
+        }
+        return out;
+    }
+
+    // ---- registrations ----
+
+    private static void updateLoop() {
+        while (true) {
+            List<UserIndex.Person> batch = new ArrayList<>();
+            try {
+                batch.add(added.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            added.drainTo(batch);
+            try {
+                apply(batch);
+            } catch (RuntimeException e) {
+                System.err.println("⚠️ User directory update failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void apply(List<UserIndex.Person> batch) {
+        long t0 = System.currentTimeMillis();
+        boolean ready = loaded; // before indexes: once loaded, the loaded base is in place
+        Indexes ix = indexes;
+        List<UserIndex.Person> recent = new ArrayList<>(ix.recent);
+        recent.addAll(batch);
+        if (recent.size() <= DELTA_MAX || !ready) {
+            UserIndex delta = UserIndex.build(recent);
+            synchronized (UserDirectory.class) {
+                indexes = new Indexes(indexes.base, delta, recent);
+                addPhones(phones, batch);
+            }
+            return;
+        }
+        // fold the delta into a new base; users of the old delta drop out of the new base's input first
+        Set<Integer> recentIds = new HashSet<>();
+        for (UserIndex.Person p : recent) recentIds.add(p.id());
+        List<UserIndex.Person> people = new ArrayList<>(ix.base.size() + recent.size());
+        for (UserIndex.Person p : ix.base.people()) {
+            if (!recentIds.contains(p.id())) people.add(p);
+        }
+        people.addAll(recent);
+        UserIndex base = UserIndex.build(people);
+        BloomFilter filter = phones;
+        // past its expected size the false-positive rate climbs; size a new one for twice the users
+        BloomFilter fresh = filter != null && people.size() > filter.expected() ? phoneFilter(people, List.of()) : null;
+        synchronized (UserDirectory.class) {
+            indexes = new Indexes(base, EMPTY, List.of());
+            if (fresh != null) {
+                phones = fresh;
+                addPhones(fresh, added);
+            } else {
+                addPhones(phones, batch);
+            }
+        }
+        rebuilds.increment();
+        rebuildMillis.set(System.currentTimeMillis() - t0);
+    }
+
+    private static BloomFilter phoneFilter(List<UserIndex.Person> people, List<UserIndex.Person> recent) {
+        BloomFilter f = new BloomFilter(Math.max(BLOOM_MIN, 2 * (people.size() + recent.size())), BLOOM_BITS);
+        addPhones(f, people);
+        addPhones(f, recent);
+        return f;
+    }
+
+    private static void addPhones(BloomFilter f, Collection<UserIndex.Person> people) {
+        if (f == null) return;
+        for (UserIndex.Person p : people) {
+            String phone = TextNormalizer.phone(p.phone());
+            if (phone != null) f.add(phone);
+        }
+    }
+
+    public static Map<String, Object> snapshot() {
+        Indexes ix = indexes;
+        BloomFilter f = phones;
+        long n = searches.sum();
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("loaded", loaded);
+        m.put("users", ix.base.size() + ix.delta.size());
+        m.put("terms", ix.base.terms());
+        m.put("bytes", ix.base.bytes() + ix.delta.bytes());
+        m.put("delta", ix.delta.size());
+        m.put("searches", n);
+        m.put("searchAvgMicros", n == 0 ? 0 : searchMicros.sum() / n);
+        m.put("registrations", registrations.sum());
+        m.put("rebuilds", rebuilds.sum());
+        m.put("loadErrors", loadErrors.sum());
+        m.put("loadMillis", loadMillis.get());
+        m.put("rebuildMillis", rebuildMillis.get());
+        m.put("phoneFilterKeys", f == null ? 0 : f.size());
+        m.put("phoneFilterBytes", f == null ? 0 : f.bits() >> 3);
+        return m;
+    }
+}
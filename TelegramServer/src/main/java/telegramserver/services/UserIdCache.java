@@ -0,0 +1,174 @@
+package telegramserver.services;
+
+import telegramserver.MetricsReporter;
+import telegramserver.ServerConfig;
+import telegramserver.db.ConnectionPool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * UserIdCache: the one place that turns a username into a user id.
+ *
+ * - Found ids are kept for telegram.users.idCache.ttlMs (default 10 min), unknown usernames
+ *   for telegram.users.idCache.negativeTtlMs (default 5 s) so a burst of lookups for a
+ *   missing user costs one query, while a user who registers is visible right away.
+ * - At most telegram.users.idCache.max entries (default 100000); when full, an arbitrary
+ *   sixteenth of the entries is dropped.
+ * - Register/login put the id directly; anything that changes a username must call
+ *   invalidate(). Database errors are not cached.
+ * - username(id) is the reverse lookup (message senders), filled by the same loads and
+ *   bounded the same way.
+ *
+ * Metrics are reported as "users.idCache".
+ */
+public final class UserIdCache {
+
+    private static final int MAX = Math.max(16, ServerConfig.getInt("telegram.users.idCache.max", 100_000));
+    private static final long TTL_MS = ServerConfig.getLong("telegram.users.idCache.ttlMs", 600_000);
+    private static final long NEGATIVE_TTL_MS = ServerConfig.getLong("telegram.users.idCache.negativeTtlMs", 5_000);
+
+    /** id is null for a username that does not exist. */
+    private record Entry(Integer id, long expiresAt) {}
+
+    private static final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Integer, String> usernames = new ConcurrentHashMap<>();
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder negativeHits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder errors = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+
+    static {
+        MetricsReporter.register("users.idCache", UserIdCache::snapshot);
+    }
+
+    private UserIdCache() {}
+
+    /** Id of username, or null if there is no such user (or the database is unreachable). */
+    public static Integer resolve(String username) {
+        try {
+            return lookup(username);
+        } catch (SQLException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Id of username, or null if there is no such user; unlike resolve(), a database error
+     * is thrown rather than read as "no such user" (e.g. to decide a username is free).
+     */
+    public static Integer lookup(String username) throws SQLException {
+        if (username == null) return null;
+        Entry e = entries.get(username);
+        if (e != null && e.expiresAt > System.currentTimeMillis()) {
+            if (e.id != null) hits.increment();
+            else negativeHits.increment();
+            return e.id;
+        }
+        misses.increment();
+        try {
+            Integer id = load(username);
+            store(username, id);
+            return id;
+        } catch (SQLException ex) {
+            errors.increment();
+            throw ex;
+        }
+    }
+
+    /** The cached id of username, without a query; null if none is cached. */
+    public static Integer peek(String username) {
+        if (username == null) return null;
+        Entry e = entries.get(username);
+        return e != null && e.expiresAt > System.currentTimeMillis() ? e.id : null;
+    }
+
+    /** Username of a user id, or null if there is no such user (or the database is unreachable). */
+    public static String username(int id) {
+        String name = usernames.get(id);
+        if (name != null) {
+            hits.increment();
+            return name;
+        }
+        misses.increment();
+        String sql = "SELECT username FROM users WHERE id = ?";
+        try (Connection conn = ConnectionPool.get().getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, id);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) return null;
+                name = rs.getString("username");
+            }
+        } catch (SQLException ex) {
+            errors.increment();
+            return null;
+        }
+        store(name, id);
+        return name;
+    }
+
+    /** Records a known id, e.g. right after register or login. */
+    public static void put(String username, int id) {
+        store(username, id);
+    }
+
+    /** Forgets username, for renames and deletions. */
+    public static void invalidate(String username) {
+        if (username == null) return;
+        Entry e = entries.remove(username);
+        if (e != null && e.id != null) usernames.remove(e.id, username);
+    }
+
+    private static Integer load(String username) throws SQLException {
+        String sql = "SELECT id FROM users WHERE username = ?";
+        try (Connection conn = ConnectionPool.get().getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, username);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getInt("id") : null;
+            }
+        }
+    }
+
+    private static void store(String username, Integer id) {
+        if (entries.size() >= MAX) evict(entries.values().iterator());
+        long ttl = id != null ? TTL_MS : NEGATIVE_TTL_MS;
+        entries.put(username, new Entry(id, System.currentTimeMillis() + ttl));
+        if (id != null) {
+            if (usernames.size() >= MAX) evict(usernames.values().iterator());
+            usernames.put(id, username);
+        }
+    }
+
+    private static void evict(Iterator<?> it) {
+        int toDrop = MAX / 16;
+        while (toDrop-- > 0 && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    public static Map<String, Object> snapshot() {
+        long h = hits.sum() + negativeHits.sum();
+        long total = h + misses.sum();
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("size", entries.size());
+        m.put("hits", hits.sum());
+        m.put("negativeHits", negativeHits.sum());
+        m.put("misses", misses.sum());
+        m.put("hitRatio", total == 0 ? 0 : Math.round(h * 1000.0 / total) / 1000.0);
+        m.put("errors", errors.sum());
+        m.put("evictions", evictions.sum());
+        return m;
+    }
+}
@@ -1,22 +1,15 @@
 package telegramserver.services;
 
-import com.google.gson.Gson;
+import telegramserver.db.ConnectionPool;
 import telegramserver.models.User;
 
 import java.security.MessageDigest;
 import java.sql.*;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 
 public class UserService {
 
-    private static final Gson gson = new Gson();
-    private static final Map<String, User> users = new HashMap<>();
-    private static final String DB_URL = "jdbc:postgresql://localhost:5432/Telegram";
-    private static final String DB_USER = "postgres";
-    private static final String DB_PASSWORD = "AmirMahdiImani";
-
     public static class RegisterRequest {
         String username;
         String firstName;
@@ -43,13 +36,18 @@ public class UserService {
         }
     }
 
-    public static String registerUser(RegisterRequest req) {
+    public static Map<String, Object> registerUser(RegisterRequest req) {
         if (req == null || req.username == null || req.password == null) {
-            return gson.toJson(Map.of("status", "error", "message", "Invalid payload"));
+            return Map.of("status", "error", "message", "Invalid payload");
         }
 
-        if (users.containsKey(req.username)) {
-            return gson.toJson(Map.of("status", "error", "message", "User already exists"));
+        try {
+            if (UserIdCache.lookup(req.username) != null) {
+                return Map.of("status", "error", "message", "User already exists");
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return Map.of("status", "error", "message", "Database error: " + e.getMessage());
         }
 
         Timestamp now = new Timestamp(System.currentTimeMillis());
@@ -69,55 +67,47 @@ public class UserService {
                 hashedPassword
         );
 
-        users.put(req.username, user);
-        user.adduser();
+        try {
+            user.adduser();
+        } catch (SQLException e) {
+            if ("23505".equals(e.getSQLState())) { // unique_violation: registered meanwhile
+                return Map.of("status", "error", "message", "User already exists");
+            }
+            e.printStackTrace();
+            return Map.of("status", "error", "message", "Database error: " + e.getMessage());
+        }
 
-        return gson.toJson(Map.of("status", "success", "message", "User registered"));
+        // only now that the row is committed: a failed insert must not leave a phantom user behind
+        UserCache.put(user);
+        UserIdCache.put(req.username, user.getId()); // replaces a cached "no such user"
+        UserDirectory.userAdded(user);
+
+        return Map.of("status", "success", "message", "User registered");
     }
 
-    public static String loginUser(LoginRequest req) {
+    public static Map<String, Object> loginUser(LoginRequest req) {
         if (req == null || req.username == null || req.password == null) {
-            return gson.toJson(Map.of("status", "error", "message", "Invalid payload"));
+            return Map.of("status", "error", "message", "Invalid payload");
         }
 
-        User user = users.get(req.username);
-
+        User user;
+        try {
+            user = UserCache.byUsername(req.username);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return Map.of("status", "error", "message", "Database error: " + e.getMessage());
+        }
         if (user == null) {
-            try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-                String query = "SELECT * FROM users WHERE username = ?";
-                try (PreparedStatement ps = conn.prepareStatement(query)) {
-                    ps.setString(1, req.username);
-                    ResultSet rs = ps.executeQuery();
-                    if (!rs.next()) {
-                        return gson.toJson(Map.of("status", "error", "message", "User not found"));
-                    }
-                    user = new User(
-                            rs.getInt("id"),
-                            rs.getString("first_name"),
-                            rs.getString("second_name"),
-                            rs.getString("bio"),
-                            rs.getString("phone_number"),
-                            rs.getString("username"),
-                            null,
-                            rs.getTimestamp("last_seen"),
-                            rs.getBoolean("is_online"),
-                            rs.getTimestamp("registered_at"),
-                            rs.getString("password")
-                    );
-                    users.put(req.username, user);
-                }
-            } catch (SQLException e) {
-                e.printStackTrace();
-                return gson.toJson(Map.of("status", "error", "message", "Database error: " + e.getMessage()));
-            }
+            return Map.of("status", "error", "message", "User not found");
         }
 
         String inputHash = hashPassword(req.password);
         if (!inputHash.equals(user.getPassword())) {
-            return gson.toJson(Map.of("status", "error", "message", "Invalid password"));
+            return Map.of("status", "error", "message", "Invalid password");
         }
 
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+        // is_online is not served from the cached User (presence comes from ClientRegistry)
+        try (Connection conn = ConnectionPool.get().getConnection()) {
             String updateQuery = "UPDATE users SET is_online = ? WHERE username = ?";
             try (PreparedStatement ps = conn.prepareStatement(updateQuery)) {
                 ps.setBoolean(1, true);
@@ -126,6 +116,6 @@ public class UserService {
             }
         } catch (SQLException ignored) {}
 
-        return gson.toJson(Map.of("status", "success", "message", "Login successful"));
+        return Map.of("status", "success", "message", "Login successful");
     }
 }
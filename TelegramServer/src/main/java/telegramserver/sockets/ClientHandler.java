@@ -1,113 +1,132 @@
 package telegramserver.sockets;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import telegramserver.protocol.CommandProcessor;
-import telegramserver.protocol.SocketProtocol;
+import telegramserver.protocol.Frame;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Handles one client connection. All communication is newline-terminated JSON.
+ * Handles one client connection in blocking mode. All communication is newline-terminated JSON.
  *
  * - Client requests must include "id" (UUID string), "type" and "payload".
  * - Server responses echo same "id" and use types like LOGIN_OK, LOGIN_FAIL, etc.
  * - Server events (pushes) use type=EVENT and have "event" key; they don't include id.
  *
  * Notes:
- * - On successful LOGIN we register the writer in ClientRegistry so other parties can receive events.
- * - We keep the writer registration responsibility here (ClientHandler) to hold actual BufferedWriter.
+ * - Request handling and login registration live in Session so NIO mode behaves the same.
+ * - The reader thread blocks in InputStream.read() and frames lines with NdjsonFramer,
+ *   handling each one in place (no copies).
+ * - VIRTUAL mode: a second writer task (a virtual thread from the given executor) is the only
+ *   code that touches the socket output stream. It waits on the OutboundQueue, drains it and
+ *   flushes once the queue is empty; close() wakes it.
+ * - BLOCKING mode (no writer executor): one thread per connection. Requests run on the reader
+ *   one at a time (see RequestPipeline), and no writer thread is started: whichever thread
+ *   queued a frame drains the queue inline, one at a time under writeLock; the others return
+ *   at once and leave their frames to it. A stalled peer holds up at most that one thread,
+ *   until the queue's policy evicts the session and close() aborts the write.
  */
-public class ClientHandler implements Runnable {
+public class ClientHandler extends Session implements Runnable {
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
     private final Socket socket;
-    private BufferedReader reader;
-    private BufferedWriter writer;
-    private String username; // set after successful login
+    private final Executor writerExecutor; // null: write inline (BLOCKING mode)
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile OutputStream out;
 
-    public ClientHandler(Socket socket) {
+    /**
+     * writerExecutor runs the writer task (VIRTUAL mode); null is BLOCKING mode: requests run on
+     * the reader and frames are written inline by the threads that queue them.
+     */
+    public ClientHandler(Socket socket, Executor writerExecutor) {
+        super(writerExecutor == null); // BLOCKING: requests run inline on the reader too
         this.socket = socket;
+        this.writerExecutor = writerExecutor;
     }
 
     @Override
     public void run() {
         try {
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty()) continue;
-
-                try {
-                    JsonElement je = JsonParser.parseString(line);
-                    if (!je.isJsonObject()) {
-                        sendRaw(SocketProtocol.buildResponse("ERROR", UUID.randomUUID().toString(),
-                                java.util.Map.of("message", "invalid json")));
-                        continue;
-                    }
-                    JsonObject req = je.getAsJsonObject();
-
-                    // Expect "id" field in requests
-                    if (!req.has("id")) {
-                        sendRaw(SocketProtocol.buildResponse("ERROR", UUID.randomUUID().toString(),
-                                java.util.Map.of("message", "missing id in request")));
-                        continue;
-                    }
-
-                    String type = req.has("type") ? req.get("type").getAsString() : "UNKNOWN";
-
-                    // If login succeeds CommandProcessor returns LOGIN_OK and includes username in response payload.
-                    // We'll register writer in registry after sending LOGIN_OK.
-                    String response = CommandProcessor.processRequest(req, username);
-                    sendRaw(response);
+            InputStream in = socket.getInputStream();
+            out = new BufferedOutputStream(socket.getOutputStream());
+            if (writerExecutor != null) {
+                writerExecutor.execute(() -> writeLoop(out));
+            } else {
+                writeInline(); // anything queued before the stream was set
+            }
 
-                    // If login succeeded, pick username and register writer
-                    try {
-                        JsonObject respObj = JsonParser.parseString(response).getAsJsonObject();
-                        String respType = respObj.has("type") ? respObj.get("type").getAsString() : "";
-                        if ("LOGIN_OK".equalsIgnoreCase(respType)) {
-                            // username may be returned in response payload or was in the request payload
-                            if (respObj.has("username")) {
-                                this.username = respObj.get("username").getAsString();
-                            } else if (req.has("payload") && req.getAsJsonObject("payload").has("username")) {
-                                this.username = req.getAsJsonObject("payload").get("username").getAsString();
-                            }
-                            if (this.username != null) {
-                                ClientRegistry.addClient(this.username, writer);
-                            }
-                        }
-                    } catch (Exception ignore) {
-                    }
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                    sendRaw(SocketProtocol.buildResponse("ERROR", UUID.randomUUID().toString(),
-                            java.util.Map.of("message", ex.getMessage())));
-                }
+            NdjsonFramer framer = new NdjsonFramer(READ_BUFFER_SIZE, NdjsonFramer.MAX_FRAME_BYTES);
+            while (framer.readFrom(in) >= 0) {
+                framer.drain(this::handleFrame);
             }
+        } catch (NdjsonFramer.FrameTooLargeException e) {
+            rejectOversizedFrame(e);
         } catch (IOException e) {
             // connection closed or error
         } finally {
-            if (username != null) {
-                ClientRegistry.removeClient(username);
-            }
+            // let the writer send what is already queued (e.g. the last responses)
+            if (writerExecutor == null) writeInline();
             try {
-                socket.close();
-            } catch (IOException ignored) {
+                outbound.awaitDrained(2, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
             }
+            close();
         }
     }
 
-    private void sendRaw(String json) {
+    private void writeLoop(OutputStream out) {
         try {
-            writer.write(json + "\n");
-            writer.flush();
+            Frame frame;
+            while ((frame = outbound.take()) != null) {
+                frame.writeTo(out);
+                if (outbound.isEmpty()) out.flush();
+            }
         } catch (IOException e) {
             // writing failed: likely closed socket
-            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+        }
+    }
+
+    /** Drains the queue on the calling thread unless another thread is already doing so. */
+    private void writeInline() {
+        OutputStream o = out;
+        if (o == null) return; // run() drains once the stream is open
+        // re-check after unlocking: a frame queued while we held the lock found it taken
+        while (!outbound.isEmpty() && writeLock.tryLock()) {
+            try {
+                Frame frame;
+                while ((frame = outbound.poll()) != null) frame.writeTo(o);
+                o.flush();
+            } catch (IOException e) {
+                close();
+                return;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    protected void onEnqueued() {
+        // a writer task is already waiting on the queue
+        if (writerExecutor == null) writeInline();
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        onClosed();
+        try {
+            socket.close();
+        } catch (IOException ignored) {
         }
     }
 }
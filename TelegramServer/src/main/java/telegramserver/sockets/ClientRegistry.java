@@ -1,31 +1,240 @@
 package telegramserver.sockets;
 
+import telegramserver.MetricsReporter;
+import telegramserver.ServerConfig;
+import telegramserver.protocol.Frame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.Map;
-import java.io.BufferedWriter;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Registry of online clients and their writers (so server can push events).
- * Keyed by username. BufferedWriter is the socket output stream writer for that user.
+ * Registry of online clients and their sessions (so server can push events).
+ * Keyed by username. The Session hides whether the connection is blocking or NIO.
+ *
+ * - Events go out through deliver()/deliverToAll(), which also keep each user's last
+ *   telegram.session.replayMax events (default 512) from login until
+ *   telegram.session.replayMs (default 2 min) after the user's last session closed.
+ * - An event is recorded and queued for the session under its user's buffer lock, so the
+ *   buffer holds the user's events in the order the session received them. Waking the
+ *   session's writer, or evicting and closing a slow session, happens after the lock is
+ *   released: no socket I/O under it. A RESUME {lastSeq} is replayed
+ *   everything recorded after that event, then a "replay_done" event {complete, replayed};
+ *   complete is false (nothing replayed) when the buffer no longer holds lastSeq and the
+ *   client must resync.
+ * - telegram.session.replay=false turns the buffers off.
+ *
+ * Metrics are reported as "sessions.replay".
  */
 public class ClientRegistry {
-    private static final Map<String, BufferedWriter> clients = new ConcurrentHashMap<>();
+    private static final boolean REPLAY = ServerConfig.getBoolean("telegram.session.replay", true);
+    private static final int REPLAY_MAX = Math.max(1, ServerConfig.getInt("telegram.session.replayMax", 512));
+    private static final long REPLAY_MS = Math.max(1, ServerConfig.getLong("telegram.session.replayMs", 120_000));
+
+    private static final Map<String, Session> clients = new ConcurrentHashMap<>();
+    private static final Map<String, Buffer> buffers = new ConcurrentHashMap<>();
+
+    private static final LongAdder recorded = new LongAdder();
+    private static final LongAdder replays = new LongAdder();
+    private static final LongAdder replayed = new LongAdder();
+    private static final LongAdder incomplete = new LongAdder();
+    private static final LongAdder expired = new LongAdder();
+
+    static {
+        if (REPLAY) {
+            Thread t = new Thread(ClientRegistry::sweepLoop, "session-replay-sweeper");
+            t.setDaemon(true);
+            t.start();
+        }
+        MetricsReporter.register("sessions.replay", ClientRegistry::snapshot);
+    }
+
+    public static void addClient(String username, Session session) {
+        addClient(username, session, null);
+    }
 
-    public static void addClient(String username, BufferedWriter writer) {
-        clients.put(username, writer);
+    /** Registers session; if replayAfter is not null, first queues the events it missed after that seq. */
+    public static void addClient(String username, Session session, Long replayAfter) {
+        if (!REPLAY) {
+            clients.put(username, session);
+        } else {
+            List<OutboundQueue.Offer> offers = new ArrayList<>();
+            while (true) {
+                Buffer b = buffers.computeIfAbsent(username, u -> new Buffer());
+                b.lock.lock();
+                try {
+                    if (b.dead) continue;
+                    clients.put(username, session);
+                    b.offlineSince = 0;
+                    if (replayAfter != null) replay(b, session, replayAfter, offers);
+                    break;
+                } finally {
+                    b.lock.unlock();
+                }
+            }
+            for (OutboundQueue.Offer offer : offers) session.settle(offer);
+        }
         System.out.println("👤 User added to registry: " + username);
     }
 
     public static void removeClient(String username) {
         clients.remove(username);
+        disconnected(username);
         System.out.println("❌ User removed from registry: " + username);
     }
 
-    public static BufferedWriter getWriter(String username) {
+    /** Removes the mapping only if it still points at this session (a reconnect may have replaced it). */
+    public static void removeClient(String username, Session session) {
+        if (clients.remove(username, session)) {
+            disconnected(username);
+            System.out.println("❌ User removed from registry: " + username);
+        }
+    }
+
+    public static Session getSession(String username) {
         return clients.get(username);
     }
 
-    public static Map<String, BufferedWriter> getClients() {
+    public static Map<String, Session> getClients() {
         return clients;
     }
+
+    /** Pushes event to username if online, and keeps it for a later RESUME. */
+    public static void deliver(String username, Frame event) {
+        while (true) {
+            Buffer b = REPLAY ? buffers.get(username) : null;
+            if (b == null) {
+                Session s = clients.get(username);
+                if (s != null) s.push(event);
+                return;
+            }
+            Session s;
+            OutboundQueue.Offer offer = null;
+            b.lock.lock();
+            try {
+                if (b.dead) continue;
+                b.add(event);
+                recorded.increment();
+                s = clients.get(username);
+                if (s != null) offer = s.queue(event);
+            } finally {
+                b.lock.unlock();
+            }
+            if (s != null) s.settle(offer);
+            return;
+        }
+    }
+
+    /** deliver() to everyone online, and to everyone who may still RESUME. */
+    public static void deliverToAll(Frame event) {
+        for (String username : REPLAY ? buffers.keySet() : clients.keySet()) {
+            deliver(username, event);
+        }
+    }
+
+    // ---- replay ----
+
+    /** A user's recent events in delivery order: a ring of at most REPLAY_MAX frames. */
+    private static final class Buffer {
+        private Frame[] frames = new Frame[Math.min(16, REPLAY_MAX)];
+        private int head; // index of the oldest
+        private int size;
+        private long offlineSince; // 0 while the user is online
+        private boolean dead; // swept: a new Buffer takes its place
+        private final ReentrantLock lock = new ReentrantLock(); // guards all of the above
+
+        void add(Frame f) {
+            if (size == frames.length && size < REPLAY_MAX) {
+                Frame[] grown = new Frame[Math.min(REPLAY_MAX, size * 2)];
+                for (int i = 0; i < size; i++) grown[i] = frames[(head + i) % frames.length];
+                frames = grown;
+                head = 0;
+            }
+            if (size == frames.length) {
+                frames[head] = f;
+                head = (head + 1) % frames.length;
+            } else {
+                frames[(head + size++) % frames.length] = f;
+            }
+        }
+
+        /** The frames after the one with this seq, or null if it is not held any more. */
+        List<Frame> after(long seq) {
+            for (int i = size - 1; i >= 0; i--) {
+                if (frames[(head + i) % frames.length].seq() == seq) {
+                    List<Frame> out = new ArrayList<>(size - 1 - i);
+                    for (int j = i + 1; j < size; j++) out.add(frames[(head + j) % frames.length]);
+                    return out;
+                }
+            }
+            return null;
+        }
+    }
+
+    /** Queues what the session missed; the caller settles the offers after unlocking b. */
+    private static void replay(Buffer b, Session session, long after, List<OutboundQueue.Offer> offers) {
+        List<Frame> missed = b.after(after);
+        replays.increment();
+        if (missed == null) incomplete.increment();
+        else {
+            for (Frame f : missed) offers.add(session.queue(f));
+            replayed.add(missed.size());
+        }
+        // no seq: it is not one of the user's events
+        offers.add(session.queue(Frame.of("{\"type\":\"EVENT\",\"event\":\"replay_done\",\"complete\":" + (missed != null)
+                + ",\"replayed\":" + (missed == null ? 0 : missed.size()) + "}")));
+    }
+
+    private static void disconnected(String username) {
+        Buffer b = buffers.get(username);
+        if (b == null) return;
+        b.lock.lock();
+        try {
+            if (!clients.containsKey(username)) b.offlineSince = System.currentTimeMillis();
+        } finally {
+            b.lock.unlock();
+        }
+    }
+
+    private static void sweepLoop() {
+        while (true) {
+            try {
+                Thread.sleep(Math.max(1_000, REPLAY_MS / 4));
+            } catch (InterruptedException e) {
+                return;
+            }
+            long cutoff = System.currentTimeMillis() - REPLAY_MS;
+            for (Map.Entry<String, Buffer> e : buffers.entrySet()) {
+                Buffer b = e.getValue();
+                b.lock.lock();
+                try {
+                    if (b.offlineSince != 0 && b.offlineSince < cutoff && !clients.containsKey(e.getKey())) {
+                        b.dead = true;
+                        Arrays.fill(b.frames, null);
+                        buffers.remove(e.getKey(), b);
+                        expired.increment();
+                    }
+                } finally {
+                    b.lock.unlock();
+                }
+            }
+        }
+    }
+
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("online", clients.size());
+        m.put("buffers", buffers.size());
+        m.put("recorded", recorded.sum());
+        m.put("replays", replays.sum());
+        m.put("replayed", replayed.sum());
+        m.put("incomplete", incomplete.sum());
+        m.put("expired", expired.sum());
+        return m;
+    }
 }
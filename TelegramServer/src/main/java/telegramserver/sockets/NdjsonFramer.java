@@ -0,0 +1,173 @@
+package telegramserver.sockets;
+
+import telegramserver.ServerConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+
+/**
+ * Byte-level NDJSON framer shared by the blocking and NIO transports.
+ *
+ * - Bytes are read straight into one growable ByteBuffer (buffer()/readFrom()).
+ * - drain() scans only the new bytes for '\n' and hands every complete line to the
+ *   handler as a slice of that buffer: no String, no char[] copy. A trailing '\r' is dropped.
+ * - A line longer than maxFrameBytes fails with FrameTooLargeException instead of growing
+ *   the buffer without limit.
+ *
+ * Slices are only valid inside the handler call; copy them if they must outlive it.
+ * One framer per connection, used by one thread at a time.
+ */
+public final class NdjsonFramer {
+
+    /** Longest accepted request line, -Dtelegram.maxFrameBytes (default 4 MiB). */
+    public static final int MAX_FRAME_BYTES = ServerConfig.getInt("telegram.maxFrameBytes", 4 << 20);
+
+    public interface Handler {
+        void onFrame(ByteBuffer frame) throws IOException;
+    }
+
+    public static class FrameTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public FrameTooLargeException(int max) {
+            super("frame exceeds " + max + " bytes");
+        }
+    }
+
+    private final int maxFrameBytes;
+    private ByteBuffer buf;  // write mode: [0, position) holds unconsumed bytes
+    private int scanned;     // bytes before this index hold no '\n'
+
+    public NdjsonFramer(int initialCapacity, int maxFrameBytes) {
+        this.maxFrameBytes = maxFrameBytes;
+        this.buf = ByteBuffer.allocate(Math.min(initialCapacity, maxFrameBytes + 1));
+    }
+
+    /** Buffer to read into (e.g. channel.read(framer.buffer())); always has free space. */
+    public ByteBuffer buffer() {
+        if (!buf.hasRemaining()) grow();
+        return buf;
+    }
+
+    /** Reads once from a blocking stream; returns the byte count or -1 on EOF. */
+    public int readFrom(InputStream in) throws IOException {
+        ByteBuffer b = buffer();
+        int n = in.read(b.array(), b.arrayOffset() + b.position(), b.remaining());
+        if (n > 0) b.position(b.position() + n);
+        return n;
+    }
+
+    /** Hands every complete line in the buffer to the handler, then compacts. */
+    public void drain(Handler handler) throws IOException {
+        int end = buf.position();
+        int start = 0;
+        byte[] a = buf.array();
+        int base = buf.arrayOffset();
+        for (int i = scanned; i < end; i++) {
+            if (a[base + i] != '\n') continue;
+            int lineEnd = i;
+            if (lineEnd > start && a[base + lineEnd - 1] == '\r') lineEnd--;
+            if (lineEnd - start > maxFrameBytes) throw new FrameTooLargeException(maxFrameBytes);
+            ByteBuffer slice = buf.duplicate();
+            slice.limit(lineEnd).position(start);
+            handler.onFrame(slice.slice());
+            start = i + 1;
+        }
+        if (start > 0) {
+            buf.limit(end).position(start);
+            buf.compact();
+        }
+        scanned = buf.position();
+        if (scanned > maxFrameBytes) throw new FrameTooLargeException(maxFrameBytes);
+    }
+
+    private void grow() {
+        int cap = buf.capacity();
+        if (cap > maxFrameBytes) return; // drain() will reject the frame
+        ByteBuffer bigger = ByteBuffer.allocate(Math.min(cap * 2, maxFrameBytes + 1));
+        buf.flip();
+        bigger.put(buf);
+        buf = bigger;
+    }
+
+    /** True if the frame holds nothing but JSON whitespace. */
+    public static boolean isBlank(ByteBuffer frame) {
+        for (int i = frame.position(); i < frame.limit(); i++) {
+            byte b = frame.get(i);
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') return false;
+        }
+        return true;
+    }
+
+    /** Reader decoding UTF-8 straight out of a frame slice, for Gson's JsonReader. */
+    public static Reader reader(ByteBuffer frame) {
+        return new Utf8Reader(frame);
+    }
+
+    /**
+     * Minimal UTF-8 decoder over a ByteBuffer (no CharsetDecoder, no intermediate arrays).
+     * Malformed input becomes U+FFFD, like new String(bytes, UTF_8) does.
+     */
+    private static final class Utf8Reader extends Reader {
+        private static final char REPLACEMENT = '\uFFFD';
+
+        private final ByteBuffer src;
+        private int pendingLow = -1; // low surrogate left over when only one char fit
+
+        Utf8Reader(ByteBuffer src) {
+            this.src = src;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (len == 0) return 0;
+            int n = 0;
+            if (pendingLow >= 0) {
+                cbuf[off + n++] = (char) pendingLow;
+                pendingLow = -1;
+            }
+            ByteBuffer b = src;
+            while (n < len && b.hasRemaining()) {
+                int c = b.get() & 0xFF;
+                if (c < 0x80) {
+                    cbuf[off + n++] = (char) c;
+                    continue;
+                }
+                int cp;
+                int extra;
+                if ((c & 0xE0) == 0xC0) { cp = c & 0x1F; extra = 1; }
+                else if ((c & 0xF0) == 0xE0) { cp = c & 0x0F; extra = 2; }
+                else if ((c & 0xF8) == 0xF0) { cp = c & 0x07; extra = 3; }
+                else { cbuf[off + n++] = REPLACEMENT; continue; }
+
+                boolean ok = b.remaining() >= extra;
+                for (int i = 0; ok && i < extra; i++) {
+                    int cc = b.get(b.position()) & 0xFF;
+                    if ((cc & 0xC0) != 0x80) { ok = false; break; }
+                    b.get();
+                    cp = (cp << 6) | (cc & 0x3F);
+                }
+                if (!ok || cp > 0x10FFFF || (cp >= 0xD800 && cp <= 0xDFFF)
+                        || (extra == 1 && cp < 0x80) || (extra == 2 && cp < 0x800) || (extra == 3 && cp < 0x10000)) {
+                    cbuf[off + n++] = REPLACEMENT;
+                } else if (cp < 0x10000) {
+                    cbuf[off + n++] = (char) cp;
+                } else {
+                    cbuf[off + n++] = Character.highSurrogate(cp);
+                    if (n < len) {
+                        cbuf[off + n++] = Character.lowSurrogate(cp);
+                    } else {
+                        pendingLow = Character.lowSurrogate(cp);
+                    }
+                }
+            }
+            return n == 0 ? -1 : n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
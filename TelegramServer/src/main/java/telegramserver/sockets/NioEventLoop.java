@@ -0,0 +1,108 @@
+package telegramserver.sockets;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * One selector thread serving many NioSessions.
+ *
+ * - Only this thread touches the Selector and the SelectionKeys it owns.
+ * - Other threads hand work over with execute(); the selector is woken up to run it.
+ * - Complete request lines are decoded and handed to the request pipeline on the shared
+ *   decoder pool, never on this thread.
+ */
+public class NioEventLoop implements Runnable {
+    private final Selector selector;
+    private final ExecutorService decoders;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+    private Thread thread;
+
+    public NioEventLoop(ExecutorService decoders) throws IOException {
+        this.selector = Selector.open();
+        this.decoders = decoders;
+    }
+
+    public void start(String name) {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Registers an accepted channel with this loop; called from the acceptor thread. */
+    public void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NioSession(this, channel, key, decoders));
+            } catch (IOException e) {
+                try { channel.close(); } catch (IOException ignored) {}
+            }
+        });
+    }
+
+    /** Runs the task on the loop thread (immediately if already on it). */
+    public void execute(Runnable task) {
+        if (Thread.currentThread() == thread) {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                runTasks();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioSession session = (NioSession) key.attachment();
+                    if (session == null) continue;
+                    try {
+                        if (key.isValid() && key.isReadable()) session.onReadable();
+                        if (key.isValid() && key.isWritable()) session.onWritable();
+                    } catch (IOException | java.nio.channels.CancelledKeyException e) {
+                        session.close();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioSession s) s.close();
+            }
+            try { selector.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package telegramserver.sockets;
+
+import telegramserver.ServerConfig;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking transport: a few selector threads serve every connection.
+ *
+ * - The calling thread accepts connections and spreads them round-robin over the loops.
+ * - NioEventLoop threads only do socket I/O and NDJSON framing.
+ * - A small decoder pool (-Dtelegram.nio.decodeThreads, default cores; virtual threads with
+ *   -Dtelegram.nio.virtualDecoders=true on Java 21+) decodes complete lines and hands them
+ *   to each session's RequestPipeline, which runs the commands on its own executors.
+ *   Decoders never block on a command or a full window.
+ */
+public class NioServer {
+
+    public static void start(int port, int ioThreads, int decodeThreads) throws IOException {
+        AtomicInteger decoderSeq = new AtomicInteger();
+        ExecutorService decoders = ServerConfig.getBoolean("telegram.nio.virtualDecoders", false)
+                ? SocketServer.newVirtualThreadPerTaskExecutor() : null;
+        if (decoders == null) {
+            decoders = Executors.newFixedThreadPool(decodeThreads, r -> {
+                Thread t = new Thread(r, "nio-decoder-" + decoderSeq.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        NioEventLoop[] loops = new NioEventLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new NioEventLoop(decoders);
+            loops[i].start("nio-io-" + (i + 1));
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            System.out.println("🔌 NIO socket server running on port " + port
+                    + " (io threads=" + ioThreads + ", decoders=" + decodeThreads + ")");
+            int next = 0;
+            while (true) {
+                SocketChannel channel = server.accept();
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } finally {
+            for (NioEventLoop loop : loops) loop.shutdown();
+            decoders.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package telegramserver.sockets;
+
+import telegramserver.protocol.Frame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking connection served by a NioEventLoop.
+ *
+ * - Reads go straight into an NdjsonFramer on the loop thread; each complete line is copied
+ *   once into its own byte[] (it must outlive the read buffer) and queued for the decoders.
+ * - Lines are decoded and handed to the request pipeline one after another on the decoder
+ *   pool (same order as received); the requests themselves run on the pipeline's executors.
+ *   When its window is full the decoder does not wait: the line stays queued, OP_READ is
+ *   cleared so no more is read, and once a request completes the drain resumes and OP_READ
+ *   is set again after the queued lines went through.
+ * - send()/push() may be called from any thread: frames go to the session's OutboundQueue
+ *   and only the loop thread writes them to the channel.
+ */
+public class NioSession extends Session {
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ExecutorService decoders;
+
+    private final NdjsonFramer framer = new NdjsonFramer(READ_BUFFER_SIZE, NdjsonFramer.MAX_FRAME_BYTES);
+
+    private final Queue<ByteBuffer> inbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private volatile boolean readPaused; // written by the draining decoder only
+
+    private ByteBuffer writing; // view over the head frame of the outbound queue (loop thread only)
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile boolean closeWhenFlushed;
+
+    NioSession(NioEventLoop loop, SocketChannel channel, SelectionKey key, ExecutorService decoders) {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.decoders = decoders;
+    }
+
+    // -------------------- loop thread -------------------- //
+
+    void onReadable() throws IOException {
+        if (closeWhenFlushed) return;
+        int n = channel.read(framer.buffer());
+        if (n < 0) {
+            close();
+            return;
+        }
+        boolean[] gotFrame = {false};
+        try {
+            framer.drain(frame -> {
+                ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+                copy.put(frame).flip();
+                inbound.add(copy);
+                gotFrame[0] = true;
+            });
+        } catch (NdjsonFramer.FrameTooLargeException e) {
+            closeWhenFlushed = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            rejectOversizedFrame(e);
+        }
+        if (gotFrame[0]) scheduleDrain();
+    }
+
+    /** Sets OP_READ as the drain wants it, unless the session is closing. */
+    private void applyReadInterest() {
+        if (!key.isValid()) return;
+        if (readPaused || closeWhenFlushed) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        else key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    void onWritable() throws IOException {
+        flushOutbound();
+    }
+
+    private void flushOutbound() throws IOException {
+        Frame head;
+        while ((head = outbound.peek()) != null) {
+            if (writing == null) writing = head.buffer();
+            channel.write(writing);
+            if (writing.hasRemaining()) {
+                // socket buffer is full: wait for OP_WRITE
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            writing = null;
+            outbound.removeHead();
+        }
+        if (closeWhenFlushed) {
+            close();
+            return;
+        }
+        if (key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    // -------------------- decoder threads -------------------- //
+
+    private void scheduleDrain() {
+        if (!draining.compareAndSet(false, true)) return;
+        try {
+            decoders.execute(this::drainInbound);
+        } catch (RejectedExecutionException e) {
+            draining.set(false);
+            close();
+        }
+    }
+
+    private void drainInbound() {
+        boolean blocked = false;
+        try {
+            ByteBuffer frame;
+            while ((frame = inbound.peek()) != null) {
+                if (!tryHandleFrame(frame)) {
+                    blocked = true;
+                    break;
+                }
+                inbound.poll();
+            }
+            if (readPaused != blocked) {
+                readPaused = blocked;
+                loop.execute(this::applyReadInterest);
+            }
+        } finally {
+            draining.set(false);
+        }
+        if (blocked) {
+            // a request may have completed while draining was still set, and its wakeup lost
+            if (windowHasRoom()) scheduleDrain();
+        } else if (!inbound.isEmpty()) {
+            // a line may have arrived between the last peek() and clearing the flag
+            scheduleDrain();
+        }
+    }
+
+    @Override
+    protected void onWindowOpen() {
+        scheduleDrain();
+    }
+
+    // -------------------- any thread -------------------- //
+
+    @Override
+    protected void onEnqueued() {
+        if (closed.get() || !flushScheduled.compareAndSet(false, true)) return;
+        loop.execute(() -> {
+            flushScheduled.set(false);
+            try {
+                if (key.isValid()) flushOutbound();
+            } catch (IOException e) {
+                close();
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        onClosed();
+        loop.execute(() -> {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        });
+    }
+}
@@ -0,0 +1,59 @@
+package telegramserver.sockets;
+
+import telegramserver.MetricsReporter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide counters for the per-session outbound queues.
+ */
+public final class OutboundMetrics {
+    private static final AtomicLong queuedBytes = new AtomicLong();
+    private static final AtomicLong maxSessionDepth = new AtomicLong();
+    private static final AtomicLong congestedSessions = new AtomicLong();
+    private static final LongAdder framesQueued = new LongAdder();
+    private static final LongAdder framesDropped = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+
+    static {
+        MetricsReporter.register("outbound", OutboundMetrics::snapshot);
+    }
+
+    private OutboundMetrics() {}
+
+    static void queued(long size, long sessionDepth) {
+        framesQueued.increment();
+        queuedBytes.addAndGet(size);
+        maxSessionDepth.accumulateAndGet(sessionDepth, Math::max);
+    }
+
+    static void released(long size) {
+        queuedBytes.addAndGet(-size);
+    }
+
+    static void congested(boolean on) {
+        congestedSessions.addAndGet(on ? 1 : -1);
+    }
+
+    static void dropped() {
+        framesDropped.increment();
+    }
+
+    static void evicted() {
+        evictions.increment();
+    }
+
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("queuedBytes", queuedBytes.get());
+        m.put("maxSessionDepth", maxSessionDepth.get());
+        m.put("congestedSessions", congestedSessions.get());
+        m.put("framesQueued", framesQueued.sum());
+        m.put("framesDropped", framesDropped.sum());
+        m.put("evictions", evictions.sum());
+        return m;
+    }
+}
@@ -0,0 +1,196 @@
+package telegramserver.sockets;
+
+import telegramserver.ServerConfig;
+import telegramserver.protocol.Frame;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded per-session queue of encoded frames waiting to be written to the socket.
+ * Frames are immutable and may be shared with other sessions' queues.
+ *
+ * - Senders only call offer() and never touch the socket.
+ * - Exactly one writer at a time drains it (the ClientHandler writer task, the thread that
+ *   queued a frame in BLOCKING mode, or the NIO loop thread).
+ * - Depth is tracked in bytes. At highWatermark the session becomes congested and stays
+ *   so until the writer drains it below lowWatermark. While congested, droppable frames
+ *   (events) are dropped or the session is evicted, depending on the policy.
+ * - Anything that would push the queue beyond maxBytes (responses included) evicts the session.
+ */
+public final class OutboundQueue {
+
+    public enum Policy { DROP, DISCONNECT }
+
+    public enum Offer { ACCEPTED, DROPPED, EVICT }
+
+    static final long HIGH_WATERMARK = ServerConfig.getLong("telegram.outbound.highWatermark", 1L << 20);
+    static final long LOW_WATERMARK = ServerConfig.getLong("telegram.outbound.lowWatermark", 256L << 10);
+    static final long MAX_BYTES = ServerConfig.getLong("telegram.outbound.maxBytes", 8L << 20);
+    static final Policy POLICY = Policy.valueOf(
+            ServerConfig.get("telegram.outbound.policy", "drop").toUpperCase(Locale.ROOT));
+
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    private long bytes;
+    private boolean congested;
+    private boolean closed;
+
+    public Offer offer(Frame frame, boolean droppable) {
+        int size = sizeOf(frame);
+        lock.lock();
+        try {
+            if (closed) return Offer.DROPPED;
+            if (bytes + size > MAX_BYTES) return Offer.EVICT;
+            if (congested && droppable) {
+                return POLICY == Policy.DROP ? Offer.DROPPED : Offer.EVICT;
+            }
+            frames.addLast(frame);
+            bytes += size;
+            OutboundMetrics.queued(size, bytes);
+            if (!congested && bytes >= HIGH_WATERMARK) {
+                congested = true;
+                OutboundMetrics.congested(true);
+            }
+            notEmpty.signal();
+            return Offer.ACCEPTED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Head frame without removing it (NIO writer), or null. */
+    public Frame peek() {
+        lock.lock();
+        try {
+            return frames.peekFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Removes the head frame once it has been fully written (NIO writer). */
+    public void removeHead() {
+        lock.lock();
+        try {
+            Frame head = frames.pollFirst();
+            if (head != null) released(sizeOf(head));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocking writer: waits up to the timeout for the next frame.
+     * Returns null on timeout or when the queue is closed and empty.
+     */
+    public Frame poll(long timeout, TimeUnit unit) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = unit.toNanos(timeout);
+            while (frames.isEmpty()) {
+                if (closed || nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            Frame head = frames.pollFirst();
+            released(sizeOf(head));
+            return head;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Blocking writer: waits for the next frame; null once the queue is closed. */
+    public Frame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty()) {
+                if (closed) return null;
+                notEmpty.await();
+            }
+            Frame head = frames.pollFirst();
+            released(sizeOf(head));
+            return head;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Takes the head frame without waiting, or null if there is none (inline writer). */
+    public Frame poll() {
+        lock.lock();
+        try {
+            Frame head = frames.pollFirst();
+            if (head != null) released(sizeOf(head));
+            return head;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Waits until the writer has taken every queued frame (or the timeout passes). */
+    public boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = unit.toNanos(timeout);
+            while (!frames.isEmpty()) {
+                if (closed || nanos <= 0) return false;
+                nanos = drained.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return frames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long depthBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Drops everything and wakes the writer. */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            frames.clear();
+            released(bytes);
+            notEmpty.signalAll();
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int sizeOf(Frame frame) {
+        return frame.length();
+    }
+
+    private void released(long size) {
+        bytes -= size;
+        if (frames.isEmpty()) drained.signalAll();
+        OutboundMetrics.released(size);
+        if (congested && bytes <= LOW_WATERMARK) {
+            congested = false;
+            OutboundMetrics.congested(false);
+        }
+    }
+}
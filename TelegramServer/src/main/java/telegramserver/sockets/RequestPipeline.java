@@ -0,0 +1,180 @@
+package telegramserver.sockets;
+
+import telegramserver.ServerConfig;
+import telegramserver.protocol.CommandRegistry;
+import telegramserver.protocol.Request;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Runs the requests of one connection concurrently, so a slow command does not hold up
+ * the ones behind it. Responses are written as they complete; clients match them by "id".
+ *
+ * - At most -Dtelegram.pipeline.window requests (default 16) are in flight per session.
+ *   A request needs a slot before submit(): acquire() waits for one (a reader thread of the
+ *   connection's own), tryAcquire() does not, and when it finds the window full the pipeline
+ *   calls onWindowOpen once a request completes, so a shared NIO decoder never blocks here.
+ * - An inline pipeline (BLOCKING transport, or a window of 1) runs every request on the
+ *   reader, one after another: the old sequential behavior, and no pool shared between
+ *   connections for a slow database to exhaust.
+ * - A request's task returns a future and holds its slot (and its place in the ordering)
+ *   until that completes; a command waiting on I/O, e.g. SEND_MESSAGE for durability, does
+ *   so without a pool thread. Its remaining work runs on the executor it was given.
+ * - Ordering comes from the command (CommandRegistry.Ordering): KEY requests chain behind
+ *   the previous request with the same key, SESSION requests (LOGIN/REGISTER) are barriers.
+ * - INTERACTIVE commands run on a large pool (virtual threads on Java 21+), BULK commands
+ *   on a small fixed pool (-Dtelegram.pipeline.bulkThreads, default cores).
+ */
+final class RequestPipeline {
+
+    static final int WINDOW = Math.max(1, ServerConfig.getInt("telegram.pipeline.window", 16));
+
+    private static final ExecutorService interactive = interactivePool();
+    private static final ExecutorService bulk = Executors.newFixedThreadPool(
+            ServerConfig.getInt("telegram.pipeline.bulkThreads", ServerConfig.cores()), daemonThreads("bulk-worker-"));
+
+    private final Semaphore window = new Semaphore(WINDOW);
+    private final boolean inline;
+    private final Runnable onWindowOpen;
+    private volatile boolean starved; // a tryAcquire() failed since the last onWindowOpen
+
+    // guarded by this
+    private CompletableFuture<Void> barrier = CompletableFuture.completedFuture(null);
+    private final Set<CompletableFuture<Void>> sinceBarrier = new HashSet<>();
+    private final Map<Object, CompletableFuture<Void>> keyTails = new HashMap<>();
+
+    /**
+     * inline: run requests on the submitting thread, one at a time. onWindowOpen runs (on the
+     * thread that completed a request) after a failed tryAcquire().
+     */
+    RequestPipeline(boolean inline, Runnable onWindowOpen) {
+        this.inline = inline || WINDOW == 1;
+        this.onWindowOpen = onWindowOpen;
+    }
+
+    /** Waits for a slot in the window. */
+    void acquire() throws InterruptedException {
+        if (!inline) window.acquire();
+    }
+
+    /** Takes a slot if the window has one; otherwise false, and onWindowOpen runs once one frees up. */
+    boolean tryAcquire() {
+        if (inline || window.tryAcquire()) return true;
+        starved = true;
+        // a request may have completed between the two, before its release() could see starved
+        return window.tryAcquire();
+    }
+
+    boolean hasRoom() {
+        return inline || window.availablePermits() > 0;
+    }
+
+    /** Gives back a slot, for a line that turned out not to be a request, or once a request ran. */
+    void release() {
+        if (inline) return;
+        window.release();
+        if (starved) {
+            starved = false;
+            onWindowOpen.run();
+        }
+    }
+
+    /**
+     * Order key of a KEY command, or null. Evaluated by the caller before submit(), while it
+     * still owns the slot: the key reads the client's payload and may throw on a malformed one.
+     */
+    static Object orderKey(Request request) {
+        CommandRegistry.Command command = request.command();
+        return command != null && command.ordering() == CommandRegistry.Ordering.KEY ? command.orderKey(request) : null;
+    }
+
+    /**
+     * Schedules task for request according to its command's ordering, key being orderKey(request).
+     * The caller holds a slot (acquire()/tryAcquire()), which submit() takes over and releases
+     * once the future the task returned completed. The task is given the executor its deferred
+     * work should run on. It should neither throw nor fail its future; either is logged.
+     */
+    void submit(Request request, Object key, Function<Executor, CompletableFuture<?>> task) {
+        CommandRegistry.Command command = request.command();
+        ExecutorService executor = command != null && command.executorClass() == CommandRegistry.ExecutorClass.BULK
+                ? bulk : interactive;
+        if (inline || command == null) {
+            try {
+                task.apply(executor).join();
+            } catch (Throwable e) {
+                e.printStackTrace();
+            } finally {
+                release();
+            }
+            return;
+        }
+
+        Function<Void, CompletableFuture<Void>> guarded = v -> {
+            CompletableFuture<?> f;
+            try {
+                f = task.apply(executor);
+            } catch (Throwable e) {
+                // an Error too: a failed future would skip everything chained behind it
+                f = CompletableFuture.failedFuture(e);
+            }
+            return f.handle((r, e) -> {
+                if (e != null) e.printStackTrace();
+                release();
+                return null;
+            });
+        };
+
+        synchronized (this) {
+            if (command.ordering() == CommandRegistry.Ordering.SESSION) {
+                CompletableFuture<?>[] before = sinceBarrier.toArray(new CompletableFuture<?>[0]);
+                barrier = CompletableFuture.allOf(before).thenCombine(barrier, (a, b) -> (Void) null)
+                        .thenComposeAsync(guarded, executor);
+                sinceBarrier.clear();
+                keyTails.clear();
+                return;
+            }
+
+            CompletableFuture<Void> after = barrier;
+            CompletableFuture<Void> tail = key != null ? keyTails.get(key) : null;
+            if (tail != null) after = tail; // a key tail already started after the current barrier
+            CompletableFuture<Void> f = after.thenComposeAsync(guarded, executor);
+            sinceBarrier.add(f);
+            if (key != null) keyTails.put(key, f);
+
+            f.whenComplete((v, e) -> completed(key, f));
+        }
+    }
+
+    private synchronized void completed(Object key, CompletableFuture<Void> f) {
+        sinceBarrier.remove(f);
+        if (key != null) keyTails.remove(key, f);
+    }
+
+    private static ExecutorService interactivePool() {
+        ExecutorService virtual = SocketServer.newVirtualThreadPerTaskExecutor();
+        if (virtual != null) return virtual;
+        return Executors.newFixedThreadPool(
+                ServerConfig.getInt("telegram.pipeline.interactiveThreads", ServerConfig.cores() * 8),
+                daemonThreads("request-worker-"));
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger n = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,215 @@
+package telegramserver.sockets;
+
+import com.google.gson.JsonParseException;
+import telegramserver.protocol.CommandProcessor;
+import telegramserver.protocol.Frame;
+import telegramserver.protocol.Request;
+import telegramserver.protocol.RequestDecoder;
+import telegramserver.protocol.Response;
+import telegramserver.protocol.SocketProtocol;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * One logged-in (or not yet logged-in) client connection, independent of the transport.
+ *
+ * - Transports (blocking ClientHandler, NioSession) frame NDJSON lines with NdjsonFramer
+ *   and call handleFrame().
+ * - send()/push() only enqueue into the session's OutboundQueue and return immediately;
+ *   a single writer per session (owned by the transport) drains it to the socket.
+ * - ClientRegistry stores sessions by username so events can be pushed to them.
+ */
+public abstract class Session {
+    protected volatile String username; // set after successful login
+    private volatile boolean disconnected; // onClosed() ran
+    protected final OutboundQueue outbound = new OutboundQueue();
+    private final RequestPipeline pipeline;
+
+    protected Session() {
+        this(false);
+    }
+
+    /** inline: run each request on the thread that handed it in, one at a time (BLOCKING transport). */
+    protected Session(boolean inline) {
+        this.pipeline = new RequestPipeline(inline, this::onWindowOpen);
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    /** Queues a response (never dropped; evicts the session only past the hard limit). */
+    public void send(Response response) {
+        enqueue(response.encode(), false);
+    }
+
+    /**
+     * Queues a pushed event; may be dropped or evict the session when it is congested.
+     * The frame is shared with the other recipients and is never copied.
+     */
+    public void push(Frame event) {
+        enqueue(event, true);
+    }
+
+    public long outboundDepthBytes() {
+        return outbound.depthBytes();
+    }
+
+    /** Closes the underlying connection. Safe to call more than once. */
+    public abstract void close();
+
+    /** Called after a frame was queued so the transport can wake its writer. */
+    protected abstract void onEnqueued();
+
+    private void enqueue(Frame frame, boolean droppable) {
+        settle(outbound.offer(frame, droppable));
+    }
+
+    /**
+     * push() in two steps, for a caller that queues under its own lock (ClientRegistry):
+     * queue() only records the event; settle() with its result must follow once the lock is
+     * released, since it may wake a writer that writes inline or evict and close the session.
+     */
+    OutboundQueue.Offer queue(Frame event) {
+        return outbound.offer(event, true);
+    }
+
+    void settle(OutboundQueue.Offer offer) {
+        switch (offer) {
+            case ACCEPTED:
+                onEnqueued();
+                break;
+            case DROPPED:
+                OutboundMetrics.dropped();
+                break;
+            case EVICT:
+                OutboundMetrics.evicted();
+                System.out.println("🐢 Evicting slow consumer: " + (username != null ? username : "anonymous")
+                        + " (queued " + outbound.depthBytes() + " bytes)");
+                close();
+                break;
+        }
+    }
+
+    /** Called once the pipeline has room again after tryHandleFrame() returned false. */
+    protected void onWindowOpen() {}
+
+    /**
+     * Handles one complete request line (bytes without the '\n'): parse, then hand it to the
+     * session's RequestPipeline, which runs it (possibly concurrently with earlier requests),
+     * writes the response and applies its session side effects (login).
+     * The JSON is decoded straight from the bytes by RequestDecoder, without building a String first.
+     * Waits while the pipeline window is full; for a transport with its own reader thread.
+     */
+    protected void handleFrame(ByteBuffer frame) {
+        if (NdjsonFramer.isBlank(frame)) return;
+        try {
+            pipeline.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        dispatch(frame);
+    }
+
+    /**
+     * handleFrame() that never waits: false, with the frame left untouched, if the pipeline
+     * window is full. onWindowOpen() follows once it has room.
+     */
+    protected boolean tryHandleFrame(ByteBuffer frame) {
+        if (NdjsonFramer.isBlank(frame)) return true;
+        if (!pipeline.tryAcquire()) return false;
+        dispatch(frame);
+        return true;
+    }
+
+    protected boolean windowHasRoom() {
+        return pipeline.hasRoom();
+    }
+
+    /** Parses and submits a line; holds a pipeline slot, given back here unless submit() took it. */
+    private void dispatch(ByteBuffer frame) {
+        Request req = null;
+        boolean submitted = false;
+        try {
+            try {
+                req = RequestDecoder.decode(frame);
+            } catch (JsonParseException e) {
+                send(SocketProtocol.buildResponse("ERROR", UUID.randomUUID().toString(),
+                        Map.of("message", "invalid json: " + e.getMessage())));
+                return;
+            }
+
+            // Expect "id" field in requests
+            if (req.id() == null) {
+                send(SocketProtocol.buildResponse("ERROR", UUID.randomUUID().toString(),
+                        Map.of("message", "missing id in request")));
+                return;
+            }
+
+            Object key = RequestPipeline.orderKey(req);
+            Request request = req;
+            submitted = true;
+            pipeline.submit(req, key, executor -> execute(request, executor));
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            String id = req != null && req.id() != null ? req.id() : UUID.randomUUID().toString();
+            send(SocketProtocol.buildResponse("ERROR", id, Map.of("message", String.valueOf(ex.getMessage()))));
+        } finally {
+            if (!submitted) pipeline.release();
+        }
+    }
+
+    /**
+     * Runs one request and applies its session side effects once its response is ready;
+     * called by the pipeline, with the executor for the command's deferred work.
+     */
+    private CompletableFuture<Void> execute(Request req, Executor executor) {
+        return CommandProcessor.processRequest(req, username, executor).thenAccept(response -> {
+            send(response);
+
+            // A successful LOGIN/RESUME carries the username as a side effect: register the session
+            // under it (after the response, so replayed events follow RESUME_OK)
+            if (response.authenticatedAs() != null) {
+                register(response.authenticatedAs(), response.replayAfter());
+            }
+        }).exceptionally(ex -> {
+            ex.printStackTrace();
+            send(SocketProtocol.buildResponse("ERROR", req.id(), Map.of("message", String.valueOf(ex.getMessage()))));
+            return null;
+        });
+    }
+
+    /** Tells the client its line was too long; the transport closes the connection after this. */
+    protected void rejectOversizedFrame(NdjsonFramer.FrameTooLargeException e) {
+        send(SocketProtocol.buildResponse("ERROR", UUID.randomUUID().toString(),
+                Map.of("message", e.getMessage())));
+    }
+
+    /**
+     * Registers the session under user. Requests run asynchronously, so the connection may be
+     * gone by now: username and disconnected are each written before the other is read, so
+     * either onClosed() sees the username and removes the entry, or we see disconnected and do.
+     */
+    private void register(String user, Long replayAfter) {
+        this.username = user;
+        ClientRegistry.addClient(user, this, replayAfter);
+        if (disconnected) {
+            ClientRegistry.removeClient(user, this);
+        }
+    }
+
+    /** Called by the transport once the connection is gone. */
+    protected void onClosed() {
+        disconnected = true;
+        outbound.close();
+        String user = username;
+        if (user != null) {
+            ClientRegistry.removeClient(user, this);
+        }
+    }
+}
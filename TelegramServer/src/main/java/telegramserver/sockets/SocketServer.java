@@ -1,20 +1,81 @@
 package telegramserver.sockets;
 
+import telegramserver.ServerConfig;
+
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ExecutorService;
 
 /**
- * Accept loop: each TCP connection gets a ClientHandler thread.
+ * Accept loop. The transport is chosen at startup:
+ * - BLOCKING: each TCP connection gets one ClientHandler thread (default).
+ * - VIRTUAL: like BLOCKING, but each ClientHandler runs on a virtual thread (Java 21+).
+ * - NIO: a few selector threads plus a small decoder pool (see NioServer).
  */
 public class SocketServer {
+
+    public enum Mode {
+        BLOCKING, VIRTUAL, NIO;
+
+        public static Mode parse(String s) {
+            if (s == null) return BLOCKING;
+            try {
+                return Mode.valueOf(s.trim().toUpperCase(java.util.Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown transport mode '" + s + "', using BLOCKING");
+                return BLOCKING;
+            }
+        }
+    }
+
     public static void start(int port) throws IOException {
+        start(port, Mode.BLOCKING);
+    }
+
+    public static void start(int port, Mode mode) throws IOException {
+        if (mode == Mode.NIO) {
+            int ioThreads = ServerConfig.getInt("telegram.nio.ioThreads", Math.max(1, ServerConfig.cores() / 2));
+            int decoders = ServerConfig.getInt("telegram.nio.decodeThreads", ServerConfig.cores());
+            NioServer.start(port, ioThreads, decoders);
+            return;
+        }
+
+        ExecutorService virtualThreads = null;
+        if (mode == Mode.VIRTUAL) {
+            virtualThreads = newVirtualThreadPerTaskExecutor();
+            if (virtualThreads == null) {
+                System.err.println("Virtual threads need Java 21+, falling back to BLOCKING");
+            }
+        }
+
         try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("🔌 Socket server running on port " + port);
+            System.out.println("🔌 Socket server running on port " + port
+                    + (virtualThreads != null ? " (virtual threads)" : ""));
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                new Thread(new ClientHandler(clientSocket)).start();
+                if (virtualThreads != null) {
+                    virtualThreads.execute(new ClientHandler(clientSocket, virtualThreads));
+                } else {
+                    new Thread(new ClientHandler(clientSocket, null)).start();
+                }
             }
+        } finally {
+            if (virtualThreads != null) virtualThreads.shutdownNow();
+        }
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() looked up reflectively so the
+     * default Java 17 build still compiles; returns null on runtimes without it.
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) java.util.concurrent.Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
         }
     }
 }
@@ -0,0 +1,140 @@
+package telegramserver.storage;
+
+import telegramserver.ServerConfig;
+import telegramserver.db.ConnectionPool;
+import telegramserver.models.Message;
+import telegramserver.services.MessageWriter;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * MessageStore on the Postgres "messages" table.
+ *
+ * - append goes through the WAL when it is enabled (acknowledged after the local fsync),
+ *   otherwise through MessageWriter's group commit.
+ * - history is keyset pagination (chatid = ? AND id < ? ORDER BY id DESC), so with an index
+ *   on messages (chatid, id) a page costs the same at any depth. Rows are fetched in
+ *   batches of telegram.history.fetchSize (the driver only streams inside a transaction).
+ * - Reads, edits and deletes are plain statements on a pooled connection; a delete only sets
+ *   isdeleted. They see a message once it has reached the table, so an edit of a message
+ *   still queued in the WAL or the writer reports it as missing.
+ * - getAll() is one statement, joined against the (chat id, message id) pairs passed as two
+ *   arrays.
+ */
+public final class JdbcMessageStore implements MessageStore {
+
+    private static final String COLUMNS = "id,content,senderid,chatid,replyid,sentat,isdeleted,isedited";
+    private static final int FETCH_SIZE = Math.max(1, ServerConfig.getInt("telegram.history.fetchSize", 100));
+
+    @Override
+    public CompletableFuture<Void> append(Message message) {
+        MessageWal wal = MessageWal.instance();
+        if (wal != null) return wal.append(message).thenApply(seq -> null);
+        return MessageWriter.append(message);
+    }
+
+    @Override
+    public List<Message> history(int chatId, long beforeId, int limit) {
+        String sql = "SELECT " + COLUMNS + " FROM messages WHERE chatid = ? AND id < ? AND isdeleted = false"
+                + " ORDER BY id DESC LIMIT ?";
+        try (Connection conn = ConnectionPool.get().getConnection()) {
+            conn.setAutoCommit(false); // the pool restores autocommit when the connection is returned
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setFetchSize(Math.min(limit, FETCH_SIZE));
+                ps.setInt(1, chatId);
+                ps.setLong(2, beforeId);
+                ps.setInt(3, limit);
+                List<Message> out = new ArrayList<>(Math.min(limit, 256));
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) out.add(read(rs));
+                }
+                conn.commit();
+                return out;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Message get(int chatId, long messageId) {
+        String sql = "SELECT " + COLUMNS + " FROM messages WHERE chatid = ? AND id = ? AND isdeleted = false";
+        try (Connection conn = ConnectionPool.get().getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, chatId);
+            ps.setLong(2, messageId);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? read(rs) : null;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public List<Message> getAll(Map<Integer, ? extends Collection<Long>> idsByChat) {
+        List<Integer> chatIds = new ArrayList<>();
+        List<Long> messageIds = new ArrayList<>();
+        for (Map.Entry<Integer, ? extends Collection<Long>> e : idsByChat.entrySet()) {
+            for (Long messageId : e.getValue()) {
+                chatIds.add(e.getKey());
+                messageIds.add(messageId);
+            }
+        }
+        if (chatIds.isEmpty()) return List.of();
+        String sql = "SELECT " + COLUMNS + " FROM messages JOIN unnest(?::integer[], ?::bigint[]) AS k(cid, mid)"
+                + " ON chatid = k.cid AND id = k.mid WHERE isdeleted = false";
+        try (Connection conn = ConnectionPool.get().getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setArray(1, conn.createArrayOf("integer", chatIds.toArray()));
+            ps.setArray(2, conn.createArrayOf("bigint", messageIds.toArray()));
+            List<Message> out = new ArrayList<>(chatIds.size());
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) out.add(read(rs));
+            }
+            return out;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean edit(int chatId, long messageId, String newContent) {
+        String sql = "UPDATE messages SET content = ?, isedited = true WHERE chatid = ? AND id = ? AND isdeleted = false";
+        try (Connection conn = ConnectionPool.get().getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, newContent);
+            ps.setInt(2, chatId);
+            ps.setLong(3, messageId);
+            return ps.executeUpdate() > 0;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean delete(int chatId, long messageId) {
+        String sql = "UPDATE messages SET isdeleted = true WHERE chatid = ? AND id = ? AND isdeleted = false";
+        try (Connection conn = ConnectionPool.get().getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, chatId);
+            ps.setLong(2, messageId);
+            return ps.executeUpdate() > 0;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Message read(ResultSet rs) throws SQLException {
+        return new Message(rs.getLong("id"), rs.getString("content"), rs.getInt("senderid"), rs.getInt("chatid"),
+                rs.getLong("replyid"), rs.getTimestamp("sentat"), rs.getBoolean("isdeleted"), rs.getBoolean("isedited"));
+    }
+}
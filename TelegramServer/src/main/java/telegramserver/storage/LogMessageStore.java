@@ -0,0 +1,644 @@
+package telegramserver.storage;
+
+import telegramserver.MetricsReporter;
+import telegramserver.ServerConfig;
+import telegramserver.models.Message;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Embedded MessageStore: one append-only log file per chat in telegram.store.dir.
+ *
+ * - Record: [int length][int crc32c(type + body)][byte type][body]; PUT bodies are
+ *   MessageCodec payloads, EDIT is [long id][utf-8 content], DELETE is [long id].
+ * - Sparse index per chat: the id and file offset of every telegram.store.indexEvery-th PUT
+ *   (default 64). history() binary-searches it and reads whole blocks backwards, so a page
+ *   costs one or two positional reads whatever the chat size.
+ * - Edits and deletes are appended and kept in a small per-chat overlay applied on read.
+ *   When they make up telegram.store.compactRatio (0.3) of the records and at least
+ *   telegram.store.compactMinDead (256), a background thread rewrites the chat's file with
+ *   only the live messages (edits applied) and swaps it in with an atomic rename.
+ * - Appends are fsynced by one flusher thread that forces every chat written since its last
+ *   pass; the futures complete after that. -Dtelegram.store.fsync=false completes them as
+ *   soon as the write reaches the page cache.
+ * - Chats are opened on first use, by one thread while the others wait on the chat's lock; a
+ *   torn tail from a crash is cut off then.
+ * - At most telegram.store.maxOpenFiles files (default 1024, 0 = no limit) stay open: past
+ *   that the least recently used chats with nothing waiting for fsync are closed, and
+ *   reopened on their next use.
+ *
+ * Metrics are reported as "messages.store".
+ */
+public final class LogMessageStore implements MessageStore {
+
+    private static final byte PUT = 1;
+    private static final byte EDIT = 2;
+    private static final byte DELETE = 3;
+    private static final int HEADER = 9;
+
+    private static final class Chat {
+        final int id;
+        final Path path;
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final AtomicReference<FileChannel> channel = new AtomicReference<>(); // null while closed
+        volatile boolean opened;    // recovered; until then its opener holds the write lock
+        volatile long lastUse;      // System.nanoTime() of the last channel() call
+        long size;
+        long syncedSize;            // size at the last fsync, guarded by lock
+        int records;
+        int puts;
+        int dead;                   // EDIT/DELETE records and the PUTs they made obsolete
+        long[] indexIds = new long[16];
+        long[] indexPos = new long[16];
+        int indexSize;
+        final Map<Long, String> edits = new HashMap<>();
+        final Set<Long> deletes = new HashSet<>();
+        boolean compactQueued;      // guarded by lock
+
+        Chat(int id, Path path) {
+            this.id = id;
+            this.path = path;
+        }
+    }
+
+    private static final class Pending {
+        final Chat chat;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(Chat chat) {
+            this.chat = chat;
+        }
+    }
+
+    private final Path dir;
+    private final int indexEvery;
+    private final double compactRatio;
+    private final int compactMinDead;
+    private final boolean fsync;
+    private final int maxOpenFiles;
+
+    private final ConcurrentHashMap<Integer, Chat> chats = new ConcurrentHashMap<>();
+    private final AtomicInteger openFiles = new AtomicInteger();
+    private final AtomicBoolean closingIdle = new AtomicBoolean();
+    private final BlockingQueue<Pending> unflushed = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Chat> compactions = new LinkedBlockingQueue<>();
+
+    private final LongAdder appends = new LongAdder();
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushNanos = new LongAdder();
+    private final LongAdder compacted = new LongAdder();
+    private final LongAdder reclaimedBytes = new LongAdder();
+    private final LongAdder truncatedTails = new LongAdder();
+    private final LongAdder reopened = new LongAdder();
+    private final LongAdder closedIdle = new LongAdder();
+
+    public LogMessageStore(Path dir) throws IOException {
+        this.dir = dir;
+        this.indexEvery = Math.max(1, ServerConfig.getInt("telegram.store.indexEvery", 64));
+        this.compactRatio = Double.parseDouble(ServerConfig.get("telegram.store.compactRatio", "0.3"));
+        this.compactMinDead = ServerConfig.getInt("telegram.store.compactMinDead", 256);
+        this.fsync = ServerConfig.getBoolean("telegram.store.fsync", true);
+        this.maxOpenFiles = ServerConfig.getInt("telegram.store.maxOpenFiles", 1024);
+        Files.createDirectories(dir);
+
+        start("store-flusher", this::flushLoop);
+        start("store-compactor", this::compactLoop);
+        MetricsReporter.register("messages.store", this::snapshot);
+    }
+
+    // ---- MessageStore ----
+
+    @Override
+    public CompletableFuture<Void> append(Message message) {
+        byte[] body = MessageCodec.encode(message);
+        Chat c;
+        try {
+            c = chat(message.getChatid(), true);
+            c.lock.writeLock().lock();
+            try {
+                if (c.puts % indexEvery == 0) addIndex(c, message.getId(), c.size);
+                write(c, PUT, body);
+                c.puts++;
+            } finally {
+                c.lock.writeLock().unlock();
+            }
+        } catch (IOException | UncheckedIOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        appends.increment();
+        return flushed(c);
+    }
+
+    @Override
+    public List<Message> history(int chatId, long beforeId, int limit) {
+        Chat c = chat(chatId, false);
+        if (c == null || limit <= 0) return List.of();
+        reads.increment();
+        List<Message> out = new ArrayList<>(Math.min(limit, 256));
+        c.lock.readLock().lock();
+        try {
+            for (int k = lastIndexBelow(c, beforeId); k >= 0 && out.size() < limit; k--) {
+                List<Message> block = readBlock(c, k);
+                for (int i = block.size() - 1; i >= 0 && out.size() < limit; i--) {
+                    Message m = block.get(i);
+                    if (m.getId() >= beforeId || c.deletes.contains(m.getId())) continue;
+                    out.add(withEdits(c, m));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            c.lock.readLock().unlock();
+        }
+        return out;
+    }
+
+    @Override
+    public Message get(int chatId, long messageId) {
+        Chat c = chat(chatId, false);
+        if (c == null) return null;
+        reads.increment();
+        c.lock.readLock().lock();
+        try {
+            Message m = find(c, messageId);
+            return m == null ? null : withEdits(c, m);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            c.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean edit(int chatId, long messageId, String newContent) {
+        byte[] text = newContent.getBytes(StandardCharsets.UTF_8);
+        byte[] body = ByteBuffer.allocate(8 + text.length).putLong(messageId).put(text).array();
+        return change(chatId, messageId, EDIT, body);
+    }
+
+    @Override
+    public boolean delete(int chatId, long messageId) {
+        return change(chatId, messageId, DELETE, ByteBuffer.allocate(8).putLong(messageId).array());
+    }
+
+    private boolean change(int chatId, long messageId, byte type, byte[] body) {
+        Chat c = chat(chatId, false);
+        if (c == null) return false;
+        c.lock.writeLock().lock();
+        try {
+            if (find(c, messageId) == null) return false;
+            write(c, type, body);
+            apply(c, type, body, 0);
+            maybeCompact(c);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            c.lock.writeLock().unlock();
+        }
+        flushed(c).join();
+        return true;
+    }
+
+    @Override
+    public void close() {
+        for (Chat c : chats.values()) {
+            c.lock.writeLock().lock();
+            try {
+                FileChannel ch = c.channel.getAndSet(null);
+                if (ch != null) {
+                    openFiles.decrementAndGet();
+                    ch.force(false);
+                    ch.close();
+                }
+            } catch (IOException e) {
+                System.err.println("⚠️ Could not close " + c.path + ": " + e.getMessage());
+            } finally {
+                c.lock.writeLock().unlock();
+            }
+        }
+        chats.clear();
+    }
+
+    // ---- log ----
+
+    private void write(Chat c, byte type, byte[] body) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(type);
+        crc.update(body, 0, body.length);
+        ByteBuffer b = ByteBuffer.allocate(HEADER + body.length);
+        b.putInt(body.length).putInt((int) crc.getValue()).put(type).put(body).flip();
+        long pos = c.size;
+        FileChannel ch = channel(c);
+        while (b.hasRemaining()) pos += ch.write(b, pos);
+        c.size = pos; // only advanced once the whole record is written
+        c.records++;
+    }
+
+    /** Applies an EDIT or DELETE body to the chat's overlay and dead count. */
+    private static void apply(Chat c, byte type, byte[] buf, int off) {
+        long target = ByteBuffer.wrap(buf, off, 8).getLong();
+        if (type == EDIT) {
+            c.edits.put(target, new String(buf, off + 8, buf.length - off - 8, StandardCharsets.UTF_8));
+            c.dead++;
+        } else {
+            if (c.deletes.add(target)) c.dead++; // the PUT is dead from now on
+            c.dead++;
+        }
+    }
+
+    private static Message withEdits(Chat c, Message m) {
+        String text = c.edits.get(m.getId());
+        if (text == null) return m;
+        return new Message(m.getId(), text, m.getSenderId(), m.getChatid(), m.getReplyid(), m.getSentat(),
+                m.isDeleted(), true);
+    }
+
+    /** Live PUT with this id, or null. Caller holds the chat lock. */
+    private Message find(Chat c, long messageId) throws IOException {
+        if (c.deletes.contains(messageId)) return null;
+        for (int k = lastIndexBelow(c, messageId + 1); k >= 0; k--) {
+            for (Message m : readBlock(c, k)) {
+                if (m.getId() == messageId) return m;
+            }
+            if (c.indexIds[k] < messageId) break; // earlier blocks only hold smaller ids
+        }
+        return null;
+    }
+
+    /** Last sparse index entry whose first id is below bound, or -1. */
+    private static int lastIndexBelow(Chat c, long bound) {
+        int lo = 0, hi = c.indexSize - 1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (c.indexIds[mid] < bound) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private static void addIndex(Chat c, long id, long pos) {
+        if (c.indexSize == c.indexIds.length) {
+            c.indexIds = Arrays.copyOf(c.indexIds, c.indexSize * 2);
+            c.indexPos = Arrays.copyOf(c.indexPos, c.indexSize * 2);
+        }
+        c.indexIds[c.indexSize] = id;
+        c.indexPos[c.indexSize] = pos;
+        c.indexSize++;
+    }
+
+    /** The PUT records of sparse index block k, in file order. */
+    private List<Message> readBlock(Chat c, int k) throws IOException {
+        long from = c.indexPos[k];
+        long to = k + 1 < c.indexSize ? c.indexPos[k + 1] : c.size;
+        ByteBuffer b = ByteBuffer.allocate((int) (to - from));
+        FileChannel ch = channel(c);
+        while (b.hasRemaining()) {
+            if (ch.read(b, from + b.position()) < 0) throw new EOFException(c.path.toString());
+        }
+        byte[] buf = b.array();
+        List<Message> out = new ArrayList<>();
+        int p = 0;
+        while (p + HEADER <= buf.length) {
+            int len = ByteBuffer.wrap(buf, p, 4).getInt();
+            if (buf[p + 8] == PUT) out.add(MessageCodec.decode(buf, p + HEADER));
+            p += HEADER + len;
+        }
+        return out;
+    }
+
+    // ---- open / recovery ----
+
+    /**
+     * The chat, opened. The file is opened and recovered outside the map: the thread whose
+     * unopened Chat gets in holds its write lock meanwhile, so nobody else recovers the same
+     * file (recovery may truncate it) and everybody else waits on that lock.
+     */
+    private Chat chat(int chatId, boolean create) {
+        while (true) {
+            Chat c = chats.get(chatId);
+            if (c == null) {
+                Path path = dir.resolve("chat-" + chatId + ".log");
+                if (!create && !Files.exists(path)) return null;
+                Chat fresh = new Chat(chatId, path);
+                fresh.lock.writeLock().lock();
+                try {
+                    c = chats.putIfAbsent(chatId, fresh);
+                    if (c == null) {
+                        try {
+                            open(fresh);
+                        } catch (IOException | RuntimeException e) {
+                            chats.remove(chatId, fresh);
+                            throw e instanceof IOException io ? new UncheckedIOException(io) : (RuntimeException) e;
+                        }
+                        fresh.opened = true;
+                        return fresh;
+                    }
+                } finally {
+                    fresh.lock.writeLock().unlock();
+                }
+            }
+            if (c.opened) return c;
+            c.lock.readLock().lock(); // wait for its opener
+            c.lock.readLock().unlock();
+            if (c.opened) return c;
+            // its opener failed and took it out again: try ourselves
+        }
+    }
+
+    /** Recovers c from its file. Caller holds the write lock of the unpublished chat. */
+    private void open(Chat c) throws IOException {
+        Path path = c.path;
+        Files.deleteIfExists(path.resolveSibling(path.getFileName() + ".compact")); // interrupted compaction
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            recover(c, ch);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+        c.channel.set(ch);
+        c.lastUse = System.nanoTime();
+        opened(c);
+    }
+
+    private void recover(Chat c, FileChannel ch) throws IOException {
+        Path path = c.path;
+        long fileSize = ch.size();
+        long pos = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            while (pos + HEADER <= fileSize) {
+                int len = in.readInt();
+                int crcStored = in.readInt();
+                byte type = in.readByte();
+                if (len < 0 || pos + HEADER + len > fileSize) break;
+                byte[] body = new byte[len];
+                in.readFully(body);
+                CRC32C crc = new CRC32C();
+                crc.update(type);
+                crc.update(body, 0, len);
+                if ((int) crc.getValue() != crcStored) break;
+                if (type == PUT) {
+                    if (c.puts % indexEvery == 0) addIndex(c, ByteBuffer.wrap(body).getLong(), pos);
+                    c.puts++;
+                } else if (type == EDIT || type == DELETE) {
+                    apply(c, type, body, 0);
+                } else {
+                    break;
+                }
+                c.records++;
+                pos += HEADER + len;
+            }
+        } catch (EOFException ignored) {
+            // torn tail, handled below
+        }
+        if (pos < fileSize) {
+            System.err.println("⚠️ " + path + ": dropped " + (fileSize - pos) + " bytes of torn or corrupt tail");
+            ch.truncate(pos);
+            truncatedTails.increment();
+        }
+        c.size = pos;
+        c.syncedSize = pos;
+    }
+
+    /**
+     * c's channel, reopened if it was closed to stay under maxOpenFiles. Caller holds c's lock
+     * (read or write); readers racing to reopen keep the first channel and close theirs.
+     */
+    private FileChannel channel(Chat c) throws IOException {
+        c.lastUse = System.nanoTime();
+        FileChannel ch = c.channel.get();
+        if (ch != null) return ch;
+        FileChannel mine = FileChannel.open(c.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (!c.channel.compareAndSet(null, mine)) {
+            mine.close();
+            return c.channel.get();
+        }
+        reopened.increment();
+        opened(c);
+        return mine;
+    }
+
+    private void opened(Chat c) {
+        if (openFiles.incrementAndGet() > maxOpenFiles && maxOpenFiles > 0) closeIdle(c);
+    }
+
+    private record Use(Chat chat, long at) {}
+
+    /**
+     * Closes the least recently used files until 90% of maxOpenFiles are open. Skips chats
+     * that are busy (their write lock is taken) or have writes waiting for fsync, and keep,
+     * whose lock the caller may hold.
+     */
+    private void closeIdle(Chat keep) {
+        if (!closingIdle.compareAndSet(false, true)) return;
+        try {
+            List<Use> open = new ArrayList<>();
+            for (Chat c : chats.values()) {
+                if (c != keep && c.channel.get() != null) open.add(new Use(c, c.lastUse));
+            }
+            open.sort(Comparator.comparingLong(Use::at));
+            int target = maxOpenFiles - maxOpenFiles / 10;
+            for (Use u : open) {
+                if (openFiles.get() <= target) break;
+                Chat c = u.chat;
+                if (!c.lock.writeLock().tryLock()) continue;
+                try {
+                    if (fsync && c.size != c.syncedSize) continue;
+                    FileChannel ch = c.channel.getAndSet(null);
+                    if (ch == null) continue;
+                    openFiles.decrementAndGet();
+                    closedIdle.increment();
+                    ch.close();
+                } catch (IOException e) {
+                    System.err.println("⚠️ Could not close " + c.path + ": " + e.getMessage());
+                } finally {
+                    c.lock.writeLock().unlock();
+                }
+            }
+        } finally {
+            closingIdle.set(false);
+        }
+    }
+
+    // ---- flush ----
+
+    private CompletableFuture<Void> flushed(Chat c) {
+        if (!fsync) return CompletableFuture.completedFuture(null);
+        Pending p = new Pending(c);
+        unflushed.add(p);
+        return p.done;
+    }
+
+    private void flushLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(unflushed.take());
+                unflushed.drainTo(batch);
+                long start = System.nanoTime();
+                Set<Chat> dirty = new LinkedHashSet<>();
+                for (Pending p : batch) dirty.add(p.chat);
+                Map<Chat, IOException> failed = new HashMap<>();
+                for (Chat c : dirty) {
+                    c.lock.readLock().lock(); // the channel may be swapped by a compaction
+                    try {
+                        // a closed file had nothing unsynced (see closeIdle)
+                        FileChannel ch = c.channel.get();
+                        long size = c.size;
+                        if (ch != null) ch.force(false);
+                        c.syncedSize = size;
+                    } catch (IOException e) {
+                        failed.put(c, e);
+                    } finally {
+                        c.lock.readLock().unlock();
+                    }
+                }
+                flushes.increment();
+                flushNanos.add(System.nanoTime() - start);
+                for (Pending p : batch) {
+                    IOException e = failed.get(p.chat);
+                    if (e == null) p.done.complete(null);
+                    else p.done.completeExceptionally(e);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    // ---- compaction ----
+
+    /** Caller holds the write lock. */
+    private void maybeCompact(Chat c) {
+        if (c.compactQueued || c.dead < compactMinDead || c.dead < c.records * compactRatio) return;
+        c.compactQueued = true;
+        compactions.add(c);
+    }
+
+    private void compactLoop() {
+        while (true) {
+            Chat c;
+            try {
+                c = compactions.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            c.lock.writeLock().lock();
+            try {
+                compact(c);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("⚠️ Compaction of " + c.path + " failed: " + e);
+            } finally {
+                c.compactQueued = false;
+                c.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Rewrites the chat with its live messages only. The chat stays locked meanwhile, which
+     * costs one sequential copy of its file, paid at most once per compactRatio of churn.
+     */
+    private void compact(Chat c) throws IOException {
+        long before = c.size;
+        Path tmp = c.path.resolveSibling(c.path.getFileName() + ".compact");
+        Chat fresh = new Chat(c.id, c.path);
+        fresh.channel.set(FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        try {
+            for (int k = 0; k < c.indexSize; k++) {
+                for (Message m : readBlock(c, k)) {
+                    if (c.deletes.contains(m.getId())) continue;
+                    if (fresh.puts % indexEvery == 0) addIndex(fresh, m.getId(), fresh.size);
+                    write(fresh, PUT, MessageCodec.encode(withEdits(c, m)));
+                    fresh.puts++;
+                }
+            }
+            fresh.channel.get().force(true);
+        } catch (IOException | RuntimeException e) {
+            fresh.channel.get().close();
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, c.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        FileChannel old = c.channel.getAndSet(fresh.channel.get());
+        if (old != null) old.close();
+        else openFiles.incrementAndGet();
+        c.size = fresh.size;
+        c.syncedSize = fresh.size;
+        c.records = fresh.records;
+        c.puts = fresh.puts;
+        c.dead = 0;
+        c.indexIds = fresh.indexIds;
+        c.indexPos = fresh.indexPos;
+        c.indexSize = fresh.indexSize;
+        c.edits.clear();
+        c.deletes.clear();
+        compacted.increment();
+        reclaimedBytes.add(before - c.size);
+    }
+
+    // ---- misc ----
+
+    private static void start(String name, Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public Map<String, Object> snapshot() {
+        long n = flushes.sum();
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("dir", dir.toString());
+        m.put("chats", chats.size());
+        m.put("openFiles", openFiles.get());
+        m.put("reopened", reopened.sum());
+        m.put("closedIdle", closedIdle.sum());
+        m.put("appends", appends.sum());
+        m.put("reads", reads.sum());
+        m.put("flushes", n);
+        m.put("avgFlushMicros", n == 0 ? 0 : flushNanos.sum() / n / 1000);
+        m.put("compactions", compacted.sum());
+        m.put("reclaimedBytes", reclaimedBytes.sum());
+        m.put("truncatedTails", truncatedTails.sum());
+        return m;
+    }
+}
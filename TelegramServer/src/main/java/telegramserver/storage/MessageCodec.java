@@ -0,0 +1,55 @@
+package telegramserver.storage;
+
+import telegramserver.models.Message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+
+/**
+ * Binary form of a Message, shared by the WAL and the log store:
+ * [long id][senderId][chatId][long replyId][long sentAt][deleted][edited][int contentLength][utf-8 content].
+ * A null sentAt is stored as Long.MIN_VALUE, a null content as length -1.
+ */
+final class MessageCodec {
+
+    private MessageCodec() {}
+
+    static byte[] encode(Message m) {
+        byte[] content = m.getContent() == null ? null : m.getContent().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = ByteBuffer.allocate(8 + 4 + 4 + 8 + 8 + 2 + 4 + (content == null ? 0 : content.length));
+        b.putLong(m.getId());
+        b.putInt(m.getSenderId());
+        b.putInt(m.getChatid());
+        b.putLong(m.getReplyid());
+        b.putLong(m.getSentat() == null ? Long.MIN_VALUE : m.getSentat().getTime());
+        b.put((byte) (m.isDeleted() ? 1 : 0));
+        b.put((byte) (m.isIsedited() ? 1 : 0));
+        b.putInt(content == null ? -1 : content.length);
+        if (content != null) b.put(content);
+        return b.array();
+    }
+
+    static Message decode(byte[] payload) {
+        return decode(payload, 0);
+    }
+
+    /** Decodes the message starting at offset in buf. */
+    static Message decode(byte[] buf, int offset) {
+        ByteBuffer b = ByteBuffer.wrap(buf, offset, buf.length - offset);
+        long id = b.getLong();
+        int senderId = b.getInt();
+        int chatId = b.getInt();
+        long replyId = b.getLong();
+        long sentAt = b.getLong();
+        boolean deleted = b.get() != 0;
+        boolean edited = b.get() != 0;
+        int len = b.getInt();
+        String content = null;
+        if (len >= 0) {
+            content = new String(buf, b.position(), len, StandardCharsets.UTF_8);
+        }
+        return new Message(id, content, senderId, chatId, replyId,
+                sentAt == Long.MIN_VALUE ? null : new Timestamp(sentAt), deleted, edited);
+    }
+}
@@ -0,0 +1,58 @@
+package telegramserver.storage;
+
+import telegramserver.models.Message;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * MessageStore: where chat messages are kept.
+ *
+ * - JdbcMessageStore: the Postgres "messages" table (the default, -Dtelegram.store=jdbc).
+ * - LogMessageStore: an append-only log per chat on local disk, no database needed
+ *   (-Dtelegram.store=log, files in telegram.store.dir).
+ *
+ * Contract (both implementations, checked by MessageStoreContractTest):
+ * - append's future completes once the message is durable;
+ * - history is newest first, in append order; message ids are expected to grow within a chat;
+ * - deleted messages are never returned, edited ones come back with the new content and
+ *   isIsedited() set;
+ * - failures surface as unchecked exceptions.
+ */
+public interface MessageStore {
+
+    CompletableFuture<Void> append(Message message);
+
+    /** Up to limit messages of chatId with an id below beforeId, newest first. */
+    List<Message> history(int chatId, long beforeId, int limit);
+
+    /** The message, or null if it does not exist or was deleted. */
+    Message get(int chatId, long messageId);
+
+    /**
+     * get() for many messages at once (chat id → ids of messages in that chat); missing and
+     * deleted messages are left out, in no particular order. Stores with a round trip per
+     * get() override it.
+     */
+    default List<Message> getAll(Map<Integer, ? extends Collection<Long>> idsByChat) {
+        List<Message> out = new ArrayList<>();
+        for (Map.Entry<Integer, ? extends Collection<Long>> e : idsByChat.entrySet()) {
+            for (Long messageId : e.getValue()) {
+                Message m = get(e.getKey(), messageId);
+                if (m != null) out.add(m);
+            }
+        }
+        return out;
+    }
+
+    /** Replaces the content of a message; false if it does not exist or was deleted. */
+    boolean edit(int chatId, long messageId, String newContent);
+
+    /** Deletes a message; false if it does not exist or was already deleted. */
+    boolean delete(int chatId, long messageId);
+
+    default void close() {}
+}
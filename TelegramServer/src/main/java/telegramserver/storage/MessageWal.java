@@ -0,0 +1,516 @@
+package telegramserver.storage;
+
+import telegramserver.MetricsReporter;
+import telegramserver.ServerConfig;
+import telegramserver.models.Message;
+import telegramserver.services.MessageWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * MessageWal: local write-ahead log for accepted messages, so SEND_OK only waits for a local
+ * fsync and not for Postgres.
+ *
+ * - Segments are preallocated files mapped with FileChannel.map; a new one is started when
+ *   the current one is full (telegram.wal.segmentBytes, default 64 MiB).
+ * - Record: [int payloadLength][int crc32c(seq + payload)][long seq][payload]. A zero length
+ *   marks the end of the written part; a bad CRC or a gap in seq ends recovery of a segment.
+ * - append() returns a future completed once the record is forced to disk. One syncer
+ *   thread forces whatever was appended since its last pass (fsync batching), optionally
+ *   waiting telegram.wal.syncIntervalMs to collect more appends first.
+ * - One applier thread hands durable records to MessageWriter in order. After they commit
+ *   it stores the last applied seq in the "checkpoint" file and deletes every segment that
+ *   is entirely applied. On startup the records after the checkpoint are replayed the same way.
+ * - Delivery to the database is at-least-once: a crash between a commit and the checkpoint
+ *   write replays that batch.
+ *
+ * Enabled with -Dtelegram.wal.enabled=true (files in telegram.wal.dir, default data/wal).
+ * Metrics are reported as "messages.wal".
+ */
+public final class MessageWal {
+
+    private static final int HEADER = 16;
+    private static final int APPLY_BATCH = 512;
+
+    private static volatile MessageWal instance;
+
+    /** Opens the WAL and starts replay if telegram.wal.enabled is set; otherwise does nothing. */
+    public static synchronized void startFromConfig() throws IOException {
+        if (instance != null || !ServerConfig.getBoolean("telegram.wal.enabled", false)) return;
+        instance = new MessageWal(
+                Paths.get(ServerConfig.get("telegram.wal.dir", "data/wal")),
+                ServerConfig.getInt("telegram.wal.segmentBytes", 64 << 20),
+                ServerConfig.getLong("telegram.wal.syncIntervalMs", 0));
+        System.out.println("📝 Message WAL open in " + instance.dir + " (next seq " + instance.nextSeq
+                + ", " + (instance.nextSeq - 1 - instance.checkpoint) + " entries to replay)");
+    }
+
+    /** The running WAL, or null when it is disabled. */
+    public static MessageWal instance() {
+        return instance;
+    }
+
+    private static final class Segment {
+        final long firstSeq;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int end;            // bytes of valid records
+        long lastSeq;       // 0 while empty
+
+        Segment(long firstSeq, Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.firstSeq = firstSeq;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.lastSeq = firstSeq - 1;
+        }
+    }
+
+    private static final class Waiter {
+        final long seq;
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        Waiter(long seq) {
+            this.seq = seq;
+        }
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long syncIntervalMs;
+    private final Path checkpointFile;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appendedCond = lock.newCondition();
+    private final Condition durableCond = lock.newCondition();
+    private final List<Segment> segments = new ArrayList<>();     // guarded by lock, oldest first
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>(); // guarded by lock
+    private long nextSeq;                                          // guarded by lock
+    private long durableSeq;                                       // guarded by lock
+    private volatile long checkpoint;
+
+    private final LongAdder appends = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+    private final LongAdder syncNanos = new LongAdder();
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder applyRetries = new LongAdder();
+    private final LongAdder segmentsDeleted = new LongAdder();
+
+    MessageWal(Path dir, int segmentBytes, long syncIntervalMs) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = Math.max(4096, segmentBytes);
+        this.syncIntervalMs = syncIntervalMs;
+        this.checkpointFile = dir.resolve("checkpoint");
+        Files.createDirectories(dir);
+
+        checkpoint = readCheckpoint();
+        recover();
+        durableSeq = nextSeq - 1; // everything that survived recovery is on disk
+
+        start("wal-syncer", this::syncLoop);
+        start("wal-applier", this::applyLoop);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::forceActive, "wal-shutdown"));
+        MetricsReporter.register("messages.wal", this::snapshot);
+    }
+
+    // ---- append / sync ----
+
+    /** Appends msg and returns a future completed with its seq once it is durable on disk. */
+    public CompletableFuture<Long> append(Message msg) {
+        byte[] payload = MessageCodec.encode(msg);
+        Waiter w;
+        lock.lock();
+        try {
+            long seq = nextSeq++;
+            Segment seg = active();
+            int size = HEADER + payload.length;
+            if (seg == null || seg.end + size + 4 > seg.buffer.capacity()) {
+                seg = rotate(seq, size + 4);
+            }
+            write(seg, seq, payload);
+            w = new Waiter(seq);
+            waiters.addLast(w);
+            appendedCond.signal();
+        } catch (IOException e) {
+            CompletableFuture<Long> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        } finally {
+            lock.unlock();
+        }
+        appends.increment();
+        return w.future;
+    }
+
+    private void write(Segment seg, long seq, byte[] payload) {
+        CRC32C crc = new CRC32C();
+        ByteBuffer seqBytes = ByteBuffer.allocate(8).putLong(0, seq);
+        crc.update(seqBytes);
+        crc.update(payload, 0, payload.length);
+
+        MappedByteBuffer b = seg.buffer;
+        int pos = seg.end;
+        b.putInt(pos + 4, (int) crc.getValue());
+        b.putLong(pos + 8, seq);
+        b.put(pos + HEADER, payload);
+        int next = pos + HEADER + payload.length;
+        if (next + 4 <= b.capacity()) b.putInt(next, 0); // end marker over any stale bytes
+        b.putInt(pos, payload.length); // length last: a torn record reads as end/garbage, never as valid
+        seg.end = next;
+        seg.lastSeq = seq;
+    }
+
+    private Segment active() {
+        return segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    }
+
+    /** Starts a new segment at firstSeq; the previous one is forced first. Called under lock. */
+    private Segment rotate(long firstSeq, int minBytes) throws IOException {
+        Segment prev = active();
+        if (prev != null) prev.buffer.force();
+        Path path = dir.resolve(String.format("%020d.wal", firstSeq));
+        Segment seg = map(path, firstSeq, Math.max(segmentBytes, minBytes));
+        segments.add(seg);
+        return seg;
+    }
+
+    private static Segment map(Path path, long firstSeq, int size) throws IOException {
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long length = Math.max(ch.size(), size);
+        MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        return new Segment(firstSeq, path, ch, buf);
+    }
+
+    private void syncLoop() {
+        Segment syncedSeg = null;
+        int syncedEnd = 0;
+        while (true) {
+            try {
+                Segment seg;
+                int to;
+                long target;
+                lock.lock();
+                try {
+                    while (nextSeq - 1 == durableSeq) appendedCond.await();
+                    if (syncIntervalMs > 0) appendedCond.await(syncIntervalMs, TimeUnit.MILLISECONDS);
+                    seg = active();
+                    target = nextSeq - 1;
+                    to = seg.end;
+                } finally {
+                    lock.unlock();
+                }
+                int from = seg == syncedSeg ? syncedEnd : 0;
+
+                long start = System.nanoTime();
+                seg.buffer.force(from, to - from); // earlier segments were forced when rotated
+                syncedSeg = seg;
+                syncedEnd = to;
+                syncNanos.add(System.nanoTime() - start);
+                syncs.increment();
+
+                List<Waiter> done = new ArrayList<>();
+                lock.lock();
+                try {
+                    durableSeq = Math.max(durableSeq, target);
+                    while (!waiters.isEmpty() && waiters.peekFirst().seq <= durableSeq) done.add(waiters.pollFirst());
+                    durableCond.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                done.forEach(w -> w.future.complete(w.seq));
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Byte offset of record seq inside seg (linear walk, used once per segment by the applier). */
+    private static int offsetOf(Segment seg, long seq) {
+        ByteBuffer b = seg.buffer;
+        int pos = 0;
+        for (long s = seg.firstSeq; s < seq && pos + HEADER <= seg.end; s++) {
+            pos += HEADER + b.getInt(pos);
+        }
+        return pos;
+    }
+
+    private void forceActive() {
+        lock.lock();
+        try {
+            Segment seg = active();
+            if (seg != null) seg.buffer.force();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ---- apply / truncate ----
+
+    private void applyLoop() {
+        Segment seg = null;
+        int pos = 0;
+        long backoffMs = 500;
+        while (true) {
+            try {
+                long durable;
+                int end;
+                boolean isActive;
+                lock.lock();
+                try {
+                    while (durableSeq <= checkpoint) durableCond.await();
+                    durable = durableSeq;
+                    if (seg == null || (pos >= seg.end && seg != active())) {
+                        seg = segmentAfter(seg);
+                        pos = seg == null ? 0 : skipTo(seg, checkpoint + 1);
+                    }
+                    if (seg == null) continue;
+                    end = seg.end;
+                    isActive = seg == active();
+                } finally {
+                    lock.unlock();
+                }
+
+                List<Message> batch = new ArrayList<>();
+                long last = checkpoint;
+                int p = pos;
+                while (batch.size() < APPLY_BATCH && p + HEADER <= end) {
+                    int len = seg.buffer.getInt(p);
+                    long seq = seg.buffer.getLong(p + 8);
+                    if (len <= 0 || seq > durable) break;
+                    byte[] payload = new byte[len];
+                    seg.buffer.get(p + HEADER, payload);
+                    batch.add(MessageCodec.decode(payload));
+                    last = seq;
+                    p += HEADER + len;
+                }
+                if (batch.isEmpty()) {
+                    if (isActive) Thread.sleep(1); // durable data not visible in this segment yet
+                    continue;
+                }
+
+                if (!applyBatch(batch)) {
+                    applyRetries.increment();
+                    Thread.sleep(backoffMs);
+                    backoffMs = Math.min(backoffMs * 2, 30_000);
+                    continue;
+                }
+                backoffMs = 500;
+                pos = p;
+                checkpoint = last;
+                applied.add(batch.size());
+                writeCheckpoint(last);
+                truncate();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes the batch through MessageWriter. Returns false (retry later) if the database is
+     * unreachable; rows rejected for their own sake are logged and skipped.
+     */
+    private boolean applyBatch(List<Message> batch) throws InterruptedException {
+        List<CompletableFuture<Void>> futures = new ArrayList<>(batch.size());
+        for (Message m : batch) futures.add(MessageWriter.append(m));
+        boolean retry = false;
+        for (CompletableFuture<Void> f : futures) {
+            try {
+                f.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (isConnectionProblem(cause)) {
+                    retry = true;
+                } else {
+                    skipped.increment();
+                    System.err.println("⚠️ WAL entry rejected by the database, skipping: " + cause);
+                }
+            }
+        }
+        return !retry;
+    }
+
+    private static boolean isConnectionProblem(Throwable t) {
+        if (t instanceof SQLTimeoutException) return true;
+        if (t instanceof SQLException) {
+            String state = ((SQLException) t).getSQLState();
+            return state != null && state.startsWith("08");
+        }
+        return t instanceof IllegalStateException; // MessageWriter queue full
+    }
+
+    /** Segment following prev (or the oldest one). Called under lock. */
+    private Segment segmentAfter(Segment prev) {
+        if (segments.isEmpty()) return null;
+        if (prev == null) return segments.get(0);
+        int i = segments.indexOf(prev);
+        return i >= 0 && i + 1 < segments.size() ? segments.get(i + 1) : segments.get(0);
+    }
+
+    /** Offset of the first record with seq >= seq in seg. */
+    private static int skipTo(Segment seg, long seq) {
+        return seq <= seg.firstSeq ? 0 : offsetOf(seg, Math.min(seq, seg.lastSeq + 1));
+    }
+
+    /** Deletes segments whose records are all applied (never the active one). */
+    private void truncate() {
+        List<Segment> dead = new ArrayList<>();
+        lock.lock();
+        try {
+            while (segments.size() > 1 && segments.get(0).lastSeq <= checkpoint) dead.add(segments.remove(0));
+        } finally {
+            lock.unlock();
+        }
+        for (Segment s : dead) {
+            try {
+                s.channel.close();
+                Files.deleteIfExists(s.path);
+                segmentsDeleted.increment();
+            } catch (IOException e) {
+                System.err.println("⚠️ Could not delete WAL segment " + s.path + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // ---- recovery / checkpoint ----
+
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.wal")) {
+            ds.forEach(files::add);
+        }
+        files.sort(null);
+
+        long expected = -1;
+        boolean broken = false;
+        for (Path path : files) {
+            long firstSeq = Long.parseLong(path.getFileName().toString().replace(".wal", ""));
+            if (Files.size(path) < HEADER) { // created but never written (crash during rotation)
+                Files.delete(path);
+                continue;
+            }
+            if (!broken && expected >= 0 && firstSeq != expected) {
+                System.err.println("⚠️ WAL gap before " + path + ", setting it and later segments aside");
+                broken = true;
+            }
+            if (broken) { // keep for inspection, out of the way of future segment names
+                Files.move(path, path.resolveSibling(path.getFileName() + ".bad"), StandardCopyOption.REPLACE_EXISTING);
+                continue;
+            }
+            Segment seg = map(path, firstSeq, 0);
+            scan(seg);
+            if (seg.end + 4 <= seg.buffer.capacity() && seg.buffer.getInt(seg.end) != 0) {
+                System.err.println("⚠️ WAL " + path + ": dropped a torn or corrupt tail after seq " + seg.lastSeq);
+            }
+            segments.add(seg);
+            expected = seg.lastSeq + 1;
+        }
+        nextSeq = expected >= 0 ? expected : checkpoint + 1;
+        if (nextSeq <= checkpoint) nextSeq = checkpoint + 1; // all applied and truncated
+    }
+
+    /** Finds the valid prefix of a segment: stops at the end marker, a bad CRC or a seq gap. */
+    private static void scan(Segment seg) {
+        MappedByteBuffer b = seg.buffer;
+        int pos = 0;
+        long expected = seg.firstSeq;
+        while (pos + HEADER <= b.capacity()) {
+            int len = b.getInt(pos);
+            if (len <= 0 || pos + HEADER + len > b.capacity()) break;
+            int crcStored = b.getInt(pos + 4);
+            long seq = b.getLong(pos + 8);
+            if (seq != expected) break;
+            byte[] payload = new byte[len];
+            b.get(pos + HEADER, payload);
+            CRC32C crc = new CRC32C();
+            crc.update(ByteBuffer.allocate(8).putLong(0, seq));
+            crc.update(payload, 0, len);
+            if ((int) crc.getValue() != crcStored) break;
+            pos += HEADER + len;
+            expected++;
+        }
+        seg.end = pos;
+        seg.lastSeq = expected - 1;
+    }
+
+    private long readCheckpoint() throws IOException {
+        if (!Files.exists(checkpointFile)) return 0;
+        byte[] b = Files.readAllBytes(checkpointFile);
+        return b.length == 8 ? ByteBuffer.wrap(b).getLong() : 0;
+    }
+
+    private void writeCheckpoint(long seq) throws IOException {
+        Path tmp = dir.resolve("checkpoint.tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ch.write(ByteBuffer.allocate(8).putLong(0, seq));
+            ch.force(true);
+        }
+        Files.move(tmp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // ---- misc ----
+
+    private static void start(String name, Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public Map<String, Object> snapshot() {
+        long next, durable;
+        int segs;
+        lock.lock();
+        try {
+            next = nextSeq;
+            durable = durableSeq;
+            segs = segments.size();
+        } finally {
+            lock.unlock();
+        }
+        long n = syncs.sum();
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("appends", appends.sum());
+        m.put("lastSeq", next - 1);
+        m.put("durableSeq", durable);
+        m.put("checkpoint", checkpoint);
+        m.put("unapplied", durable - checkpoint);
+        m.put("segments", segs);
+        m.put("segmentsDeleted", segmentsDeleted.sum());
+        m.put("syncs", n);
+        m.put("avgSyncMicros", n == 0 ? 0 : syncNanos.sum() / n / 1000);
+        m.put("applied", applied.sum());
+        m.put("skipped", skipped.sum());
+        m.put("applyRetries", applyRetries.sum());
+        return m;
+    }
+}
@@ -0,0 +1,41 @@
+package telegramserver.storage;
+
+import org.junit.jupiter.api.BeforeAll;
+import telegramserver.services.IdGenerator;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Runs against the database in -Dtelegram.db.url (skipped without it), e.g.
+ * mvn test -Dtelegram.db.url=jdbc:postgresql://localhost:5432/Telegram. Rows are written
+ * with a random chat id from 2,000,000,000 up and fresh message ids, and left in place.
+ */
+class JdbcMessageStoreTest extends MessageStoreContractTest {
+
+    @BeforeAll
+    static void requireDatabase() {
+        assumeTrue(System.getProperty("telegram.db.url") != null, "set -Dtelegram.db.url to run against a database");
+    }
+
+    @Override
+    MessageStore open() {
+        return new JdbcMessageStore();
+    }
+
+    @Override
+    MessageStore reopen(MessageStore store) {
+        return null;
+    }
+
+    @Override
+    int chat() {
+        return 2_000_000_000 + ThreadLocalRandom.current().nextInt(100_000_000);
+    }
+
+    @Override
+    long base() {
+        return IdGenerator.next();
+    }
+}
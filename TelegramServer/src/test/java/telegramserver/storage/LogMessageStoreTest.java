@@ -0,0 +1,32 @@
+package telegramserver.storage;
+
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+class LogMessageStoreTest extends MessageStoreContractTest {
+
+    @TempDir
+    Path dir;
+
+    @Override
+    MessageStore open() throws Exception {
+        return new LogMessageStore(dir);
+    }
+
+    @Override
+    MessageStore reopen(MessageStore store) throws Exception {
+        store.close();
+        return new LogMessageStore(dir);
+    }
+
+    @Override
+    int chat() {
+        return 1_000;
+    }
+
+    @Override
+    long base() {
+        return 0;
+    }
+}
@@ -0,0 +1,135 @@
+package telegramserver.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import telegramserver.models.Message;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The MessageStore contract, run against each implementation by a subclass: paging order,
+ * get/getAll, edit and delete, and the same after reopening for a store with its own files.
+ *
+ * Every test starts with messages 1..300 appended to chat(); message n has id base() + n,
+ * so a store that keeps rows between runs (the database) can use fresh ids and chats.
+ */
+abstract class MessageStoreContractTest {
+
+    static final int PAGE = 50;
+
+    MessageStore store;
+    int chat;
+    long base;
+
+    /** A store to test; its chat() must hold nothing yet. */
+    abstract MessageStore open() throws Exception;
+
+    /** The same store closed and opened again, or null if it keeps no state of its own. */
+    abstract MessageStore reopen(MessageStore store) throws Exception;
+
+    abstract int chat();
+
+    abstract long base();
+
+    @BeforeEach
+    void appendMessages() throws Exception {
+        store = open();
+        chat = chat();
+        base = base();
+        List<CompletableFuture<Void>> acks = new ArrayList<>();
+        for (int n = 1; n <= 300; n++) acks.add(store.append(message(n, "m" + n)));
+        CompletableFuture.allOf(acks.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    @AfterEach
+    void close() {
+        if (store != null) store.close();
+    }
+
+    @Test
+    void historyPagesNewestFirst() {
+        assertEquals(range(300, 251), ids(store.history(chat, Long.MAX_VALUE, PAGE)));
+        assertEquals(range(250, 201), ids(store.history(chat, base + 251, PAGE)));
+        assertEquals(range(3, 1), ids(store.history(chat, base + 4, PAGE)));
+    }
+
+    @Test
+    void historyBeforeTheFirstMessageOrOfAnUnknownChatIsEmpty() {
+        assertTrue(store.history(chat, base + 1, PAGE).isEmpty());
+        assertTrue(store.history(chat - 1, Long.MAX_VALUE, PAGE).isEmpty());
+    }
+
+    @Test
+    void getReturnsTheMessageOrNull() {
+        Message m = store.get(chat, base + 7);
+        assertNotNull(m);
+        assertEquals("m7", m.getContent());
+        assertEquals(chat, m.getChatid());
+        assertNull(store.get(chat, base + 9_999));
+    }
+
+    @Test
+    void getAllLeavesOutMissingMessages() {
+        Map<Integer, List<Long>> ids = new LinkedHashMap<>();
+        ids.put(chat, List.of(base + 42, base + 7, base + 9_999));
+        ids.put(chat - 1, List.of(base + 42));
+        List<Long> found = ids(store.getAll(ids));
+        found.sort(null);
+        assertEquals(List.of(7L, 42L), found);
+    }
+
+    @Test
+    void editAndDelete() throws Exception {
+        assertTrue(store.edit(chat, base + 7, "edited"));
+        assertTrue(store.delete(chat, base + 8));
+        assertFalse(store.delete(chat, base + 8), "second delete");
+        assertFalse(store.edit(chat, base + 8, "x"), "edit of a deleted message");
+        assertFalse(store.edit(chat, base + 9_999, "x"), "edit of a missing message");
+        verifyChanges();
+
+        MessageStore reopened = reopen(store);
+        if (reopened == null) return;
+        store = reopened;
+        verifyChanges();
+        assertEquals(range(300, 251), ids(store.history(chat, Long.MAX_VALUE, PAGE)));
+    }
+
+    private void verifyChanges() {
+        Message edited = store.get(chat, base + 7);
+        assertNotNull(edited);
+        assertEquals("edited", edited.getContent());
+        assertTrue(edited.isIsedited());
+        assertNull(store.get(chat, base + 8), "deleted message");
+        List<Long> page = ids(store.history(chat, base + 10, PAGE));
+        assertEquals(List.of(9L, 7L, 6L, 5L, 4L, 3L, 2L, 1L), page, "page around the deleted message");
+    }
+
+    private Message message(int n, String text) {
+        return new Message(base + n, text, 1, chat, 0, new Timestamp(System.currentTimeMillis()), false, false);
+    }
+
+    /** Message numbers (id - base) of a page. */
+    private List<Long> ids(List<Message> messages) {
+        List<Long> ids = new ArrayList<>(messages.size());
+        for (Message m : messages) ids.add(m.getId() - base);
+        return ids;
+    }
+
+    private static List<Long> range(long from, long to) {
+        List<Long> expected = new ArrayList<>();
+        for (long n = from; n >= to; n--) expected.add(n);
+        return expected;
+    }
+}
@@ -0,0 +1,102 @@
+package telegramserver.tools;
+
+import com.google.gson.Gson;
+import telegramserver.protocol.Frame;
+import telegramserver.protocol.SocketProtocol;
+import telegramserver.sockets.OutboundQueue;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocation per fan-out of one chat event, old path vs serialize-once frames.
+ *
+ * - before: every recipient gets eventJson + "\n" written through its own
+ *   BufferedWriter/OutputStreamWriter (string concat + UTF-8 encode per recipient).
+ * - after:  one Frame from SocketProtocol.buildEvent is offered to every recipient's
+ *   OutboundQueue and drained by writing the shared bytes.
+ *
+ * Sockets are replaced by a discarding OutputStream so only the server-side work is measured.
+ *
+ * Usage (after mvn test-compile):
+ *   java -cp target/classes:target/test-classes:gson.jar telegramserver.tools.FanoutBenchmark [rounds]
+ */
+public final class FanoutBenchmark {
+
+    private static final OutputStream SINK = OutputStream.nullOutputStream();
+    private static final Gson gson = new Gson();
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+
+        Map<String, Object> body = Map.of(
+                "chatId", 42,
+                "msg", Map.of("id", "M1700000000000", "from", "ali", "ts", 1700000000L,
+                        "text", "سلام! this is a typical short chat message with a bit of text in it."));
+
+        System.out.printf("%-10s %20s %20s %8s%n", "recipients", "before (B/fan-out)", "after (B/fan-out)", "ratio");
+        for (int recipients : new int[]{10, 1_000, 100_000}) {
+            // a writer holds ~24 KB of buffers, so at most 1k distinct ones are cycled
+            BufferedWriter[] writers = new BufferedWriter[Math.min(recipients, 1_000)];
+            for (int i = 0; i < writers.length; i++) {
+                writers[i] = new BufferedWriter(new OutputStreamWriter(SINK, StandardCharsets.UTF_8));
+            }
+            OutboundQueue[] queues = new OutboundQueue[recipients];
+            for (int i = 0; i < recipients; i++) {
+                queues[i] = new OutboundQueue();
+            }
+            BufferedOutputStream out = new BufferedOutputStream(SINK);
+
+            // warm up both paths
+            for (int r = 0; r < 5; r++) {
+                before(body, writers, recipients);
+                after(body, queues, out);
+            }
+
+            long beforeBytes = 0, afterBytes = 0;
+            for (int r = 0; r < rounds; r++) {
+                long a0 = mx.getThreadAllocatedBytes(tid);
+                before(body, writers, recipients);
+                long a1 = mx.getThreadAllocatedBytes(tid);
+                after(body, queues, out);
+                long a2 = mx.getThreadAllocatedBytes(tid);
+                beforeBytes += a1 - a0;
+                afterBytes += a2 - a1;
+            }
+            long b = beforeBytes / rounds, a = afterBytes / rounds;
+            System.out.printf("%-10d %20d %20d %7.1fx%n", recipients, b, a, a == 0 ? 0.0 : (double) b / a);
+        }
+    }
+
+    /** Old broadcastToChatMembers: one String + encode per recipient. */
+    private static void before(Map<String, Object> body, BufferedWriter[] writers, int recipients) throws IOException {
+        Map<String, Object> event = new HashMap<>(body);
+        event.put("type", "EVENT");
+        event.put("event", "message_new");
+        String eventJson = gson.toJson(event);
+        for (int i = 0; i < recipients; i++) {
+            BufferedWriter w = writers[i % writers.length];
+            w.write(eventJson + "\n");
+            w.flush();
+        }
+    }
+
+    /** New path: serialize once, share the frame, single writer drains each queue. */
+    private static void after(Map<String, Object> body, OutboundQueue[] queues, OutputStream out) throws Exception {
+        Frame event = SocketProtocol.buildEvent("message_new", body);
+        for (OutboundQueue q : queues) {
+            q.offer(event, true);
+        }
+        for (OutboundQueue q : queues) {
+            Frame f;
+            while ((f = q.poll(0, TimeUnit.MILLISECONDS)) != null) f.writeTo(out);
+            out.flush();
+        }
+    }
+}
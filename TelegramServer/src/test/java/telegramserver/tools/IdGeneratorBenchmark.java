@@ -0,0 +1,58 @@
+package telegramserver.tools;
+
+import telegramserver.services.IdGenerator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * IdGenerator throughput across threads, plus the two properties callers rely on:
+ *
+ * - every id is unique (all ids of all threads are sorted and compared);
+ * - within a thread ids only go up.
+ *
+ * Usage (after mvn test-compile):
+ *   java -cp target/classes:target/test-classes:gson.jar telegramserver.tools.IdGeneratorBenchmark [idsPerThread] [threads]
+ */
+public final class IdGeneratorBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int perThread = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        long[][] ids = new long[threads][perThread];
+        boolean[] ordered = new boolean[threads];
+        List<Thread> workers = new ArrayList<>();
+        long t0 = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            long[] mine = ids[t];
+            int index = t;
+            Thread w = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) mine[i] = IdGenerator.next();
+                boolean up = true;
+                for (int i = 1; i < perThread && up; i++) up = mine[i] > mine[i - 1];
+                ordered[index] = up;
+            });
+            workers.add(w);
+            w.start();
+        }
+        for (Thread w : workers) w.join();
+        long nanos = System.nanoTime() - t0;
+
+        long[] all = new long[threads * perThread];
+        for (int t = 0; t < threads; t++) System.arraycopy(ids[t], 0, all, t * perThread, perThread);
+        Arrays.sort(all);
+        long duplicates = 0;
+        for (int i = 1; i < all.length; i++) if (all[i] == all[i - 1]) duplicates++;
+        boolean allOrdered = true;
+        for (boolean o : ordered) allOrdered &= o;
+
+        long last = all[all.length - 1];
+        System.out.printf("ids:     %,d over %d threads, %,.0f ids/s%n", all.length, threads, all.length / (nanos / 1e9));
+        System.out.printf("checks:  %d duplicates, per-thread order %s%n", duplicates, allOrdered ? "ok" : "BROKEN");
+        System.out.printf("last id: %d (time %d ms, %d ms ahead of the clock)%n",
+                last, IdGenerator.timestampMillis(last), IdGenerator.timestampMillis(last) - System.currentTimeMillis());
+        if (duplicates > 0 || !allOrdered) System.exit(1);
+    }
+}
@@ -0,0 +1,221 @@
+package telegramserver.tools;
+
+import telegramserver.search.MessageIndex;
+import telegramserver.search.TextNormalizer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks MessageIndex against a brute-force scan, then measures it.
+ *
+ * - contract: 20,000 messages in 20 chats with small segments (many flushes and merges),
+ *   10% edited and 5% deleted; 300 queries (Persian words written with Arabic letters and
+ *   ZWNJ included) must return exactly the messages containing every term, in ORDER, and
+ *   the same when paged 7 at a time and after reopening the directory;
+ * - index: messages/s from add() to applied, then the time until segments are written and
+ *   merged down to the default telegram.search.maxSegments;
+ * - query: latency of one- and two-word queries over 50 chats of the big index.
+ *
+ * Texts are synthetic, Zipf-distributed words from a mixed Persian/Latin vocabulary.
+ *
+ * Usage (after mvn test-compile):
+ *   java -cp target/classes:target/test-classes:gson.jar telegramserver.tools.MessageSearchBenchmark [messages] [chats]
+ */
+public final class MessageSearchBenchmark {
+
+    private static final int VOCABULARY = 20_000;
+    private static final String PERSIAN = "ابپتثجچحخدذرزژسشصضطظعغفقکگلمنوهی";
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int chats = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        String[] words = vocabulary(new Random(1));
+
+        contract(words);
+        System.out.println("contract: ok");
+
+        MessageIndex index = new MessageIndex(Files.createTempDirectory("search-bench"));
+        index(index, words, messages, chats);
+        query(index, words, chats, 2_000);
+        System.out.println("index:   " + index.snapshot());
+        System.exit(0);
+    }
+
+    // ---- contract ----
+
+    private static void contract(String[] words) throws IOException {
+        System.setProperty("telegram.search.flushDocs", "1000");
+        System.setProperty("telegram.search.maxSegments", "4");
+        Path dir = Files.createTempDirectory("search-contract");
+        MessageIndex index = new MessageIndex(dir);
+        Random rnd = new Random(2);
+        Map<Long, String> texts = new HashMap<>();
+        Map<Long, Integer> chatOf = new HashMap<>();
+        long id = 1_000;
+        for (int i = 0; i < 20_000; i++) {
+            id += 1 + rnd.nextInt(3);
+            int chat = 1 + rnd.nextInt(20);
+            String text = text(words, rnd);
+            texts.put(id, text);
+            chatOf.put(id, chat);
+            index.add(chat, id, text);
+        }
+        List<Long> all = new ArrayList<>(texts.keySet());
+        for (int i = 0; i < 2_000; i++) {
+            long target = all.get(rnd.nextInt(all.size()));
+            if (!texts.containsKey(target)) continue;
+            String text = text(words, rnd);
+            index.edit(chatOf.get(target), target, texts.put(target, text), text);
+        }
+        for (int i = 0; i < 1_000; i++) {
+            long target = all.get(rnd.nextInt(all.size()));
+            String old = texts.remove(target);
+            if (old != null) index.delete(chatOf.get(target), target, old);
+        }
+        check(index.awaitIndexed(30_000), "changes applied");
+        quiesce(index, 4);
+        check((long) index.snapshot().get("merges") > 0, "segments were merged");
+
+        List<Integer> scope = new ArrayList<>();
+        for (int c = 1; c <= 20; c++) if (c % 5 != 0) scope.add(c); // some chats outside the scope
+        List<String> queries = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            String q = words[zipf(rnd, 2_000)];
+            if (i % 2 == 0) q += " " + words[zipf(rnd, 200)];
+            if (i % 3 == 0) q = q.replace('ی', 'ي').replace('ک', 'ك');
+            if (i % 7 == 0 && q.length() > 2) q = q.charAt(0) + "‌" + q.substring(1);
+            queries.add(q);
+        }
+        Map<String, List<MessageIndex.Hit>> before = new HashMap<>();
+        for (String q : queries) {
+            List<MessageIndex.Hit> hits = index.search(scope, q, null, Integer.MAX_VALUE);
+            Set<Long> expected = bruteForce(texts, chatOf, new HashSet<>(scope), q);
+            Set<Long> got = new HashSet<>();
+            for (MessageIndex.Hit h : hits) got.add(h.messageId());
+            check(got.equals(expected) && got.size() == hits.size(), "hits of '" + q + "': " + got.size() + " vs " + expected.size());
+            for (int i = 1; i < hits.size(); i++) check(MessageIndex.ORDER.compare(hits.get(i - 1), hits.get(i)) < 0, "order");
+            List<MessageIndex.Hit> paged = new ArrayList<>();
+            MessageIndex.Hit after = null;
+            while (true) {
+                List<MessageIndex.Hit> page = index.search(scope, q, after, 7);
+                paged.addAll(page);
+                if (page.size() < 7) break;
+                after = page.get(page.size() - 1);
+            }
+            check(paged.equals(hits), "paging of '" + q + "'");
+            before.put(q, hits);
+        }
+
+        MessageIndex reopened = new MessageIndex(dir);
+        for (String q : queries) {
+            check(reopened.search(scope, q, null, Integer.MAX_VALUE).equals(before.get(q)), "after reopen: '" + q + "'");
+        }
+        System.clearProperty("telegram.search.flushDocs");
+        System.clearProperty("telegram.search.maxSegments");
+    }
+
+    private static Set<Long> bruteForce(Map<Long, String> texts, Map<Long, Integer> chatOf, Set<Integer> scope, String q) {
+        List<String> terms = TextNormalizer.terms(q);
+        Set<Long> out = new HashSet<>();
+        for (Map.Entry<Long, String> e : texts.entrySet()) {
+            if (scope.contains(chatOf.get(e.getKey())) && TextNormalizer.terms(e.getValue()).containsAll(terms)) out.add(e.getKey());
+        }
+        return out;
+    }
+
+    // ---- measurements ----
+
+    private static void index(MessageIndex index, String[] words, int messages, int chats) {
+        Random rnd = new Random(3);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < messages; i++) index.add(1 + rnd.nextInt(chats), 1_000_000L + i, text(words, rnd));
+        check(index.awaitIndexed(600_000), "indexing finished");
+        long nanos = System.nanoTime() - t0;
+        quiesce(index, 8);
+        long total = System.nanoTime() - t0;
+        System.out.printf("index:   %,d messages in %d chats, %,.0f msg/s applied, %.1f s until written and merged%n",
+                messages, chats, messages / (nanos / 1e9), total / 1e9);
+    }
+
+    private static void query(MessageIndex index, String[] words, int chats, int queries) {
+        Random rnd = new Random(4);
+        long[] micros = new long[queries];
+        long hits = 0;
+        for (int i = 0; i < queries; i++) {
+            List<Integer> scope = new ArrayList<>();
+            for (int c = 0; c < 50; c++) scope.add(1 + rnd.nextInt(chats));
+            String q = words[zipf(rnd, VOCABULARY)];
+            if (i % 2 == 0) q += " " + words[zipf(rnd, 500)];
+            long t = System.nanoTime();
+            hits += index.search(scope, q, null, 20).size();
+            micros[i] = (System.nanoTime() - t) / 1_000;
+        }
+        Arrays.sort(micros);
+        System.out.printf("query:   %,d queries over 50 chats, p50 %.2f ms, p99 %.2f ms, max %.2f ms (%,d hits)%n",
+                queries, micros[queries / 2] / 1e3, micros[queries * 99 / 100] / 1e3, micros[queries - 1] / 1e3, hits);
+    }
+
+    // ---- helpers ----
+
+    /** Waits until the merger has written every frozen segment and merged down to maxSegments. */
+    private static void quiesce(MessageIndex index, int maxSegments) {
+        while (true) {
+            Map<String, Object> m = index.snapshot();
+            if ((int) m.get("frozen") == 0 && (long) m.get("segments") <= maxSegments) break;
+            sleep(20);
+        }
+        sleep(200);
+    }
+
+    private static String[] vocabulary(Random rnd) {
+        String[] words = new String[VOCABULARY];
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < VOCABULARY; ) {
+            StringBuilder sb = new StringBuilder();
+            int len = 2 + rnd.nextInt(6);
+            boolean persian = rnd.nextBoolean();
+            for (int j = 0; j < len; j++) {
+                sb.append(persian ? PERSIAN.charAt(rnd.nextInt(PERSIAN.length())) : (char) ('a' + rnd.nextInt(26)));
+            }
+            if (seen.add(sb.toString())) words[i++] = sb.toString();
+        }
+        return words;
+    }
+
+    private static String text(String[] words, Random rnd) {
+        StringBuilder sb = new StringBuilder();
+        int n = 3 + rnd.nextInt(12);
+        for (int i = 0; i < n; i++) {
+            if (i > 0) sb.append(i % 5 == 0 ? ", " : " ");
+            sb.append(words[zipf(rnd, VOCABULARY)]);
+        }
+        return sb.toString();
+    }
+
+    /** Roughly Zipf-distributed index below n: small indexes are far more frequent. */
+    private static int zipf(Random rnd, int n) {
+        return (int) Math.min(n - 1, Math.floor(Math.pow(n + 1.0, rnd.nextDouble())) - 1);
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) throw new IllegalStateException("MessageIndex contract violated: " + what);
+    }
+}
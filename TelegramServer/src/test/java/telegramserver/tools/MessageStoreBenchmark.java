@@ -0,0 +1,120 @@
+package telegramserver.tools;
+
+import telegramserver.models.Message;
+import telegramserver.storage.JdbcMessageStore;
+import telegramserver.storage.LogMessageStore;
+import telegramserver.storage.MessageStore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures one MessageStore implementation. Its contract is checked by
+ * MessageStoreContractTest under mvn test.
+ *
+ * - append: messages/s with one chat set per thread, each append waited for (durable);
+ * - history: latest page and a random deeper page of 50;
+ * - churn: deletes and edits 40% of one chat, which triggers a log compaction.
+ *
+ * Run it once per store to compare them. The log store writes to telegram.store.dir or a
+ * temp directory; the jdbc store writes rows with chat ids from 2,000,000,000 up into the
+ * configured database.
+ *
+ * Usage (after mvn test-compile):
+ *   java -cp target/classes:target/test-classes:gson.jar[:postgresql.jar] telegramserver.tools.MessageStoreBenchmark log|jdbc [messages] [threads]
+ */
+public final class MessageStoreBenchmark {
+
+    private static final int BASE_CHAT = 2_000_000_000;
+    private static final int CHATS_PER_THREAD = 4;
+    private static final int PAGE = 50;
+
+    public static void main(String[] args) throws Exception {
+        String kind = args.length > 0 ? args[0] : "log";
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+        boolean log = kind.equals("log");
+        Path dir = log ? logDir() : null;
+        MessageStore store = log ? new LogMessageStore(dir) : new JdbcMessageStore();
+
+        append(store, messages, threads);
+        history(store, threads, 20_000);
+        churn(store, Math.min(messages / threads / CHATS_PER_THREAD, 20_000));
+        store.close();
+        System.exit(0);
+    }
+
+    private static Path logDir() throws IOException {
+        String configured = System.getProperty("telegram.store.dir");
+        return configured != null ? Paths.get(configured) : Files.createTempDirectory("message-store-bench");
+    }
+
+    // ---- measurements ----
+
+    private static void append(MessageStore store, int messages, int threads) throws InterruptedException {
+        int perThread = messages / threads;
+        List<Thread> workers = new ArrayList<>();
+        long t0 = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int firstChat = BASE_CHAT + 1 + t * CHATS_PER_THREAD;
+            Thread w = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    store.append(message(i / CHATS_PER_THREAD + 1, firstChat + i % CHATS_PER_THREAD,
+                            "benchmark message " + i)).join();
+                }
+            });
+            workers.add(w);
+            w.start();
+        }
+        for (Thread w : workers) w.join();
+        long nanos = System.nanoTime() - t0;
+        System.out.printf("append:  %,d messages, %d threads, %,.0f msg/s, %.1f us/msg per thread%n",
+                perThread * threads, threads, perThread * threads / (nanos / 1e9), nanos / 1e3 / perThread);
+    }
+
+    private static void history(MessageStore store, int threads, int reads) {
+        int chats = threads * CHATS_PER_THREAD;
+        long sink = 0;
+        long t0 = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            sink += store.history(BASE_CHAT + 1 + i % chats, Long.MAX_VALUE, PAGE).size();
+        }
+        long t1 = System.nanoTime();
+        long maxId = Math.max(2, store.history(BASE_CHAT + 1, Long.MAX_VALUE, 1).get(0).getId());
+        for (int i = 0; i < reads; i++) {
+            long before = ThreadLocalRandom.current().nextLong(1, maxId);
+            sink += store.history(BASE_CHAT + 1 + i % chats, before, PAGE).size();
+        }
+        long t2 = System.nanoTime();
+        System.out.printf("history: latest page %.1f us, random page %.1f us (%d rows read)%n",
+                (t1 - t0) / 1e3 / reads, (t2 - t1) / 1e3 / reads, sink);
+    }
+
+    private static void churn(MessageStore store, int perChat) {
+        int chat = BASE_CHAT + 1;
+        long t0 = System.nanoTime();
+        int changes = 0;
+        for (int id = 1; id <= perChat; id++) {
+            if (id % 5 == 0) store.delete(chat, id);
+            else if (id % 5 == 1) store.edit(chat, id, "edited " + id);
+            else continue;
+            changes++;
+        }
+        long nanos = System.nanoTime() - t0;
+        System.out.printf("churn:   %,d edits/deletes, %.1f us each%n", changes, nanos / 1e3 / Math.max(1, changes));
+        if (store instanceof LogMessageStore) System.out.println("store:   " + ((LogMessageStore) store).snapshot());
+    }
+
+    // ---- helpers ----
+
+    private static Message message(int id, int chat, String text) {
+        return new Message(id, text, 1, chat, 0, new Timestamp(System.currentTimeMillis()), false, false);
+    }
+}
@@ -0,0 +1,224 @@
+package telegramserver.tools;
+
+import telegramserver.search.TextNormalizer;
+import telegramserver.search.UserIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks UserIndex against a brute-force scan, then measures it.
+ *
+ * - contract: 50,000 users; 2,000 queries (prefixes of real names, typos, Arabic letter
+ *   forms, phone numbers in +98 form, two-word queries) must return exactly the users whose
+ *   allowed fields have a term matching every word, exactly, by prefix or within the edit
+ *   distance, in ORDER (a subset of them where a word matches more than MAX_CANDIDATES);
+ * - build: users/s and heap of the arrays at the big size;
+ * - type-ahead: latency of every keystroke of a name typed letter by letter, and of
+ *   misspelled words.
+ *
+ * Usage (after mvn test-compile):
+ *   java -Xmx3g -cp target/classes:target/test-classes:gson.jar telegramserver.tools.UserDirectoryBenchmark [users]
+ */
+public final class UserDirectoryBenchmark {
+
+    private static final String PERSIAN = "ابپتثجچحخدذرزژسشصضطظعغفقکگلمنوهی";
+
+    public static void main(String[] args) {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        String[] names = names(new Random(1), 5_000);
+
+        contract(names);
+        System.out.println("contract: ok");
+
+        List<UserIndex.Person> people = people(new Random(3), names, users);
+        long t0 = System.nanoTime();
+        UserIndex index = UserIndex.build(people);
+        long nanos = System.nanoTime() - t0;
+        System.out.printf("build:   %,d users, %,d terms in %.1f s (%,.0f users/s), %,d MB of arrays%n",
+                users, index.terms(), nanos / 1e9, users / (nanos / 1e9), index.bytes() >> 20);
+        typeAhead(index, people, 2_000);
+        System.exit(0);
+    }
+
+    // ---- contract ----
+
+    private static void contract(String[] names) {
+        Random rnd = new Random(2);
+        List<UserIndex.Person> people = people(rnd, names, 50_000);
+        UserIndex index = UserIndex.build(people);
+        for (int i = 0; i < 2_000; i++) {
+            UserIndex.Person p = people.get(rnd.nextInt(people.size()));
+            String q = query(rnd, p);
+            List<UserIndex.Word> words = UserIndex.words(q, UserIndex.NAMES | UserIndex.PHONE);
+            if (words.isEmpty()) continue;
+            List<UserIndex.Match> got = index.search(words, Integer.MAX_VALUE);
+            Set<Integer> expected = bruteForce(people, words);
+            Set<Integer> ids = new HashSet<>();
+            for (UserIndex.Match m : got) ids.add(m.person().id());
+            boolean capped = false;
+            for (UserIndex.Word w : words) capped |= bruteForce(people, List.of(w)).size() > UserIndex.MAX_CANDIDATES;
+            boolean ok = capped ? expected.containsAll(ids) : ids.equals(expected);
+            check(ok && ids.size() == got.size(), "matches of '" + q + "': " + ids.size() + " vs " + expected.size());
+            for (int j = 1; j < got.size(); j++) check(UserIndex.ORDER.compare(got.get(j - 1), got.get(j)) < 0, "order of '" + q + "'");
+            if (q.equals(p.username())) check(got.get(0).score() == got.stream().mapToInt(UserIndex.Match::score).max().getAsInt(), "exact username first");
+        }
+    }
+
+    /** A query that finds p: a prefix, a typo, another letter form, a phone or two words. */
+    private static String query(Random rnd, UserIndex.Person p) {
+        String first = p.firstName();
+        switch (rnd.nextInt(6)) {
+            case 0: return first.substring(0, Math.max(1, 1 + rnd.nextInt(first.length())));
+            case 1: return p.username();
+            case 2: return typo(rnd, p.secondName());
+            case 3: return first.replace('ی', 'ي').replace('ک', 'ك') + " " + p.secondName().substring(0, Math.min(3, p.secondName().length()));
+            case 4: return "+98 " + p.phone().substring(1, 4) + " " + p.phone().substring(4);
+            default: return typo(rnd, p.username());
+        }
+    }
+
+    private static Set<Integer> bruteForce(List<UserIndex.Person> people, List<UserIndex.Word> words) {
+        Set<Integer> out = new HashSet<>();
+        for (UserIndex.Person p : people) {
+            boolean all = true;
+            for (UserIndex.Word w : words) all &= matches(p, w);
+            if (all) out.add(p.id());
+        }
+        return out;
+    }
+
+    private static boolean matches(UserIndex.Person p, UserIndex.Word w) {
+        if (w.fields() == UserIndex.PHONE) return w.text().equals(UserIndex.phoneTerm(p.phone()));
+        List<String> terms = new ArrayList<>();
+        if ((w.fields() & UserIndex.USERNAME) != 0) {
+            List<String> parts = TextNormalizer.terms(p.username());
+            terms.addAll(parts);
+            if (parts.size() > 1) terms.add(String.join("", parts));
+        }
+        if ((w.fields() & UserIndex.FIRST_NAME) != 0) terms.addAll(TextNormalizer.terms(p.firstName()));
+        if ((w.fields() & UserIndex.SECOND_NAME) != 0) terms.addAll(TextNormalizer.terms(p.secondName()));
+        String s = w.text();
+        int k = s.length() >= 8 ? 2 : 1;
+        for (String t : terms) {
+            if (t.startsWith(s)) return true;
+            if (s.length() < 4 || t.charAt(0) != s.charAt(0)) continue;
+            if (distance(s, t) <= k) return true;
+            for (int d = s.length(); d <= Math.min(t.length(), s.length() + k); d++) {
+                if (distance(s, t.substring(0, d)) <= k) return true;
+            }
+        }
+        return false;
+    }
+
+    /** Optimal string alignment distance: edits, with an adjacent transposition counting once. */
+    private static int distance(String a, String b) {
+        int[][] d = new int[a.length() + 1][b.length() + 1];
+        for (int i = 0; i <= a.length(); i++) d[i][0] = i;
+        for (int j = 0; j <= b.length(); j++) d[0][j] = j;
+        for (int i = 1; i <= a.length(); i++) {
+            for (int j = 1; j <= b.length(); j++) {
+                int v = Math.min(Math.min(d[i - 1][j], d[i][j - 1]) + 1, d[i - 1][j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1));
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    v = Math.min(v, d[i - 2][j - 2] + 1);
+                }
+                d[i][j] = v;
+            }
+        }
+        return d[a.length()][b.length()];
+    }
+
+    // ---- measurements ----
+
+    private static void typeAhead(UserIndex index, List<UserIndex.Person> people, int queries) {
+        Random rnd = new Random(4);
+        List<Long> micros = new ArrayList<>();
+        List<Long> typoMicros = new ArrayList<>();
+        long hits = 0;
+        for (int i = 0; i < queries; i++) {
+            UserIndex.Person p = people.get(rnd.nextInt(people.size()));
+            String text = i % 3 == 0 ? p.username() : p.firstName() + " " + p.secondName();
+            for (int n = 1; n <= text.length(); n++) {
+                List<UserIndex.Word> words = UserIndex.words(text.substring(0, n), UserIndex.NAMES | UserIndex.PHONE);
+                if (words.isEmpty()) continue;
+                long t = System.nanoTime();
+                hits += index.search(words, 20).size();
+                micros.add((System.nanoTime() - t) / 1_000);
+            }
+            List<UserIndex.Word> typo = UserIndex.words(typo(rnd, p.secondName()), UserIndex.NAMES);
+            long t = System.nanoTime();
+            hits += index.search(typo, 20).size();
+            typoMicros.add((System.nanoTime() - t) / 1_000);
+        }
+        report("keystroke", micros);
+        report("typo", typoMicros);
+        System.out.printf("           (%,d results)%n", hits);
+    }
+
+    private static void report(String what, List<Long> micros) {
+        long[] m = micros.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(m);
+        System.out.printf("%-9s  %,d queries, p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                what + ":", m.length, m[m.length / 2] / 1e3, m[m.length * 99 / 100] / 1e3, m[m.length - 1] / 1e3);
+    }
+
+    // ---- data ----
+
+    private static String[] names(Random rnd, int n) {
+        String[] names = new String[n];
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < n; ) {
+            StringBuilder sb = new StringBuilder();
+            int len = 3 + rnd.nextInt(7);
+            boolean persian = rnd.nextBoolean();
+            for (int j = 0; j < len; j++) {
+                sb.append(persian ? PERSIAN.charAt(rnd.nextInt(PERSIAN.length())) : (char) ('a' + rnd.nextInt(26)));
+            }
+            if (seen.add(sb.toString())) names[i++] = sb.toString();
+        }
+        return names;
+    }
+
+    private static List<UserIndex.Person> people(Random rnd, String[] names, int n) {
+        List<UserIndex.Person> out = new ArrayList<>(n);
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 0; i < n; i++) {
+            int id;
+            do id = rnd.nextInt(Integer.MAX_VALUE); while (!ids.add(id));
+            String first = names[zipf(rnd, names.length)];
+            String second = names[zipf(rnd, names.length)];
+            String latin = names[rnd.nextInt(names.length)];
+            String username = switch (i % 3) {
+                case 0 -> latin + i;
+                case 1 -> latin + "_" + names[rnd.nextInt(names.length)] + (i % 100);
+                default -> latin.charAt(0) + "" + i;
+            };
+            String phone = String.format("09%09d", rnd.nextInt(1_000_000_000));
+            out.add(new UserIndex.Person(id, username, first, second, i % 4 == 0 ? null : "bio of " + first, phone));
+        }
+        return out;
+    }
+
+    private static String typo(Random rnd, String s) {
+        if (s.length() < 5) return s;
+        int i = 1 + rnd.nextInt(s.length() - 2);
+        return switch (rnd.nextInt(3)) {
+            case 0 -> s.substring(0, i) + s.substring(i + 1);                                   // deletion
+            case 1 -> s.substring(0, i) + s.charAt(i + 1) + s.charAt(i) + s.substring(i + 2);  // transposition
+            default -> s.substring(0, i) + 'x' + s.substring(i + 1);                            // substitution
+        };
+    }
+
+    /** Roughly Zipf-distributed index below n: small indexes are far more frequent. */
+    private static int zipf(Random rnd, int n) {
+        return (int) Math.min(n - 1, Math.floor(Math.pow(n + 1.0, rnd.nextDouble())) - 1);
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) throw new IllegalStateException("UserIndex contract violated: " + what);
+    }
+}